@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the archive step of {@link Backup#run()} on a synthetic world: walking the world and writing it with the
+ * codec the options select. Only the archive size is checked, the catalog and the messages of a real backup are
+ * left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BackupArchiveBenchmark {
+
+    /** An {@link ArchiveFormat}, the generated benchmark code can only set public types */
+    @Param({"ZIP", "LZ4", "ZSTD"})
+    public String format;
+
+    /** Only changes the zip format */
+    @Param({"true", "false"})
+    public boolean adaptive;
+
+    @Param({"16"})
+    public int regions;
+
+    private final BackupOptions options = new BackupOptions();
+    private File worldDir;
+    private File archive;
+
+    @Setup(Level.Trial)
+    public void createWorld() throws IOException {
+        worldDir = Files.createTempDir();
+        SyntheticWorld.create(worldDir, regions, 0.6, 50, 42);
+        options.archiveFormat = ArchiveFormat.valueOf(format);
+        options.adaptiveCompression = adaptive;
+        archive = File.createTempFile("benchmark", "." + options.archiveFormat.getExtension(options.fileEnding));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorld() throws IOException {
+        FileUtils.deleteDirectory(worldDir);
+        //noinspection ResultOfMethodCallIgnored
+        archive.delete();
+    }
+
+    @Benchmark
+    public long archive() throws IOException {
+        final List<ParallelArchiver.Source> sources = ParallelArchiver.collect(worldDir, options.filter, options.walkThreads);
+        Backup.createCodec(options, BackupThrottle.NONE).archive(sources, archive, BackupCatalog.toComment(new Backup.DataFile()), null, null, null);
+        return archive.length();
+    }
+}
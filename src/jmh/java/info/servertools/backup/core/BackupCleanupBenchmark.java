@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.io.Files;
+import info.servertools.backup.core.BackupCleanup.BackupMetadata;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the part of {@link BackupCleanup#run(File, BackupOptions)} that runs before anything is deleted, on a directory of
+ * hundreds of backups: scanning the directory through the catalog and picking the backups to remove.
+ * <p>
+ * {@link #scanCatalog()} is the common case where the catalog is up to date, {@link #scanRebuild()} is the first
+ * cleanup after an upgrade or after the catalog was lost, where every archive comment has to be read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BackupCleanupBenchmark {
+
+    @Param({"100", "500"})
+    public int backups;
+
+    private final BackupOptions options = new BackupOptions();
+    private File backupDir;
+    private File catalog;
+    private TreeSet<BackupMetadata> scanned;
+
+    @Setup(Level.Trial)
+    public void createBackups() throws IOException {
+        backupDir = Files.createTempDir();
+        SyntheticWorld.createBackups(backupDir, backups, options.fileEnding);
+        catalog = new File(backupDir, BackupCatalog.FILE_NAME);
+
+        options.maxNumberBackups = backups / 2;
+        options.lifespanDays = 14;
+        options.maxFolderSize = 1;
+
+        scanned = BackupCleanup.scan(backupDir, options.fileEnding);
+        if (scanned.size() != backups) throw new IllegalStateException("Scanned " + scanned.size() + " of " + backups + " backups");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBackups() throws IOException {
+        FileUtils.deleteDirectory(backupDir);
+    }
+
+    @Benchmark
+    public TreeSet<BackupMetadata> scanCatalog() {
+        return BackupCleanup.scan(backupDir, options.fileEnding);
+    }
+
+    @Benchmark
+    public TreeSet<BackupMetadata> scanRebuild() {
+        //noinspection ResultOfMethodCallIgnored
+        catalog.delete();
+        return BackupCleanup.scan(backupDir, options.fileEnding);
+    }
+
+    @Benchmark
+    public Map<BackupMetadata, String> selectForRemoval() {
+        return BackupCleanup.selectForRemoval(scanned, options, FileUtil.fileSize(backupDir), System.currentTimeMillis());
+    }
+}
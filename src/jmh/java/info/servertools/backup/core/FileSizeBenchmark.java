@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link FileUtil#fileSize(File, int)}, which the cleanup and every backup message run on whole directories,
+ * and {@link ParallelArchiver#collect}, which walks the world for every backup. The tree has {@code fanout^depth} leaf
+ * directories with {@value #FILES_PER_DIRECTORY} files in every directory, so depth 6 is about 43 000 files, the size
+ * of a world with a few mods that keep data per player.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileSizeBenchmark {
+
+    private static final int FANOUT = 4;
+    private static final int FILES_PER_DIRECTORY = 8;
+
+    @Param({"4", "6"})
+    public int depth;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private final PathFilter filter = PathFilter.compile(Collections.singleton("level.dat_new"), Collections.singleton("DIM1"),
+            Collections.<String>emptySet(), Arrays.asList("*.tmp", "regex:.*/session\\.lock"));
+
+    private File root;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        root = Files.createTempDir();
+        SyntheticWorld.createTree(root, depth, FANOUT, FILES_PER_DIRECTORY);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Benchmark
+    public long fileSize() {
+        return FileUtil.fileSize(root, threads);
+    }
+
+    @Benchmark
+    public int collect() throws IOException {
+        return ParallelArchiver.collect(root, filter, threads).size();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Measures how the throughput of {@link ParallelArchiver} scales with the number of compression threads.
+ * <p>
+ * The synthetic world holds {@value #REGION_FILES} region sized files that mix random and repetitive data, so every
+ * run compresses {@value #REGION_FILES} * {@value #REGION_SIZE} bytes. Divide that by the reported time to get MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelArchiverBenchmark {
+
+    private static final int REGION_FILES = 32;
+    private static final int REGION_SIZE = 4 * 1024 * 1024;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int threads;
+
+    private File worldDir;
+    private File archive;
+
+    @Setup(Level.Trial)
+    public void createWorld() throws IOException {
+        worldDir = Files.createTempDir();
+        File regionDir = new File(worldDir, "region");
+        //noinspection ResultOfMethodCallIgnored
+        regionDir.mkdirs();
+
+        Random random = new Random(42);
+        byte[] data = new byte[REGION_SIZE];
+        for (int i = 0; i < REGION_FILES; i++) {
+            for (int pos = 0; pos < data.length; pos += 4096) {
+                // Half of the sectors are noise, the rest compress like NBT padding does
+                if (random.nextBoolean()) {
+                    byte[] sector = new byte[4096];
+                    random.nextBytes(sector);
+                    System.arraycopy(sector, 0, data, pos, sector.length);
+                } else {
+                    for (int j = pos; j < pos + 4096; j++) {
+                        data[j] = (byte) (j % 64);
+                    }
+                }
+            }
+            Files.write(data, new File(regionDir, "r." + i + ".0.mca"));
+        }
+        archive = File.createTempFile("benchmark", ".zip");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorld() throws IOException {
+        FileUtils.deleteDirectory(worldDir);
+        //noinspection ResultOfMethodCallIgnored
+        archive.delete();
+    }
+
+    @Benchmark
+    public long archive() throws IOException {
+        new ParallelArchiver(threads, Deflater.DEFAULT_COMPRESSION)
+                .archive(worldDir, archive, PathFilter.ALL);
+        return archive.length();
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds directories that look like the ones the benchmarks deal with on a real server.
+ * <p>
+ * Region files have the anvil layout: a location and timestamp table followed by 4 KB sectors holding zlib compressed
+ * chunks. The chunks, players, level.dat and data files are valid NBT as Minecraft writes it. The chunks hold long runs of
+ * stone and air with some ores, caves and noisy light data, so they compress about as well as the real thing, and an
+ * {@code InhabitedTime} most chunks have little of. Everything is generated from a seed, so every run of a
+ * benchmark sees the same bytes.
+ */
+final class SyntheticWorld {
+
+    private static final int SECTOR = 4096;
+    private static final int CHUNKS_PER_REGION = 32 * 32;
+    private static final int SECTION_BLOCKS = 16 * 16 * 16;
+
+    private SyntheticWorld() {
+    }
+
+    /**
+     * Create a world directory
+     *
+     * @param worldDir the directory to fill, created if it doesn't exist
+     * @param regions  the number of region files in the overworld, the nether and the end get a quarter each
+     * @param fill     the fraction of the chunks in every region file that have been generated
+     * @param players  the number of players with playerdata and stats
+     * @param seed     the seed of all generated data
+     */
+    static void create(File worldDir, int regions, double fill, int players, long seed) throws IOException {
+        final Random random = new Random(seed);
+        writeRegions(new File(worldDir, "region"), regions, fill, random);
+        writeRegions(new File(worldDir, "DIM-1/region"), Math.max(1, regions / 4), fill, random);
+        writeRegions(new File(worldDir, "DIM1/region"), Math.max(1, regions / 4), fill, random);
+
+        final File playerDir = new File(worldDir, "playerdata");
+        final File statsDir = new File(worldDir, "stats");
+        mkdirs(playerDir);
+        mkdirs(statsDir);
+        for (int i = 0; i < players; i++) {
+            final UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            writeGzip(new File(playerDir, uuid + ".dat"), player(random));
+            Files.write(stats(random), new File(statsDir, uuid + ".json"));
+        }
+
+        final File dataDir = new File(worldDir, "data");
+        mkdirs(dataDir);
+        writeGzip(new File(dataDir, "villages.dat"), structures(128, random));
+        writeGzip(new File(dataDir, "Mineshaft.dat"), structures(512, random));
+        writeGzip(new File(worldDir, "level.dat"), level(random));
+        try (DataOutputStream lock = new DataOutputStream(new FileOutputStream(new File(worldDir, "session.lock")))) {
+            lock.writeLong(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Create a directory tree of small files
+     *
+     * @param root   the root of the tree
+     * @param depth  the number of directory levels below the root
+     * @param fanout the number of directories in every directory that isn't a leaf
+     * @param files  the number of files in every directory
+     */
+    static void createTree(File root, int depth, int fanout, int files) throws IOException {
+        mkdirs(root);
+        for (int i = 0; i < files; i++) {
+            try (RandomAccessFile file = new RandomAccessFile(new File(root, "file" + i + ".dat"), "rw")) {
+                // Sparse, only the size matters
+                file.setLength(1024 * (i + 1));
+            }
+        }
+        if (depth == 0) return;
+        for (int i = 0; i < fanout; i++) {
+            createTree(new File(root, "dir" + i), depth - 1, fanout, files);
+        }
+    }
+
+    /**
+     * Fill a directory with small backup archives that carry their metadata in the archive comment, one every hour
+     * going back from now
+     *
+     * @param backupDir  the backup directory
+     * @param count      the number of archives
+     * @param fileEnding the file ending of the archives
+     */
+    static void createBackups(File backupDir, int count, String fileEnding) throws IOException {
+        mkdirs(backupDir);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            final Backup.DataFile data = new Backup.DataFile();
+            data.timestamp = now - i * 3600000L;
+            final File archive = new File(backupDir, String.format("backup-%05d.%s", i, fileEnding));
+            try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive))) {
+                zip.setComment(BackupCatalog.toComment(data));
+                zip.putNextEntry(new ZipEntry(Backup.DataFile.FILE_NAME));
+                zip.write(BackupCatalog.toComment(data).getBytes(Charsets.UTF_8));
+                zip.closeEntry();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            archive.setLastModified(data.timestamp);
+        }
+    }
+
+    private static void writeRegions(File regionDir, int count, double fill, Random random) throws IOException {
+        mkdirs(regionDir);
+        final int side = (int) Math.ceil(Math.sqrt(count));
+        for (int i = 0; i < count; i++) {
+            final int x = i % side - side / 2;
+            final int z = i / side - side / 2;
+            writeRegion(new File(regionDir, "r." + x + "." + z + ".mca"), x, z, fill, random);
+        }
+    }
+
+    private static void writeRegion(File file, int regionX, int regionZ, double fill, Random random) throws IOException {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (RandomAccessFile region = new RandomAccessFile(file, "rw")) {
+            region.setLength(0);
+            region.write(new byte[2 * SECTOR]);
+            int sector = 2;
+            for (int index = 0; index < CHUNKS_PER_REGION; index++) {
+                if (random.nextDouble() >= fill) continue;
+                final byte[] compressed = zlib(chunk(regionX * 32 + index % 32, regionZ * 32 + index / 32, random), deflater);
+                final int sectors = (compressed.length + 5 + SECTOR - 1) / SECTOR;
+
+                region.seek((long) sector * SECTOR);
+                region.writeInt(compressed.length + 1);
+                region.writeByte(2); // zlib
+                region.write(compressed);
+                region.write(new byte[sectors * SECTOR - compressed.length - 5]);
+
+                region.seek(index * 4);
+                region.writeInt(sector << 8 | sectors);
+                region.seek(SECTOR + index * 4);
+                region.writeInt((int) (System.currentTimeMillis() / 1000) - random.nextInt(86400 * 30));
+                sector += sectors;
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** @return the uncompressed NBT of a chunk, with the sections that a typical overworld chunk has */
+    private static byte[] chunk(int x, int z, Random random) throws IOException {
+        final Nbt nbt = new Nbt(96 * 1024);
+        nbt.startCompound("Level");
+        nbt.putInt("xPos", x);
+        nbt.putInt("zPos", z);
+        nbt.putLong("LastUpdate", random.nextInt(10000000));
+        nbt.putByte("TerrainPopulated", 1);
+        nbt.putByte("LightPopulated", 1);
+        nbt.putByte("V", 1);
+        // Most generated chunks were only passed by, a few are where the players live
+        final int roll = random.nextInt(10);
+        nbt.putLong("InhabitedTime", roll < 6 ? 0 : roll < 9 ? random.nextInt(2400) : random.nextInt(2000000));
+
+        final int sections = 4 + random.nextInt(5);
+        final byte[] blocks = new byte[SECTION_BLOCKS];
+        final byte[] nibbles = new byte[SECTION_BLOCKS / 2];
+        nbt.startList("Sections", Nbt.COMPOUND, sections);
+        for (int y = 0; y < sections; y++) {
+            nbt.putByte("Y", y);
+            final boolean surface = y == sections - 1;
+            for (int i = 0; i < blocks.length; i++) {
+                final int block = random.nextInt(1000);
+                if (surface) {
+                    blocks[i] = (byte) (i < SECTION_BLOCKS / 4 ? 3 : i < SECTION_BLOCKS / 4 + 256 ? 2 : 0); // dirt, grass, air
+                } else if (block < 10) {
+                    blocks[i] = (byte) (14 + random.nextInt(3)); // ores
+                } else if (block < 60) {
+                    blocks[i] = 0; // caves
+                } else if (block < 100) {
+                    blocks[i] = (byte) (y == 0 ? 7 : 13); // bedrock, gravel
+                } else {
+                    blocks[i] = 1; // stone
+                }
+            }
+            nbt.putBytes("Blocks", blocks);
+            nbt.putBytes("Data", new byte[nibbles.length]);
+            nbt.putBytes("BlockLight", new byte[nibbles.length]);
+            if (surface) {
+                random.nextBytes(nibbles);
+            } else {
+                Arrays.fill(nibbles, (byte) 0);
+            }
+            nbt.putBytes("SkyLight", nibbles);
+            nbt.end();
+        }
+
+        final int[] heightMap = new int[256];
+        for (int i = 0; i < heightMap.length; i++) {
+            heightMap[i] = sections * 16 - random.nextInt(4);
+        }
+        nbt.putInts("HeightMap", heightMap);
+        final byte[] biomes = new byte[256];
+        final byte biome = (byte) random.nextInt(20);
+        for (int i = 0; i < biomes.length; i++) {
+            biomes[i] = random.nextInt(10) == 0 ? (byte) (biome + 1) : biome;
+        }
+        nbt.putBytes("Biomes", biomes);
+
+        final int entities = random.nextInt(8);
+        nbt.startList("Entities", Nbt.COMPOUND, entities);
+        for (int i = 0; i < entities; i++) {
+            entity(nbt, x * 16 + random.nextInt(16), z * 16 + random.nextInt(16), random);
+            nbt.end();
+        }
+        final int tileEntities = random.nextInt(4);
+        nbt.startList("TileEntities", Nbt.COMPOUND, tileEntities);
+        for (int i = 0; i < tileEntities; i++) {
+            nbt.putString("id", "Chest");
+            nbt.putInt("x", x * 16 + random.nextInt(16));
+            nbt.putInt("y", random.nextInt(sections * 16));
+            nbt.putInt("z", z * 16 + random.nextInt(16));
+            inventory(nbt, random.nextInt(27), random);
+            nbt.end();
+        }
+        nbt.end();
+        return nbt.toByteArray();
+    }
+
+    /** @return the NBT of a player */
+    private static byte[] player(Random random) throws IOException {
+        final Nbt nbt = new Nbt(4096);
+        entity(nbt, random.nextInt(2000) - 1000, random.nextInt(2000) - 1000, random);
+        nbt.putInt("XpLevel", random.nextInt(40));
+        nbt.putFloat("XpP", random.nextFloat());
+        nbt.putInt("foodLevel", random.nextInt(21));
+        nbt.putInt("playerGameType", 0);
+        inventory(nbt, 5 + random.nextInt(36), random);
+        nbt.startList("EnderItems", Nbt.COMPOUND, 0);
+        return nbt.toByteArray();
+    }
+
+    /** @return the NBT of a data file holding a list of structures or villages */
+    private static byte[] structures(int count, Random random) throws IOException {
+        final Nbt nbt = new Nbt(count * 128);
+        nbt.startCompound("data");
+        nbt.putInt("Tick", random.nextInt(1000000));
+        nbt.startList("Features", Nbt.COMPOUND, count);
+        for (int i = 0; i < count; i++) {
+            nbt.putString("id", "Mineshaft");
+            nbt.putInt("ChunkX", random.nextInt(200) - 100);
+            nbt.putInt("ChunkZ", random.nextInt(200) - 100);
+            nbt.putInts("BB", new int[]{random.nextInt(3200), random.nextInt(64), random.nextInt(3200), random.nextInt(3200), 64, random.nextInt(3200)});
+            nbt.end();
+        }
+        nbt.end();
+        return nbt.toByteArray();
+    }
+
+    /** @return the NBT of level.dat */
+    private static byte[] level(Random random) throws IOException {
+        final Nbt nbt = new Nbt(1024);
+        nbt.startCompound("Data");
+        nbt.putLong("RandomSeed", random.nextLong());
+        nbt.putString("generatorName", "default");
+        nbt.putString("LevelName", "world");
+        nbt.putInt("SpawnX", random.nextInt(256));
+        nbt.putInt("SpawnY", 64);
+        nbt.putInt("SpawnZ", random.nextInt(256));
+        nbt.putLong("Time", random.nextInt(100000000));
+        nbt.putLong("DayTime", random.nextInt(24000));
+        nbt.putLong("LastPlayed", System.currentTimeMillis());
+        nbt.putInt("version", 19133);
+        nbt.putByte("MapFeatures", 1);
+        nbt.startCompound("GameRules");
+        for (String rule : new String[]{"doFireTick", "doMobLoot", "doMobSpawning", "doTileDrops", "keepInventory", "mobGriefing"}) {
+            nbt.putString(rule, "true");
+        }
+        nbt.end();
+        nbt.end();
+        return nbt.toByteArray();
+    }
+
+    /** Write the fields every entity has */
+    private static void entity(Nbt nbt, int x, int z, Random random) throws IOException {
+        nbt.putString("id", random.nextBoolean() ? "Zombie" : "Sheep");
+        nbt.startList("Pos", Nbt.DOUBLE, 3);
+        nbt.writeDouble(x + random.nextDouble());
+        nbt.writeDouble(64 + random.nextInt(16) + random.nextDouble());
+        nbt.writeDouble(z + random.nextDouble());
+        nbt.startList("Motion", Nbt.DOUBLE, 3);
+        nbt.writeDouble(0);
+        nbt.writeDouble(-0.0784000015258789);
+        nbt.writeDouble(0);
+        nbt.startList("Rotation", Nbt.FLOAT, 2);
+        nbt.writeFloat(random.nextFloat() * 360);
+        nbt.writeFloat(0);
+        nbt.putFloat("HealF", 1 + random.nextInt(20));
+        nbt.putShort("Fire", -1);
+        nbt.putShort("Air", 300);
+        nbt.putByte("OnGround", 1);
+        nbt.putLong("UUIDMost", random.nextLong());
+        nbt.putLong("UUIDLeast", random.nextLong());
+    }
+
+    private static void inventory(Nbt nbt, int slots, Random random) throws IOException {
+        nbt.startList("Items", Nbt.COMPOUND, slots);
+        for (int slot = 0; slot < slots; slot++) {
+            nbt.putByte("Slot", slot);
+            nbt.putShort("id", 1 + random.nextInt(400));
+            nbt.putByte("Count", 1 + random.nextInt(64));
+            nbt.putShort("Damage", random.nextInt(4) == 0 ? random.nextInt(1500) : 0);
+            nbt.end();
+        }
+    }
+
+    private static byte[] stats(Random random) {
+        final StringBuilder json = new StringBuilder("{");
+        final String[] stats = {"stat.walkOneCm", "stat.jump", "stat.playOneMinute", "stat.leaveGame", "stat.damageTaken",
+                                "stat.mineBlock.minecraft.stone", "stat.mineBlock.minecraft.dirt", "stat.useItem.minecraft.diamond_pickaxe",
+                                "stat.killEntity.Zombie", "stat.entityKilledBy.Creeper", "achievement.openInventory", "achievement.mineWood"};
+        for (int i = 0; i < stats.length; i++) {
+            if (i > 0) json.append(',');
+            json.append('"').append(stats[i]).append("\":").append(random.nextInt(1000000));
+        }
+        return json.append('}').toString().getBytes(Charsets.UTF_8);
+    }
+
+    private static byte[] zlib(byte[] data, Deflater deflater) throws IOException {
+        deflater.reset();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeGzip(File file, byte[] data) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write(data);
+        }
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create " + dir);
+        }
+    }
+
+    /**
+     * Writes the named binary tags Minecraft stores its data in, with an unnamed compound as the root. Compounds and
+     * the compound elements of lists are closed with {@link #end()}, lists of other tags are followed by their values.
+     */
+    private static final class Nbt {
+        static final int END = 0, BYTE = 1, SHORT = 2, INT = 3, LONG = 4, FLOAT = 5, DOUBLE = 6, BYTE_ARRAY = 7, STRING = 8, LIST = 9,
+                COMPOUND = 10, INT_ARRAY = 11;
+
+        private final ByteArrayOutputStream bytes;
+        private final DataOutputStream out;
+
+        Nbt(int size) throws IOException {
+            bytes = new ByteArrayOutputStream(size);
+            out = new DataOutputStream(bytes);
+            startCompound("");
+        }
+
+        void startCompound(String name) throws IOException {
+            tag(COMPOUND, name);
+        }
+
+        void startList(String name, int type, int length) throws IOException {
+            tag(LIST, name);
+            out.writeByte(length == 0 ? END : type);
+            out.writeInt(length);
+        }
+
+        void end() throws IOException {
+            out.writeByte(END);
+        }
+
+        void putByte(String name, int value) throws IOException {
+            tag(BYTE, name);
+            out.writeByte(value);
+        }
+
+        void putShort(String name, int value) throws IOException {
+            tag(SHORT, name);
+            out.writeShort(value);
+        }
+
+        void putInt(String name, int value) throws IOException {
+            tag(INT, name);
+            out.writeInt(value);
+        }
+
+        void putLong(String name, long value) throws IOException {
+            tag(LONG, name);
+            out.writeLong(value);
+        }
+
+        void putFloat(String name, float value) throws IOException {
+            tag(FLOAT, name);
+            out.writeFloat(value);
+        }
+
+        void putString(String name, String value) throws IOException {
+            tag(STRING, name);
+            out.writeUTF(value);
+        }
+
+        void putBytes(String name, byte[] value) throws IOException {
+            tag(BYTE_ARRAY, name);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+
+        void putInts(String name, int[] value) throws IOException {
+            tag(INT_ARRAY, name);
+            out.writeInt(value.length);
+            for (int v : value) {
+                out.writeInt(v);
+            }
+        }
+
+        /** Write an element of a list of doubles */
+        void writeDouble(double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        /** Write an element of a list of floats */
+        void writeFloat(float value) throws IOException {
+            out.writeFloat(value);
+        }
+
+        /** @return the data, with the root compound closed */
+        byte[] toByteArray() throws IOException {
+            end();
+            return bytes.toByteArray();
+        }
+
+        private void tag(int type, String name) throws IOException {
+            out.writeByte(type);
+            out.writeUTF(name);
+        }
+    }
+}
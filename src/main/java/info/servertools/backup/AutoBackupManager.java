@@ -15,13 +15,17 @@
  */
 package info.servertools.backup;
 
+import info.servertools.backup.core.DimensionBackup;
+
 import cpw.mods.fml.common.FMLCommonHandler;
 import cpw.mods.fml.common.eventhandler.SubscribeEvent;
 import cpw.mods.fml.common.gameevent.TickEvent;
 
+import java.util.Set;
+import java.util.TreeSet;
+
 public class AutoBackupManager {
 
-    private long lastBackup = 0;
     private int tick;
 
     public AutoBackupManager() {
@@ -34,12 +38,39 @@ public class AutoBackupManager {
 
         tick++;
         if (tick >= 20) {
-            if ((System.currentTimeMillis() - lastBackup) / 60000 >= BackupConfig.autoBackupInterval) {
-                ServerToolsBackup.LOG.info("Starting AutoBackup");
-                BackupManager.getInstance().doBackup();
-                lastBackup = System.currentTimeMillis();
+            final BackupManager manager = BackupManager.getInstance();
+            final DirtyRegionTracker dirtyRegions = manager.getDirtyRegions();
+            if (BackupConfig.splitDimensions) {
+                backupDimensions(manager, dirtyRegions);
+            } else if ((System.currentTimeMillis() - dirtyRegions.getLastAutoBackup()) / 60000 >= BackupConfig.autoBackupInterval) {
+                dirtyRegions.setLastAutoBackup(System.currentTimeMillis());
+                if (BackupConfig.skipUnchangedBackups && !dirtyRegions.hasChanges()) {
+                    ServerToolsBackup.LOG.info("Skipping AutoBackup, nothing changed since the last backup");
+                } else {
+                    ServerToolsBackup.LOG.info("Starting AutoBackup, changed since the last backup: {}", dirtyRegions.describeChanges());
+                    manager.submit(BackupJob.Priority.SCHEDULED);
+                }
             }
             tick = 0;
         }
     }
+
+    /** Start a backup of the dimensions whose interval passed */
+    private static void backupDimensions(BackupManager manager, DirtyRegionTracker dirtyRegions) {
+        final long now = System.currentTimeMillis();
+        final Set<String> due = new TreeSet<>();
+        for (String dimension : DimensionBackup.findDimensions(manager.getWorldDirectory(), BackupConfig.pathFilter).keySet()) {
+            if ((now - dirtyRegions.getLastAutoBackup(dimension)) / 60000 < BackupConfig.autoBackupInterval(dimension)) continue;
+            dirtyRegions.setLastAutoBackup(dimension, now);
+            if (BackupConfig.skipUnchangedBackups && !dirtyRegions.hasChanges(dimension)) {
+                ServerToolsBackup.LOG.info("Skipping AutoBackup of {}, nothing changed since its last backup", dimension);
+            } else {
+                due.add(dimension);
+            }
+        }
+        if (!due.isEmpty()) {
+            ServerToolsBackup.LOG.info("Starting AutoBackup of {}, changed since the last backup: {}", due, dirtyRegions.describeChanges());
+            manager.submit(BackupJob.Priority.SCHEDULED, due);
+        }
+    }
 }
@@ -17,6 +17,16 @@ package info.servertools.backup;
 
 import static info.servertools.backup.ServerToolsBackup.LOG;
 
+import info.servertools.backup.core.ArchiveFormat;
+import info.servertools.backup.core.BackupOptions;
+import info.servertools.backup.core.BackupSink;
+import info.servertools.backup.core.ChunkTrim;
+import info.servertools.backup.core.FileUtil;
+import info.servertools.backup.core.LocalDirectorySink;
+import info.servertools.backup.core.ObjectStoreSink;
+import info.servertools.backup.core.PathFilter;
+import info.servertools.backup.core.WorldSnapshot;
+import net.minecraftforge.common.config.ConfigCategory;
 import net.minecraftforge.common.config.Configuration;
 import net.minecraftforge.common.config.Property;
 import org.apache.logging.log4j.LogManager;
@@ -24,9 +34,16 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 public class BackupConfig {
 
@@ -44,13 +61,55 @@ public class BackupConfig {
 
     public static final Set<String> fileBlacklist = new HashSet<>();
     public static final Set<String> directoryBlackList = new HashSet<>();
+    public static final List<String> includePatterns = new ArrayList<>();
+    public static final List<String> excludePatterns = new ArrayList<>();
+    /** The blacklists and patterns, compiled when the config is loaded */
+    public static PathFilter pathFilter = PathFilter.DEFAULT;
 
     public static boolean sendBackupMessageToOps = true;
     public static boolean sendBackupMessageToUsers = true;
     public static final Set<String> backupMessageWhitelist = new HashSet<>();
+    public static int progressMessageSeconds = 0;
 
     public static boolean enableAutoBackup = false;
     public static int autoBackupInterval = 1440;
+    public static boolean skipUnchangedBackups = true;
+
+    public static int compressionThreads = -1;
+    public static int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    public static int regionCompressionLevel = Deflater.BEST_SPEED;
+    public static boolean adaptiveCompression = true;
+    public static boolean compactRegions = false;
+    public static int maxBufferMemory = 64;
+    public static ArchiveFormat archiveFormat = ArchiveFormat.ZIP;
+    public static int zstdLevel = 9;
+    public static WorldSnapshot.Mode snapshotMode = WorldSnapshot.Mode.NONE;
+    public static int flushMillisPerTick = 10;
+    public static int maxTickMillis = 45;
+    public static int maxBytesPerSecond = 0;
+    public static int walkThreads = 1;
+
+    public static boolean enableIncremental = false;
+    public static int fullBackupEvery = 10;
+
+    public static boolean enableRepository = false;
+
+    public static int verifyIntervalHours = 24;
+    public static int verifyMegabytesPerSecond = 8;
+
+    public static int minInhabitedTicks = 0;
+    /** The trim settings, built when the config is loaded */
+    public static ChunkTrim chunkTrim = ChunkTrim.NONE;
+
+    public static int sinkBufferMegabytes = 32;
+    /** The copy directories and the object store, built when the config is loaded */
+    public static List<BackupSink> sinks = Collections.emptyList();
+
+    public static boolean splitDimensions = false;
+    /** The settings that can be changed for single dimensions */
+    private static final String[] DIMENSION_SETTINGS = {"autoBackupInterval", "daysToKeepBackups", "maxBackupDirSize", "maxNumberBackups"};
+    /** The settings of single dimensions that differ from the general ones, by dimension in lower case */
+    private static final Map<String, Map<String, Integer>> dimensionSettings = new HashMap<>();
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
     public static void init(File file) {
@@ -83,7 +142,7 @@ public class BackupConfig {
         backupsPath = prop.getString();
 
         prop = config.get(category, "customFileEnding", fileEnding);
-        prop.comment = "The file ending used for the backupfiles. They stay to be ZIPs it's only the ending." + Configuration.NEW_LINE +
+        prop.comment = "The file ending used for the backupfiles in the ZIP format. They stay to be ZIPs it's only the ending." + Configuration.NEW_LINE +
                        "WARNING: Does not effect existing backups. eg: the old Files wont be converted or be deleted.";
         fileEnding = prop.getString();
 
@@ -127,6 +186,14 @@ public class BackupConfig {
             Collections.addAll(backupMessageWhitelist, array);
         }
 
+        prop = config.get(category, "progressMessageSeconds", progressMessageSeconds);
+        prop.comment = "Send the progress of a running backup to the users who get backup related messages every this many seconds, " +
+                       "at least 5. Set to 0 to disable";
+        progressMessageSeconds = clampInt(prop, 0, Integer.MAX_VALUE);
+        if (progressMessageSeconds > 0 && progressMessageSeconds < 5) {
+            progressMessageSeconds = 5;
+        }
+
         prop = config.get(category, "fileBlackList", "");
         prop.comment = "Comma separated list of files to not back up";
         array = prop.getString().split(",");
@@ -142,6 +209,26 @@ public class BackupConfig {
             Collections.addAll(directoryBlackList, array);
         }
 
+        prop = config.get(category, "excludePatterns", "");
+        prop.comment = "Comma separated list of patterns of files and directories to not back up." + Configuration.NEW_LINE +
+                       "Patterns are globs like *.tmp, DIM-1/** or stats/{a,b}*.json, or regular expressions starting with regex:." + Configuration.NEW_LINE +
+                       "Patterns without a / match names anywhere in the world, the others match the path relative to the world directory";
+        excludePatterns.clear();
+        Collections.addAll(excludePatterns, prop.getString().split(","));
+
+        prop = config.get(category, "includePatterns", "");
+        prop.comment = "Comma separated list of patterns of files to back up, in the same format as excludePatterns. " +
+                       "Leave empty to back up all files that are not excluded";
+        includePatterns.clear();
+        Collections.addAll(includePatterns, prop.getString().split(","));
+
+        try {
+            pathFilter = PathFilter.compile(fileBlacklist, directoryBlackList, includePatterns, excludePatterns);
+        } catch (IllegalArgumentException e) {
+            log.error("{}, backing up without include and exclude patterns", e.getMessage());
+            pathFilter = PathFilter.compile(fileBlacklist, directoryBlackList, Collections.<String>emptySet(), Collections.<String>emptySet());
+        }
+
 
         /* AutoBackup Settings */
         category = "autoBackup";
@@ -154,11 +241,276 @@ public class BackupConfig {
         prop.comment = "The interval in minutes for the auto backup to occur";
         autoBackupInterval = prop.getInt(autoBackupInterval);
 
+        prop = config.get(category, "skipUnchangedBackups", skipUnchangedBackups);
+        prop.comment = "Skip an automatic backup when no chunk was changed and nobody was online since the last backup";
+        skipUnchangedBackups = prop.getBoolean(skipUnchangedBackups);
+
+
+        /* Performance Settings */
+        category = "performance";
+
+        prop = config.get(category, "compressionThreads", compressionThreads);
+        prop.comment = "The number of threads used to compress backups, " +
+                       "Set to -1 to use one thread per available processor";
+        compressionThreads = clampInt(prop, -1, 256);
+        if (compressionThreads == 0) {
+            compressionThreads = 1;
+        }
+
+        prop = config.get(category, "compressionLevel", compressionLevel);
+        prop.comment = "The deflate level used to compress backups, except region files, from 0 (none) to 9 (best), " +
+                       "Set to -1 to use the default level";
+        compressionLevel = clampInt(prop, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION);
+
+        prop = config.get(category, "regionCompressionLevel", regionCompressionLevel);
+        prop.comment = "The deflate level used for region files, from 0 (none) to 9 (best), " +
+                       "The chunks in region files are compressed already, so compressing them hard saves little";
+        regionCompressionLevel = clampInt(prop, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION);
+
+        prop = config.get(category, "maxBufferMemory", maxBufferMemory);
+        prop.comment = "The most memory in megabytes used for data that is read, compressed or waiting to be written by a ZIP backup." + Configuration.NEW_LINE +
+                       "Every block of data in flight takes about 2.3 MB, a few blocks per compression thread keep all threads busy";
+        maxBufferMemory = clampInt(prop, 4, 4096);
+
+        prop = config.get(category, "adaptiveCompression", adaptiveCompression);
+        prop.comment = "Compress a sample of every block of data quickly first, and store blocks that don't get smaller instead of compressing them";
+        adaptiveCompression = prop.getBoolean(adaptiveCompression);
+
+        prop = config.get(category, "compactRegions", compactRegions);
+        prop.comment = "Leave out the unused sectors of region files, which old regions are full of, and pack their chunks tightly in the backup." + Configuration.NEW_LINE +
+                       "The world isn't changed, restored region files are just smaller. Doesn't apply to repository backups";
+        compactRegions = prop.getBoolean(compactRegions);
+
+        prop = config.get(category, "archiveFormat", archiveFormat.name());
+        prop.comment = "The file format of backups, existing backups are read whatever their format." + Configuration.NEW_LINE +
+                       "ZIP: deflate compressed ZIP files ending in customFileEnding, LZ4: tar.lz4 files, much faster but larger, " +
+                       "ZSTD: tar.zst files, smaller at higher levels";
+        archiveFormat = ArchiveFormat.parse(prop.getString());
+
+        prop = config.get(category, "zstdLevel", zstdLevel);
+        prop.comment = "The Zstandard level used for the ZSTD format, from 1 (fastest) to 22 (smallest)";
+        zstdLevel = clampInt(prop, 1, 22);
+
+        prop = config.get(category, "snapshotMode", snapshotMode.name());
+        prop.comment = "Copy the world before compressing it, so world saving is only disabled while the copy is taken." + Configuration.NEW_LINE +
+                       "NONE: compress straight from the world, AUTO: clone, hard link or copy, COPY: always make a full copy." + Configuration.NEW_LINE +
+                       "The snapshot is made next to the world directory and needs as much free space as the world when it can't be cloned";
+        snapshotMode = WorldSnapshot.Mode.parse(prop.getString());
+
+        prop = config.get(category, "flushMillisPerTick", flushMillisPerTick);
+        prop.comment = "How many milliseconds per server tick may be spent saving chunks before a backup starts, " +
+                       "Set to 0 to save all chunks in a single tick";
+        flushMillisPerTick = clampInt(prop, 0, 1000);
+
+        prop = config.get(category, "maxTickMillis", maxTickMillis);
+        prop.comment = "Pause the backup while the last second of server ticks took longer than this many milliseconds on average, " +
+                       "Set to 0 to never pause";
+        maxTickMillis = clampInt(prop, 0, 10000);
+
+        prop = config.get(category, "maxBytesPerSecond", maxBytesPerSecond);
+        prop.comment = "The most bytes per second a backup reads from the world, Set to 0 for no limit";
+        maxBytesPerSecond = clampInt(prop, 0, Integer.MAX_VALUE);
+
+        prop = config.get(category, "walkThreads", walkThreads);
+        prop.comment = "The number of threads listing the world and backup directories, Set to -1 to use one thread per available processor." + Configuration.NEW_LINE +
+                       "More than one thread helps on SSDs and network storage, on spinning disks it usually makes things slower";
+        walkThreads = clampInt(prop, -1, 256);
+        if (walkThreads == 0) {
+            walkThreads = 1;
+        }
+
+
+
+        /* Incremental Backup Settings */
+        category = "incremental";
+
+        prop = config.get(category, "enableIncremental", enableIncremental);
+        prop.comment = "Only store files that changed since the previous backup. Every backup lists all of its files and " +
+                       "which backup holds them, backups that are still needed by newer ones are never cleaned up";
+        enableIncremental = prop.getBoolean(enableIncremental);
+
+        prop = config.get(category, "fullBackupEvery", fullBackupEvery);
+        prop.comment = "Take a full backup every this many backups, the ones in between are incremental";
+        fullBackupEvery = clampInt(prop, 1, Integer.MAX_VALUE);
+
+
+        /* Repository Settings */
+        category = "repository";
+
+        prop = config.get(category, "enableRepository", enableRepository);
+        prop.comment = "Store backups in a deduplicated repository inside the backup directory instead of in ZIP files." + Configuration.NEW_LINE +
+                       "Region files are split into chunks and every distinct chunk is only stored once, each backup is a small index file." + Configuration.NEW_LINE +
+                       "Takes precedence over incremental backups";
+        enableRepository = prop.getBoolean(enableRepository);
+
+
+        /* Verification Settings */
+        category = "verification";
+
+        prop = config.get(category, "verifyIntervalHours", verifyIntervalHours);
+        prop.comment = "Read every backup back in the background once per this many hours, and check it against the checksums " +
+                       "stored when it was taken." + Configuration.NEW_LINE +
+                       "Corrupt backups are reported and don't count towards the backup limits, Set to 0 to disable";
+        verifyIntervalHours = clampInt(prop, 0, Integer.MAX_VALUE);
+
+        prop = config.get(category, "verifyMegabytesPerSecond", verifyMegabytesPerSecond);
+        prop.comment = "The most megabytes per second the verification reads, Set to 0 for no limit";
+        verifyMegabytesPerSecond = clampInt(prop, 0, 2047);
+
+
+        /* Trimming Settings */
+        category = "trimming";
+
+        prop = config.get(category, "minInhabitedTicks", minInhabitedTicks);
+        prop.comment = "Leave the chunks players spent fewer than this many ticks in out of backups, Set to 0 to back up all chunks." + Configuration.NEW_LINE +
+                       "Trimmed chunks are generated again from the seed once a restored world loads them, so only use this if " +
+                       "pre-generated terrain nobody visited may change. Also compacts region files, doesn't apply to repository backups";
+        minInhabitedTicks = clampInt(prop, 0, Integer.MAX_VALUE);
+
+        prop = config.get(category, "protectedAreas", "");
+        prop.comment = "Semicolon separated list of areas that are always backed up in full, like overworld:-512,-512,511,511;DIM-1:-64,-64,63,63" + Configuration.NEW_LINE +
+                       "Each area is a dimension directory or overworld, followed by two corners in block coordinates";
+        try {
+            chunkTrim = ChunkTrim.create(minInhabitedTicks, Arrays.asList(prop.getString().split(";")));
+        } catch (IllegalArgumentException e) {
+            log.error("{}, trimming backups without protected areas", e.getMessage());
+            chunkTrim = ChunkTrim.create(minInhabitedTicks, Collections.<String>emptySet());
+        }
+
+
+        /* Destination Settings */
+        category = "destinations";
+
+        final List<BackupSink> configuredSinks = new ArrayList<>();
+        prop = config.get(category, "copyDirectories", "");
+        prop.comment = "Comma separated list of directories that get a copy of every backup while it is written, like a second disk or a network share." + Configuration.NEW_LINE +
+                       "Copies are not cleaned up, and repository backups are not copied";
+        for (String directory : prop.getString().split(",")) {
+            if (!directory.trim().isEmpty()) {
+                configuredSinks.add(new LocalDirectorySink(new File(directory.trim())));
+            }
+        }
+
+        prop = config.get(category, "objectStoreUrl", "");
+        prop.comment = "Upload a copy of every backup to an S3 compatible object store while it is written, like https://s3.eu-west-1.amazonaws.com/bucket/backups" + Configuration.NEW_LINE +
+                       "The URL names the bucket and an optional prefix, leave empty to not upload backups";
+        final String objectStoreUrl = prop.getString().trim();
+
+        prop = config.get(category, "objectStoreRegion", "us-east-1");
+        prop.comment = "The region the object store requests are signed for";
+        final String objectStoreRegion = prop.getString().trim();
+
+        prop = config.get(category, "objectStoreAccessKey", "");
+        prop.comment = "The access key of the object store, leave empty to send unsigned requests";
+        final String objectStoreAccessKey = prop.getString().trim();
+
+        prop = config.get(category, "objectStoreSecretKey", "");
+        prop.comment = "The secret key belonging to objectStoreAccessKey";
+        final String objectStoreSecretKey = prop.getString().trim();
+
+        prop = config.get(category, "objectStorePartSizeMb", 16);
+        prop.comment = "The size of the parts backups are uploaded in, every upload holds one part in memory";
+        final int objectStorePartSize = clampInt(prop, 5, 1024);
+
+        if (!objectStoreUrl.isEmpty()) {
+            try {
+                configuredSinks.add(new ObjectStoreSink(objectStoreUrl, objectStoreRegion, objectStoreAccessKey, objectStoreSecretKey,
+                        objectStorePartSize * FileUtil.MB));
+            } catch (IllegalArgumentException e) {
+                log.error("{}, backups are not uploaded", e.getMessage());
+            }
+        }
+        sinks = configuredSinks;
+
+        prop = config.get(category, "sinkBufferMegabytes", sinkBufferMegabytes);
+        prop.comment = "The most megabytes of a backup held in memory for each destination that is slower than the backup." + Configuration.NEW_LINE +
+                       "A destination that falls further behind reads the backup back from the backup directory, so it never slows down the others";
+        sinkBufferMegabytes = clampInt(prop, 1, 1024);
+
+
+        /* Dimension Settings */
+        category = "dimensions";
+
+        config.addCustomCategoryComment(category, "To change the settings of one dimension add a category named after it below this one, " +
+                                                  "overworld, dim-1, dim1 and so on." + Configuration.NEW_LINE +
+                                                  "It can hold autoBackupInterval, daysToKeepBackups, maxBackupDirSize and maxNumberBackups, " +
+                                                  "the general settings are used for everything else");
+
+        prop = config.get(category, "splitDimensions", splitDimensions);
+        prop.comment = "Back up every dimension into its own directory below the backup directory, all at the same time." + Configuration.NEW_LINE +
+                       "Each dimension is backed up at its own interval and keeps its own number of backups, " +
+                       "the sets directory records which archives belong together";
+        splitDimensions = prop.getBoolean(splitDimensions);
+
+        dimensionSettings.clear();
+        for (String name : config.getCategoryNames()) {
+            if (!name.startsWith(category + ".")) continue;
+            final ConfigCategory dimension = config.getCategory(name);
+            final Map<String, Integer> settings = new HashMap<>();
+            for (String key : DIMENSION_SETTINGS) {
+                if (dimension.containsKey(key)) {
+                    settings.put(key, clampInt(dimension.get(key), key.equals("autoBackupInterval") ? 1 : -1, Integer.MAX_VALUE));
+                }
+            }
+            dimensionSettings.put(name.substring(category.length() + 1).toLowerCase(Locale.ROOT), settings);
+        }
+
         if (config.hasChanged()) {
             config.save();
         }
     }
 
+    /** @return the options for a backup with the current config */
+    public static BackupOptions toOptions() {
+        final BackupOptions options = new BackupOptions();
+        options.fileEnding = fileEnding;
+        options.lifespanDays = lifespanDays;
+        options.maxFolderSize = maxFolderSize;
+        options.maxNumberBackups = maxNumberBackups;
+        options.filter = pathFilter;
+        options.walkThreads = walkThreads;
+        options.compressionThreads = compressionThreads;
+        options.compressionLevel = compressionLevel;
+        options.regionCompressionLevel = regionCompressionLevel;
+        options.adaptiveCompression = adaptiveCompression;
+        options.compactRegions = compactRegions;
+        options.chunkTrim = chunkTrim;
+        options.maxBufferMemory = maxBufferMemory;
+        options.archiveFormat = archiveFormat;
+        options.zstdLevel = zstdLevel;
+        options.snapshotMode = snapshotMode;
+        options.enableIncremental = enableIncremental;
+        options.fullBackupEvery = fullBackupEvery;
+        options.enableRepository = enableRepository;
+        options.sinks = sinks;
+        options.sinkBufferMemory = sinkBufferMegabytes;
+        return options;
+    }
+
+    /**
+     * @param dimension the dimension directory, or {@link info.servertools.backup.core.DimensionBackup#OVERWORLD}
+     *
+     * @return the options for a backup of a single dimension with the current config
+     */
+    public static BackupOptions toOptions(String dimension) {
+        final BackupOptions options = toOptions();
+        options.lifespanDays = dimensionSetting(dimension, "daysToKeepBackups", lifespanDays);
+        options.maxFolderSize = dimensionSetting(dimension, "maxBackupDirSize", maxFolderSize);
+        options.maxNumberBackups = dimensionSetting(dimension, "maxNumberBackups", maxNumberBackups);
+        return options;
+    }
+
+    /** @return the interval in minutes for the auto backup of a single dimension */
+    public static int autoBackupInterval(String dimension) {
+        return dimensionSetting(dimension, "autoBackupInterval", autoBackupInterval);
+    }
+
+    private static int dimensionSetting(String dimension, String key, int general) {
+        final Map<String, Integer> settings = dimensionSettings.get(dimension.toLowerCase(Locale.ROOT));
+        final Integer value = settings == null ? null : settings.get(key);
+        return value == null ? general : value;
+    }
+
     private static int clampInt(final Property prop, final int min, final int max) {
         final int intVal = prop.getInt();
         if (intVal < min) {
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup;
+
+import info.servertools.backup.core.BackupHistory;
+import info.servertools.backup.core.BackupMetrics;
+import info.servertools.backup.core.BackupProgress;
+import info.servertools.backup.core.BackupThrottle;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A requested backup, from the moment it is queued until it finished
+ */
+public class BackupJob {
+
+    public enum Priority {
+        /** Started by the auto backup, dropped if a backup is already running */
+        SCHEDULED,
+        /** Started by a command, always queued */
+        MANUAL
+    }
+
+    public enum State {
+        QUEUED, PREPARING, RUNNING, FINISHED, FAILED, CANCELLED;
+
+        public boolean isDone() {
+            return this == FINISHED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    public final int id = nextId.getAndIncrement();
+    public final long createdAt = System.currentTimeMillis();
+
+    private volatile Priority priority;
+    private volatile State state = State.QUEUED;
+    private volatile int requests = 1;
+    private volatile long startedAt;
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    /** Saves the chunks while the job is preparing */
+    @Nullable ChunkFlusher flusher;
+    /** The backup task while the job is running */
+    @Nullable Future<?> future;
+    /** Slows the backup down while the server is lagging */
+    @Nullable BackupThrottle throttle;
+    /** The phases of the backup, replaced when the job starts preparing so the time spent queued doesn't count */
+    BackupMetrics metrics = new BackupMetrics();
+    /** When the job started saving chunks, as returned by {@link BackupMetrics#begin()} */
+    long chunkSaveStart;
+    /** The regions that changed since the previous backup, taken when the job starts running */
+    @Nullable DirtyRegionTracker.Changes changes;
+    /** The dimensions to back up when they are backed up on their own, {@code null} for all of them */
+    @Nullable Set<String> dimensions;
+
+    BackupJob(Priority priority, @Nullable Set<String> dimensions) {
+        this.priority = priority;
+        this.dimensions = dimensions == null ? null : new TreeSet<>(dimensions);
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /** @return how many requests were merged into this job */
+    public int getRequests() {
+        return requests;
+    }
+
+    /** @return when the job started preparing, or {@code 0} if it is still queued */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /** @return how long the backup waited for the server so far, summed over all threads */
+    public long getThrottledMillis() {
+        final BackupThrottle throttle = this.throttle;
+        return throttle == null ? 0 : throttle.getThrottledMillis();
+    }
+
+    /**
+     * @param history the recent backups, to estimate the time left
+     *
+     * @return how far the job got, as of now
+     */
+    public BackupProgress.Snapshot getProgress(@Nullable BackupHistory history) {
+        return metrics.getProgress().snapshot(history);
+    }
+
+    /** Merge another request into this job, which takes the higher of both priorities and the dimensions of both */
+    void merge(Priority priority, @Nullable Set<String> dimensions) {
+        requests++;
+        if (priority.compareTo(this.priority) > 0) {
+            this.priority = priority;
+        }
+        if (dimensions == null) {
+            this.dimensions = null;
+        } else if (this.dimensions != null) {
+            this.dimensions.addAll(dimensions);
+        }
+    }
+
+    /**
+     * Claim the job for either the worker or a cancellation, whichever comes first. Whoever claims it has to clean up
+     * after it.
+     *
+     * @return {@code true} if the job wasn't claimed yet
+     */
+    boolean claim() {
+        return claimed.compareAndSet(false, true);
+    }
+
+    void setState(State state) {
+        if (state == State.PREPARING) {
+            startedAt = System.currentTimeMillis();
+        }
+        this.state = state;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + state + " (" + priority + (requests > 1 ? ", " + requests + " requests" : "") + (dimensions != null ? ", " + dimensions : "") + ")";
+    }
+}
@@ -17,22 +17,54 @@ package info.servertools.backup;
 
 import static info.servertools.backup.ServerToolsBackup.LOG;
 
+import info.servertools.backup.core.Backup;
+import info.servertools.backup.core.BackupHistory;
+import info.servertools.backup.core.BackupListener;
+import info.servertools.backup.core.BackupMetrics;
+import info.servertools.backup.core.BackupOptions;
+import info.servertools.backup.core.BackupRestore;
+import info.servertools.backup.core.BackupSet;
+import info.servertools.backup.core.BackupThrottle;
+import info.servertools.backup.core.BackupVerifier;
+import info.servertools.backup.core.DimensionBackup;
+import info.servertools.backup.core.PathFilter;
 import info.servertools.core.util.ServerUtils;
 
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Runnables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.ChatComponentText;
 import net.minecraft.world.MinecraftException;
 import net.minecraft.world.WorldServer;
+import net.minecraft.world.storage.ThreadedFileIOBase;
 import net.minecraftforge.common.DimensionManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nullable;
 
@@ -44,6 +76,59 @@ public class BackupManager {
     private final File backupDirectory;
 
     private static final Map<Integer, Boolean> worldSavingCache = new HashMap<>(MinecraftServer.getServer().worldServers.length);
+    private static long savingLockedAt;
+
+    /** The average of the last second of server ticks */
+    private static final BackupThrottle.TickMonitor TICK_MONITOR = new BackupThrottle.TickMonitor() {
+        private static final int TICKS = 20;
+
+        @Override
+        public double getAverageTickMillis() {
+            final MinecraftServer server = MinecraftServer.getServer();
+            final long[] tickTimes = server.tickTimeArray;
+            final int tick = server.getTickCounter();
+            long total = 0;
+            for (int i = 1; i <= TICKS; i++) {
+                total += tickTimes[((tick - i) % tickTimes.length + tickTimes.length) % tickTimes.length];
+            }
+            return total / (TICKS * 1000000.0);
+        }
+    };
+
+    /** The number of backups shown by /backup stats and over JMX, and that the time left of a backup is estimated from */
+    private static final int HISTORY_SIZE = 20;
+
+    private final BackupHistory history;
+
+    /** The regions that changed since the last backup */
+    private final DirtyRegionTracker dirtyRegions;
+
+    /** Runs one backup at a time */
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Worker").setDaemon(true).build());
+
+    /** Stages restores in the background, one at a time */
+    private final ExecutorService restorer = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Restorer").setDaemon(true).build());
+
+    /** Reads the stored backups back now and then to find corrupt ones */
+    private final ScheduledExecutorService verifier = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Verifier").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+    /** Messages for the players, delivered on the main thread */
+    private final Queue<String> messages = new ConcurrentLinkedQueue<>();
+    /** When the progress of the running backup was last sent to the players, only used on the main thread */
+    private long progressSentAt;
+
+    /** The backup that is being prepared or is running */
+    @Nullable
+    private BackupJob current;
+    /** The backup that starts when the current one is done */
+    @Nullable
+    private BackupJob pending;
+    /** The restore that was last submitted to be staged */
+    @Nullable
+    private Future<?> staging;
 
     private BackupManager() {
         LOG.info("Initializing ServerTools Backup Handler");
@@ -62,24 +147,369 @@ public class BackupManager {
 
         //noinspection ResultOfMethodCallIgnored
         backupDirectory.mkdirs();
+        history = BackupHistory.load(backupDirectory, HISTORY_SIZE);
+
+        dirtyRegions = new DirtyRegionTracker(worldDirectory, ServerToolsBackup.BACKUP_DIR);
+        dirtyRegions.register();
+
+        FMLCommonHandler.instance().bus().register(this);
+        history.registerMBeans();
+
+        if (BackupConfig.verifyIntervalHours > 0) {
+            // Checks hourly which backups are due, the first check waits until the server finished starting
+            verifier.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    verifyBackups();
+                }
+            }, 10, 60, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Request a backup. A request that comes in while another backup is waiting to start or still saving chunks is
+     * merged into that one, so there is never more than one waiting backup. <b>Must be called from the main thread</b>
+     *
+     * @param priority the priority of the request
+     *
+     * @return the job that will take the backup, or {@code null} if a scheduled backup was dropped
+     */
+    @Nullable
+    public BackupJob submit(BackupJob.Priority priority) {
+        return submit(priority, null);
+    }
+
+    /**
+     * Request a backup of some dimensions, only used when dimensions are backed up on their own. <b>Must be called
+     * from the main thread</b>
+     *
+     * @param priority   the priority of the request
+     * @param dimensions the dimensions to back up, {@code null} for all of them
+     *
+     * @return the job that will take the backup, or {@code null} if a scheduled backup was dropped
+     */
+    @Nullable
+    public synchronized BackupJob submit(BackupJob.Priority priority, @Nullable Set<String> dimensions) {
+        // A backup that didn't disable world saving yet will include everything this request would
+        final BackupJob waiting = pending != null ? pending : current != null && current.getState() == BackupJob.State.PREPARING ? current : null;
+        if (waiting != null) {
+            waiting.merge(priority, dimensions);
+            LOG.info("Merged backup request into waiting backup {}", waiting);
+            return waiting;
+        }
+        if (current != null && priority == BackupJob.Priority.SCHEDULED) {
+            LOG.info("Skipping scheduled backup, backup {} is still running", current);
+            return null;
+        }
+
+        final BackupJob job = new BackupJob(priority, dimensions);
+        if (current == null) {
+            prepare(job);
+        } else {
+            pending = job;
+            LOG.info("Queued backup {}, waiting for {}", job, current);
+        }
+        return job;
+    }
+
+    /**
+     * Cancel the waiting backup, or else the running one. <b>Must be called from the main thread</b>
+     *
+     * @return the cancelled job, or {@code null} if there was none
+     */
+    @Nullable
+    public synchronized BackupJob cancel() {
+        final BackupJob job;
+        if (pending != null) {
+            job = pending;
+            pending = null;
+            job.setState(BackupJob.State.CANCELLED);
+        } else if (current != null) {
+            job = current;
+            if (job.getState() == BackupJob.State.PREPARING && job.flusher != null) {
+                job.flusher.cancel();
+                job.setState(BackupJob.State.CANCELLED);
+                current = null;
+            } else if (job.claim()) {
+                // The worker didn't start on it yet
+                if (job.future != null) job.future.cancel(false);
+                job.setState(BackupJob.State.CANCELLED);
+                unlockSaving();
+                if (job.changes != null) dirtyRegions.restore(job.changes);
+                current = null;
+            } else if (job.future != null) {
+                job.future.cancel(true); // The worker cleans up
+            }
+        } else {
+            return null;
+        }
+        LOG.info("Cancelled backup {}", job);
+        return job;
+    }
+
+    /** @return the running and waiting backups */
+    public synchronized List<BackupJob> getJobs() {
+        final List<BackupJob> jobs = new ArrayList<>(2);
+        if (current != null) jobs.add(current);
+        if (pending != null) jobs.add(pending);
+        return jobs;
     }
 
-    /** Start a server backup */
-    public void doBackup() {
-        saveChunks();
+    @SubscribeEvent
+    public void tick(TickEvent.ServerTickEvent event) {
+        if (!event.phase.equals(TickEvent.Phase.END)) return;
+
+        final BackupJob running;
+        synchronized (this) {
+            if (current == null && pending != null) {
+                final BackupJob job = pending;
+                pending = null;
+                prepare(job);
+            }
+            running = current;
+        }
+        if (running != null && BackupConfig.progressMessageSeconds > 0 && running.getState() == BackupJob.State.RUNNING) {
+            final long now = System.currentTimeMillis();
+            // Only the latest progress is sent, at most once per interval
+            if (now - Math.max(progressSentAt, running.getStartedAt()) >= TimeUnit.SECONDS.toMillis(BackupConfig.progressMessageSeconds)) {
+                progressSentAt = now;
+                messages.add("Backup #" + running.id + ": " + running.getProgress(history));
+            }
+        }
+        if (!messages.isEmpty()) {
+            deliverMessages();
+        }
+    }
+
+    /** @return the metrics of the recent backups */
+    public BackupHistory getHistory() {
+        return history;
+    }
+
+    /** @return the regions that changed since the last backup */
+    DirtyRegionTracker getDirtyRegions() {
+        return dirtyRegions;
+    }
+
+    /** @return the directory of the overworld */
+    File getWorldDirectory() {
+        return worldDirectory;
+    }
+
+    /** Save all chunks, then start the backup. <b>Must be called from the main thread</b> */
+    private void prepare(final BackupJob job) {
+        current = job;
+        job.setState(BackupJob.State.PREPARING);
+        job.metrics = new BackupMetrics();
+        job.metrics.getProgress().setPhase(BackupMetrics.Phase.CHUNK_SAVE);
+        job.chunkSaveStart = job.metrics.begin();
+        if (BackupConfig.flushMillisPerTick == 0) {
+            saveChunks();
+            execute(job);
+            return;
+        }
+
+        job.flusher = new ChunkFlusher(BackupConfig.flushMillisPerTick, new Runnable() {
+            @Override
+            public void run() {
+                job.flusher = null;
+                execute(job);
+            }
+        });
+        job.flusher.start();
+    }
+
+    /** Disable world saving and run the backup on the worker thread. <b>Must be called from the main thread, after all chunks were saved</b> */
+    private synchronized void execute(final BackupJob job) {
         lockSaving(); // Will be unlocked in the Backup thread
+        job.changes = dirtyRegions.takeChanges(BackupConfig.splitDimensions ? job.dimensions : null);
+        job.setState(BackupJob.State.RUNNING);
+        job.throttle = new BackupThrottle(BackupConfig.maxBytesPerSecond, BackupConfig.maxTickMillis, TICK_MONITOR);
+        // Forwards the messages of the backup to the players, and enables world saving once the backup is done with the world
+        final BackupListener listener = new BackupListener() {
+            @Override
+            public void message(String message) {
+                sendMessage(message);
+            }
 
-        new Thread() {
+            @Override
+            public void sourceReleased() {
+                releaseWorld(job);
+            }
+        };
+        job.future = worker.submit(new Runnable() {
             @Override
             public void run() {
+                if (!job.claim()) return; // Cancelled before it started
                 try {
-                    new Backup(worldDirectory, backupDirectory, getBackupName()).run();
-                } catch (IOException e) {
+                    waitForChunkWrites();
+                    job.metrics.end(BackupMetrics.Phase.CHUNK_SAVE, job.chunkSaveStart);
+                    final BackupOptions options = BackupConfig.toOptions();
+                    options.changedFiles = job.changes;
+                    if (BackupConfig.splitDimensions) {
+                        new DimensionBackup(worldDirectory, backupDirectory, getBackupName(), options, dimensionOptions(job.dimensions, job.changes),
+                                job.throttle, listener, job.metrics).run();
+                    } else {
+                        new Backup(worldDirectory, backupDirectory, getBackupName(), options, job.throttle, listener, job.metrics).run();
+                    }
+                    job.setState(BackupJob.State.FINISHED);
+                } catch (IOException | RuntimeException e) {
+                    if (e instanceof InterruptedIOException || Thread.currentThread().isInterrupted()) {
+                        job.setState(BackupJob.State.CANCELLED);
+                        sendMessage("Server backup was cancelled");
+                        return;
+                    }
+                    job.setState(BackupJob.State.FAILED);
                     LOG.error("Failed to run server backup", e);
                     sendMessage("Failed to run server backup: " + e.getMessage());
+                } finally {
+                    releaseWorld(job);
+                    if (job.getState() != BackupJob.State.FINISHED) {
+                        dirtyRegions.restore(job.changes);
+                    }
+                    job.metrics.finish(job.getState() == BackupJob.State.FINISHED);
+                    if (job.getState() != BackupJob.State.CANCELLED) {
+                        history.add(job.metrics);
+                    }
+                    finished(job);
                 }
             }
-        }.start();
+        });
+    }
+
+    /** @return the options of every dimension to back up, with the current config */
+    private Map<String, BackupOptions> dimensionOptions(@Nullable Set<String> dimensions, @Nullable DirtyRegionTracker.Changes changes) {
+        final Map<String, BackupOptions> options = new LinkedHashMap<>();
+        for (String dimension : DimensionBackup.findDimensions(worldDirectory, BackupConfig.pathFilter).keySet()) {
+            if (dimensions == null || dimensions.contains(dimension)) {
+                final BackupOptions dimensionOptions = BackupConfig.toOptions(dimension);
+                dimensionOptions.changedFiles = changes;
+                options.put(dimension, dimensionOptions);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Extract a backup next to the world in the background, it replaces the world once the server stopped
+     *
+     * @param backup    the file name of the backup, or the name of the backup set if dimensions are backed up on their own
+     * @param selectors what to restore, see {@link BackupRestore#select}, empty to restore the whole world
+     *
+     * @throws IllegalArgumentException if a selector is invalid
+     */
+    public synchronized void stageRestore(final String backup, List<String> selectors) {
+        final PathFilter selection = BackupRestore.select(selectors);
+        staging = restorer.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final BackupRestore.Result result = restore(selection).stage(backup);
+                    sendMessage("Restore of backup " + backup + " is ready, " + result + ". It is applied when the server stops");
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Failed to restore backup {}", backup, e);
+                    sendMessage("Failed to restore backup " + backup + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /** Delete the staged restore, so the world is kept when the server stops */
+    public void discardRestore() throws IOException {
+        restore(null).discard();
+    }
+
+    /**
+     * Replace the world with the staged restore, if there is one. A backup that still runs is cancelled first, it would
+     * read the world while it is replaced. <b>Must be called from the main thread, after the worlds were closed</b>
+     */
+    void applyRestore() {
+        synchronized (this) {
+            if (pending != null) cancel();
+            if (current != null) cancel();
+            // A restore that is still being staged is incomplete
+            if (staging != null) staging.cancel(true);
+            staging = null;
+        }
+        if (!awaitIdle(worker) || !awaitIdle(restorer)) {
+            LOG.error("A backup or restore didn't stop in time, the staged restore is applied the next time the server stops");
+            return;
+        }
+        final BackupRestore restore = restore(null);
+        if (!restore.isStaged()) return;
+        try {
+            LOG.info("Restored backup {}", restore.apply());
+            dirtyRegions.invalidate();
+        } catch (IOException e) {
+            LOG.error("Failed to apply the staged restore, the world was not changed", e);
+        }
+    }
+
+    /**
+     * Wait until everything that was submitted to a single thread executor ran, the executor can still be used afterwards
+     *
+     * @return {@code false} if that took too long
+     */
+    private static boolean awaitIdle(ExecutorService executor) {
+        try {
+            executor.submit(Runnables.doNothing()).get(1, TimeUnit.MINUTES);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private BackupRestore restore(@Nullable PathFilter selection) {
+        return new BackupRestore(backupDirectory, worldDirectory, selection, BackupConfig.compressionThreads);
+    }
+
+    /** Verify the backups that weren't verified within the configured interval, and report the corrupt ones */
+    private void verifyBackups() {
+        final BackupVerifier backupVerifier = new BackupVerifier(
+                new BackupThrottle(BackupConfig.verifyMegabytesPerSecond * 1024 * 1024, BackupConfig.maxTickMillis, TICK_MONITOR));
+        final List<File> directories = BackupSet.isSplit(backupDirectory)
+                                       ? BackupSet.dimensionDirectories(backupDirectory) : Collections.singletonList(backupDirectory);
+        final long start = System.currentTimeMillis();
+        int verified = 0;
+        int corrupt = 0;
+        try {
+            for (File directory : directories) {
+                for (BackupVerifier.Report report : backupVerifier.verifyStale(directory, BackupConfig.fileEnding, TimeUnit.HOURS.toMillis(BackupConfig.verifyIntervalHours))) {
+                    verified++;
+                    if (report.problem != null) {
+                        corrupt++;
+                        LOG.error("Backup {} is corrupt: {}", report.archive.getPath(), report.problem);
+                        sendMessage("Backup " + report.archive.getName() + " is corrupt: " + report.problem);
+                    }
+                }
+            }
+        } catch (InterruptedIOException e) {
+            return;
+        } catch (RuntimeException e) {
+            LOG.error("Failed to verify the backups", e);
+            return;
+        }
+        if (verified > 0) {
+            LOG.info("Verified {} backups in {} seconds, {} corrupt", verified, (System.currentTimeMillis() - start) / 1000, corrupt);
+        }
+    }
+
+    /** Enable world saving again, and count how long it was disabled for the job */
+    private static void releaseWorld(BackupJob job) {
+        final long locked = unlockSaving();
+        if (locked != -1) {
+            job.metrics.add(BackupMetrics.Phase.LOCK_HOLD, locked);
+        }
+    }
+
+    /** Called from the worker thread, the next job is started on the next tick */
+    private synchronized void finished(BackupJob job) {
+        if (current == job) {
+            current = null;
+        }
     }
 
     /**
@@ -88,22 +518,33 @@ public class BackupManager {
      * @return the backup filename
      */
     String getBackupName() {
-        return BackupConfig.dateFormat.format(Calendar.getInstance().getTime()) + "." + BackupConfig.fileEnding;
+        return BackupConfig.dateFormat.format(Calendar.getInstance().getTime()) + "." + BackupConfig.archiveFormat.getExtension(BackupConfig.fileEnding);
     }
 
     /**
-     * Send a messsage to users who are configured to receive backup related messages
+     * Send a messsage to users who are configured to receive backup related messages. May be called from any thread,
+     * the message is delivered at the end of the next server tick
      *
      * @param message the message
      */
     public void sendMessage(@Nullable Object message) {
-        ChatComponentText text = new ChatComponentText(String.valueOf(message));
+        messages.add(String.valueOf(message));
+    }
+
+    /** Send the queued messages to the users who receive backup related messages. <b>Must be called from the main thread</b> */
+    private void deliverMessages() {
+        final List<EntityPlayerMP> recipients = new ArrayList<>();
         for (EntityPlayerMP player : ServerUtils.getAllPlayers()) {
-            if (BackupConfig.sendBackupMessageToOps && ServerUtils.isOP(player.getGameProfile())) {
-                player.addChatComponentMessage(text);
-            } else if (BackupConfig.sendBackupMessageToUsers) {
-                player.addChatComponentMessage(text);
-            } else if (BackupConfig.backupMessageWhitelist.contains(player.getGameProfile().getName())) {
+            if (BackupConfig.sendBackupMessageToUsers
+                || (BackupConfig.sendBackupMessageToOps && ServerUtils.isOP(player.getGameProfile()))
+                || BackupConfig.backupMessageWhitelist.contains(player.getGameProfile().getName())) {
+                recipients.add(player);
+            }
+        }
+        String message;
+        while ((message = messages.poll()) != null) {
+            final ChatComponentText text = new ChatComponentText(message);
+            for (EntityPlayerMP player : recipients) {
                 player.addChatComponentMessage(text);
             }
         }
@@ -121,23 +562,43 @@ public class BackupManager {
         }
     }
 
+    /** Wait until the chunks that were saved are actually written to the region files */
+    private static void waitForChunkWrites() throws InterruptedIOException {
+        try {
+            ThreadedFileIOBase.threadedIOInstance.waitForFinish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for chunks to be written");
+        }
+    }
+
     /** Prevent worlds from being saved */
-    private static void lockSaving() {
+    private static synchronized void lockSaving() {
         for (final WorldServer worldServer : MinecraftServer.getServer().worldServers) {
             worldSavingCache.put(worldServer.provider.dimensionId, worldServer.disableLevelSaving);
             worldServer.disableLevelSaving = true;
             LOG.trace("Disabled saving of world: {}", worldServer.provider.dimensionId);
         }
+        savingLockedAt = System.currentTimeMillis();
     }
 
-    /** Remove the lock from world saving */
-    public static void unlockSaving() {
+    /**
+     * Remove the lock from world saving. Does nothing if saving isn't locked
+     *
+     * @return how many milliseconds saving was locked, or {@code -1} if it wasn't
+     */
+    public static synchronized long unlockSaving() {
+        if (worldSavingCache.isEmpty()) return -1;
         for (final WorldServer worldServer : MinecraftServer.getServer().worldServers) {
             if (worldSavingCache.containsKey(worldServer.provider.dimensionId)) {
                 worldServer.disableLevelSaving = worldSavingCache.get(worldServer.provider.dimensionId);
                 LOG.trace("Resetting world saving disable flag of world: {} to {}", worldServer.provider.dimensionId, worldServer.disableLevelSaving);
             }
         }
+        worldSavingCache.clear();
+        final long locked = System.currentTimeMillis() - savingLockedAt;
+        LOG.info("World saving was disabled for {} ms", locked);
+        return locked;
     }
 
     public static synchronized BackupManager getInstance() {
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup;
+
+import static info.servertools.backup.ServerToolsBackup.LOG;
+
+import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.MinecraftException;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves all chunks to disk before a backup, spread over as many server ticks as it takes to stay within a time budget
+ * per tick.
+ * <p>
+ * Every pass saves the chunks that are dirty at its start, a tick at a time. Chunks keep changing while that happens,
+ * so passes are repeated until the chunks that are left fit in a single tick, or {@link #MAX_PASSES} is reached. The
+ * last pass and the level data are then saved in one tick and the backup is started in that same tick, so nothing can
+ * change between the final save and world saving being disabled.
+ */
+class ChunkFlusher {
+
+    private static final int MAX_PASSES = 5;
+
+    private final long budget;
+    private final Runnable onFlushed;
+
+    /** The world time each dimension was at when the flush started, chunks with entities saved since are clean */
+    private final Map<Integer, Long> startTimes = new HashMap<>();
+    /** Dimensions that failed to save, they are left alone until the final save */
+    private final Set<Integer> failed = new HashSet<>();
+    private final Deque<Pending> queue = new ArrayDeque<>();
+
+    private int passes;
+    private int ticks;
+    private int savedChunks;
+    private long savingNanos;
+    private long worstTick;
+    private final long startedAt = System.currentTimeMillis();
+
+    /**
+     * @param millisPerTick the time that may be spent saving chunks in one tick
+     * @param onFlushed     run on the server thread, in the same tick the last chunks are saved
+     */
+    ChunkFlusher(int millisPerTick, Runnable onFlushed) {
+        this.budget = TimeUnit.MILLISECONDS.toNanos(millisPerTick);
+        this.onFlushed = onFlushed;
+    }
+
+    /** Start flushing on the next server tick */
+    void start() {
+        FMLCommonHandler.instance().bus().register(this);
+    }
+
+    /** Stop flushing without starting the backup */
+    void cancel() {
+        FMLCommonHandler.instance().bus().unregister(this);
+        LOG.info("Stopped saving chunks after {} chunks", savedChunks);
+    }
+
+    @SubscribeEvent
+    public void tick(TickEvent.ServerTickEvent event) {
+        if (!event.phase.equals(TickEvent.Phase.END)) return;
+
+        final long start = System.nanoTime();
+        ticks++;
+        if (queue.isEmpty()) {
+            refill();
+            if (queue.isEmpty() || passes > MAX_PASSES || (passes > 1 && queue.size() <= chunksPerTick())) {
+                finish(start);
+                return;
+            }
+        }
+        while (!queue.isEmpty() && System.nanoTime() - start < budget) {
+            save(queue.poll());
+        }
+        worstTick = Math.max(worstTick, System.nanoTime() - start);
+    }
+
+    /** Queue every chunk that changed since it was last saved, starting a new pass */
+    private void refill() {
+        passes++;
+        for (final WorldServer worldServer : MinecraftServer.getServer().worldServers) {
+            final int dimension = worldServer.provider.dimensionId;
+            if (failed.contains(dimension) || !worldServer.theChunkProviderServer.canSave()) continue;
+            if (!startTimes.containsKey(dimension)) {
+                startTimes.put(dimension, worldServer.getTotalWorldTime());
+            }
+            final long startTime = startTimes.get(dimension);
+            for (final Object o : new ArrayList<Object>(worldServer.theChunkProviderServer.loadedChunks)) {
+                final Chunk chunk = (Chunk) o;
+                if (isDirty(chunk, startTime)) {
+                    queue.add(new Pending(worldServer, chunk, startTime));
+                }
+            }
+        }
+        LOG.trace("Chunk flush pass {}: {} chunks to save", passes, queue.size());
+    }
+
+    private static boolean isDirty(Chunk chunk, long startTime) {
+        return chunk.isModified || (chunk.hasEntities && chunk.lastSaveTime < startTime);
+    }
+
+    /** Save a chunk the same way the chunk provider does */
+    private void save(Pending pending) {
+        final Chunk chunk = pending.chunk;
+        final int dimension = pending.world.provider.dimensionId;
+        // Unloaded chunks were saved when they were unloaded
+        if (!chunk.isChunkLoaded || failed.contains(dimension) || !isDirty(chunk, pending.startTime)) return;
+
+        final long start = System.nanoTime();
+        try {
+            chunk.lastSaveTime = pending.world.getTotalWorldTime();
+            pending.world.theChunkProviderServer.currentChunkLoader.saveChunk(pending.world, chunk);
+            chunk.isModified = false;
+            savedChunks++;
+        } catch (MinecraftException | IOException e) {
+            LOG.warn("Failed to save chunks of dimension " + dimension + ", they will be saved all at once before the backup", e);
+            failed.add(dimension);
+        }
+        savingNanos += System.nanoTime() - start;
+    }
+
+    /** @return roughly how many chunks can be saved in one tick, judging by the chunks saved so far */
+    private long chunksPerTick() {
+        return savedChunks == 0 ? 0 : budget / Math.max(1, savingNanos / savedChunks);
+    }
+
+    private void finish(long tickStart) {
+        FMLCommonHandler.instance().bus().unregister(this);
+
+        while (!queue.isEmpty()) {
+            save(queue.poll());
+        }
+        for (final WorldServer worldServer : MinecraftServer.getServer().worldServers) {
+            try {
+                // Every chunk is saved by now, unless saving it failed. This saves the level data, and the failed
+                // dimensions all at once like before.
+                worldServer.saveAllChunks(failed.contains(worldServer.provider.dimensionId), null);
+            } catch (MinecraftException e) {
+                LOG.warn("Failed to save all chunk data to disk", e);
+            }
+        }
+        worstTick = Math.max(worstTick, System.nanoTime() - tickStart);
+
+        LOG.info("Saved {} chunks in {} passes over {} ticks and {} ms, the worst tick was slowed down by {} ms",
+                savedChunks, passes, ticks, System.currentTimeMillis() - startedAt, TimeUnit.NANOSECONDS.toMillis(worstTick));
+        onFlushed.run();
+    }
+
+    private static final class Pending {
+        final WorldServer world;
+        final Chunk chunk;
+        final long startTime;
+
+        Pending(WorldServer world, Chunk chunk, long startTime) {
+            this.world = world;
+            this.chunk = chunk;
+            this.startTime = startTime;
+        }
+    }
+}
@@ -15,10 +15,19 @@
  */
 package info.servertools.backup;
 
+import info.servertools.backup.core.BackupHistory;
+import info.servertools.backup.core.BackupMetrics;
 import info.servertools.core.command.CommandLevel;
 import info.servertools.core.command.ServerToolsCommand;
 import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
 import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.ChatComponentText;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 
 public class CommandBackup extends ServerToolsCommand {
 
@@ -46,11 +55,72 @@ public class CommandBackup extends ServerToolsCommand {
 
     @Override
     public String getCommandUsage(ICommandSender sender) {
-        return "/" + getCommandName();
+        return "/" + getCommandName() + " [status|stats|cancel|restore <backup> [dimension:<dim>|player:<uuid>|<pattern>...]|restore cancel]";
+    }
+
+    @Override
+    public List addTabCompletionOptions(ICommandSender sender, String[] args) {
+        if (args.length == 1) {
+            return getListOfStringsMatchingLastWord(args, "status", "stats", "cancel", "restore");
+        }
+        return null;
     }
 
     @Override
     public void processCommand(ICommandSender sender, String[] args) {
-        BackupManager.getInstance().doBackup();
+        if (args.length == 0) {
+            final BackupJob job = BackupManager.getInstance().submit(BackupJob.Priority.MANUAL);
+            if (job != null && job.getRequests() > 1) {
+                sender.addChatMessage(new ChatComponentText("A backup is already waiting to start, it will include your request"));
+            } else if (job != null && job.getState() == BackupJob.State.QUEUED) {
+                sender.addChatMessage(new ChatComponentText("Backup queued, it will start when the running backup is done"));
+            }
+        } else if ("status".equalsIgnoreCase(args[0])) {
+            final List<BackupJob> jobs = BackupManager.getInstance().getJobs();
+            if (jobs.isEmpty()) {
+                sender.addChatMessage(new ChatComponentText("No backup is running"));
+            }
+            final long now = System.currentTimeMillis();
+            for (BackupJob job : jobs) {
+                final long since = job.getStartedAt() == 0 ? job.createdAt : job.getStartedAt();
+                sender.addChatMessage(new ChatComponentText("Backup " + job + " for " + (now - since) / 1000 + " seconds" +
+                        (job.getThrottledMillis() > 0 ? ", throttled for " + job.getThrottledMillis() + " ms" : "")));
+                if (job.getState() == BackupJob.State.PREPARING || job.getState() == BackupJob.State.RUNNING) {
+                    sender.addChatMessage(new ChatComponentText("  " + job.getProgress(BackupManager.getInstance().getHistory())));
+                }
+            }
+        } else if ("stats".equalsIgnoreCase(args[0])) {
+            final BackupHistory history = BackupManager.getInstance().getHistory();
+            final BackupMetrics last = history.getLast();
+            if (last == null) {
+                sender.addChatMessage(new ChatComponentText("No backup in the history yet"));
+                return;
+            }
+            sender.addChatMessage(new ChatComponentText((last.isSucceeded() ? "Last backup: " : "Last backup failed: ") + last));
+            sender.addChatMessage(new ChatComponentText("Phases: " + last.describePhases()));
+            // The counts only cover this session, the average covers the stored history
+            sender.addChatMessage(new ChatComponentText(history.getCount() + " backups this session, " + history.getFailures() + " failed. " +
+                    "Average " + String.format(Locale.ROOT, "%.1f", history.getAverageDurationMillis() / 1000.0) + " s over the last " +
+                    history.getRuns().size() + " in the history"));
+        } else if ("cancel".equalsIgnoreCase(args[0])) {
+            final BackupJob job = BackupManager.getInstance().cancel();
+            sender.addChatMessage(new ChatComponentText(job == null ? "No backup to cancel" : "Cancelling backup #" + job.id));
+        } else if ("restore".equalsIgnoreCase(args[0]) && args.length == 2 && "cancel".equalsIgnoreCase(args[1])) {
+            try {
+                BackupManager.getInstance().discardRestore();
+                sender.addChatMessage(new ChatComponentText("The staged restore was deleted"));
+            } catch (IOException e) {
+                sender.addChatMessage(new ChatComponentText("Failed to delete the staged restore: " + e.getMessage()));
+            }
+        } else if ("restore".equalsIgnoreCase(args[0]) && args.length >= 2) {
+            try {
+                BackupManager.getInstance().stageRestore(args[1], Arrays.asList(args).subList(2, args.length));
+            } catch (IllegalArgumentException e) {
+                throw new WrongUsageException(e.getMessage());
+            }
+            sender.addChatMessage(new ChatComponentText("Extracting backup " + args[1] + ", it replaces the world when the server stops"));
+        } else {
+            throw new WrongUsageException(getCommandUsage(sender));
+        }
     }
 }
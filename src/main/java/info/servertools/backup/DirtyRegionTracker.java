@@ -0,0 +1,374 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup;
+
+import static info.servertools.backup.ServerToolsBackup.LOG;
+
+import info.servertools.backup.core.DimensionBackup;
+import info.servertools.backup.core.FileUtil;
+import info.servertools.backup.core.ChangedFiles;
+import info.servertools.core.util.ServerUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.PlayerEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import net.minecraft.world.WorldProvider;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.world.ChunkDataEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+/**
+ * Tracks which region files were written since the last backup, by listening to chunk saves.
+ * <p>
+ * Every chunk save counts, also when only the entities in a chunk moved, because the region file is written either way.
+ * A player being online counts as a change too, because player data is written all the time. The state is stored in the
+ * mod's config directory every minute and on shutdown. After a crash, or when the state belongs to another world, the
+ * changes since the last backup are unknown and everything counts as changed until the next backup.
+ * <p>
+ * When dimensions are backed up on their own, their changes are tracked and taken per dimension. Player data is
+ * stored with the overworld, so players being online only counts as a change of the overworld.
+ */
+class DirtyRegionTracker {
+
+    private static final String FILE_NAME = "dirtyregions.json";
+    /** How often the state is stored while it changes, one minute */
+    private static final int SAVE_TICKS = 20 * 60;
+    private static final Gson gson = new Gson();
+
+    private final File worldDirectory;
+    private final File file;
+    private State state;
+    /** The state changed since it was stored */
+    private boolean dirty;
+    private int tick;
+
+    DirtyRegionTracker(File worldDirectory, File stateDirectory) {
+        this.worldDirectory = worldDirectory;
+        this.file = new File(stateDirectory, FILE_NAME);
+        this.state = read();
+        // Until the server shuts down cleanly the stored state may miss changes
+        this.state.complete = false;
+        save();
+    }
+
+    /** Start listening to chunk saves and players */
+    void register() {
+        MinecraftForge.EVENT_BUS.register(this);
+        FMLCommonHandler.instance().bus().register(this);
+    }
+
+    @SubscribeEvent
+    public void chunkSaved(ChunkDataEvent.Save event) {
+        final Chunk chunk = event.getChunk();
+        final String region = "r." + (chunk.xPosition >> 5) + "." + (chunk.zPosition >> 5) + ".mca";
+        synchronized (this) {
+            Set<String> regions = state.regions.get(regionDirectory(chunk.worldObj.provider));
+            if (regions == null) {
+                regions = new TreeSet<>();
+                state.regions.put(regionDirectory(chunk.worldObj.provider), regions);
+            }
+            if (regions.add(region)) {
+                dirty = true;
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public synchronized void playerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+        markPlayersActive();
+    }
+
+    @SubscribeEvent
+    public void tick(TickEvent.ServerTickEvent event) {
+        if (!event.phase.equals(TickEvent.Phase.END)) return;
+        if (++tick < SAVE_TICKS) return;
+        tick = 0;
+        synchronized (this) {
+            if (!ServerUtils.getAllPlayers().isEmpty()) {
+                markPlayersActive();
+            }
+            if (dirty) {
+                save();
+            }
+        }
+    }
+
+    private void markPlayersActive() {
+        if (!state.playersActive) {
+            state.playersActive = true;
+            dirty = true;
+        }
+    }
+
+    /** @return {@code true} if anything may have changed since the last backup */
+    synchronized boolean hasChanges() {
+        if (!ServerUtils.getAllPlayers().isEmpty()) {
+            markPlayersActive();
+        }
+        return state.unknown || state.playersActive || !state.regions.isEmpty();
+    }
+
+    /** @return {@code true} if anything in a dimension may have changed since its last backup */
+    synchronized boolean hasChanges(String dimension) {
+        if (state.unknown && !state.known.contains(dimension)) return true;
+        if (dimension.equals(DimensionBackup.OVERWORLD)) {
+            if (!ServerUtils.getAllPlayers().isEmpty()) {
+                markPlayersActive();
+            }
+            if (state.playersActive) return true;
+        }
+        for (String directory : state.regions.keySet()) {
+            if (dimensionOf(directory).equals(dimension)) return true;
+        }
+        return false;
+    }
+
+    /** @return what changed since the last backup, for the log */
+    synchronized String describeChanges() {
+        if (state.unknown) return "unknown, the server didn't shut down cleanly or this is the first start";
+        int count = 0;
+        long bytes = 0;
+        for (Map.Entry<String, Set<String>> entry : state.regions.entrySet()) {
+            for (String region : entry.getValue()) {
+                count++;
+                bytes += new File(new File(worldDirectory, entry.getKey()), region).length();
+            }
+        }
+        final StringBuilder description = new StringBuilder();
+        description.append(count).append(" region files (").append(FileUtil.getSizeS(bytes)).append(')');
+        if (!state.regions.isEmpty()) {
+            description.append(" in ").append(state.regions.keySet());
+        }
+        if (state.playersActive) {
+            description.append(", players were online");
+        }
+        return description.toString();
+    }
+
+    /**
+     * Take the changes for a backup that is about to read the world, and start tracking the taken dimensions from
+     * scratch. <b>Must be called while world saving is disabled</b>, so no chunk is saved between taking the changes
+     * and the backup.
+     *
+     * @param dimensions the dimensions the backup reads, {@code null} if it reads the whole world
+     *
+     * @return the changes, to give back with {@link #restore} if the backup fails
+     */
+    synchronized Changes takeChanges(@Nullable Set<String> dimensions) {
+        if (dimensions == null) {
+            final Changes changes = new Changes(null, state.unknown, state.playersActive, state.regions);
+            state.unknown = false;
+            state.known.clear();
+            state.playersActive = false;
+            state.regions = new TreeMap<>();
+            save();
+            return changes;
+        }
+
+        boolean unknown = false;
+        for (String dimension : dimensions) {
+            unknown |= state.unknown && !state.known.contains(dimension);
+        }
+        if (state.unknown) {
+            state.known.addAll(dimensions);
+        }
+        final boolean playersActive = dimensions.contains(DimensionBackup.OVERWORLD) && state.playersActive;
+        if (playersActive) {
+            state.playersActive = false;
+        }
+        final Map<String, Set<String>> regions = new TreeMap<>();
+        for (Iterator<Map.Entry<String, Set<String>>> it = state.regions.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, Set<String>> entry = it.next();
+            if (dimensions.contains(dimensionOf(entry.getKey()))) {
+                regions.put(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+        save();
+        return new Changes(new TreeSet<>(dimensions), unknown, playersActive, regions);
+    }
+
+    /** Add the changes taken by a backup that failed back, the next backup needs to include them */
+    synchronized void restore(Changes changes) {
+        if (changes.unknown) {
+            state.unknown = true;
+            if (changes.dimensions == null) {
+                state.known.clear();
+            } else {
+                state.known.removeAll(changes.dimensions);
+            }
+        }
+        state.playersActive |= changes.playersActive;
+        for (Map.Entry<String, Set<String>> entry : changes.regions.entrySet()) {
+            final Set<String> regions = state.regions.get(entry.getKey());
+            if (regions == null) {
+                state.regions.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+            } else {
+                regions.addAll(entry.getValue());
+            }
+        }
+        save();
+    }
+
+    /** @return when the last auto backup was due, persisted so a restart doesn't start a backup right away */
+    synchronized long getLastAutoBackup() {
+        return state.lastAutoBackup;
+    }
+
+    synchronized void setLastAutoBackup(long lastAutoBackup) {
+        state.lastAutoBackup = lastAutoBackup;
+        save();
+    }
+
+    /** @return when the last auto backup of a dimension was due, when dimensions are backed up on their own */
+    synchronized long getLastAutoBackup(String dimension) {
+        final Long last = state.lastAutoBackups.get(dimension);
+        return last == null ? state.lastAutoBackup : last;
+    }
+
+    synchronized void setLastAutoBackup(String dimension, long lastAutoBackup) {
+        state.lastAutoBackups.put(dimension, lastAutoBackup);
+        save();
+    }
+
+    /** Forget the changes, the world was replaced by a restore. Everything counts as changed until the next backup */
+    synchronized void invalidate() {
+        state.unknown = true;
+        state.known.clear();
+        save();
+    }
+
+    /** Store the state as complete, <b>must be called once the worlds are saved for the last time</b> */
+    synchronized void shutdown() {
+        state.complete = true;
+        save();
+    }
+
+    /** @return the region directory of a dimension relative to the world, with a trailing {@code /} */
+    private static String regionDirectory(WorldProvider provider) {
+        final String folder = provider.getSaveFolder();
+        return folder == null ? "region/" : folder + "/region/";
+    }
+
+    /** @return the dimension a region directory belongs to */
+    private static String dimensionOf(String regionDirectory) {
+        final int slash = regionDirectory.indexOf('/');
+        return slash == regionDirectory.lastIndexOf('/') ? DimensionBackup.OVERWORLD : regionDirectory.substring(0, slash);
+    }
+
+    private State read() {
+        final String world = worldDirectory.getAbsolutePath();
+        if (file.exists()) {
+            try (Reader reader = Files.newReader(file, Charsets.UTF_8)) {
+                final State read = gson.fromJson(reader, State.class);
+                if (read != null && read.regions != null && world.equals(read.world)) {
+                    if (read.known == null) read.known = new TreeSet<>();
+                    if (read.lastAutoBackups == null) read.lastAutoBackups = new TreeMap<>();
+                    if (!read.complete) {
+                        LOG.warn("The server didn't shut down cleanly, the next backup includes everything");
+                        read.unknown = true;
+                    }
+                    return read;
+                }
+            } catch (IOException | JsonParseException e) {
+                LOG.warn("Failed to read the changed regions, the next backup includes everything", e);
+            }
+        }
+        final State state = new State();
+        state.world = world;
+        state.unknown = true;
+        state.lastAutoBackup = System.currentTimeMillis();
+        return state;
+    }
+
+    private void save() {
+        dirty = false;
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer writer = Files.newWriter(tmp, Charsets.UTF_8)) {
+                gson.toJson(state, writer);
+            }
+            try {
+                java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to store the changed regions", e);
+        }
+    }
+
+    /** The changes since the last backup, taken by a backup */
+    static final class Changes implements ChangedFiles {
+        /** The dimensions that were taken, {@code null} for all */
+        @Nullable
+        final Set<String> dimensions;
+        final boolean unknown;
+        final boolean playersActive;
+        final Map<String, Set<String>> regions;
+
+        Changes(@Nullable Set<String> dimensions, boolean unknown, boolean playersActive, Map<String, Set<String>> regions) {
+            this.dimensions = dimensions;
+            this.unknown = unknown;
+            this.playersActive = playersActive;
+            this.regions = regions;
+        }
+
+        /** The region files with a saved chunk changed, everything else is compared by size and modification time */
+        @Override
+        public boolean contains(String path) {
+            if (!path.endsWith(".mca")) return false;
+            final int slash = path.lastIndexOf('/');
+            final Set<String> changed = regions.get(path.substring(0, slash + 1));
+            return changed != null && changed.contains(path.substring(slash + 1));
+        }
+    }
+
+    private static final class State {
+        String world;
+        /** The server shut down cleanly after storing this state */
+        boolean complete;
+        /** Changes may have been missed, everything counts as changed */
+        boolean unknown;
+        /** The dimensions that were backed up on their own since the changes became unknown */
+        Set<String> known = new TreeSet<>();
+        boolean playersActive;
+        long lastAutoBackup;
+        /** When the last auto backup of every dimension was due, when dimensions are backed up on their own */
+        Map<String, Long> lastAutoBackups = new TreeMap<>();
+        /** The names of the changed region files by region directory */
+        Map<String, Set<String>> regions = new TreeMap<>();
+    }
+}
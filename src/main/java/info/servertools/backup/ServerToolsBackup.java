@@ -18,6 +18,7 @@ package info.servertools.backup;
 import cpw.mods.fml.common.Mod;
 import cpw.mods.fml.common.event.FMLFingerprintViolationEvent;
 import cpw.mods.fml.common.event.FMLServerStartingEvent;
+import cpw.mods.fml.common.event.FMLServerStoppedEvent;
 import info.servertools.core.ServerTools;
 import info.servertools.core.command.CommandManager;
 import org.apache.logging.log4j.LogManager;
@@ -39,10 +40,20 @@ public class ServerToolsBackup {
     @Mod.EventHandler
     public void serverStarting(FMLServerStartingEvent event) {
         BackupConfig.init(new File(BACKUP_DIR, "backup.cfg"));
+        // Starts tracking changed regions right away, backups depend on knowing all changes since the last one
+        BackupManager.getInstance();
 
         if (BackupConfig.enableAutoBackup)
             new AutoBackupManager();
 
         CommandManager.registerSTCommand(new CommandBackup("backup"));
     }
+
+    @Mod.EventHandler
+    public void serverStopped(FMLServerStoppedEvent event) {
+        final BackupManager manager = BackupManager.getInstance();
+        // The worlds were saved for the last time, so no change can be missed until the next start
+        manager.getDirtyRegions().shutdown();
+        manager.applyRestore();
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The checksums of the files in an archive, stored as the last entry of every archive. The codecs compute them from the
+ * data they are archiving anyway, so they cost no extra read of the world. The checksum of the whole archive can't be
+ * part of the archive itself, it is kept in the {@link BackupCatalog}.
+ * <p>
+ * CRC-32 is used because the JDK computes it in native code and ZIP entries carry it already.
+ */
+final class ArchiveChecksums {
+
+    static final String FILE_NAME = "backupchecksums.json";
+    static final String ALGORITHM = "crc32";
+
+    private static final Gson gson = new Gson();
+
+    String algorithm = ALGORITHM;
+    /** The checksum of every file by its name in the archive, in hex */
+    Map<String, String> files = new TreeMap<>();
+
+    void put(String name, long crc) {
+        files.put(name, Long.toHexString(crc));
+    }
+
+    byte[] toBytes() {
+        return gson.toJson(this).getBytes(Charsets.UTF_8);
+    }
+
+    /** Read the checksums from the contents of their archive entry */
+    static ArchiveChecksums read(InputStream in) throws IOException {
+        try {
+            final ArchiveChecksums checksums = gson.fromJson(new InputStreamReader(in, Charsets.UTF_8), ArchiveChecksums.class);
+            if (checksums == null || checksums.files == null) throw new IOException("The file checksums are empty");
+            return checksums;
+        } catch (JsonParseException e) {
+            throw new IOException("The file checksums are corrupt", e);
+        }
+    }
+}
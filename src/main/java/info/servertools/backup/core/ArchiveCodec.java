@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes backups in one of the {@link ArchiveFormat}s. Archives are read back with {@link ArchiveFormat#open(File)},
+ * which works out the format by itself.
+ */
+interface ArchiveCodec {
+
+    /** @return the format this codec writes */
+    ArchiveFormat getFormat();
+
+    /**
+     * Write a list of directories and files into an archive, followed by the {@link ArchiveChecksums} of the files
+     *
+     * @param sources  the entries to archive, in archive order
+     * @param target   the archive to create
+     * @param comment  the archive comment, or {@code null} for none
+     * @param journal  continues an interrupted archive and records the progress of this one, or {@code null}. Codecs
+     *                 that can't continue an archive clear it
+     * @param fanOut   copies the archive to backup sinks while it is written, or {@code null}
+     * @param progress counts the archived bytes and files, or {@code null}
+     *
+     * @return the CRC-32 of the whole archive file
+     */
+    long archive(List<ParallelArchiver.Source> sources, File target, @Nullable String comment, @Nullable BackupJournal journal,
+                 @Nullable BackupFanOut fanOut, @Nullable BackupProgress progress) throws IOException;
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.github.luben.zstd.ZstdInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+
+/**
+ * The file formats a backup can be stored in, recognized by the magic bytes at the start of the file
+ */
+public enum ArchiveFormat {
+    /** A ZIP file, compressed with deflate */
+    ZIP(new byte[]{'P', 'K', 3, 4}),
+    /** A tar archive in an LZ4 frame, fast to write and read but larger */
+    LZ4(new byte[]{0x04, 0x22, 0x4D, 0x18}),
+    /** A tar archive in a Zstandard frame, slower but smaller */
+    ZSTD(new byte[]{0x28, (byte) 0xB5, 0x2F, (byte) 0xFD});
+
+    private static final Logger log = LogManager.getLogger();
+
+    private final byte[] magic;
+
+    ArchiveFormat(byte[] magic) {
+        this.magic = magic;
+    }
+
+    /**
+     * @param zipEnding the file ending configured for ZIP backups
+     *
+     * @return the file ending of backups in this format, without the leading dot
+     */
+    public String getExtension(String zipEnding) {
+        switch (this) {
+            case LZ4:
+                return "tar.lz4";
+            case ZSTD:
+                return "tar.zst";
+            default:
+                return zipEnding;
+        }
+    }
+
+    public static ArchiveFormat parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown archive format '{}', using {}", name, ZIP);
+            return ZIP;
+        }
+    }
+
+    /**
+     * Check if a file name looks like a backup in any of the formats
+     *
+     * @param name      the file name
+     * @param zipEnding the file ending configured for ZIP backups
+     */
+    static boolean isArchiveName(String name, String zipEnding) {
+        for (ArchiveFormat format : values()) {
+            if (name.endsWith("." + format.getExtension(zipEnding))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Find out the format of a file from its first bytes
+     *
+     * @return the format, or {@code null} if the file isn't an archive in a known format
+     */
+    @Nullable
+    static ArchiveFormat detect(File file) throws IOException {
+        final byte[] header = new byte[4];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            int n;
+            while (read < header.length && (n = in.read(header, read, header.length - read)) != -1) {
+                read += n;
+            }
+            if (read < header.length) return null;
+        }
+        for (ArchiveFormat format : values()) {
+            if (Arrays.equals(format.magic, header)) return format;
+        }
+        return null;
+    }
+
+    /**
+     * Open a backup archive of any format for reading
+     *
+     * @param archive the archive
+     *
+     * @return the reader, which has to be closed
+     */
+    static ArchiveReader open(File archive) throws IOException {
+        final ArchiveFormat format = detect(archive);
+        if (format == null) throw new IOException("Unknown archive format: " + archive.getName());
+        if (format == ZIP) return new ZipArchiveReader(archive);
+
+        final InputStream file = new FileInputStream(archive);
+        try {
+            return new TarArchiveReader(decompress(format, file));
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param format {@link #LZ4} or {@link #ZSTD}
+     * @param in     the archive file
+     *
+     * @return the tar stream inside the archive
+     */
+    static InputStream decompress(ArchiveFormat format, InputStream in) throws IOException {
+        return new BufferedInputStream(format == LZ4 ? new LZ4FrameInputStream(in) : new ZstdInputStream(in), 64 * 1024);
+    }
+
+    /**
+     * Move a reader forward to the entry with the given name, so it can be read with {@link ArchiveReader#getInputStream()}
+     *
+     * @return {@code true} if the entry was found
+     */
+    static boolean seek(ArchiveReader reader, String name) throws IOException {
+        ArchiveReader.Entry entry;
+        while ((entry = reader.nextEntry()) != null) {
+            if (entry.name.equals(name)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads a backup archive, whatever its format. Entries are read in archive order, the metadata files are written at
+ * the start of every archive so finding them doesn't mean reading the whole archive.
+ */
+interface ArchiveReader extends Closeable {
+
+    /** @return the archive comment, or {@code null} if it has none */
+    @Nullable
+    String getComment() throws IOException;
+
+    /**
+     * Move on to the next entry
+     *
+     * @return the entry, or {@code null} at the end of the archive
+     */
+    @Nullable
+    Entry nextEntry() throws IOException;
+
+    /** @return the contents of the current entry, valid until the next call to {@link #nextEntry()} */
+    InputStream getInputStream() throws IOException;
+
+    final class Entry {
+        final String name;
+        final boolean directory;
+        final long size;
+        final long lastModified;
+
+        Entry(String name, boolean directory, long size, long lastModified) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Takes one backup of a directory into a backup directory, and cleans up old backups afterwards. Doesn't know about
+ * Minecraft, everything it needs is passed in.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class Backup {
+
+    private static final Logger log = LogManager.getLogger();
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    /** One lock per backup directory, only one backup at a time is written into a directory */
+    private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+    static final String REPOSITORY_DIR = "repository";
+
+    /** The names of the temporary files older versions wrote backups to */
+    private static final Pattern TEMPORARY_FILE = Pattern.compile(".+\\.[0-9]+\\.tmp");
+
+    private final File sourceDir;
+    private final File backupDir;
+
+    private final String fileName;
+    private final BackupOptions options;
+    private final BackupThrottle throttle;
+    private final BackupListener listener;
+    private final BackupMetrics metrics;
+
+    /**
+     * @param sourceDir the directory to back up
+     * @param backupDir the directory the backups are stored in
+     * @param fileName  the file name of the new backup
+     * @param options   how to take the backup and which backups to keep
+     * @param throttle  slows the backup down
+     * @param listener  is told about the progress of the backup
+     * @param metrics   where the phases of the backup are timed
+     */
+    public Backup(File sourceDir, File backupDir, String fileName, BackupOptions options, BackupThrottle throttle, BackupListener listener,
+                  BackupMetrics metrics) throws IOException {
+        this.sourceDir = sourceDir;
+        this.backupDir = backupDir;
+        this.fileName = fileName;
+        this.options = options;
+        this.throttle = throttle;
+        this.listener = listener;
+        this.metrics = metrics;
+
+        if (!sourceDir.exists()) throw new FileNotFoundException("The given backup source path doesn't exist");
+        if (!sourceDir.isDirectory()) throw new IOException("The given backup source path is a file");
+    }
+
+    /**
+     * Take the backup, then start removing old backups in the background
+     *
+     * @return completes once the old backups are removed
+     */
+    public ListenableFuture<?> run() throws IOException {
+        synchronized (lockFor(backupDir)) {
+            final File backupFile = new File(backupDir, fileName);
+            if (backupFile.exists()) throw new FileAlreadyExistsException(backupFile.getPath(), null, "A backup with this name exists");
+            try (BackupJournal journal = BackupJournal.open(backupDir)) {
+                return run(backupFile, journal);
+            }
+        }
+    }
+
+    /**
+     * Take the backup while the backup directory is locked
+     *
+     * @param backupFile the file the backup is stored in
+     * @param journal    the journal of the backup directory
+     *
+     * @return completes once the old backups are removed
+     */
+    private ListenableFuture<?> run(File backupFile, BackupJournal journal) throws IOException {
+        deleteTemporaryFiles();
+        final File backupFileTmp = journal.getPartialFile();
+        log.info("Starting backup {}", backupFile.getAbsolutePath());
+        listener.message("Starting Server Backup");
+        final long start = metrics.begin();
+        final BackupProgress progress = metrics.getProgress();
+
+        File archiveSource = sourceDir;
+        WorldSnapshot snapshot = null;
+        final List<File> metadataFiles = new ArrayList<>();
+        final DataFile data = new DataFile();
+        final ArchiveCodec codec = createCodec(options, throttle);
+        BackupFanOut fanOut = null;
+        if (!options.sinks.isEmpty()) {
+            if (options.enableRepository) {
+                log.warn("Backup sinks don't get repository backups, {} is only stored in the backup directory", fileName);
+            } else {
+                fanOut = new BackupFanOut(options.sinks, backupFileTmp, fileName, options.sinkBufferMemory * (long) FileUtil.MB);
+            }
+        }
+        final long checksum;
+        int compacted = 0;
+        int trimmed = 0;
+        long trimmedBytes = 0;
+        long saved = 0;
+        try {
+            if (options.snapshotMode != WorldSnapshot.Mode.NONE) {
+                progress.setPhase(BackupMetrics.Phase.SNAPSHOT);
+                final long snapshotStart = metrics.begin();
+                final File snapshotDir = new File(sourceDir.getAbsoluteFile().getParentFile(), sourceDir.getName() + "_backup_snapshot");
+                snapshot = WorldSnapshot.create(sourceDir, snapshotDir, options.snapshotMode, options.filter);
+                listener.sourceReleased();
+                metrics.end(BackupMetrics.Phase.SNAPSHOT, snapshotStart);
+                log.info("Took world snapshot in {} ms ({})", metrics.getPhaseMillis(BackupMetrics.Phase.SNAPSHOT), snapshot.getMethod());
+                archiveSource = snapshot.getDirectory();
+            }
+
+            progress.setPhase(BackupMetrics.Phase.COMPRESSION);
+            final long compressionStart = metrics.begin();
+            final File dataFile = new File(archiveSource, DataFile.FILE_NAME);
+
+            List<ParallelArchiver.Source> sources = ParallelArchiver.collect(archiveSource, options.filter, options.walkThreads);
+            sources = withoutMetadata(sources);
+            List<ParallelArchiver.Source> read = sources; // The files this backup reads, in a repository all of them
+            final List<ParallelArchiver.Source> metadata = new ArrayList<>(3);
+            BackupManifest manifest = null;
+            if (options.enableRepository) {
+                final File indexFile = new File(archiveSource, BackupRepository.INDEX_FILE);
+                storeInRepository(sources, data).write(indexFile);
+                metadataFiles.add(indexFile);
+                sources = new ArrayList<>();
+                metadata.add(new ParallelArchiver.Source(indexFile, BackupRepository.INDEX_FILE, false));
+            } else if (options.enableIncremental) {
+                manifest = buildManifest(sources, data);
+                sources = storedIn(manifest, sources);
+                read = sources;
+            }
+
+            if (options.compactRegions || options.chunkTrim.isEnabled()) {
+                final List<ParallelArchiver.Source> compactedSources =
+                        RegionCompactor.compact(sources, options.chunkTrim, archiveSource, backupDir, options.threads(), throttle);
+                for (int i = 0; i < compactedSources.size(); i++) {
+                    final RegionCompactor.Layout layout = compactedSources.get(i).layout;
+                    if (layout != null) {
+                        compacted++;
+                        trimmed += layout.trimmed;
+                        trimmedBytes += layout.trimmedBytes;
+                        saved += sources.get(i).length - layout.length;
+                    }
+                }
+                sources = compactedSources;
+            }
+            if (manifest != null) {
+                manifest.setStoredLengths(sources);
+                final File manifestFile = new File(archiveSource, BackupManifest.FILE_NAME);
+                manifest.write(manifestFile);
+                metadataFiles.add(manifestFile);
+                metadata.add(new ParallelArchiver.Source(manifestFile, BackupManifest.FILE_NAME, false));
+            }
+
+            Files.write(gson.toJson(data), dataFile, Charsets.UTF_8);
+            metadataFiles.add(dataFile);
+            metadata.add(0, new ParallelArchiver.Source(dataFile, DataFile.FILE_NAME, false));
+            // In a tar archive the metadata goes first, so it can be read without going through the whole archive. A
+            // ZIP file has a central directory, there it goes last so an interrupted backup can reuse all entries.
+            final List<ParallelArchiver.Source> entries = new ArrayList<>(sources.size() + metadata.size());
+            if (codec.getFormat() != ArchiveFormat.ZIP) {
+                entries.addAll(metadata);
+            }
+            entries.addAll(sources);
+            if (codec.getFormat() == ArchiveFormat.ZIP) {
+                entries.addAll(metadata);
+            }
+            long bytesTotal = 0;
+            int filesTotal = 0;
+            for (ParallelArchiver.Source entry : entries) {
+                if (!entry.directory) {
+                    filesTotal++;
+                    bytesTotal += entry.length;
+                }
+            }
+            progress.addTotal(bytesTotal, filesTotal);
+            int files = 0;
+            long bytesRead = 0;
+            for (ParallelArchiver.Source source : read) {
+                if (!source.directory) {
+                    files++;
+                    bytesRead += source.length;
+                }
+            }
+            checksum = codec.archive(entries, backupFileTmp, BackupCatalog.toComment(data), journal, fanOut, progress);
+            metrics.end(BackupMetrics.Phase.COMPRESSION, compressionStart);
+            // Files kept from an interrupted backup, or from the repository, weren't read by this run
+            metrics.setData(fileName, files - progress.getFilesSkipped(), bytesRead - saved - progress.getBytesSkipped(), backupFileTmp.length(),
+                            journal.getResumedBytes());
+        } catch (IOException | RuntimeException e) {
+            if (fanOut != null) {
+                fanOut.abort();
+            }
+            if (codec.getFormat() == ArchiveFormat.ZIP && backupFileTmp.isFile()) {
+                log.info("Keeping the unfinished backup, the next backup continues it");
+            } else {
+                journal.delete();
+            }
+            throw e;
+        } finally {
+            for (File file : metadataFiles) {
+                file.delete();
+            }
+            listener.sourceReleased();
+            if (snapshot != null) {
+                snapshot.delete();
+            }
+        }
+
+        progress.setPhase(BackupMetrics.Phase.RENAME);
+        final long renameStart = metrics.begin();
+        log.info("Rename backup {}", backupFile.getAbsolutePath());
+        try {
+            commit(backupFileTmp, backupFile);
+        } catch (IOException e) {
+            if (fanOut != null) {
+                fanOut.abort();
+            }
+            throw e;
+        }
+        journal.delete();
+        metrics.end(BackupMetrics.Phase.RENAME, renameStart);
+
+        if (fanOut != null) {
+            progress.setPhase(BackupMetrics.Phase.UPLOAD);
+            final long uploadStart = metrics.begin();
+            final List<BackupSink.Report> reports = fanOut.finish();
+            metrics.end(BackupMetrics.Phase.UPLOAD, uploadStart);
+            metrics.setSinkReports(reports);
+            for (BackupSink.Report report : reports) {
+                if (report.error == null) {
+                    log.info("Copied backup to {}", report);
+                } else {
+                    log.warn("Copy of the backup to {}", report);
+                    listener.message("Failed to copy the backup to " + report.sink + ": " + report.error);
+                }
+            }
+        }
+
+        progress.setPhase(BackupMetrics.Phase.CATALOG);
+        final long catalogStart = metrics.begin();
+        long totalSize = 0;
+        int backups;
+        synchronized (BackupCatalog.LOCK) {
+            final BackupCatalog catalog = BackupCatalog.load(backupDir, options.fileEnding);
+            catalog.put(new BackupCatalog.Entry(backupFile, data, Long.toHexString(checksum)));
+            catalog.save();
+            for (BackupCatalog.Entry entry : catalog.entries()) {
+                totalSize += entry.size;
+            }
+            backups = catalog.entries().size();
+        }
+        metrics.end(BackupMetrics.Phase.CATALOG, catalogStart);
+
+        final String duration = String.format(Locale.ROOT, "%.1f", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / 1000.0);
+        final String sizeData = "(" + FileUtil.getSizeS(metrics.getBytesWritten()) + ", " + FileUtil.getSizeS(totalSize) + " in " + backups + " backups)";
+        log.info("Backup completed in {} seconds {}", duration, sizeData);
+        if (compacted > 0) {
+            final long millis = Math.max(1, metrics.getPhaseMillis(BackupMetrics.Phase.COMPRESSION));
+            final long read = metrics.getBytesRead();
+            log.info("Compacted {} region files, left out {} of unused sectors and {} unvisited chunks ({}). Read {} at {}/s, which covers {} of world files at {}/s",
+                     compacted, FileUtil.getSizeS(saved - trimmedBytes), trimmed, FileUtil.getSizeS(trimmedBytes), FileUtil.getSizeS(read), FileUtil.getSizeS(read * 1000 / millis),
+                     FileUtil.getSizeS(read + saved), FileUtil.getSizeS((read + saved) * 1000 / millis));
+        }
+        log.info("Backup phases: {}", metrics.describePhases());
+        if (throttle.getThrottledMillis() > 0) {
+            log.info("Backup was throttled for {} ms, summed over all threads", throttle.getThrottledMillis());
+        }
+        listener.message("Backup finished after " + duration + " seconds " + sizeData);
+
+        final long cleanupStart = metrics.begin();
+        final ListenableFuture<?> cleanup = BackupCleanup.run(backupDir, options);
+        cleanup.addListener(new Runnable() {
+            @Override
+            public void run() {
+                metrics.end(BackupMetrics.Phase.CLEANUP, cleanupStart);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return cleanup;
+    }
+
+    /**
+     * Build the manifest of this backup, based on the newest existing backup unless it is time for a full backup
+     *
+     * @param sources the files that are part of this backup
+     * @param data    the metadata of this backup, filled in with its place in the backup chain
+     *
+     * @return the manifest
+     */
+    private BackupManifest buildManifest(List<ParallelArchiver.Source> sources, DataFile data) throws IOException {
+        BackupManifest parent = null;
+        final TreeSet<BackupCleanup.BackupMetadata> backups = BackupCleanup.scan(backupDir, options.fileEnding);
+        if (!backups.isEmpty() && !backups.last().corrupt && backups.last().chainLength + 1 < options.fullBackupEvery) {
+            final BackupCleanup.BackupMetadata newest = backups.last();
+            try {
+                parent = BackupManifest.read(newest.backupFile);
+                data.parent = newest.backupFile.getName();
+                data.chainLength = newest.chainLength + 1;
+            } catch (IOException e) {
+                log.warn("Can't base an incremental backup on {}, taking a full backup instead: {}", newest.backupFile.getName(), e.getMessage());
+            }
+        }
+
+        final BackupManifest manifest = BackupManifest.build(sources, parent, fileName, options.changedFiles);
+        data.kind = parent == null ? DataFile.KIND_FULL : DataFile.KIND_INCREMENTAL;
+        data.dependencies = manifest.dependencies(fileName);
+        log.info("Taking {} backup", data.kind);
+        return manifest;
+    }
+
+    /**
+     * Store the files of this backup in the repository, only reading files that changed since the newest repository backup
+     *
+     * @param sources the files that are part of this backup
+     * @param data    the metadata of this backup
+     *
+     * @return the index of the backup
+     */
+    private BackupRepository.Index storeInRepository(List<ParallelArchiver.Source> sources, DataFile data) throws IOException {
+        BackupRepository.Index parent = null;
+        final TreeSet<BackupCleanup.BackupMetadata> backups = BackupCleanup.scan(backupDir, options.fileEnding);
+        for (BackupCleanup.BackupMetadata meta : backups.descendingSet()) {
+            if (DataFile.KIND_REPOSITORY.equals(meta.kind) && !meta.corrupt) {
+                try {
+                    parent = BackupRepository.readIndex(meta.backupFile);
+                } catch (IOException e) {
+                    log.warn("Can't read the repository index of {}, reading all files: {}", meta.backupFile.getName(), e.getMessage());
+                }
+                break;
+            }
+        }
+
+        data.kind = DataFile.KIND_REPOSITORY;
+        return new BackupRepository(new File(backupDir, REPOSITORY_DIR), throttle).store(sources, parent, options.threads(), metrics.getProgress());
+    }
+
+    /** Drop the files whose contents are already stored in an older backup */
+    private List<ParallelArchiver.Source> storedIn(BackupManifest manifest, List<ParallelArchiver.Source> sources) {
+        final Set<String> stored = manifest.filesStoredIn(fileName);
+        final List<ParallelArchiver.Source> result = new ArrayList<>(stored.size());
+        for (ParallelArchiver.Source source : sources) {
+            if (source.directory || stored.contains(source.name)) {
+                result.add(source);
+            }
+        }
+        log.debug("{} of {} files changed since the last backup", stored.size(), manifest.files.size());
+        return result;
+    }
+
+    /** @return the lock held while a backup is written into a directory */
+    static Object lockFor(File directory) {
+        final String key = directory.getAbsoluteFile().toPath().normalize().toString();
+        final Object lock = new Object();
+        final Object existing = LOCKS.putIfAbsent(key, lock);
+        return existing != null ? existing : lock;
+    }
+
+    /**
+     * Move a finished archive to its name, once it is on disk. A crash leaves either the unfinished archive or the
+     * complete backup, never a backup that is cut off.
+     */
+    private static void commit(File archive, File backupFile) throws IOException {
+        FileUtil.sync(archive);
+        try {
+            java.nio.file.Files.move(archive.toPath(), backupFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(archive.toPath(), backupFile.toPath());
+        }
+        FileUtil.sync(backupFile.getParentFile());
+    }
+
+    /** Delete the temporary files older versions wrote backups to, left behind by backups that didn't finish */
+    private void deleteTemporaryFiles() {
+        final File[] files = backupDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (TEMPORARY_FILE.matcher(file.getName()).matches() && file.delete()) {
+                log.info("Deleted the unfinished backup {}", file.getName());
+            }
+        }
+    }
+
+    /** @return the codec for the archive format of the options */
+    static ArchiveCodec createCodec(BackupOptions options, BackupThrottle throttle) {
+        if (options.archiveFormat == ArchiveFormat.ZIP) {
+            final CompressionPolicy policy = new CompressionPolicy(options.compressionLevel, options.regionCompressionLevel, options.adaptiveCompression);
+            return new ParallelArchiver(options.compressionThreads, policy, throttle, options.maxBufferMemory * (long) FileUtil.MB);
+        }
+        return new TarArchiver(options.archiveFormat, options.zstdLevel, throttle);
+    }
+
+    /** Drop metadata files left in the world by a backup that didn't finish */
+    private static List<ParallelArchiver.Source> withoutMetadata(List<ParallelArchiver.Source> sources) {
+        final List<ParallelArchiver.Source> result = new ArrayList<>(sources.size() + 2);
+        for (ParallelArchiver.Source source : sources) {
+            if (!source.name.equals(DataFile.FILE_NAME) && !source.name.equals(BackupManifest.FILE_NAME) && !source.name.equals(BackupRepository.INDEX_FILE)) {
+                result.add(source);
+            }
+        }
+        return result;
+    }
+
+    public static class DataFile {
+        public static final String FILE_NAME = "backupdata.json";
+        public static final String KIND_FULL = "full";
+        public static final String KIND_INCREMENTAL = "incremental";
+        public static final String KIND_REPOSITORY = "repository";
+
+        @SuppressWarnings("CanBeFinal")
+        public long timestamp = System.currentTimeMillis();
+        public String kind = KIND_FULL;
+        /** The backup this one is based on, only set for incremental backups */
+        public String parent;
+        /** The number of incremental backups since the last full backup */
+        public int chainLength;
+        /** The backups that hold files this backup needs to be restored */
+        public List<String> dependencies = new ArrayList<>();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * A persistent list of the backups in a backup directory, so finding out what backups exist doesn't mean opening every
+ * archive.
+ * <p>
+ * The catalog file carries the modification time of the directory. When that changes, only archives that are new or were
+ * modified are read again, using the metadata in the archive comment which sits in the last bytes of a ZIP file and in
+ * the first header of a tar archive.
+ */
+public class BackupCatalog {
+
+    private static final Logger log = LogManager.getLogger();
+
+    public static final String FILE_NAME = "catalog.json";
+
+    /** Held while the catalog is read, changed and saved, backups are added and removed from different threads */
+    public static final Object LOCK = new Object();
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final Gson commentGson = new Gson();
+
+    private final File directory;
+    private final File file;
+    private final String fileEnding;
+
+    private Data data;
+
+    private BackupCatalog(File directory, String fileEnding) {
+        this.directory = directory;
+        this.file = new File(directory, FILE_NAME);
+        this.fileEnding = fileEnding;
+    }
+
+    /**
+     * Load the catalog of a backup directory, bringing it up to date if the directory changed since it was saved
+     *
+     * @param directory  the backup directory
+     * @param fileEnding the file ending of backup archives
+     *
+     * @return the catalog
+     */
+    public static BackupCatalog load(File directory, String fileEnding) {
+        synchronized (LOCK) {
+            final BackupCatalog catalog = new BackupCatalog(directory, fileEnding);
+            catalog.data = catalog.read();
+            if (!catalog.file.exists() || catalog.file.lastModified() != directory.lastModified()) {
+                catalog.refresh();
+                try {
+                    catalog.save();
+                } catch (IOException e) {
+                    log.warn("Failed to save the backup catalog", e);
+                }
+            }
+            return catalog;
+        }
+    }
+
+    /** @return every backup in the catalog */
+    public Collection<Entry> entries() {
+        return data.backups.values();
+    }
+
+    /** Add a backup to the catalog, or replace the existing entry with the same file name */
+    public void put(Entry entry) {
+        data.backups.put(entry.fileName, entry);
+    }
+
+    /** Remove a backup from the catalog */
+    public void remove(String fileName) {
+        data.backups.remove(fileName);
+    }
+
+    /** Write the catalog to disk, replacing the old one atomically */
+    public void save() throws IOException {
+        final File tmp = new File(directory, FILE_NAME + ".tmp");
+        try (Writer writer = Files.newWriter(tmp, Charsets.UTF_8)) {
+            gson.toJson(data, writer);
+        }
+        try {
+            java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        // Moving the catalog changed the directory. Stamping the catalog with the directory time marks it as up to date,
+        // until a backup is added or removed and the directory changes again.
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(directory.lastModified());
+    }
+
+    private Data read() {
+        if (!file.exists()) return new Data();
+        try (Reader reader = Files.newReader(file, Charsets.UTF_8)) {
+            final Data read = gson.fromJson(reader, Data.class);
+            if (read != null && read.backups != null) {
+                return read;
+            }
+        } catch (IOException | JsonParseException e) {
+            log.warn("The backup catalog is corrupt, rebuilding it", e);
+        }
+        return new Data();
+    }
+
+    /** Bring the catalog up to date with the files in the directory */
+    private void refresh() {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return ArchiveFormat.isArchiveName(name, fileEnding);
+            }
+        });
+        final Set<String> present = new HashSet<>();
+        int read = 0;
+        if (files != null) {
+            for (final File archive : files) {
+                present.add(archive.getName());
+                final Entry existing = data.backups.get(archive.getName());
+                if (existing != null && existing.size == archive.length() && existing.lastModified == archive.lastModified()) {
+                    continue;
+                }
+                final Backup.DataFile metadata = readMetadata(archive);
+                read++;
+                if (metadata != null) {
+                    put(new Entry(archive, metadata, null));
+                } else {
+                    data.backups.remove(archive.getName());
+                }
+            }
+        }
+        final Iterator<String> iterator = data.backups.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!present.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+        log.debug("Refreshed backup catalog, read metadata of {} archives", read);
+    }
+
+    /**
+     * Read the metadata of a backup archive, from its comment if it has one or else from the metadata file inside it
+     *
+     * @return the metadata, or {@code null} if the file is not a backup
+     */
+    @Nullable
+    static Backup.DataFile readMetadata(File archive) {
+        try (ArchiveReader reader = ArchiveFormat.open(archive)) {
+            try {
+                final String comment = reader.getComment();
+                if (comment != null && comment.startsWith("{")) {
+                    final Backup.DataFile metadata = commentGson.fromJson(comment, Backup.DataFile.class);
+                    if (metadata != null) return metadata;
+                }
+            } catch (IOException | JsonParseException e) {
+                log.debug("Couldn't read the comment of " + archive.getName(), e);
+            }
+
+            if (ArchiveFormat.seek(reader, Backup.DataFile.FILE_NAME)) {
+                try (Reader in = new InputStreamReader(reader.getInputStream(), Charsets.UTF_8)) {
+                    return commentGson.fromJson(in, Backup.DataFile.class);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Error ocurred while cleaning up backups, Couldn't open file as a backup archive: {}", archive.getName());
+            log.warn("", e);
+        }
+        return null;
+    }
+
+    /**
+     * Serialize backup metadata so it can be stored as an archive comment
+     *
+     * @param metadata the metadata
+     *
+     * @return the comment
+     */
+    static String toComment(Backup.DataFile metadata) {
+        return commentGson.toJson(metadata);
+    }
+
+    private static class Data {
+        Map<String, Entry> backups = new TreeMap<>();
+    }
+
+    public static class Entry {
+        public String fileName;
+        public long size;
+        public long lastModified;
+        /** The CRC-32 of the whole archive, or {@code null} if it isn't known */
+        @Nullable
+        public String checksum;
+        public Backup.DataFile data;
+        /** When the archive was last read back by the {@link BackupVerifier}, {@code 0} if it never was */
+        public long verifiedAt;
+        /** What the {@link BackupVerifier} found wrong with the archive, or {@code null} if it is fine */
+        @Nullable
+        public String corrupt;
+
+        public Entry(File archive, Backup.DataFile data, @Nullable String checksum) {
+            this.fileName = archive.getName();
+            this.size = archive.length();
+            this.lastModified = archive.lastModified();
+            this.checksum = checksum;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class BackupCleanup {
+
+    private static final Logger log = LogManager.getLogger();
+
+    /** Deletes old backups in the background, so the next backup doesn't have to wait for it */
+    private static final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Cleanup").setDaemon(true).build()));
+
+    /**
+     * Decide which backups have to go and delete them in the background
+     *
+     * @param backupDirectory the backup directory
+     * @param options         the retention rules
+     *
+     * @return completes once the backups are deleted
+     */
+    public static ListenableFuture<?> run(final File backupDirectory, final BackupOptions options) {
+        final TreeSet<BackupMetadata> backups = scan(backupDirectory, options.fileEnding);
+        final boolean repository = new File(backupDirectory, Backup.REPOSITORY_DIR).isDirectory();
+        // Removing a backup from a repository frees an unknown amount of space, so there the size is handled afterwards
+        final long directorySize = options.maxFolderSize == -1 || repository ? -1 : FileUtil.fileSize(backupDirectory, options.walkThreads);
+        final Map<BackupMetadata, String> doomed = selectForRemoval(backups, options, directorySize, System.currentTimeMillis());
+        if (doomed.isEmpty() && !repository) return Futures.immediateFuture(null);
+
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                remove(backupDirectory, options.fileEnding, doomed);
+                if (repository) {
+                    collectGarbage(backupDirectory, options.fileEnding);
+                    shrinkRepository(backupDirectory, options);
+                }
+            }
+        });
+    }
+
+    /**
+     * Choose the backups to remove in a single pass from the newest to the oldest backup. The newest good backup is
+     * always kept with every backup it depends on, even if that alone goes over the limits. An older backup is kept if
+     * it is young enough and still fits in the configured number and size limits, together with every backup it
+     * depends on. Once a backup doesn't fit, no older backup will, except as a dependency of a newer one.
+     * <p>
+     * Corrupt backups don't take up room in the limits, so they never push out a good backup. They are removed as soon
+     * as a newer good backup is kept, until then they are the best there is.
+     *
+     * @param backups       all backups
+     * @param options       the retention rules
+     * @param directorySize the size of the whole backup directory, or {@code -1} to ignore the size limit
+     * @param now           the current time
+     *
+     * @return the backups to remove, oldest first, with the reason they are removed
+     */
+    static Map<BackupMetadata, String> selectForRemoval(final TreeSet<BackupMetadata> backups, final BackupOptions options, final long directorySize, final long now) {
+        final Map<String, BackupMetadata> byName = new HashMap<>(backups.size() * 2);
+        long backupsSize = 0;
+        for (BackupMetadata meta : backups) {
+            byName.put(meta.backupFile.getName(), meta);
+            backupsSize += meta.size;
+        }
+
+        final long maxSize = options.maxFolderSize * org.apache.commons.io.FileUtils.ONE_MB;
+        long keptSize = directorySize - backupsSize; // Everything in the directory that isn't a backup
+        int keptCount = 0;
+        String full = null;
+
+        final Map<BackupMetadata, String> reasons = new HashMap<>();
+        final Set<BackupMetadata> kept = new HashSet<>();
+        for (BackupMetadata meta : backups.descendingSet()) {
+            if (kept.contains(meta)) continue;
+            if (meta.corrupt) {
+                if (full != null || keptCount > 0) {
+                    reasons.put(meta, "Corrupt");
+                } else if (options.lifespanDays != -1 && (now - meta.timestamp) / 86400000 > options.lifespanDays) {
+                    reasons.put(meta, "Backup Age");
+                }
+                continue;
+            }
+
+            if (keptCount == 0) {
+                // The newest good backup, without it and its parents there would be nothing to restore
+                final List<BackupMetadata> required = withDependencies(meta, byName, kept);
+                long requiredSize = 0;
+                for (BackupMetadata dependency : required) {
+                    requiredSize += dependency.size;
+                }
+                kept.addAll(required);
+                keptCount += required.size();
+                keptSize += requiredSize;
+                if (options.maxNumberBackups != -1 && keptCount > options.maxNumberBackups) {
+                    log.warn("Keeping {} backups although only {} are allowed, the newest backup {} depends on them",
+                             keptCount, options.maxNumberBackups, meta.backupFile.getName());
+                }
+                if (directorySize != -1 && options.maxFolderSize != -1 && keptSize > maxSize) {
+                    log.warn("Keeping {} of backups although only {} are allowed, the newest backup {} depends on them",
+                             FileUtil.getSizeS(keptSize), FileUtil.getSizeS(maxSize), meta.backupFile.getName());
+                }
+                continue;
+            }
+
+            String reason = full;
+            if (reason == null && options.lifespanDays != -1 && (now - meta.timestamp) / 86400000 > options.lifespanDays) {
+                reason = "Backup Age";
+            }
+            final List<BackupMetadata> required = reason == null ? withDependencies(meta, byName, kept) : Collections.<BackupMetadata>emptyList();
+            long requiredSize = 0;
+            for (BackupMetadata dependency : required) {
+                requiredSize += dependency.size;
+            }
+            if (reason == null && options.maxNumberBackups != -1 && keptCount + required.size() > options.maxNumberBackups) {
+                reason = full = "Number Backups";
+            }
+            if (reason == null && directorySize != -1 && options.maxFolderSize != -1 && keptSize + requiredSize > maxSize) {
+                reason = full = "Backups Size";
+            }
+
+            if (reason == null) {
+                kept.addAll(required);
+                keptCount += required.size();
+                keptSize += requiredSize;
+            } else {
+                reasons.put(meta, reason);
+            }
+        }
+
+        final Map<BackupMetadata, String> doomed = new LinkedHashMap<>();
+        for (BackupMetadata meta : backups) {
+            if (!kept.contains(meta) && reasons.containsKey(meta)) {
+                doomed.put(meta, reasons.get(meta));
+            } else if (!kept.contains(meta) && !meta.corrupt) {
+                log.debug("Keeping backup {}, newer incremental backups depend on it", meta.backupFile.getName());
+            }
+        }
+        return doomed;
+    }
+
+    /** @return the backup and everything it depends on that isn't kept yet */
+    private static List<BackupMetadata> withDependencies(final BackupMetadata meta, final Map<String, BackupMetadata> byName, final Set<BackupMetadata> kept) {
+        final List<BackupMetadata> result = new ArrayList<>();
+        final Deque<BackupMetadata> queue = new ArrayDeque<>();
+        queue.add(meta);
+        while (!queue.isEmpty()) {
+            final BackupMetadata next = queue.poll();
+            if (kept.contains(next) || result.contains(next)) continue;
+            result.add(next);
+            for (String dependency : next.dependencies) {
+                final BackupMetadata dep = byName.get(dependency);
+                if (dep != null && !dep.corrupt) queue.add(dep);
+            }
+        }
+        return result;
+    }
+
+    private static void remove(final File backupDirectory, final String fileEnding, final Map<BackupMetadata, String> doomed) {
+        for (Map.Entry<BackupMetadata, String> entry : doomed.entrySet()) {
+            log.info("{}: Removing old backup {}", entry.getValue(), entry.getKey().backupFile.getName());
+            entry.getKey().backupFile.delete();
+        }
+        synchronized (BackupCatalog.LOCK) {
+            final BackupCatalog catalog = BackupCatalog.load(backupDirectory, fileEnding);
+            for (BackupMetadata meta : doomed.keySet()) {
+                catalog.remove(meta.backupFile.getName());
+            }
+            try {
+                catalog.save();
+            } catch (IOException e) {
+                log.warn("Failed to save the backup catalog", e);
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest repository backups until the directory fits in the size limit again, always keeping the newest.
+     * Each removal is followed by a garbage collection, because only that shows how much space it actually freed.
+     */
+    private static void shrinkRepository(final File backupDirectory, final BackupOptions options) {
+        if (options.maxFolderSize == -1) return;
+        final long maxSize = options.maxFolderSize * org.apache.commons.io.FileUtils.ONE_MB;
+        while (FileUtil.fileSize(backupDirectory, options.walkThreads) > maxSize) {
+            final TreeSet<BackupMetadata> backups = scan(backupDirectory, options.fileEnding);
+            if (backups.size() <= 1) return;
+            remove(backupDirectory, options.fileEnding, Collections.singletonMap(backups.first(), "Backups Size"));
+            if (backups.first().backupFile.exists()) return; // Couldn't delete it, don't try forever
+            collectGarbage(backupDirectory, options.fileEnding);
+        }
+    }
+
+    /**
+     * Remove repository objects that none of the remaining backups use. This waits for a running backup to finish,
+     * because the objects it is adding are not referenced by any backup yet.
+     */
+    private static void collectGarbage(final File backupDirectory, final String fileEnding) {
+        synchronized (Backup.lockFor(backupDirectory)) {
+            final File repositoryDir = new File(backupDirectory, Backup.REPOSITORY_DIR);
+            final List<BackupRepository.Index> live = new ArrayList<>();
+            for (BackupMetadata meta : scan(backupDirectory, fileEnding)) {
+                if (Backup.DataFile.KIND_REPOSITORY.equals(meta.kind)) {
+                    try {
+                        live.add(BackupRepository.readIndex(meta.backupFile));
+                    } catch (Exception e) {
+                        // Without every index it's impossible to know which objects are still in use
+                        log.warn("Skipping repository cleanup, couldn't read the index of {}", meta.backupFile.getName());
+                        log.warn("", e);
+                        return;
+                    }
+                }
+            }
+            try {
+                new BackupRepository(repositoryDir).collectGarbage(live);
+            } catch (Exception e) {
+                log.warn("Error ocurred while cleaning up the backup repository", e);
+            }
+        }
+    }
+
+    /**
+     * @param backupDirectory the backup directory
+     * @param fileEnding      the file ending of ZIP backups
+     *
+     * @return all backups in the directory, oldest first
+     */
+    static TreeSet<BackupMetadata> scan(File backupDirectory, String fileEnding) {
+        checkNotNull(backupDirectory);
+        TreeSet<BackupMetadata> backups = new TreeSet<>();
+        if (!backupDirectory.exists() || !backupDirectory.isDirectory()) return backups;
+
+        synchronized (BackupCatalog.LOCK) {
+            for (final BackupCatalog.Entry entry : BackupCatalog.load(backupDirectory, fileEnding).entries()) {
+                backups.add(new BackupMetadata(new File(backupDirectory, entry.fileName), entry));
+            }
+        }
+
+        return backups;
+    }
+
+    public static class BackupMetadata implements Comparable<BackupMetadata> {
+        public final File backupFile;
+        public final long timestamp;
+        public final long size;
+        public final String kind;
+        public final int chainLength;
+        public final List<String> dependencies;
+        /** {@code true} if the {@link BackupVerifier} found the backup corrupt */
+        public final boolean corrupt;
+
+        public BackupMetadata(File backupFile, long timestamp) {
+            this.backupFile = backupFile;
+            this.timestamp = timestamp;
+            this.size = backupFile.length();
+            this.kind = Backup.DataFile.KIND_FULL;
+            this.chainLength = 0;
+            this.dependencies = Collections.emptyList();
+            this.corrupt = false;
+        }
+
+        public BackupMetadata(File backupFile, BackupCatalog.Entry entry) {
+            this(backupFile, entry.data, entry.size, entry.corrupt != null);
+        }
+
+        public BackupMetadata(File backupFile, Backup.DataFile data, long size) {
+            this(backupFile, data, size, false);
+        }
+
+        public BackupMetadata(File backupFile, Backup.DataFile data, long size, boolean corrupt) {
+            this.backupFile = backupFile;
+            this.timestamp = data.timestamp;
+            this.size = size;
+            this.kind = data.kind == null ? Backup.DataFile.KIND_FULL : data.kind;
+            this.chainLength = data.chainLength;
+            this.dependencies = data.dependencies == null ? Collections.<String>emptyList() : data.dependencies;
+            this.corrupt = corrupt;
+        }
+
+        @Override
+        public int compareTo(@Nonnull BackupMetadata meta) {
+            return Long.compare(this.timestamp, meta.timestamp);
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Runs the backup engine from the command line, without a server. Useful to back up worlds that aren't running, to
+ * clean up backups from cron, and to check that backups can still be read.
+ * <p>
+ * Exits with {@code 0} on success, {@code 1} if a backup failed or didn't verify, and {@code 2} on wrong usage.
+ */
+public final class BackupCli {
+
+    /** The number of recent backups the time left of a backup is estimated from */
+    private static final int HISTORY_SIZE = 20;
+
+    private static final String USAGE = "Usage: java -cp <classpath> " + BackupCli.class.getName() + " <command> [options]\n" +
+                                        "Commands:\n" +
+                                        "  backup <world> <backupDir>  Back up a world directory, then remove old backups\n" +
+                                        "  prune <backupDir>           Remove old backups\n" +
+                                        "  verify <backupDir>          Check the checksums of every backup and its files, corrupt backups are removed first\n" +
+                                        "  restore <backupDir> <backup> <world> [selector...]\n" +
+                                        "                              Restore a backup or backup set into a world directory, the old world is kept\n" +
+                                        "                              next to it. Selectors restore only some files: dimension:<DIM-1|overworld>,\n" +
+                                        "                              player:<uuid> or a pattern like region/r.0.0.mca\n" +
+                                        "Options:\n" +
+                                        "  --format=zip|lz4|zstd       The archive format of new backups (zip)\n" +
+                                        "  --file-ending=<ending>      The file ending of ZIP backups (zip)\n" +
+                                        "  --name=<file name>          The file name of the new backup (the current date and time)\n" +
+                                        "  --threads=<n>               Compression or restore threads, -1 for one per processor (-1)\n" +
+                                        "  --level=<n>                 The deflate level, except for region files (-1)\n" +
+                                        "  --region-level=<n>          The deflate level of region files (1)\n" +
+                                        "  --zstd-level=<n>            The Zstandard level (9)\n" +
+                                        "  --buffer-mb=<n>             The most memory in megabytes the buffers of a ZIP backup take (64)\n" +
+                                        "  --no-adaptive               Compress every block, also the ones that don't get smaller\n" +
+                                        "  --compact-regions           Leave out the unused sectors of region files\n" +
+                                        "  --min-inhabited=<ticks>     Leave out chunks players spent fewer ticks in, implies --compact-regions (0)\n" +
+                                        "  --protect=<dim:x1,z1,x2,z2> Never leave out the chunks of this area in block coordinates, can be repeated\n" +
+                                        "  --snapshot=none|auto|copy   Take a snapshot of the world first (none)\n" +
+                                        "  --incremental               Only store files that changed since the previous backup\n" +
+                                        "  --full-every=<n>            Take a full backup every this many incremental backups (10)\n" +
+                                        "  --repository                Store the backup in a deduplicated repository\n" +
+                                        "  --copy-to=<dir>             Write a copy of the backup to this directory while it is written, can be repeated\n" +
+                                        "  --upload-to=<url>           Upload the backup to an S3 compatible bucket like https://host/bucket/prefix while it\n" +
+                                        "                              is written, signed with AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY if they are set\n" +
+                                        "  --upload-region=<region>    The region upload requests are signed for (us-east-1)\n" +
+                                        "  --part-size-mb=<n>          The size of the parts backups are uploaded in (16)\n" +
+                                        "  --sink-buffer-mb=<n>        The most megabytes held for a copy or upload that falls behind (32)\n" +
+                                        "  --progress=<seconds>        Print how far the backup got and the time left every this many seconds (never)\n" +
+                                        "  --split-dimensions          Back up every dimension into its own directory, all at the same time\n" +
+                                        "  --exclude-file=<name>       Don't back up files with this name, can be repeated\n" +
+                                        "  --exclude-dir=<name>        Don't back up directories with this name, can be repeated\n" +
+                                        "  --exclude=<pattern>         Don't back up files and directories matching a glob or regex:, can be repeated\n" +
+                                        "  --include=<pattern>         Only back up files matching one of these patterns, can be repeated\n" +
+                                        "  --walk-threads=<n>          Threads walking directories, -1 for one per processor (1)\n" +
+                                        "  --max-bytes-per-second=<n>  Read at most this many bytes per second from the world (no limit)\n" +
+                                        "  --max-age-days=<n>          Remove backups older than this many days (keep)\n" +
+                                        "  --max-count=<n>             Keep at most this many backups (no limit)\n" +
+                                        "  --max-size-mb=<n>           Keep the backup directory under this many megabytes (no limit)";
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private final BackupOptions options = new BackupOptions();
+    private final List<String> arguments = new ArrayList<>();
+    @Nullable
+    private String name;
+    private int maxBytesPerSecond = 0;
+    private boolean splitDimensions;
+    private int progressSeconds = 0;
+    private final Set<String> excludedFiles = new HashSet<>(Collections.singleton("level.dat_new"));
+    private final Set<String> excludedDirectories = new HashSet<>();
+    private final List<String> includes = new ArrayList<>();
+    private final List<String> excludes = new ArrayList<>();
+    private int minInhabitedTicks = 0;
+    private final List<String> protectedAreas = new ArrayList<>();
+    private final List<BackupSink> sinks = new ArrayList<>();
+    @Nullable
+    private String uploadUrl;
+    private String uploadRegion = "us-east-1";
+    private int partSize = 16;
+
+    BackupCli(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        System.exit(new BackupCli(System.out, System.err).run(args));
+    }
+
+    /**
+     * Run a command
+     *
+     * @param args the command line
+     *
+     * @return the exit code
+     */
+    int run(String[] args) {
+        try {
+            parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return 2;
+        }
+        if (arguments.isEmpty()) {
+            err.println(USAGE);
+            return 2;
+        }
+
+        final String command = arguments.remove(0);
+        try {
+            switch (command) {
+                case "backup":
+                    expectArguments(2);
+                    return backup(new File(arguments.get(0)), new File(arguments.get(1)));
+                case "prune":
+                    expectArguments(1);
+                    return prune(new File(arguments.get(0)));
+                case "verify":
+                    expectArguments(1);
+                    return verify(new File(arguments.get(0)));
+                case "restore":
+                    if (arguments.size() < 3) throw new IllegalArgumentException("Expected at least 3 arguments, got " + arguments.size());
+                    return restore(new File(arguments.get(0)), arguments.get(1), new File(arguments.get(2)), arguments.subList(3, arguments.size()));
+                default:
+                    throw new IllegalArgumentException("Unknown command: " + command);
+            }
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return 2;
+        } catch (IOException | ExecutionException e) {
+            err.println("Failed to " + command + ": " + e);
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            err.println("Interrupted");
+            return 1;
+        }
+    }
+
+    private int backup(File worldDir, File backupDir) throws IOException, ExecutionException, InterruptedException {
+        if (!backupDir.isDirectory() && !backupDir.mkdirs()) {
+            throw new IOException("Couldn't create the backup directory " + backupDir);
+        }
+        final String fileName = name != null ? name : new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + "." + options.archiveFormat.getExtension(options.fileEnding);
+        final BackupListener listener = new BackupListener() {
+            @Override
+            public void message(String message) {
+                out.println(message);
+            }
+
+            @Override
+            public void sourceReleased() {
+            }
+        };
+        final BackupHistory history = BackupHistory.load(backupDir, HISTORY_SIZE);
+        final BackupMetrics metrics = new BackupMetrics();
+        final BackupThrottle throttle = new BackupThrottle(maxBytesPerSecond, 0, null);
+        ScheduledExecutorService reporter = null;
+        if (progressSeconds > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Progress").setDaemon(true).build());
+            reporter.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    out.println("Progress: " + metrics.getProgress().snapshot(history));
+                }
+            }, progressSeconds, progressSeconds, TimeUnit.SECONDS);
+        }
+        try {
+            if (splitDimensions) {
+                final Map<String, BackupOptions> dimensions = new LinkedHashMap<>();
+                for (String key : DimensionBackup.findDimensions(worldDir, options.filter).keySet()) {
+                    dimensions.put(key, options);
+                }
+                new DimensionBackup(worldDir, backupDir, fileName, options, dimensions, throttle, listener, metrics).run().get();
+            } else {
+                new Backup(worldDir, backupDir, fileName, options, throttle, listener, metrics).run().get();
+            }
+        } finally {
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+        metrics.finish(true);
+        history.add(metrics);
+        out.println("Stored " + metrics);
+        out.println("Phases: " + metrics.describePhases());
+        return 0;
+    }
+
+    private int prune(File backupDir) throws ExecutionException, InterruptedException {
+        if (BackupSet.isSplit(backupDir)) {
+            for (File dimensionDir : BackupSet.dimensionDirectories(backupDir)) {
+                prune(dimensionDir);
+            }
+            BackupSet.prune(backupDir);
+            out.println(BackupSet.list(backupDir).size() + " backup sets left in " + backupDir);
+            return 0;
+        }
+        final int before = BackupCleanup.scan(backupDir, options.fileEnding).size();
+        BackupCleanup.run(backupDir, options).get();
+        final int after = BackupCleanup.scan(backupDir, options.fileEnding).size();
+        out.println("Removed " + (before - after) + " backups, " + after + " backups left in " + backupDir);
+        return 0;
+    }
+
+    private int restore(File backupDir, String backup, File worldDir, List<String> selectors) throws IOException {
+        final BackupRestore restore = new BackupRestore(backupDir, worldDir, BackupRestore.select(selectors), options.compressionThreads);
+        final BackupRestore.Result result = restore.stage(backup);
+        restore.apply();
+        out.println("Restored " + result);
+        return 0;
+    }
+
+    /**
+     * Check every backup in the catalog against its checksums, decompressing all entries, and record the results in
+     * the catalog. Corrupt backups are removed first by the next cleanup.
+     */
+    private int verify(File backupDir) throws IOException {
+        if (BackupSet.isSplit(backupDir)) {
+            int result = 0;
+            for (File dimensionDir : BackupSet.dimensionDirectories(backupDir)) {
+                out.println(dimensionDir.getName() + ":");
+                result = Math.max(result, verify(dimensionDir));
+            }
+            for (BackupSet set : BackupSet.list(backupDir)) {
+                final List<String> missing = set.missing(backupDir);
+                if (!missing.isEmpty()) {
+                    out.println("FAILED  set " + set.name + ": missing " + missing);
+                    result = 1;
+                }
+            }
+            return result;
+        }
+        final List<BackupVerifier.Report> reports = new BackupVerifier(new BackupThrottle(maxBytesPerSecond, 0, null)).verifyStale(backupDir, options.fileEnding, 0);
+        final Map<String, BackupCatalog.Entry> entries = new HashMap<>();
+        synchronized (BackupCatalog.LOCK) {
+            for (BackupCatalog.Entry entry : BackupCatalog.load(backupDir, options.fileEnding).entries()) {
+                entries.put(entry.fileName, entry);
+            }
+        }
+
+        int failed = 0;
+        for (BackupVerifier.Report report : reports) {
+            final String name = report.archive.getName();
+            String problem = report.problem;
+            if (problem == null && entries.containsKey(name)) {
+                for (String dependency : entries.get(name).data.dependencies) {
+                    if (!entries.containsKey(dependency)) {
+                        problem = "depends on missing backup " + dependency;
+                        break;
+                    }
+                }
+            }
+            if (problem == null) {
+                out.println("OK      " + name);
+            } else {
+                out.println("FAILED  " + name + ": " + problem);
+                failed++;
+            }
+        }
+        out.println(reports.size() - failed + " of " + reports.size() + " backups verified");
+        return failed == 0 ? 0 : 1;
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                arguments.add(arg);
+                continue;
+            }
+            final int equals = arg.indexOf('=');
+            final String key = equals == -1 ? arg.substring(2) : arg.substring(2, equals);
+            final String value = equals == -1 ? null : arg.substring(equals + 1);
+            switch (key) {
+                case "format":
+                    options.archiveFormat = ArchiveFormat.valueOf(value(key, value).toUpperCase(Locale.ENGLISH));
+                    break;
+                case "file-ending":
+                    options.fileEnding = value(key, value);
+                    break;
+                case "name":
+                    name = value(key, value);
+                    break;
+                case "threads":
+                    options.compressionThreads = intValue(key, value, -1, 256);
+                    break;
+                case "buffer-mb":
+                    options.maxBufferMemory = intValue(key, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "level":
+                    options.compressionLevel = intValue(key, value, -1, 9);
+                    break;
+                case "region-level":
+                    options.regionCompressionLevel = intValue(key, value, -1, 9);
+                    break;
+                case "zstd-level":
+                    options.zstdLevel = intValue(key, value, 1, 22);
+                    break;
+                case "no-adaptive":
+                    options.adaptiveCompression = false;
+                    break;
+                case "compact-regions":
+                    options.compactRegions = true;
+                    break;
+                case "min-inhabited":
+                    minInhabitedTicks = intValue(key, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "protect":
+                    protectedAreas.add(value(key, value));
+                    break;
+                case "copy-to":
+                    sinks.add(new LocalDirectorySink(new File(value(key, value))));
+                    break;
+                case "upload-to":
+                    uploadUrl = value(key, value);
+                    break;
+                case "upload-region":
+                    uploadRegion = value(key, value);
+                    break;
+                case "part-size-mb":
+                    partSize = intValue(key, value, 5, 1024);
+                    break;
+                case "sink-buffer-mb":
+                    options.sinkBufferMemory = intValue(key, value, 1, 1024);
+                    break;
+                case "snapshot":
+                    options.snapshotMode = WorldSnapshot.Mode.valueOf(value(key, value).toUpperCase(Locale.ENGLISH));
+                    break;
+                case "incremental":
+                    options.enableIncremental = true;
+                    break;
+                case "full-every":
+                    options.fullBackupEvery = intValue(key, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "repository":
+                    options.enableRepository = true;
+                    break;
+                case "progress":
+                    progressSeconds = intValue(key, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "split-dimensions":
+                    splitDimensions = true;
+                    break;
+                case "exclude-file":
+                    excludedFiles.add(value(key, value));
+                    break;
+                case "exclude-dir":
+                    excludedDirectories.add(value(key, value));
+                    break;
+                case "exclude":
+                    excludes.add(value(key, value));
+                    break;
+                case "include":
+                    includes.add(value(key, value));
+                    break;
+                case "walk-threads":
+                    options.walkThreads = intValue(key, value, -1, 256);
+                    if (options.walkThreads == 0) throw new IllegalArgumentException("Option --walk-threads must not be 0");
+                    break;
+                case "max-bytes-per-second":
+                    maxBytesPerSecond = intValue(key, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "max-age-days":
+                    options.lifespanDays = intValue(key, value, -1, Integer.MAX_VALUE);
+                    break;
+                case "max-count":
+                    options.maxNumberBackups = intValue(key, value, -1, Integer.MAX_VALUE);
+                    break;
+                case "max-size-mb":
+                    options.maxFolderSize = intValue(key, value, -1, Integer.MAX_VALUE);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        options.filter = PathFilter.compile(excludedFiles, excludedDirectories, includes, excludes);
+        options.chunkTrim = ChunkTrim.create(minInhabitedTicks, protectedAreas);
+        if (uploadUrl != null) {
+            sinks.add(new ObjectStoreSink(uploadUrl, uploadRegion, System.getenv("AWS_ACCESS_KEY_ID"), System.getenv("AWS_SECRET_ACCESS_KEY"),
+                    partSize * FileUtil.MB));
+        }
+        options.sinks = sinks;
+    }
+
+    private void expectArguments(int count) {
+        if (arguments.size() != count) {
+            throw new IllegalArgumentException("Expected " + count + " arguments, got " + arguments.size());
+        }
+    }
+
+    private static String value(String key, @Nullable String value) {
+        if (value == null || value.isEmpty()) throw new IllegalArgumentException("Option --" + key + " needs a value");
+        return value;
+    }
+
+    private static int intValue(String key, @Nullable String value, int min, int max) {
+        final int parsed;
+        try {
+            parsed = Integer.parseInt(value(key, value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + key + " needs a number: " + value);
+        }
+        if (parsed < min || parsed > max) {
+            throw new IllegalArgumentException("Option --" + key + " must be between " + min + " and " + max);
+        }
+        return parsed;
+    }
+}
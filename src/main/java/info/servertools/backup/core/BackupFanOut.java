@@ -0,0 +1,280 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Copies an archive to {@link BackupSink}s while it is written to the backup directory.
+ * <p>
+ * The codec writes the archive through {@link #tee(OutputStream, long)}. Every write is handed to the queue of each sink
+ * as long as the queue holds less than its share of memory, one thread per sink writes the queue to its copy. Once a
+ * queue is full its sink falls behind: nothing more is queued for it, and its thread reads the archive back from the
+ * file instead, which was just written and is usually still in the page cache. When it has caught up with the writer
+ * the sink is fed from the queue again. A continued ZIP backup starts every sink out behind, so the part written before
+ * the interruption is read back too.
+ * <p>
+ * A copy is only committed after {@link #finish()}, a backup that fails calls {@link #abort()} and every copy is thrown
+ * away. A sink that fails doesn't fail the backup, it is reported.
+ */
+final class BackupFanOut {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int READ_BACK_SIZE = 1024 * 1024;
+    private static final long POLL_MILLIS = 100;
+
+    private final File archive;
+    private final String path;
+    private final long bufferBytes;
+    private final List<Worker> workers = new ArrayList<>();
+    private final List<Future<BackupSink.Report>> reports = new ArrayList<>();
+
+    @Nullable
+    private ExecutorService executor;
+    @Nullable
+    private FileChannel channel;
+    /** The bytes of the archive in the file */
+    private volatile long written;
+    private volatile boolean complete;
+    private volatile long completedAt;
+
+    /**
+     * @param sinks       the sinks to copy the archive to
+     * @param archive     the file the archive is written to
+     * @param path        the path of the archive in the sinks
+     * @param bufferBytes the most bytes queued for each sink
+     */
+    BackupFanOut(List<BackupSink> sinks, File archive, String path, long bufferBytes) {
+        this.archive = archive;
+        this.path = path;
+        this.bufferBytes = bufferBytes;
+        for (BackupSink sink : sinks) {
+            workers.add(new Worker(sink));
+        }
+    }
+
+    /**
+     * Start copying the archive
+     *
+     * @param file   the stream writing the archive file
+     * @param offset the bytes already in the file, a continued archive is read back from the file up to there
+     *
+     * @return the stream to write the archive to instead
+     */
+    OutputStream tee(OutputStream file, long offset) throws IOException {
+        if (executor != null) throw new IllegalStateException("The archive is copied already");
+        written = offset;
+        channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+        executor = Executors.newFixedThreadPool(workers.size(),
+                new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Sink-%d").setDaemon(true).build());
+        for (Worker worker : workers) {
+            worker.lagging = offset > 0;
+            worker.offered = offset;
+            reports.add(executor.submit(worker));
+        }
+        return new FilterOutputStream(file) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                final byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                // The bytes are in the file before a sink that is behind reads up to here
+                written += len;
+                for (Worker worker : workers) {
+                    worker.offer(copy, written);
+                }
+            }
+        };
+    }
+
+    /**
+     * The archive is complete, wait for every sink to commit its copy
+     *
+     * @return what every sink did
+     */
+    List<BackupSink.Report> finish() throws IOException {
+        final List<BackupSink.Report> result = new ArrayList<>();
+        if (executor == null) return result;
+        completedAt = System.nanoTime();
+        complete = true;
+        try {
+            for (Future<BackupSink.Report> report : reports) {
+                result.add(report.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Interrupted while copying the backup");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to copy the backup", e.getCause());
+        } finally {
+            close();
+        }
+        return result;
+    }
+
+    /** The archive is incomplete, throw away every copy */
+    void abort() {
+        if (executor == null) return;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+    }
+
+    private void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Failed to close {}", archive, e);
+            }
+        }
+    }
+
+    /** Feeds one sink */
+    private final class Worker implements Callable<BackupSink.Report> {
+        private final BackupSink sink;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+
+        /** The bytes in the queue, guarded by this */
+        private long queued;
+        /** Nothing is queued while the sink is behind, guarded by this */
+        private boolean lagging;
+        /** The end of the last write offered to the sink, guarded by this */
+        private long offered;
+
+        private long sent;
+        private long maxLag;
+        private long readBack;
+
+        Worker(BackupSink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * @param data the bytes written
+         * @param end  the length of the archive with them
+         */
+        synchronized void offer(byte[] data, long end) {
+            offered = end;
+            if (lagging || queued + data.length > bufferBytes) {
+                lagging = true;
+                return;
+            }
+            queued += data.length;
+            queue.add(data);
+        }
+
+        @Override
+        public BackupSink.Report call() {
+            final long start = System.nanoTime();
+            BackupSink.Upload upload = null;
+            try {
+                upload = sink.begin(path);
+                final ByteBuffer buffer = ByteBuffer.allocate(READ_BACK_SIZE);
+                while (true) {
+                    maxLag = Math.max(maxLag, written - sent);
+                    if (send(upload, queue.poll()) || catchUp(upload, buffer)) continue;
+                    if (complete && sent == written) break;
+                    send(upload, queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS));
+                }
+                upload.commit();
+                final long end = System.nanoTime();
+                return new BackupSink.Report(sink.getName(), sent, TimeUnit.NANOSECONDS.toMillis(end - start), maxLag, readBack,
+                        TimeUnit.NANOSECONDS.toMillis(Math.max(0, end - completedAt)), null);
+            } catch (IOException | RuntimeException | InterruptedException e) {
+                if (upload != null) {
+                    upload.abort();
+                }
+                if (!(e instanceof InterruptedException)) {
+                    log.debug("Failed to copy {} to {}", path, sink.getName(), e);
+                }
+                return new BackupSink.Report(sink.getName(), sent, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), maxLag, readBack, 0,
+                        e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+            }
+        }
+
+        /** @return {@code true} if there was data from the queue */
+        private boolean send(BackupSink.Upload upload, @Nullable byte[] data) throws IOException {
+            if (data == null) return false;
+            synchronized (this) {
+                queued -= data.length;
+            }
+            upload.write(data, 0, data.length);
+            sent += data.length;
+            return true;
+        }
+
+        /** @return {@code true} if the sink was behind and got some of the bytes it missed from the file */
+        private boolean catchUp(BackupSink.Upload upload, ByteBuffer buffer) throws IOException {
+            final long end;
+            synchronized (this) {
+                if (!lagging || !queue.isEmpty()) return false;
+                // Only up to the last write offered, the writes after it are queued once the sink caught up
+                end = offered;
+                if (sent == end) {
+                    lagging = false;
+                    return false;
+                }
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - sent));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, sent + buffer.position()) == -1) throw new IOException("The archive is shorter than written");
+            }
+            upload.write(buffer.array(), 0, buffer.position());
+            sent += buffer.position();
+            readBack += buffer.position();
+            return true;
+        }
+    }
+}
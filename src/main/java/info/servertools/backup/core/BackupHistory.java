@@ -0,0 +1,379 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * The metrics of the most recent backups, and the JMX beans that publish them.
+ * <p>
+ * A history loaded from a backup directory is stored in {@value #FILE_NAME} there whenever a backup is added, so the
+ * time left of a backup is estimated from the backups before a restart too, and the server and the command line tool
+ * learn from each other's backups. The counts of backups and failures are only kept since the history was loaded.
+ */
+public class BackupHistory {
+
+    private static final Logger log = LogManager.getLogger();
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    public static final String FILE_NAME = "history.json";
+
+    private static final String DOMAIN = "info.servertools.backup";
+
+    private final int capacity;
+    private final Deque<BackupMetrics> runs;
+    /** Where the history is stored, or {@code null} to keep it in memory */
+    @Nullable
+    private final File file;
+    private long count;
+    private long failures;
+
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    /**
+     * @param capacity the number of backups to remember
+     */
+    public BackupHistory(int capacity) {
+        this(capacity, null);
+    }
+
+    private BackupHistory(int capacity, @Nullable File file) {
+        checkArgument(capacity > 0, "Invalid history size: %s", capacity);
+        this.capacity = capacity;
+        this.runs = new ArrayDeque<>(capacity);
+        this.file = file;
+    }
+
+    /**
+     * Load the history stored in a backup directory, backups added to it are stored there too
+     *
+     * @param directory the backup directory
+     * @param capacity  the number of backups to remember
+     *
+     * @return the history, empty if none was stored or it can't be read
+     */
+    public static BackupHistory load(File directory, int capacity) {
+        final BackupHistory history = new BackupHistory(capacity, new File(directory, FILE_NAME));
+        history.read();
+        return history;
+    }
+
+    /** Remember a finished backup, forgetting the oldest one if the history is full */
+    public synchronized void add(BackupMetrics metrics) {
+        if (file != null) {
+            read(); // Pick up the backups another process stored meanwhile
+        }
+        append(metrics);
+        count++;
+        if (!metrics.isSucceeded()) {
+            failures++;
+        }
+        if (file != null) {
+            save();
+        }
+    }
+
+    private void append(BackupMetrics metrics) {
+        if (runs.size() == capacity) {
+            runs.removeFirst();
+        }
+        runs.addLast(metrics);
+    }
+
+    /** Replace the backups in memory with the stored ones, if there are any */
+    private synchronized void read() {
+        if (file == null || !file.isFile()) return;
+        try (Reader reader = Files.newReader(file, Charsets.UTF_8)) {
+            final Data data = gson.fromJson(reader, Data.class);
+            if (data == null || data.runs == null) return;
+            runs.clear();
+            for (Run run : data.runs) {
+                append(run.toMetrics());
+            }
+        } catch (IOException | JsonParseException e) {
+            log.warn("Failed to read the backup history {}", file, e);
+        }
+    }
+
+    /** Store the backups in memory, replacing the stored history atomically */
+    private synchronized void save() {
+        if (file == null) return;
+        final Data data = new Data();
+        for (BackupMetrics metrics : runs) {
+            data.runs.add(new Run(metrics));
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer writer = Files.newWriter(tmp, Charsets.UTF_8)) {
+                gson.toJson(data, writer);
+            }
+            try {
+                java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to store the backup history {}", file, e);
+        }
+    }
+
+    /** @return the backups in the history, oldest first */
+    public synchronized List<BackupMetrics> getRuns() {
+        return new ArrayList<>(runs);
+    }
+
+    /** @return the newest backup, or {@code null} if there was none */
+    @Nullable
+    public synchronized BackupMetrics getLast() {
+        return runs.peekLast();
+    }
+
+    /** @return the number of backups added since the history was created or loaded, the stored history doesn't count them */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /** @return the number of failed backups added since the history was created or loaded */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /** @return the average duration of the backups in the history that succeeded */
+    public synchronized long getAverageDurationMillis() {
+        long total = 0;
+        int succeeded = 0;
+        for (BackupMetrics metrics : runs) {
+            if (!metrics.isSucceeded()) continue;
+            total += metrics.getDurationMillis();
+            succeeded++;
+        }
+        return succeeded == 0 ? 0 : total / succeeded;
+    }
+
+    private synchronized long[] phaseStats(BackupMetrics.Phase phase) {
+        long total = 0, max = 0;
+        for (BackupMetrics metrics : runs) {
+            final long millis = metrics.getPhaseMillis(phase);
+            total += millis;
+            max = Math.max(max, millis);
+        }
+        final BackupMetrics last = runs.peekLast();
+        return new long[]{last == null ? 0 : last.getPhaseMillis(phase), runs.isEmpty() ? 0 : total / runs.size(), max};
+    }
+
+    /** Publish the history over JMX, replacing beans that an earlier history registered */
+    public synchronized void registerMBeans() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(DOMAIN + ":type=BackupStats"), new StandardMBean(new Stats(), BackupStatsMXBean.class, true));
+            for (BackupMetrics.Phase phase : BackupMetrics.Phase.values()) {
+                final ObjectName name = new ObjectName(DOMAIN + ":type=BackupPhase,name=" + phase.name().toLowerCase(Locale.ROOT));
+                register(server, name, new StandardMBean(new PhaseStats(phase), BackupPhaseMXBean.class, true));
+            }
+        } catch (JMException e) {
+            log.warn("Failed to register the backup MBeans", e);
+        }
+    }
+
+    /** Remove the beans registered by {@link #registerMBeans()} */
+    public synchronized void unregisterMBeans() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                log.warn("Failed to unregister MBean {}", name, e);
+            }
+        }
+        registered.clear();
+    }
+
+    private void register(MBeanServer server, ObjectName name, StandardMBean bean) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(bean, name);
+        registered.add(name);
+    }
+
+    private final class Stats implements BackupStatsMXBean {
+        @Override
+        public long getBackupCount() {
+            return getCount();
+        }
+
+        @Override
+        public long getFailureCount() {
+            return getFailures();
+        }
+
+        @Override
+        public boolean isLastSucceeded() {
+            final BackupMetrics last = getLast();
+            return last != null && last.isSucceeded();
+        }
+
+        @Override
+        public long getLastBackupTime() {
+            final BackupMetrics last = getLast();
+            return last == null ? 0 : last.getStartedAt();
+        }
+
+        @Override
+        public long getLastDurationMillis() {
+            final BackupMetrics last = getLast();
+            return last == null ? 0 : last.getDurationMillis();
+        }
+
+        @Override
+        public long getAverageDurationMillis() {
+            return BackupHistory.this.getAverageDurationMillis();
+        }
+
+        @Override
+        public long getLastBytesRead() {
+            final BackupMetrics last = getLast();
+            return last == null ? 0 : last.getBytesRead();
+        }
+
+        @Override
+        public long getLastBytesWritten() {
+            final BackupMetrics last = getLast();
+            return last == null ? 0 : last.getBytesWritten();
+        }
+
+        @Override
+        public double getLastThroughputBytesPerSecond() {
+            final BackupMetrics last = getLast();
+            return last == null ? 0 : last.getThroughput();
+        }
+
+        @Override
+        public double getLastFilesPerSecond() {
+            final BackupMetrics last = getLast();
+            return last == null ? 0 : last.getFilesPerSecond();
+        }
+
+        @Override
+        public double getLastCompressionRatio() {
+            final BackupMetrics last = getLast();
+            return last == null ? 0 : last.getCompressionRatio();
+        }
+    }
+
+    private static final class Data {
+        List<Run> runs = new ArrayList<>();
+    }
+
+    /** A backup as it is stored */
+    private static final class Run {
+        String name;
+        long startedAt;
+        long durationMillis;
+        boolean succeeded;
+        int files;
+        long bytesRead;
+        long bytesWritten;
+        long bytesResumed;
+        /** The milliseconds of every phase that took any, by the name of the phase */
+        Map<String, Long> phases = new LinkedHashMap<>();
+
+        Run(BackupMetrics metrics) {
+            name = metrics.getName();
+            startedAt = metrics.getStartedAt();
+            durationMillis = metrics.getDurationMillis();
+            succeeded = metrics.isSucceeded();
+            files = metrics.getFiles();
+            bytesRead = metrics.getBytesRead();
+            bytesWritten = metrics.getBytesWritten();
+            bytesResumed = metrics.getBytesResumed();
+            for (BackupMetrics.Phase phase : BackupMetrics.Phase.values()) {
+                final long millis = metrics.getPhaseMillis(phase);
+                if (millis > 0) {
+                    phases.put(phase.name(), millis);
+                }
+            }
+        }
+
+        BackupMetrics toMetrics() {
+            final BackupMetrics metrics = new BackupMetrics(startedAt, durationMillis, succeeded);
+            metrics.setData(name, files, bytesRead, bytesWritten, bytesResumed);
+            if (phases != null) {
+                for (BackupMetrics.Phase phase : BackupMetrics.Phase.values()) {
+                    final Long millis = phases.get(phase.name());
+                    if (millis != null) {
+                        metrics.add(phase, millis);
+                    }
+                }
+            }
+            return metrics;
+        }
+    }
+
+    private final class PhaseStats implements BackupPhaseMXBean {
+        private final BackupMetrics.Phase phase;
+
+        PhaseStats(BackupMetrics.Phase phase) {
+            this.phase = phase;
+        }
+
+        @Override
+        public long getLastMillis() {
+            return phaseStats(phase)[0];
+        }
+
+        @Override
+        public long getAverageMillis() {
+            return phaseStats(phase)[1];
+        }
+
+        @Override
+        public long getMaxMillis() {
+            return phaseStats(phase)[2];
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Remembers which entries of a ZIP backup are safely on disk, so a backup that was interrupted by a crash or a cancel
+ * continues with the first file that isn't, instead of starting over.
+ * <p>
+ * The backup is written to {@value #PARTIAL_FILE} in the backup directory. Every {@link #CHECKPOINT_BYTES} the
+ * archive is synced to disk and only then the entries finished since the last checkpoint are appended to the journal,
+ * one JSON line each, and the journal is synced. So the journal never lists data that could still be lost, and a line
+ * that was cut off by a crash is simply ignored.
+ * <p>
+ * An entry is only reused if its file still has the same size and modification time, and only as long as all entries
+ * before it could be reused, the archive is cut off after the last one.
+ * <p>
+ * While the journal is open it holds a lock on {@value #LOCK_FILE}, so a second backup into the same directory, also
+ * from another process like a scheduled {@link BackupCli}, fails instead of overwriting or continuing this one.
+ */
+final class BackupJournal implements Closeable {
+
+    private static final Logger log = LogManager.getLogger();
+    private static final Gson gson = new Gson();
+
+    /** The backup that is being written */
+    static final String PARTIAL_FILE = "backup.partial";
+    static final String FILE_NAME = "backup.journal";
+    /** Locked while a backup is written, never deleted so every process locks the same file */
+    static final String LOCK_FILE = "backup.lock";
+
+    /** How many bytes of archive are written between two syncs */
+    static final long CHECKPOINT_BYTES = 128L * FileUtil.MB;
+
+    private final File file;
+    private final File partial;
+    private final List<Record> records;
+    private final FileChannel lockChannel;
+    /** The length of the archive that was kept from the interrupted backup */
+    private long resumedBytes;
+
+    private BackupJournal(File backupDir, List<Record> records, FileChannel lockChannel) {
+        this.file = new File(backupDir, FILE_NAME);
+        this.partial = new File(backupDir, PARTIAL_FILE);
+        this.records = records;
+        this.lockChannel = lockChannel;
+    }
+
+    /**
+     * Lock a backup directory and open its journal, with the entries of an interrupted backup if there is one. The
+     * directory stays locked until the journal is closed.
+     *
+     * @param backupDir the backup directory
+     *
+     * @return the journal
+     *
+     * @throws IOException if another backup is being written into the directory
+     */
+    static BackupJournal open(File backupDir) throws IOException {
+        final FileChannel channel = FileChannel.open(new File(backupDir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        final FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (IOException | OverlappingFileLockException e) {
+            channel.close();
+            throw new IOException("Couldn't lock the backup directory " + backupDir.getPath(), e);
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Another backup is being written into " + backupDir.getPath());
+        }
+        final BackupJournal journal = new BackupJournal(backupDir, new ArrayList<Record>(), channel);
+        if (!journal.file.isFile() || !journal.partial.isFile()) return journal;
+        try (BufferedReader reader = Files.newBufferedReader(journal.file.toPath(), Charsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final Record record;
+                try {
+                    record = gson.fromJson(line, Record.class);
+                } catch (JsonParseException e) {
+                    break; // Cut off by a crash
+                }
+                if (record == null || record.name == null || record.end > journal.partial.length()) break;
+                journal.records.add(record);
+            }
+        } catch (IOException e) {
+            log.warn("Couldn't read the journal of the interrupted backup, starting over", e);
+            journal.records.clear();
+        }
+        return journal;
+    }
+
+    /** @return the archive being written */
+    File getPartialFile() {
+        return partial;
+    }
+
+    /** @return the entries of the interrupted backup, in archive order */
+    List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /** @return the length of the archive that was kept from the interrupted backup, {@code 0} if it started over */
+    long getResumedBytes() {
+        return resumedBytes;
+    }
+
+    /**
+     * Keep only the first entries, the archive is cut off after them. The journal is written again, so it is consistent
+     * with the archive before anything is added.
+     *
+     * @param count the number of entries to keep
+     */
+    void truncate(int count) throws IOException {
+        records.subList(count, records.size()).clear();
+        resumedBytes = count == 0 ? 0 : records.get(count - 1).end;
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            final Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+            for (Record record : records) {
+                writer.write(gson.toJson(record));
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Add the entries finished since the last checkpoint. <b>The archive has to be synced first</b>
+     *
+     * @param finished the entries
+     */
+    void append(List<Record> finished) throws IOException {
+        if (finished.isEmpty()) return;
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            final Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+            for (Record record : finished) {
+                writer.write(gson.toJson(record));
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        records.addAll(finished);
+    }
+
+    /** Forget the journal once the backup is complete */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void delete() {
+        file.delete();
+        partial.delete();
+    }
+
+    /** Unlock the backup directory, closing the channel releases the lock */
+    @Override
+    public void close() throws IOException {
+        lockChannel.close();
+    }
+
+    /** A finished entry: the file it was made from, and its header in the central directory */
+    static final class Record {
+        String name;
+        boolean directory;
+        long length;
+        long lastModified;
+
+        long dosTime;
+        int method;
+        boolean descriptor;
+        boolean zip64;
+        long crc;
+        long size;
+        long csize;
+        long offset;
+        /** Where the entry ends in the archive */
+        long end;
+
+        /** @return {@code true} if the entry was made from the file as it is now */
+        boolean matches(ParallelArchiver.Source source) {
+            return name.equals(source.name) && directory == source.directory && length == source.length && lastModified == source.lastModified;
+        }
+    }
+}
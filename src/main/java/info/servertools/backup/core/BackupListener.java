@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+/**
+ * Lets whoever started a backup follow it. Called from the thread that runs the backup.
+ */
+public interface BackupListener {
+
+    /** Ignores everything */
+    BackupListener NONE = new BackupListener() {
+        @Override
+        public void message(String message) {
+        }
+
+        @Override
+        public void sourceReleased() {
+        }
+    };
+
+    /**
+     * A message meant for the people waiting for the backup
+     *
+     * @param message the message
+     */
+    void message(String message);
+
+    /**
+     * The backup doesn't read from the source directory any more, it works from a snapshot or is done. Called at least
+     * once for every backup, also when it fails.
+     */
+    void sourceReleased();
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+/**
+ * Lists every file that belongs to a backup, and which archive holds its contents.
+ * <p>
+ * A full backup holds every file itself. An incremental backup only holds the files that changed since its parent,
+ * the manifest points to older archives for everything else.
+ */
+public class BackupManifest {
+
+    public static final String FILE_NAME = "backupmanifest.json";
+
+    private static final Gson gson = new Gson();
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    public List<FileRecord> files = new ArrayList<>();
+
+    /**
+     * Build the manifest for a new backup
+     *
+     * @param sources     the files that are part of the backup
+     * @param parent      the manifest of the backup this one is based on, or {@code null} for a full backup
+     * @param archiveName the file name of the new backup
+     * @param changed     files that are read again even if they look the same as in the parent
+     *
+     * @return the manifest
+     */
+    static BackupManifest build(List<ParallelArchiver.Source> sources, @Nullable BackupManifest parent, String archiveName,
+                                ChangedFiles changed) throws IOException {
+        final Map<String, FileRecord> previous = parent == null ? new HashMap<String, FileRecord>() : parent.byPath();
+        final BackupManifest manifest = new BackupManifest();
+        for (final ParallelArchiver.Source source : sources) {
+            if (source.directory) continue;
+
+            final FileRecord record = new FileRecord();
+            record.path = source.name;
+            record.size = source.length;
+            record.mtime = source.lastModified;
+
+            final FileRecord old = previous.get(source.name);
+            if (old != null && old.size == record.size && old.mtime == record.mtime && !changed.contains(source.name)) {
+                record.hash = old.hash;
+            } else {
+                record.hash = Files.hash(source.file, HASH).toString();
+            }
+            record.archive = old != null && old.hash.equals(record.hash) ? old.archive : archiveName;
+            if (old != null && record.archive.equals(old.archive)) {
+                record.stored = old.stored;
+            }
+            manifest.files.add(record);
+        }
+        return manifest;
+    }
+
+    /**
+     * Record the length of the files that are archived as a copy of a different length, like a compacted region file
+     *
+     * @param sources the entries of the archive of this backup
+     */
+    void setStoredLengths(List<ParallelArchiver.Source> sources) {
+        final Map<String, FileRecord> records = byPath();
+        for (ParallelArchiver.Source source : sources) {
+            final FileRecord record = records.get(source.name);
+            if (record != null && source.layout != null) {
+                record.stored = source.length;
+            }
+        }
+    }
+
+    /**
+     * Write the manifest to a file
+     *
+     * @param file the file to write to
+     */
+    void write(File file) throws IOException {
+        try (Writer writer = Files.newWriter(file, Charsets.UTF_8)) {
+            gson.toJson(this, writer);
+        }
+    }
+
+    /**
+     * Read the manifest stored in a backup archive
+     *
+     * @param archive the backup archive
+     *
+     * @return the manifest
+     *
+     * @throws FileNotFoundException if the backup has no manifest
+     */
+    static BackupManifest read(File archive) throws IOException {
+        try (ArchiveReader archiveReader = ArchiveFormat.open(archive)) {
+            if (!ArchiveFormat.seek(archiveReader, FILE_NAME)) throw new FileNotFoundException("Backup " + archive.getName() + " has no manifest");
+            try (Reader reader = new InputStreamReader(archiveReader.getInputStream(), Charsets.UTF_8)) {
+                final BackupManifest manifest = gson.fromJson(reader, BackupManifest.class);
+                if (manifest == null || manifest.files == null) throw new IOException("Backup " + archive.getName() + " has an empty manifest");
+                return manifest;
+            } catch (JsonParseException e) {
+                throw new IOException("Backup " + archive.getName() + " has a corrupt manifest", e);
+            }
+        }
+    }
+
+    /** @return the files that have to be stored in the archive with the given name */
+    Set<String> filesStoredIn(String archiveName) {
+        final Set<String> paths = new TreeSet<>();
+        for (FileRecord record : files) {
+            if (archiveName.equals(record.archive)) {
+                paths.add(record.path);
+            }
+        }
+        return paths;
+    }
+
+    /** @return the names of all archives this backup needs to be restored, except the archive with the given name */
+    List<String> dependencies(String archiveName) {
+        final Set<String> archives = new TreeSet<>();
+        for (FileRecord record : files) {
+            if (!archiveName.equals(record.archive)) {
+                archives.add(record.archive);
+            }
+        }
+        return new ArrayList<>(archives);
+    }
+
+    Map<String, FileRecord> byPath() {
+        final Map<String, FileRecord> map = new HashMap<>(files.size() * 2);
+        for (FileRecord record : files) {
+            map.put(record.path, record);
+        }
+        return map;
+    }
+
+    public static class FileRecord {
+        public String path;
+        public long size;
+        public long mtime;
+        public String hash;
+        public String archive;
+        /** The length of the copy in the archive if it differs from {@code size}, see {@link RegionCompactor} */
+        @Nullable
+        public Long stored;
+
+        /** @return the length of the file once it is restored */
+        public long restoredSize() {
+            return stored != null ? stored : size;
+        }
+    }
+}
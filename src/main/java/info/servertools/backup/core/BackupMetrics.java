@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * How long each phase of one backup took and how much data it moved. Phases are filled in by whoever runs them: the
+ * server saves chunks and holds the world save lock, {@link Backup} takes the snapshot, compresses, renames, waits for
+ * the {@link BackupSink}s and updates the catalog, and the cleanup finishes in the background after the backup itself
+ * is done. All of it can be read while the backup runs, and the {@link BackupProgress} tells how far it got.
+ */
+public class BackupMetrics {
+
+    public enum Phase {
+        CHUNK_SAVE("chunk save"),
+        LOCK_HOLD("world saving disabled"),
+        SNAPSHOT("snapshot"),
+        COMPRESSION("compression"),
+        RENAME("rename"),
+        UPLOAD("upload"),
+        CATALOG("catalog"),
+        CLEANUP("cleanup");
+
+        private final String description;
+
+        Phase(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final long startedAt;
+    private final long startedNanos = System.nanoTime();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+
+    @Nullable
+    private volatile String name;
+    private volatile long bytesRead;
+    private volatile long bytesWritten;
+    private volatile long bytesResumed;
+    private volatile int files;
+    private volatile long durationNanos = -1;
+    private volatile boolean succeeded;
+    private volatile List<BackupSink.Report> sinkReports = Collections.emptyList();
+    private final BackupProgress progress;
+
+    public BackupMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param parent also counts the progress of this backup, for the dimensions of a {@link DimensionBackup}
+     */
+    BackupMetrics(@Nullable BackupProgress parent) {
+        this(parent, System.currentTimeMillis());
+    }
+
+    /**
+     * A backup that finished before, read from a {@link BackupHistory}
+     *
+     * @param startedAt      when the backup started, in milliseconds since the epoch
+     * @param durationMillis how long it took
+     * @param succeeded      if it was stored
+     */
+    BackupMetrics(long startedAt, long durationMillis, boolean succeeded) {
+        this(null, startedAt);
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.succeeded = succeeded;
+    }
+
+    private BackupMetrics(@Nullable BackupProgress parent, long startedAt) {
+        this.startedAt = startedAt;
+        this.progress = new BackupProgress(parent);
+    }
+
+    /** @return the time to pass to {@link #end(Phase, long)} once the phase is over */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time since {@link #begin()} to a phase
+     *
+     * @param phase the phase that ended
+     * @param begin what {@link #begin()} returned when the phase started
+     */
+    public void end(Phase phase, long begin) {
+        phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - begin);
+    }
+
+    /** Add a duration that was measured elsewhere to a phase */
+    public void add(Phase phase, long millis) {
+        phaseNanos.addAndGet(phase.ordinal(), TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Record what the archive step did
+     *
+     * @param name         the file name of the backup
+     * @param files        the number of files that were read
+     * @param bytesRead    the bytes read from those files
+     * @param bytesWritten the size of the archive
+     * @param bytesResumed the part of the archive that was kept from an interrupted backup, not read again
+     */
+    void setData(String name, int files, long bytesRead, long bytesWritten, long bytesResumed) {
+        this.name = name;
+        this.files = files;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.bytesResumed = bytesResumed;
+    }
+
+    /** Record what the sinks did with the archive */
+    void setSinkReports(List<BackupSink.Report> sinkReports) {
+        this.sinkReports = Collections.unmodifiableList(new ArrayList<>(sinkReports));
+    }
+
+    /**
+     * The backup is over, whatever is still to come only adds to the {@link Phase#CLEANUP} phase
+     *
+     * @param succeeded if the backup was stored
+     */
+    public void finish(boolean succeeded) {
+        this.succeeded = succeeded;
+        this.durationNanos = System.nanoTime() - startedNanos;
+    }
+
+    /** @return the file name of the backup, or {@code null} if it wasn't written */
+    @Nullable
+    public String getName() {
+        return name;
+    }
+
+    /** @return when the backup started, in milliseconds since the epoch */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public boolean isFinished() {
+        return durationNanos != -1;
+    }
+
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    /** @return the time from the start of the backup until it was finished, or until now if it wasn't */
+    public long getDurationMillis() {
+        final long duration = durationNanos;
+        return TimeUnit.NANOSECONDS.toMillis(duration == -1 ? System.nanoTime() - startedNanos : duration);
+    }
+
+    public long getPhaseMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos.get(phase.ordinal()));
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** @return the part of the archive that was kept from an interrupted backup */
+    public long getBytesResumed() {
+        return bytesResumed;
+    }
+
+    /** @return how far the backup got while it runs */
+    public BackupProgress getProgress() {
+        return progress;
+    }
+
+    /** @return what every sink did with the archive, empty if there are no sinks */
+    public List<BackupSink.Report> getSinkReports() {
+        return sinkReports;
+    }
+
+    /** @return the bytes read per second of compression */
+    public double getThroughput() {
+        return perSecondOfCompression(bytesRead);
+    }
+
+    /** @return the files read per second of compression */
+    public double getFilesPerSecond() {
+        return perSecondOfCompression(files);
+    }
+
+    /** @return the size of the archive relative to the data that went into it, {@code 0} if nothing was read */
+    public double getCompressionRatio() {
+        final long read = bytesRead;
+        return read == 0 ? 0 : (double) (bytesWritten - bytesResumed) / read;
+    }
+
+    private double perSecondOfCompression(long amount) {
+        final long nanos = phaseNanos.get(Phase.COMPRESSION.ordinal());
+        return nanos == 0 ? 0 : amount * 1e9 / nanos;
+    }
+
+    /** @return the time of every phase that took any, on one line */
+    public String describePhases() {
+        final StringBuilder builder = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (phaseNanos.get(phase.ordinal()) == 0) continue;
+            if (builder.length() > 0) builder.append(", ");
+            builder.append(phase.description).append(' ').append(getPhaseMillis(phase)).append(" ms");
+        }
+        return builder.length() == 0 ? "no phases recorded" : builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s in %.1f s, %s read, %s written%s (ratio %.2f), %s/s, %.0f files/s",
+                name == null ? "backup" : name, getDurationMillis() / 1000.0, FileUtil.getSizeS(bytesRead), FileUtil.getSizeS(bytesWritten),
+                bytesResumed == 0 ? "" : " of which " + FileUtil.getSizeS(bytesResumed) + " were kept from the interrupted backup",
+                getCompressionRatio(), FileUtil.getSizeS((long) getThroughput()), getFilesPerSecond());
+    }
+}
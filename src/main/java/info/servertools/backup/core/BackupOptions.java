@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Everything that decides how a backup is taken and which backups are kept. The mod fills one in from its config for
+ * every backup, the command line launcher from its arguments. The defaults are the defaults of the mod config.
+ * <p>
+ * Options are read while a backup runs, so an instance must not be changed once it was handed to a {@link Backup}.
+ */
+public class BackupOptions implements Cloneable {
+
+    /** The file ending of backups in the {@link ArchiveFormat#ZIP} format */
+    public String fileEnding = "zip";
+
+    /** Remove backups older than this many days, {@code -1} to keep them forever */
+    public int lifespanDays = -1;
+    /** The maximum size of the backup directory in megabytes, {@code -1} for no limit */
+    public int maxFolderSize = -1;
+    /** The maximum number of backups, {@code -1} for no limit */
+    public int maxNumberBackups = -1;
+
+    /** The files and directories that are backed up */
+    public PathFilter filter = PathFilter.DEFAULT;
+    /** The number of threads walking the world and backup directories, {@code -1} for one per processor */
+    public int walkThreads = 1;
+
+    /** The number of compression threads, {@code -1} for one per processor */
+    public int compressionThreads = -1;
+    /** The deflate level of all files except region files */
+    public int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    /** The deflate level of region files */
+    public int regionCompressionLevel = Deflater.BEST_SPEED;
+    /** The most memory in megabytes the buffers of a ZIP backup take, however big the world is */
+    public int maxBufferMemory = 64;
+    /** Store blocks that don't get smaller instead of compressing them */
+    public boolean adaptiveCompression = true;
+    /** Archive region files without their unused sectors, see {@link RegionCompactor} */
+    public boolean compactRegions = false;
+    /** The chunks left out of region files, leaving out chunks also compacts the region files */
+    public ChunkTrim chunkTrim = ChunkTrim.NONE;
+    public ArchiveFormat archiveFormat = ArchiveFormat.ZIP;
+    /** The Zstandard level of the {@link ArchiveFormat#ZSTD} format, from 1 to 22 */
+    public int zstdLevel = 9;
+    public WorldSnapshot.Mode snapshotMode = WorldSnapshot.Mode.NONE;
+
+    /** Only store files that changed since the previous backup */
+    public boolean enableIncremental = false;
+    /** Take a full backup every this many incremental backups */
+    public int fullBackupEvery = 10;
+
+    /** Files that incremental backups read again even if their size and modification time didn't change */
+    public ChangedFiles changedFiles = ChangedFiles.NONE;
+
+    /** Store backups in a deduplicated repository, takes precedence over incremental backups */
+    public boolean enableRepository = false;
+
+    /** Where copies of every archive are written while it is compressed, besides the backup directory */
+    public List<BackupSink> sinks = Collections.emptyList();
+    /** The most megabytes queued for each sink before it reads the archive back from the backup directory */
+    public int sinkBufferMemory = 32;
+
+    /** @return the number of compression threads to use */
+    int threads() {
+        return compressionThreads == -1 ? Runtime.getRuntime().availableProcessors() : compressionThreads;
+    }
+
+    /** @return options that start out the same as these and can be changed on their own */
+    public BackupOptions copy() {
+        try {
+            return (BackupOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * How far a running backup got. The threads of the backup count the bytes and files they archived, anyone can take a
+ * {@link Snapshot} of the counters at any time without locking.
+ * <p>
+ * The totals are only known once the files to archive were collected and compacted. Until then, and while the archive
+ * is renamed and copied, the time left is estimated from the duration of the recent backups. While files are archived
+ * it follows the rate of this backup, or the rate of the recent backups until enough data was archived to tell.
+ */
+public class BackupProgress {
+
+    /** The rate of a backup is only trusted after this much data, before that the history is used */
+    private static final long MIN_SAMPLE_BYTES = 16 * FileUtil.MB;
+    private static final long MIN_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    /** Also counts everything this progress counts, for the dimensions of a {@link DimensionBackup} */
+    @Nullable
+    private final BackupProgress parent;
+
+    private final long startedNanos = System.nanoTime();
+    @Nullable
+    private volatile BackupMetrics.Phase phase;
+    private volatile long phaseStartedNanos = startedNanos;
+    /** When the first phase after {@link BackupMetrics.Phase#COMPRESSION} started, {@code 0} until then */
+    private volatile long archivedNanos;
+
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private final AtomicInteger filesTotal = new AtomicInteger();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicInteger filesDone = new AtomicInteger();
+    /** The bytes that were done without reading them, like the entries of an interrupted archive that are kept */
+    private final AtomicLong bytesSkipped = new AtomicLong();
+    private final AtomicInteger filesSkipped = new AtomicInteger();
+    /** When the first byte was archived, {@code 0} until then */
+    private final AtomicLong firstProgressNanos = new AtomicLong();
+
+    /**
+     * @param parent also counts everything this progress counts, or {@code null}
+     */
+    BackupProgress(@Nullable BackupProgress parent) {
+        this.parent = parent;
+    }
+
+    /** Move on to the next phase, the phase isn't passed on to the parent */
+    public void setPhase(BackupMetrics.Phase phase) {
+        final long now = System.nanoTime();
+        if (phase.compareTo(BackupMetrics.Phase.COMPRESSION) > 0 && archivedNanos == 0) {
+            archivedNanos = now;
+        }
+        this.phaseStartedNanos = now;
+        this.phase = phase;
+    }
+
+    /** Add files that are to be archived to the totals */
+    void addTotal(long bytes, int files) {
+        bytesTotal.addAndGet(bytes);
+        filesTotal.addAndGet(files);
+        if (parent != null) {
+            parent.addTotal(bytes, files);
+        }
+    }
+
+    /**
+     * Count data that was archived
+     *
+     * @param bytes the bytes archived
+     * @param files the files that were completed by them
+     */
+    void advance(long bytes, int files) {
+        firstProgressNanos.compareAndSet(0, System.nanoTime());
+        bytesDone.addAndGet(bytes);
+        filesDone.addAndGet(files);
+        if (parent != null) {
+            parent.advance(bytes, files);
+        }
+    }
+
+    /** Count files that are done without reading them, they don't count towards the rate of the backup */
+    void skip(long bytes, int files) {
+        bytesSkipped.addAndGet(bytes);
+        filesSkipped.addAndGet(files);
+        bytesDone.addAndGet(bytes);
+        filesDone.addAndGet(files);
+        if (parent != null) {
+            parent.skip(bytes, files);
+        }
+    }
+
+    /** @return the bytes that were done without reading them */
+    long getBytesSkipped() {
+        return bytesSkipped.get();
+    }
+
+    /** @return the files that were done without reading them */
+    int getFilesSkipped() {
+        return filesSkipped.get();
+    }
+
+    /**
+     * @param history the recent backups to estimate the time left from, or {@code null} to only go by this backup
+     *
+     * @return the progress as of now
+     */
+    public Snapshot snapshot(@Nullable BackupHistory history) {
+        final long now = System.nanoTime();
+        final BackupMetrics.Phase phase = this.phase;
+        final long phaseStarted = phaseStartedNanos;
+        final long archived = archivedNanos;
+        final long total = bytesTotal.get();
+        final long done = Math.min(bytesDone.get(), total);
+        final long read = bytesDone.get() - bytesSkipped.get();
+        final long firstProgress = firstProgressNanos.get();
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(now - startedNanos);
+
+        long averageDuration = 0;
+        double averageRate = 0;
+        long averageTail = 0;
+        if (history != null) {
+            averageDuration = history.getAverageDurationMillis();
+            long bytes = 0, compression = 0, tail = 0;
+            int runs = 0;
+            for (BackupMetrics metrics : history.getRuns()) {
+                if (!metrics.isSucceeded()) continue;
+                bytes += metrics.getBytesRead();
+                compression += metrics.getPhaseMillis(BackupMetrics.Phase.COMPRESSION);
+                tail += metrics.getPhaseMillis(BackupMetrics.Phase.RENAME) + metrics.getPhaseMillis(BackupMetrics.Phase.UPLOAD)
+                        + metrics.getPhaseMillis(BackupMetrics.Phase.CATALOG);
+                runs++;
+            }
+            averageRate = compression == 0 ? 0 : bytes * 1000.0 / compression;
+            averageTail = runs == 0 ? 0 : tail / runs;
+        }
+
+        long eta = -1;
+        if (phase != null && phase.compareTo(BackupMetrics.Phase.COMPRESSION) > 0) {
+            eta = Math.max(0, averageTail - TimeUnit.NANOSECONDS.toMillis(now - archived));
+        } else if (phase == BackupMetrics.Phase.COMPRESSION && total > 0) {
+            double rate = averageRate;
+            if (firstProgress != 0 && read >= MIN_SAMPLE_BYTES && now - firstProgress >= MIN_SAMPLE_NANOS) {
+                rate = read * 1e9 / (now - firstProgress);
+            }
+            if (rate > 0) {
+                eta = (long) ((total - done) * 1000 / rate) + averageTail;
+            }
+        }
+        if (eta == -1 && averageDuration > 0) {
+            eta = Math.max(0, averageDuration - elapsed);
+        }
+        return new Snapshot(phase, TimeUnit.NANOSECONDS.toMillis(now - phaseStarted), done, total, Math.min(filesDone.get(), filesTotal.get()),
+                filesTotal.get(), elapsed, eta);
+    }
+
+    /** The progress of a backup at one moment */
+    public static final class Snapshot {
+        /** The phase the backup is in, or {@code null} if it didn't start yet */
+        @Nullable
+        public final BackupMetrics.Phase phase;
+        public final long phaseMillis;
+        public final long bytesDone;
+        /** The bytes to archive, {@code 0} until the files to archive were collected */
+        public final long bytesTotal;
+        public final int filesDone;
+        public final int filesTotal;
+        /** The time since the backup started */
+        public final long elapsedMillis;
+        /** The estimated time until the backup is done, {@code -1} if there is nothing to base it on */
+        public final long etaMillis;
+
+        Snapshot(@Nullable BackupMetrics.Phase phase, long phaseMillis, long bytesDone, long bytesTotal, int filesDone, int filesTotal,
+                 long elapsedMillis, long etaMillis) {
+            this.phase = phase;
+            this.phaseMillis = phaseMillis;
+            this.bytesDone = bytesDone;
+            this.bytesTotal = bytesTotal;
+            this.filesDone = filesDone;
+            this.filesTotal = filesTotal;
+            this.elapsedMillis = elapsedMillis;
+            this.etaMillis = etaMillis;
+        }
+
+        /** @return the part of the data that was archived, from {@code 0} to {@code 1}, or {@code -1} if the total isn't known yet */
+        public double getFraction() {
+            return bytesTotal == 0 ? -1 : (double) bytesDone / bytesTotal;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder(phase == null ? "starting" : phase.getDescription());
+            if (bytesTotal > 0) {
+                builder.append(String.format(Locale.ROOT, ", %.0f%% (%s of %s, %d of %d files)", getFraction() * 100,
+                        FileUtil.getSizeS(bytesDone), FileUtil.getSizeS(bytesTotal), filesDone, filesTotal));
+            }
+            builder.append(", ").append(formatDuration(elapsedMillis)).append(" elapsed");
+            if (etaMillis >= 0) {
+                builder.append(", about ").append(formatDuration(etaMillis)).append(" left");
+            }
+            return builder.toString();
+        }
+
+        private static String formatDuration(long millis) {
+            final long seconds = (millis + 500) / 1000;
+            if (seconds < 120) return seconds + " s";
+            if (seconds < 7200) return seconds / 60 + " min " + seconds % 60 + " s";
+            return seconds / 3600 + " h " + seconds / 60 % 60 + " min";
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+/**
+ * A content addressed store that keeps every distinct piece of backed up data exactly once.
+ * <p>
+ * Region files are split along their sector table: the 8 KB header, the sectors of every chunk and any unused sectors
+ * in between each become a separate object. The list of objects that make up a region file, its recipe, is an object
+ * itself, so an unchanged region costs nothing and a region where one chunk changed only adds that chunk and a new
+ * recipe. Every other file is stored as a single object. A backup is then just a small index of paths and objects.
+ */
+class BackupRepository {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final String INDEX_FILE = "backupindex.json";
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+    private static final int RECIPE_MAGIC = 0x53545243; // STRC
+
+
+    private static final Gson gson = new Gson();
+
+    private final File objectsDir;
+    /** Guards the objects against a garbage collection that runs while a backup is adding objects */
+    private final Object lock;
+    private final File tmpDir;
+    private final BackupThrottle throttle;
+
+    /**
+     * @param root the directory holding the repository
+     */
+    BackupRepository(File root) {
+        this(root, BackupThrottle.NONE);
+    }
+
+    /**
+     * @param root     the directory holding the repository
+     * @param throttle slows down reading the files that are stored
+     */
+    BackupRepository(File root, BackupThrottle throttle) {
+        this.objectsDir = new File(root, "objects");
+        this.lock = Backup.lockFor(objectsDir);
+        this.tmpDir = new File(root, "tmp");
+        this.throttle = throttle;
+    }
+
+    /**
+     * Store files in the repository
+     *
+     * @param sources  the directories and files to store
+     * @param parent   the index of the previous backup, files that didn't change since are not read again
+     * @param threads  the number of files to store at the same time
+     * @param progress counts the files that are stored
+     *
+     * @return the index of the stored files
+     */
+    Index store(List<ParallelArchiver.Source> sources, @Nullable Index parent, int threads, final BackupProgress progress) throws IOException {
+        final Map<String, FileEntry> previous = new HashMap<>();
+        if (parent != null) {
+            for (FileEntry entry : parent.files) {
+                previous.put(entry.path, entry);
+            }
+        }
+
+        final Index index = new Index();
+        final List<Future<FileEntry>> futures = new ArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Repository-%d").setDaemon(true).build());
+        synchronized (lock) {
+            try {
+                for (final ParallelArchiver.Source source : sources) {
+                    if (source.directory) {
+                        index.directories.add(source.name);
+                        continue;
+                    }
+                    final FileEntry old = previous.get(source.name);
+                    progress.addTotal(source.length, 1);
+                    if (old != null && old.size == source.length && old.mtime == source.lastModified && exists(old)) {
+                        index.files.add(old);
+                        progress.skip(source.length, 1);
+                        continue;
+                    }
+                    futures.add(executor.submit(new Callable<FileEntry>() {
+                        @Override
+                        public FileEntry call() throws IOException {
+                            final FileEntry entry = storeFile(source);
+                            progress.advance(source.length, 1);
+                            return entry;
+                        }
+                    }));
+                }
+                for (Future<FileEntry> future : futures) {
+                    index.files.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while storing backup");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to store backup", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        log.debug("Stored {} files in the repository, {} were unchanged", futures.size(), index.files.size() - futures.size());
+        return index;
+    }
+
+    private FileEntry storeFile(ParallelArchiver.Source source) throws IOException {
+        final FileEntry entry = new FileEntry();
+        entry.path = source.name;
+        entry.mtime = source.lastModified;
+
+        if (isRegionFile(source.file) && source.length >= HEADER_SIZE) {
+            final ByteArrayOutputStream recipe = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(recipe);
+            long size = 0;
+            try (RandomAccessFile raf = new RandomAccessFile(source.file, "r")) {
+                final List<long[]> segments = split(raf);
+                out.writeInt(RECIPE_MAGIC);
+                out.writeInt(segments.size());
+                for (long[] segment : segments) {
+                    final byte[] data = new byte[(int) segment[1]];
+                    throttle.acquire(data.length);
+                    raf.seek(segment[0]);
+                    raf.readFully(data);
+                    final HashCode hash = HASH.hashBytes(data);
+                    putObject(hash, data);
+                    out.write(hash.asBytes());
+                    out.writeInt(data.length);
+                    size += data.length;
+                }
+            }
+            final byte[] bytes = recipe.toByteArray();
+            final HashCode hash = HASH.hashBytes(bytes);
+            putObject(hash, bytes);
+            entry.recipe = hash.toString();
+            entry.size = size;
+        } else {
+            entry.blob = putFile(source.file).toString();
+            entry.size = source.length;
+        }
+        return entry;
+    }
+
+    /**
+     * Split a region file into the header, the sector runs used by chunks, and the gaps between them
+     *
+     * @return the offset and length of every segment, together covering the whole file
+     */
+    private static List<long[]> split(RandomAccessFile raf) throws IOException {
+        final long length = raf.length();
+        final int[] locations = new int[SECTOR_SIZE / 4];
+        raf.seek(0);
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = raf.readInt();
+        }
+
+        final List<long[]> runs = new ArrayList<>();
+        for (int location : locations) {
+            final long start = (long) (location >>> 8) * SECTOR_SIZE;
+            final long end = Math.min(length, start + (long) (location & 0xFF) * SECTOR_SIZE);
+            if (start >= HEADER_SIZE && end > start) {
+                runs.add(new long[]{start, end});
+            }
+        }
+        Collections.sort(runs, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+
+        final List<long[]> segments = new ArrayList<>();
+        segments.add(new long[]{0, HEADER_SIZE});
+        long cursor = HEADER_SIZE;
+        for (long[] run : runs) {
+            if (run[0] < cursor) continue; // Overlapping chunks in a damaged region, keep the bytes in the previous segment
+            if (run[0] > cursor) {
+                segments.add(new long[]{cursor, run[0] - cursor});
+            }
+            segments.add(new long[]{run[0], run[1] - run[0]});
+            cursor = run[1];
+        }
+        if (cursor < length) {
+            segments.add(new long[]{cursor, length - cursor});
+        }
+        return segments;
+    }
+
+    /**
+     * Restore one file from the repository. Safe to call from several threads at once.
+     *
+     * @param entry the file in the index of the backup
+     * @param out   where the contents of the file are written to
+     */
+    void restore(FileEntry entry, OutputStream out) throws IOException {
+        long written = 0;
+        if (entry.recipe != null) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(objectFile(entry.recipe)))) {
+                if (in.readInt() != RECIPE_MAGIC) throw new IOException("Corrupt recipe for " + entry.path);
+                final int count = in.readInt();
+                final byte[] hash = new byte[16];
+                for (int i = 0; i < count; i++) {
+                    in.readFully(hash);
+                    final int length = in.readInt();
+                    written += copyObject(HashCode.fromBytes(hash).toString(), length, out);
+                }
+            }
+        } else {
+            written = copyObject(entry.blob, entry.size, out);
+        }
+        if (written != entry.size) {
+            throw new IOException("Restored " + written + " bytes of " + entry.path + " but expected " + entry.size);
+        }
+    }
+
+    /**
+     * Delete every object that is not used by one of the given backups
+     *
+     * @param live the indexes of all backups that are kept
+     *
+     * @return the number of bytes freed
+     */
+    long collectGarbage(Collection<Index> live) throws IOException {
+        synchronized (lock) {
+            final Set<String> referenced = new HashSet<>();
+            for (Index index : live) {
+                for (FileEntry entry : index.files) {
+                    if (entry.blob != null) {
+                        referenced.add(entry.blob);
+                    } else if (referenced.add(entry.recipe)) {
+                        readRecipe(entry.recipe, referenced);
+                    }
+                }
+            }
+
+            final long[] freed = new long[1];
+            final int[] deleted = new int[1];
+            new FileWalker(PathFilter.ALL, 1).walk(objectsDir.toPath(), new FileWalker.Visitor() {
+                @Override
+                public void directory(Path dir, String name, BasicFileAttributes attrs) {
+                }
+
+                @Override
+                public void file(Path object, String name, BasicFileAttributes attrs) {
+                    if (!referenced.contains(object.getFileName().toString()) && object.toFile().delete()) {
+                        freed[0] += attrs.size();
+                        deleted[0]++;
+                    }
+                }
+            });
+            log.info("Repository cleanup removed {} unused objects ({})", deleted[0], FileUtil.getSizeS(freed[0]));
+            return freed[0];
+        }
+    }
+
+    private void readRecipe(String recipe, Set<String> referenced) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(objectFile(recipe)))) {
+            if (in.readInt() != RECIPE_MAGIC) throw new IOException("Corrupt recipe " + recipe);
+            final int count = in.readInt();
+            final byte[] hash = new byte[16];
+            for (int i = 0; i < count; i++) {
+                in.readFully(hash);
+                in.readInt();
+                referenced.add(HashCode.fromBytes(hash).toString());
+            }
+        }
+    }
+
+    private boolean exists(FileEntry entry) {
+        return objectFile(entry.blob != null ? entry.blob : entry.recipe).exists();
+    }
+
+    private long copyObject(String hash, long expectedLength, OutputStream out) throws IOException {
+        final File object = objectFile(hash);
+        if (!object.exists()) throw new FileNotFoundException("Missing repository object " + hash);
+        final Hasher hasher = HASH.newHasher();
+        final byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream in = new FileInputStream(object)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                hasher.putBytes(buffer, 0, read);
+                out.write(buffer, 0, read);
+                total += read;
+            }
+        }
+        if (total != expectedLength || !hasher.hash().toString().equals(hash)) {
+            throw new IOException("Repository object " + hash + " is corrupt");
+        }
+        return total;
+    }
+
+    private void putObject(HashCode hash, byte[] data) throws IOException {
+        final File object = objectFile(hash.toString());
+        if (object.exists()) return;
+        final File tmp = createTemp();
+        try {
+            Files.write(data, tmp);
+            commit(tmp, object);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    /** Copy a file into a temporary object while hashing it, so it's only read once */
+    private HashCode putFile(File file) throws IOException {
+        final File tmp = createTemp();
+        try {
+            final Hasher hasher = HASH.newHasher();
+            final byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = new FileInputStream(file); OutputStream out = new FileOutputStream(tmp)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    throttle.acquire(read);
+                    hasher.putBytes(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                }
+            }
+            final HashCode hash = hasher.hash();
+            final File object = objectFile(hash.toString());
+            if (!object.exists()) {
+                commit(tmp, object);
+            }
+            return hash;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    private File createTemp() throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        tmpDir.mkdirs();
+        return File.createTempFile("object", ".tmp", tmpDir);
+    }
+
+    private static void commit(File tmp, File object) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        object.getParentFile().mkdirs();
+        java.nio.file.Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private File objectFile(String hash) {
+        return new File(new File(objectsDir, hash.substring(0, 2)), hash);
+    }
+
+    static boolean isRegionFile(File file) {
+        final String name = file.getName();
+        return name.endsWith(".mca") || name.endsWith(".mcr");
+    }
+
+    /**
+     * Read the index stored in a backup archive
+     *
+     * @param archive the backup archive
+     *
+     * @return the index
+     */
+    static Index readIndex(File archive) throws IOException {
+        try (ArchiveReader archiveReader = ArchiveFormat.open(archive)) {
+            if (!ArchiveFormat.seek(archiveReader, INDEX_FILE)) throw new FileNotFoundException("Backup " + archive.getName() + " has no repository index");
+            try (Reader reader = new InputStreamReader(archiveReader.getInputStream(), Charsets.UTF_8)) {
+                final Index index = gson.fromJson(reader, Index.class);
+                if (index == null || index.files == null || index.directories == null) {
+                    throw new IOException("Backup " + archive.getName() + " has an empty repository index");
+                }
+                return index;
+            } catch (JsonParseException e) {
+                throw new IOException("Backup " + archive.getName() + " has a corrupt repository index", e);
+            }
+        }
+    }
+
+    public static class Index {
+        public List<String> directories = new ArrayList<>();
+        public List<FileEntry> files = new ArrayList<>();
+
+        void write(File file) throws IOException {
+            try (Writer writer = Files.newWriter(file, Charsets.UTF_8)) {
+                gson.toJson(this, writer);
+            }
+        }
+    }
+
+    public static class FileEntry {
+        public String path;
+        public long size;
+        public long mtime;
+        /** The object holding the file, for files that are stored whole */
+        public String blob;
+        /** The object listing the segments of the file, for region files */
+        public String recipe;
+    }
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nullable;
+
+/**
+ * Restores a backup into a world directory.
+ * <p>
+ * The files are first extracted into a staging directory next to the world, by several threads at once. ZIP archives
+ * and repositories are read at random, so a selective restore only reads the selected files. The tar formats are streams
+ * and are always read from the start. Every file is preallocated to its size before it is written.
+ * <p>
+ * Applying the restore swaps the staging directory in with two renames, the old world is kept next to it. A selective
+ * restore moves every restored file over the old one instead, each move is atomic. Staging and applying are separate
+ * steps, so a server can stage a restore while it runs and only apply it once it stopped.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class BackupRestore {
+
+    private static final Logger log = LogManager.getLogger();
+    private static final Gson gson = new Gson();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File backupDir;
+    private final File worldDir;
+    private final File stagingDir;
+    private final File pendingFile;
+    @Nullable
+    private final PathFilter selection;
+    private final int threads;
+
+    private final AtomicInteger files = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param backupDir the backup directory
+     * @param worldDir  the world directory to restore into
+     * @param selection the files to restore, {@code null} to replace the whole world
+     * @param threads   the number of threads extracting files, {@code -1} for one per processor
+     */
+    public BackupRestore(File backupDir, File worldDir, @Nullable PathFilter selection, int threads) {
+        this.backupDir = backupDir;
+        this.worldDir = worldDir.getAbsoluteFile();
+        this.stagingDir = new File(this.worldDir.getParentFile(), worldDir.getName() + "_restore");
+        this.pendingFile = new File(this.worldDir.getParentFile(), worldDir.getName() + "_restore.json");
+        this.selection = selection;
+        this.threads = threads == -1 ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    /**
+     * Compile a selection of files to restore. A selector is {@code dimension:<dimension>} for one dimension, like
+     * {@code dimension:DIM-1} or {@code dimension:overworld}, {@code player:<uuid>} for the data of one player, or an
+     * include pattern like {@code region/r.0.0.mca}.
+     *
+     * @param selectors the selectors, a file is restored if any of them selects it
+     *
+     * @return the selection, or {@code null} to restore everything if there are no selectors
+     *
+     * @throws IllegalArgumentException if a pattern is invalid
+     */
+    @Nullable
+    public static PathFilter select(Collection<String> selectors) {
+        if (selectors.isEmpty()) return null;
+        final List<String> includes = new ArrayList<>();
+        final List<String> excludes = new ArrayList<>();
+        for (String selector : selectors) {
+            if (selector.startsWith("dimension:")) {
+                final String dimension = selector.substring("dimension:".length());
+                if (dimension.equals(DimensionBackup.OVERWORLD)) {
+                    excludes.add("regex:" + DimensionBackup.DIMENSION.pattern());
+                } else if (DimensionBackup.DIMENSION.matcher(dimension).matches()) {
+                    includes.add(dimension + "/**");
+                } else {
+                    throw new IllegalArgumentException("Unknown dimension " + dimension);
+                }
+            } else if (selector.startsWith("player:")) {
+                final String uuid = selector.substring("player:".length()).toLowerCase(Locale.ROOT);
+                includes.add("playerdata/" + uuid + ".dat");
+                includes.add("stats/" + uuid + ".json");
+            } else {
+                includes.add(selector);
+            }
+        }
+        return PathFilter.compile(Collections.<String>emptySet(), Collections.<String>emptySet(), includes, excludes);
+    }
+
+    /**
+     * Extract a backup into the staging directory, replacing a restore that was staged before
+     *
+     * @param name the file name of the backup, or the name of a backup set if the dimensions are backed up on their own
+     *
+     * @return how much was restored
+     */
+    public Result stage(String name) throws IOException {
+        discard();
+        final long start = System.nanoTime();
+        files.set(0);
+        bytes.set(0);
+
+        final Map<File, Extraction> plan = new LinkedHashMap<>();
+        if (BackupSet.isSplit(backupDir)) {
+            final BackupSet set = findSet(name);
+            for (Map.Entry<String, String> archive : set.archives.entrySet()) {
+                final String prefix = archive.getKey().equals(DimensionBackup.OVERWORLD) ? "" : archive.getKey() + "/";
+                resolve(new File(backupDir, archive.getValue()), prefix, plan);
+            }
+        } else {
+            resolve(new File(backupDir, name), "", plan);
+        }
+
+        if (!stagingDir.mkdirs()) throw new IOException("Couldn't create the staging directory " + stagingDir);
+        log.info("Restoring backup {} into {}", name, stagingDir);
+        try {
+            extract(plan.values());
+        } catch (IOException | RuntimeException e) {
+            discard();
+            throw e;
+        }
+
+        final Pending pending = new Pending();
+        pending.backup = name;
+        pending.full = selection == null;
+        try (Writer writer = Files.newWriter(pendingFile, Charsets.UTF_8)) {
+            gson.toJson(pending, writer);
+        }
+        final Result result = new Result(files.get(), bytes.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        log.info("Staged restore of backup {}: {}", name, result);
+        return result;
+    }
+
+    /** @return {@code true} if a restore is staged and waits to be applied */
+    public boolean isStaged() {
+        return pendingFile.isFile() && stagingDir.isDirectory();
+    }
+
+    /**
+     * Swap the staged restore into the world. <b>Nothing may use the world while this runs</b>
+     *
+     * @return the backup that was restored
+     */
+    public String apply() throws IOException {
+        final Pending pending;
+        try (Reader reader = Files.newReader(pendingFile, Charsets.UTF_8)) {
+            pending = gson.fromJson(reader, Pending.class);
+        } catch (JsonParseException e) {
+            throw new IOException("The staged restore is corrupt", e);
+        }
+        if (pending == null || !stagingDir.isDirectory()) throw new FileNotFoundException("No restore is staged");
+
+        if (pending.full) {
+            File old = new File(worldDir.getParentFile(), worldDir.getName() + "_before_restore");
+            for (int i = 2; old.exists(); i++) {
+                old = new File(worldDir.getParentFile(), worldDir.getName() + "_before_restore_" + i);
+            }
+            if (worldDir.exists()) {
+                move(worldDir.toPath(), old.toPath());
+            }
+            try {
+                move(stagingDir.toPath(), worldDir.toPath());
+            } catch (IOException e) {
+                if (old.exists()) move(old.toPath(), worldDir.toPath());
+                throw e;
+            }
+            log.info("Restored backup {}, the old world was moved to {}", pending.backup, old);
+        } else {
+            final Path staging = stagingDir.toPath();
+            final Path world = worldDir.toPath();
+            java.nio.file.Files.walkFileTree(staging, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    final Path target = world.resolve(staging.relativize(file).toString());
+                    java.nio.file.Files.createDirectories(target.getParent());
+                    move(file, target);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            FileUtils.deleteDirectory(stagingDir);
+            log.info("Restored the selected files of backup {}", pending.backup);
+        }
+        pendingFile.delete();
+        return pending.backup;
+    }
+
+    /** Delete a staged restore */
+    public void discard() throws IOException {
+        if (stagingDir.exists()) {
+            FileUtils.deleteDirectory(stagingDir);
+        }
+        pendingFile.delete();
+    }
+
+    private BackupSet findSet(String name) throws FileNotFoundException {
+        for (BackupSet set : BackupSet.list(backupDir)) {
+            if (set.name.equals(name)) return set;
+        }
+        throw new FileNotFoundException("Backup set " + name + " doesn't exist");
+    }
+
+    /** Find out which archives hold the selected files of a backup */
+    private void resolve(File archive, String prefix, Map<File, Extraction> plan) throws IOException {
+        if (!archive.isFile()) throw new FileNotFoundException("Backup " + archive.getName() + " doesn't exist");
+        final Backup.DataFile data = BackupCatalog.readMetadata(archive);
+        if (data == null) throw new IOException(archive.getName() + " is not a backup");
+
+        if (Backup.DataFile.KIND_REPOSITORY.equals(data.kind)) {
+            final Extraction extraction = extraction(plan, archive, prefix);
+            extraction.repository = new BackupRepository(new File(archive.getParentFile(), Backup.REPOSITORY_DIR));
+            final BackupRepository.Index index = BackupRepository.readIndex(archive);
+            for (String directory : index.directories) {
+                if (selection == null) {
+                    extraction.directories.add(prefix + directory);
+                }
+            }
+            for (BackupRepository.FileEntry entry : index.files) {
+                if (selected(prefix + entry.path)) {
+                    extraction.entries.put(entry.path, new Item(prefix + entry.path, entry.size, entry.mtime, entry));
+                }
+            }
+            return;
+        }
+
+        final BackupManifest manifest;
+        try {
+            manifest = BackupManifest.read(archive);
+        } catch (FileNotFoundException e) {
+            extraction(plan, archive, prefix).all = true; // A full backup without a manifest, it holds everything itself
+            return;
+        }
+        for (BackupManifest.FileRecord record : manifest.files) {
+            if (selected(prefix + record.path)) {
+                extraction(plan, new File(archive.getParentFile(), record.archive), prefix).entries.put(
+                        record.path, new Item(prefix + record.path, record.restoredSize(), record.mtime, null));
+            }
+        }
+    }
+
+    private static Extraction extraction(Map<File, Extraction> plan, File archive, String prefix) {
+        Extraction extraction = plan.get(archive);
+        if (extraction == null) {
+            extraction = new Extraction(archive, prefix);
+            plan.put(archive, extraction);
+        }
+        return extraction;
+    }
+
+    /** @return {@code true} if a file is restored, checking the directories it is in against the excludes too */
+    private boolean selected(String path) {
+        if (selection == null) return true;
+        for (int slash = path.indexOf('/'); slash != -1; slash = path.indexOf('/', slash + 1)) {
+            if (!selection.acceptDirectory(path.substring(0, slash))) return false;
+        }
+        return selection.acceptFile(path);
+    }
+
+    private void extract(Collection<Extraction> plan) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Restore-%d").setDaemon(true).build());
+        final List<Closeable> open = new ArrayList<>();
+        final List<Future<?>> tasks = new ArrayList<>();
+        try {
+            for (final Extraction extraction : plan) {
+                for (String directory : extraction.directories) {
+                    staged(directory).mkdirs();
+                }
+                if (extraction.repository != null) {
+                    final BackupRepository repository = extraction.repository;
+                    for (final Item item : extraction.entries.values()) {
+                        tasks.add(executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                final long written;
+                                try (CountingOutputStream out = create(item)) {
+                                    repository.restore(item.entry, out);
+                                    written = out.getCount();
+                                }
+                                finish(item, written);
+                                return null;
+                            }
+                        }));
+                    }
+                } else if (ArchiveFormat.detect(extraction.archive) == ArchiveFormat.ZIP) {
+                    final ZipFile zip = new ZipFile(extraction.archive);
+                    open.add(zip);
+                    if (extraction.all) {
+                        addZipEntries(zip, extraction);
+                    }
+                    for (final Map.Entry<String, Item> entry : extraction.entries.entrySet()) {
+                        tasks.add(executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                final ZipEntry zipEntry = zip.getEntry(entry.getKey());
+                                if (zipEntry == null) throw new FileNotFoundException(entry.getKey() + " is missing from " + extraction.archive.getName());
+                                copy(entry.getValue(), zip.getInputStream(zipEntry));
+                                return null;
+                            }
+                        }));
+                    }
+                } else {
+                    tasks.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            extractStream(extraction);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while restoring");
+        } finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Closeable closeable : open) {
+                closeable.close();
+            }
+        }
+    }
+
+    /** Restore every selected entry of a ZIP archive, reading only its central directory to find them */
+    private void addZipEntries(ZipFile zip, Extraction extraction) throws IOException {
+        final Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            final String path = extraction.prefix + entry.getName();
+            if (entry.isDirectory()) {
+                if (selection == null) staged(path).mkdirs();
+            } else if (!isMetadata(entry.getName()) && selected(path)) {
+                extraction.entries.put(entry.getName(), new Item(path, entry.getSize(), entry.getTime(), null));
+            }
+        }
+    }
+
+    /** Restore the entries of a tar archive, which can only be read from the start */
+    private void extractStream(Extraction extraction) throws IOException {
+        int found = 0;
+        try (ArchiveReader reader = ArchiveFormat.open(extraction.archive)) {
+            ArchiveReader.Entry entry;
+            while ((entry = reader.nextEntry()) != null) {
+                final String path = extraction.prefix + entry.name;
+                if (entry.directory) {
+                    if (extraction.all && selection == null) staged(path).mkdirs();
+                    continue;
+                }
+                Item item = extraction.entries.get(entry.name);
+                if (item == null && extraction.all && !isMetadata(entry.name) && selected(path)) {
+                    item = new Item(path, entry.size, entry.lastModified, null);
+                }
+                if (item != null) {
+                    found++;
+                    copy(item, reader.getInputStream());
+                }
+            }
+        }
+        if (!extraction.all && found < extraction.entries.size()) {
+            throw new FileNotFoundException((extraction.entries.size() - found) + " files are missing from " + extraction.archive.getName());
+        }
+    }
+
+    private void copy(Item item, InputStream in) throws IOException {
+        final long written;
+        try (InputStream input = in; CountingOutputStream out = create(item)) {
+            written = ByteStreams.copy(input, out);
+        }
+        finish(item, written);
+    }
+
+    /** @return a stream writing the file of an item in the staging directory, which is preallocated to its size */
+    private CountingOutputStream create(Item item) throws IOException {
+        final File file = staged(item.path);
+        final File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) throw new IOException("Couldn't create " + parent);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (item.size > 0) raf.setLength(item.size);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        return new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(raf.getChannel()), BUFFER_SIZE));
+    }
+
+    private void finish(Item item, long written) throws IOException {
+        if (item.size != -1 && written != item.size) {
+            throw new IOException("Restored " + written + " bytes of " + item.path + " but expected " + item.size);
+        }
+        files.incrementAndGet();
+        bytes.addAndGet(written);
+        if (item.mtime > 0) {
+            staged(item.path).setLastModified(item.mtime);
+        }
+    }
+
+    /**
+     * @param path the path of a file or directory in the world, as stored in the backup
+     *
+     * @return the file in the staging directory
+     *
+     * @throws IOException if the path would end up outside of the staging directory, like {@code ../} or absolute paths
+     */
+    private File staged(String path) throws IOException {
+        final Path staging = stagingDir.toPath().toAbsolutePath().normalize();
+        final Path file = staging.resolve(path).normalize();
+        if (!file.startsWith(staging)) throw new IOException("Refusing to restore " + path + ", it is outside of the world");
+        return file.toFile();
+    }
+
+    private static boolean isMetadata(String name) {
+        return name.equals(Backup.DataFile.FILE_NAME) || name.equals(BackupManifest.FILE_NAME) || name.equals(BackupRepository.INDEX_FILE)
+               || name.equals(ArchiveChecksums.FILE_NAME);
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            java.nio.file.Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** How much a restore wrote */
+    public static final class Result {
+        public final int files;
+        public final long bytes;
+        public final long millis;
+
+        Result(int files, long bytes, long millis) {
+            this.files = files;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        /** @return the bytes written per second */
+        public double getThroughput() {
+            return millis == 0 ? 0 : bytes * 1000.0 / millis;
+        }
+
+        @Override
+        public String toString() {
+            return files + " files, " + FileUtil.getSizeS(bytes) + " in " + String.format(Locale.ROOT, "%.1f", millis / 1000.0) + " s, " +
+                   FileUtil.getSizeS((long) getThroughput()) + "/s";
+        }
+    }
+
+    /** The archives to read and the files to take from each */
+    private static final class Extraction {
+        final File archive;
+        final String prefix;
+        /** The selected files by entry name */
+        final Map<String, Item> entries = new LinkedHashMap<>();
+        final List<String> directories = new ArrayList<>();
+        /** Restore every selected entry of the archive, not just the listed ones */
+        boolean all;
+        @Nullable
+        BackupRepository repository;
+
+        Extraction(File archive, String prefix) {
+            this.archive = archive;
+            this.prefix = prefix;
+        }
+    }
+
+    private static final class Item {
+        final String path;
+        final long size;
+        final long mtime;
+        @Nullable
+        final BackupRepository.FileEntry entry;
+
+        Item(String path, long size, long mtime, @Nullable BackupRepository.FileEntry entry) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.entry = entry;
+        }
+    }
+
+    /** A restore that is staged, stored next to the staging directory */
+    private static final class Pending {
+        String backup;
+        boolean full;
+    }
+}
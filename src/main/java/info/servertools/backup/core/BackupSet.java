@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Ties together the archives of one run of a {@link DimensionBackup}, so the dimensions can be restored as a consistent
+ * set.
+ * <p>
+ * Every dimension is backed up into its own directory below the backup directory, the sets are stored in
+ * {@value #DIRECTORY}. A dimension that wasn't backed up in a run points to its newest archive from before. Dimensions
+ * are cleaned up on their own, a set is removed as soon as one of its archives is gone.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class BackupSet {
+
+    private static final Logger log = LogManager.getLogger();
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    public static final String DIRECTORY = "sets";
+
+    /** Sorts sets from the oldest to the newest */
+    public static final Comparator<BackupSet> BY_TIMESTAMP = new Comparator<BackupSet>() {
+        @Override
+        public int compare(BackupSet a, BackupSet b) {
+            return Long.compare(a.timestamp, b.timestamp);
+        }
+    };
+
+    /** The name of the set, the file name of the archives taken in its run */
+    public transient String name;
+    public long timestamp = System.currentTimeMillis();
+    /** The archive of every dimension by dimension, relative to the backup directory and separated by {@code /} */
+    public Map<String, String> archives = new TreeMap<>();
+    /** The dimensions that were backed up in the run of this set */
+    public Set<String> taken = new TreeSet<>();
+
+    /**
+     * Store the set
+     *
+     * @param backupDir the backup directory
+     */
+    void write(File backupDir) throws IOException {
+        final File directory = new File(backupDir, DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Couldn't create " + directory);
+        try (Writer writer = Files.newWriter(new File(directory, name + ".json"), Charsets.UTF_8)) {
+            gson.toJson(this, writer);
+        }
+    }
+
+    /**
+     * @param backupDir the backup directory
+     *
+     * @return the archives of the set that don't exist any more
+     */
+    public List<String> missing(File backupDir) {
+        final List<String> missing = new ArrayList<>();
+        for (String archive : archives.values()) {
+            if (!new File(backupDir, archive).isFile()) {
+                missing.add(archive);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @param backupDir the backup directory
+     *
+     * @return {@code true} if the dimensions are backed up on their own into the directory
+     */
+    public static boolean isSplit(File backupDir) {
+        return new File(backupDir, DIRECTORY).isDirectory();
+    }
+
+    /**
+     * @param backupDir the backup directory of split backups
+     *
+     * @return the backup directories of the dimensions in it
+     */
+    public static List<File> dimensionDirectories(File backupDir) {
+        final List<File> directories = new ArrayList<>();
+        final File[] files = backupDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() && !file.getName().equals(DIRECTORY)) {
+                    directories.add(file);
+                }
+            }
+        }
+        Collections.sort(directories);
+        return directories;
+    }
+
+    /**
+     * @param backupDir the backup directory
+     *
+     * @return all sets in the directory that can be read, oldest first
+     */
+    public static List<BackupSet> list(File backupDir) {
+        final File[] files = new File(backupDir, DIRECTORY).listFiles();
+        if (files == null) return Collections.emptyList();
+        final List<BackupSet> sets = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (!file.getName().endsWith(".json")) continue;
+            try (Reader reader = Files.newReader(file, Charsets.UTF_8)) {
+                final BackupSet set = gson.fromJson(reader, BackupSet.class);
+                if (set == null || set.archives == null) continue;
+                if (set.taken == null) set.taken = new TreeSet<>();
+                set.name = file.getName().substring(0, file.getName().length() - ".json".length());
+                sets.add(set);
+            } catch (IOException | JsonParseException e) {
+                log.warn("Failed to read backup set {}: {}", file.getName(), e.getMessage());
+            }
+        }
+        Collections.sort(sets, BY_TIMESTAMP);
+        return sets;
+    }
+
+    /**
+     * Remove the sets that can't be restored any more, because an archive they need was cleaned up
+     *
+     * @param backupDir the backup directory
+     */
+    static void prune(File backupDir) {
+        for (BackupSet set : list(backupDir)) {
+            final List<String> missing = set.missing(backupDir);
+            if (!missing.isEmpty()) {
+                log.info("Removing backup set {}, {} is gone", set.name, missing.get(0));
+                new File(new File(backupDir, DIRECTORY), set.name + ".json").delete();
+            }
+        }
+    }
+}
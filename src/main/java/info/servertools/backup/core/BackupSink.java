@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+
+/**
+ * A destination that gets a copy of every backup archive while it is written, besides the backup directory.
+ * <p>
+ * The archive is compressed once. Every byte written to the backup directory is also handed to each sink, in order, from
+ * a thread of its own with a bounded buffer. A sink that can't keep up catches up by reading the archive back from the
+ * backup directory, so it never holds up the backup or the other sinks. See {@link LocalDirectorySink} and
+ * {@link ObjectStoreSink}.
+ * <p>
+ * Sinks only get the archives themselves, not the chunks of a repository backup. They don't remove old copies either.
+ */
+public interface BackupSink {
+
+    /** @return a short description of the destination for logs and messages */
+    String getName();
+
+    /**
+     * Start a copy of an archive
+     *
+     * @param path the path of the archive relative to the backup directory, separated by {@code /}
+     *
+     * @return the copy to write the archive to
+     */
+    Upload begin(String path) throws IOException;
+
+    /** The copy of one archive, written from a single thread */
+    interface Upload {
+
+        /** Append the next bytes of the archive */
+        void write(byte[] data, int offset, int length) throws IOException;
+
+        /** The whole archive was written, make the copy visible under its name */
+        void commit() throws IOException;
+
+        /** Throw the copy away, the archive is incomplete. Must not throw */
+        void abort();
+    }
+
+    /** What a sink did with one archive */
+    final class Report {
+        public final String sink;
+        public final long bytes;
+        /** The time from the first byte until the copy was committed or failed */
+        public final long millis;
+        /** The most bytes the copy was behind the archive */
+        public final long maxLagBytes;
+        /** The bytes read back from the backup directory because the sink fell behind */
+        public final long bytesReadBack;
+        /** How long the copy took after the archive itself was finished */
+        public final long lagMillis;
+        /** Why the copy failed, or {@code null} if it is stored */
+        @Nullable
+        public final String error;
+
+        Report(String sink, long bytes, long millis, long maxLagBytes, long bytesReadBack, long lagMillis, @Nullable String error) {
+            this.sink = sink;
+            this.bytes = bytes;
+            this.millis = millis;
+            this.maxLagBytes = maxLagBytes;
+            this.bytesReadBack = bytesReadBack;
+            this.lagMillis = lagMillis;
+            this.error = error;
+        }
+
+        /** @return the bytes copied per second */
+        public double getThroughput() {
+            return millis == 0 ? 0 : bytes * 1000.0 / millis;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) return sink + " failed after " + FileUtil.getSizeS(bytes) + ": " + error;
+            return String.format(Locale.ROOT, "%s: %s in %.1f s, %s/s, at most %s behind, %s read back, done %.1f s after the archive",
+                    sink, FileUtil.getSizeS(bytes), millis / 1000.0, FileUtil.getSizeS((long) getThroughput()), FileUtil.getSizeS(maxLagBytes),
+                    FileUtil.getSizeS(bytesReadBack), lagMillis / 1000.0);
+        }
+    }
+}
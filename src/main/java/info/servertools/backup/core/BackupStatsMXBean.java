@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+/**
+ * The recent backups as seen over JMX, registered as {@code info.servertools.backup:type=BackupStats}. The values of
+ * the last backup are {@code 0} until one finished.
+ */
+public interface BackupStatsMXBean {
+
+    /** @return the number of backups since the server started */
+    long getBackupCount();
+
+    /** @return the number of failed backups since the server started */
+    long getFailureCount();
+
+    boolean isLastSucceeded();
+
+    /** @return when the last backup started, in milliseconds since the epoch */
+    long getLastBackupTime();
+
+    long getLastDurationMillis();
+
+    /** @return the average duration of the backups in the history */
+    long getAverageDurationMillis();
+
+    long getLastBytesRead();
+
+    long getLastBytesWritten();
+
+    /** @return the bytes read per second of compression */
+    double getLastThroughputBytesPerSecond();
+
+    double getLastFilesPerSecond();
+
+    /** @return the size of the last archive relative to the data that went into it */
+    double getLastCompressionRatio();
+}
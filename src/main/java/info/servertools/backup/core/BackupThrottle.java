@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Slows a backup down so it doesn't hurt the server. Every piece of data is acquired before it is read and compressed,
+ * which waits while the server ticks are slower than a limit, and keeps the backup under a number of bytes per second.
+ * <p>
+ * A server can be lagging for reasons that have nothing to do with the backup, so after {@link #MAX_STALL_MILLIS} without
+ * progress one piece of data is let through anyway, and the backup always finishes eventually.
+ */
+public class BackupThrottle {
+
+    /** Doesn't slow anything down */
+    public static final BackupThrottle NONE = new BackupThrottle(0, 0, null);
+
+    private static final long PAUSE_MILLIS = 50;
+    private static final long MAX_STALL_MILLIS = 10000;
+
+    /** Reports how long the server took for its recent ticks */
+    public interface TickMonitor {
+        /** @return the average duration of the recent server ticks in milliseconds */
+        double getAverageTickMillis();
+    }
+
+    @Nullable
+    private final RateLimiter rateLimiter;
+    private final int maxTickMillis;
+    @Nullable
+    private final TickMonitor monitor;
+
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private volatile long lastProgress = System.currentTimeMillis();
+
+    /**
+     * @param maxBytesPerSecond the maximum number of bytes per second, or {@code 0} for no limit
+     * @param maxTickMillis     pause while the recent ticks took longer than this on average, or {@code 0} to never pause
+     * @param monitor           the server tick times, or {@code null} when there is no server
+     */
+    public BackupThrottle(int maxBytesPerSecond, int maxTickMillis, @Nullable TickMonitor monitor) {
+        this.rateLimiter = maxBytesPerSecond > 0 ? RateLimiter.create(maxBytesPerSecond) : null;
+        this.maxTickMillis = maxTickMillis;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Wait until the given number of bytes may be processed
+     *
+     * @param bytes the number of bytes about to be read
+     */
+    void acquire(int bytes) throws InterruptedIOException {
+        final long start = System.nanoTime();
+        if (monitor != null && maxTickMillis > 0) {
+            while (monitor.getAverageTickMillis() > maxTickMillis && System.currentTimeMillis() - lastProgress < MAX_STALL_MILLIS) {
+                try {
+                    Thread.sleep(PAUSE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the server to catch up");
+                }
+            }
+        }
+        if (rateLimiter != null && bytes > 0) {
+            rateLimiter.acquire(bytes);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+            }
+        }
+        lastProgress = System.currentTimeMillis();
+        throttledNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /** @return the total time spent waiting, summed over all threads */
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.io.ByteStreams;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads stored backups back to find the ones that became corrupt. Every archive is read once from start to end: the
+ * bytes are checked against the checksum of the whole archive, and every entry is decompressed and checked against the
+ * {@link ArchiveChecksums} at the end of the archive. Archives written before the file checksums existed are only
+ * checked as a whole, and for the CRC-32 of their ZIP entries.
+ * <p>
+ * The results are stored in the {@link BackupCatalog}. Corrupt backups don't count towards the retention limits, see
+ * {@link BackupCleanup}.
+ */
+public class BackupVerifier {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private final BackupThrottle throttle;
+
+    /**
+     * @param throttle limits how fast the archives are read
+     */
+    public BackupVerifier(BackupThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Verify the backups of a directory that weren't verified for a while, and store the results in the catalog
+     *
+     * @param backupDir  the backup directory
+     * @param fileEnding the file ending of ZIP backups
+     * @param maxAge     how many milliseconds a verification is trusted, {@code 0} to verify every backup
+     *
+     * @return the backups that were verified, with their problems
+     */
+    public List<Report> verifyStale(File backupDir, String fileEnding, long maxAge) throws InterruptedIOException {
+        final List<BackupCatalog.Entry> stale = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        synchronized (BackupCatalog.LOCK) {
+            for (BackupCatalog.Entry entry : BackupCatalog.load(backupDir, fileEnding).entries()) {
+                if (maxAge == 0 || now - entry.verifiedAt >= maxAge) {
+                    stale.add(entry);
+                }
+            }
+        }
+
+        final List<Report> reports = new ArrayList<>();
+        for (BackupCatalog.Entry entry : stale) {
+            final File archive = new File(backupDir, entry.fileName);
+            final String problem = verify(archive, entry.checksum);
+            if (!archive.isFile()) continue; // Cleaned up while it was read
+            reports.add(new Report(archive, problem));
+        }
+
+        synchronized (BackupCatalog.LOCK) {
+            final BackupCatalog catalog = BackupCatalog.load(backupDir, fileEnding);
+            final Map<String, BackupCatalog.Entry> entries = new HashMap<>();
+            for (BackupCatalog.Entry entry : catalog.entries()) {
+                entries.put(entry.fileName, entry);
+            }
+            for (Report report : reports) {
+                final BackupCatalog.Entry entry = entries.get(report.archive.getName());
+                if (entry != null) {
+                    entry.verifiedAt = now;
+                    entry.corrupt = report.problem;
+                }
+            }
+            try {
+                catalog.save();
+            } catch (IOException e) {
+                log.warn("Failed to save the backup catalog", e);
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * Verify one backup
+     *
+     * @param archive  the archive
+     * @param checksum the CRC-32 of the whole archive in hex, or {@code null} if it isn't known
+     *
+     * @return what is wrong with the backup, or {@code null} if it is fine
+     *
+     * @throws InterruptedIOException if the thread was interrupted, which doesn't say anything about the backup
+     */
+    @Nullable
+    public String verify(File archive, @Nullable String checksum) throws InterruptedIOException {
+        final long start = System.currentTimeMillis();
+        try {
+            final ArchiveFormat format = ArchiveFormat.detect(archive);
+            if (format == null) return "not an archive in a known format";
+            final Map<String, Long> actual = new HashMap<>();
+            ArchiveChecksums expected = null;
+            final CheckedInputStream checked = new CheckedInputStream(new ThrottledInputStream(new FileInputStream(archive), throttle), new CRC32());
+            try (InputStream in = checked) {
+                final byte[] buffer = new byte[64 * 1024];
+                if (format == ArchiveFormat.ZIP) {
+                    // Not closed, that would close the archive before the central directory was read
+                    final ZipInputStream zip = new ZipInputStream(in);
+                    ZipEntry entry;
+                    while ((entry = zip.getNextEntry()) != null) {
+                        if (entry.isDirectory()) continue;
+                        if (entry.getName().equals(ArchiveChecksums.FILE_NAME)) {
+                            expected = ArchiveChecksums.read(ByteStreams.limit(zip, Integer.MAX_VALUE));
+                        }
+                        actual.put(entry.getName(), crc(zip, buffer, -1)); // Also checked against the entry by ZipInputStream
+                    }
+                } else {
+                    final TarArchiveReader tar = new TarArchiveReader(ArchiveFormat.decompress(format, in));
+                    ArchiveReader.Entry entry;
+                    while ((entry = tar.nextEntry()) != null) {
+                        if (entry.directory) continue;
+                        if (entry.name.equals(ArchiveChecksums.FILE_NAME)) {
+                            expected = ArchiveChecksums.read(tar.getInputStream());
+                        } else {
+                            actual.put(entry.name, crc(tar.getInputStream(), buffer, entry.size));
+                        }
+                    }
+                }
+                // Whatever follows the entries, like the central directory of a ZIP file, is part of the archive checksum
+                while (in.read(buffer) != -1) {
+                    // Just reading
+                }
+            }
+
+            if (checksum != null) {
+                final String archiveChecksum = Long.toHexString(checked.getChecksum().getValue());
+                if (!archiveChecksum.equals(checksum)) return "checksum is " + archiveChecksum + ", expected " + checksum;
+            }
+            if (expected != null) {
+                for (Map.Entry<String, String> file : expected.files.entrySet()) {
+                    final Long crc = actual.get(file.getKey());
+                    if (crc == null) return file.getKey() + " is missing";
+                    if (!Long.toHexString(crc).equals(file.getValue())) return file.getKey() + " has checksum " + Long.toHexString(crc) + ", expected " + file.getValue();
+                }
+            }
+            log.debug("Verified {} in {} ms", archive.getName(), System.currentTimeMillis() - start);
+            return null;
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            return e.toString();
+        }
+    }
+
+    /** @return the CRC-32 of the rest of a stream, which has to be {@code size} bytes long unless that is {@code -1} */
+    private static long crc(InputStream in, byte[] buffer, long size) throws IOException {
+        final CRC32 crc = new CRC32();
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+            total += read;
+        }
+        if (size != -1 && total != size) throw new IOException("Entry has " + total + " bytes, expected " + size);
+        return crc.getValue();
+    }
+
+    /** The result of verifying one backup */
+    public static final class Report {
+        public final File archive;
+        /** What is wrong with the backup, or {@code null} if it is fine */
+        @Nullable
+        public final String problem;
+
+        Report(File archive, @Nullable String problem) {
+            this.archive = archive;
+            this.problem = problem;
+        }
+    }
+
+    /** Waits for the throttle before every read */
+    private static final class ThrottledInputStream extends FilterInputStream {
+        private final BackupThrottle throttle;
+
+        ThrottledInputStream(InputStream in, BackupThrottle throttle) {
+            super(in);
+            this.throttle = throttle;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) throttle.acquire(read);
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int read = super.read();
+            if (read != -1) throttle.acquire(1);
+            return read;
+        }
+    }
+}
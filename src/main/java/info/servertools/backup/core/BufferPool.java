@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed number of equally sized byte arrays that are handed out and given back, which caps the memory a backup
+ * holds however big the world is. Asking for more arrays than are free blocks until others are given back.
+ * <p>
+ * Arrays are only allocated the first time they are needed, and are garbage once the pool is.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param bufferSize the length of every array
+     * @param maxBytes   the most memory all arrays together may take
+     * @param minBuffers the number of arrays the pool has even if they don't fit in {@code maxBytes}
+     */
+    BufferPool(int bufferSize, long maxBytes, int minBuffers) {
+        checkArgument(bufferSize > 0, "Invalid buffer size: %s", bufferSize);
+        this.bufferSize = bufferSize;
+        this.capacity = (int) Math.max(minBuffers, Math.min(Integer.MAX_VALUE, maxBytes / bufferSize));
+        this.permits = new Semaphore(capacity);
+    }
+
+    /**
+     * Take arrays from the pool, waiting until enough are free. Taking all at once can't deadlock with another thread
+     * that holds some and waits for more.
+     *
+     * @param count the number of arrays, at most {@link #getCapacity()}
+     *
+     * @return arrays of {@link #getBufferSize()} bytes, with whatever they held before
+     */
+    byte[][] acquire(int count) throws InterruptedIOException {
+        checkArgument(count <= capacity, "Can't take %s of %s buffers", count, capacity);
+        try {
+            permits.acquire(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+        final byte[][] buffers = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            final byte[] buffer = free.poll();
+            buffers[i] = buffer != null ? buffer : new byte[bufferSize];
+        }
+        return buffers;
+    }
+
+    /**
+     * Give an array back. An array that was replaced by a bigger one is given back by passing the bigger one, which is
+     * dropped and replaced by a new array when it's needed again.
+     */
+    void release(byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            free.add(buffer);
+        }
+        permits.release();
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
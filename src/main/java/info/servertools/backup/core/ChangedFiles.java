@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+/**
+ * Files the caller knows were written since the previous backup, even if their size and modification time look the
+ * same.
+ * <p>
+ * Incremental backups take a file from the previous backup when its size and modification time didn't change, and
+ * read it again otherwise. Files listed here are always read again, so a write that kept both the size and the
+ * modification time, which only has a resolution of a second or worse on some file systems, isn't missed.
+ */
+public interface ChangedFiles {
+
+    /** Nothing is known, every file is compared by size and modification time */
+    ChangedFiles NONE = new ChangedFiles() {
+        @Override
+        public boolean contains(String path) {
+            return false;
+        }
+    };
+
+    /**
+     * @param path the path of a file relative to the backed up directory, separated by {@code /}
+     *
+     * @return {@code true} if the file is known to be written since the previous backup
+     */
+    boolean contains(String path);
+}
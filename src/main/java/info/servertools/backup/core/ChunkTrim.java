@@ -0,0 +1,430 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decides which chunks of the region files are left out of a backup because no player ever spent time in them.
+ * <p>
+ * Minecraft counts the ticks players spend near a chunk in its {@code InhabitedTime}. Pre-generated terrain that nobody
+ * visited stays at zero and can always be generated again from the seed, so a backup may leave it out. The chunks of a
+ * region file are read while the backup is prepared, every chunk below the threshold is dropped from the copy
+ * {@link RegionCompactor} archives, unless it lies in one of the protected areas. A restored region file simply has no
+ * entry for a trimmed chunk, and Minecraft generates it when it is loaded. Chunks that can't be read are always kept.
+ * <p>
+ * Reading every chunk is the expensive part, so the chunks that are kept are cached per region file in the backup
+ * directory, see {@link Cache}. A region file that didn't change since the last backup isn't read again.
+ */
+public final class ChunkTrim {
+
+    /** Keeps every chunk */
+    public static final ChunkTrim NONE = new ChunkTrim(0, Collections.<Area>emptyList(), "");
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int CHUNKS = 1024;
+    private static final Pattern REGION = Pattern.compile("(?:(DIM-?[0-9]+)/)?region/r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.mca");
+    private static final Pattern AREA = Pattern.compile("([A-Za-z0-9_-]+):(-?[0-9]+),(-?[0-9]+),(-?[0-9]+),(-?[0-9]+)");
+
+    private static final byte TAG_END = 0;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_COMPOUND = 10;
+
+    private final long minInhabitedTicks;
+    private final List<Area> protectedAreas;
+    /** The path of the backed up directory in the world, for the backups of single dimensions */
+    private final String prefix;
+
+    private ChunkTrim(long minInhabitedTicks, List<Area> protectedAreas, String prefix) {
+        this.minInhabitedTicks = minInhabitedTicks;
+        this.protectedAreas = protectedAreas;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Create the trim settings of a backup
+     *
+     * @param minInhabitedTicks the ticks players must have spent in a chunk for it to be backed up, {@code 0} to keep all chunks
+     * @param protectedAreas    areas that are always backed up, each like {@code overworld:-512,-512,511,511} with the
+     *                          dimension directory or {@code overworld} and two corners in block coordinates
+     *
+     * @return the settings
+     *
+     * @throws IllegalArgumentException if an area is invalid
+     */
+    public static ChunkTrim create(long minInhabitedTicks, Collection<String> protectedAreas) {
+        if (minInhabitedTicks < 0) throw new IllegalArgumentException("The minimum inhabited time must not be negative");
+        final List<Area> areas = new ArrayList<>();
+        for (String area : protectedAreas) {
+            if (area.trim().isEmpty()) continue;
+            final Matcher matcher = AREA.matcher(area.trim());
+            if (!matcher.matches()) throw new IllegalArgumentException("Invalid protected area " + area + ", expected <dimension>:x1,z1,x2,z2");
+            final int x1 = Integer.parseInt(matcher.group(2)) >> 4;
+            final int z1 = Integer.parseInt(matcher.group(3)) >> 4;
+            final int x2 = Integer.parseInt(matcher.group(4)) >> 4;
+            final int z2 = Integer.parseInt(matcher.group(5)) >> 4;
+            areas.add(new Area(dimension(matcher.group(1)), Math.min(x1, x2), Math.min(z1, z2), Math.max(x1, x2), Math.max(z1, z2)));
+        }
+        return new ChunkTrim(minInhabitedTicks, areas, "");
+    }
+
+    /**
+     * @param directory the path of a directory in the world, ending in {@code /}
+     *
+     * @return the same settings for a backup of that directory alone
+     */
+    public ChunkTrim under(String directory) {
+        return new ChunkTrim(minInhabitedTicks, protectedAreas, prefix + directory);
+    }
+
+    /** @return {@code true} if chunks are left out of backups */
+    public boolean isEnabled() {
+        return minInhabitedTicks > 0;
+    }
+
+    /**
+     * Find the chunks of a region file to back up
+     *
+     * @param source   the file
+     * @param cache    the chunks kept from the region files the last time
+     * @param throttle limits reading the file if it isn't cached
+     *
+     * @return the indexes of the chunks to keep, or {@code null} if the file is backed up as it is
+     */
+    @Nullable
+    BitSet keep(ParallelArchiver.Source source, Cache cache, BackupThrottle throttle) throws IOException {
+        if (!isEnabled() || source.directory) return null;
+        final Matcher matcher = REGION.matcher(prefix + source.name);
+        if (!matcher.matches()) return null;
+
+        BitSet keep = cache.get(source);
+        if (keep == null) {
+            keep = readVisited(source.file, source.length, throttle);
+            cache.put(source, keep);
+        }
+        keep = (BitSet) keep.clone();
+
+        final String dimension = dimension(matcher.group(1));
+        final int regionX = Integer.parseInt(matcher.group(2));
+        final int regionZ = Integer.parseInt(matcher.group(3));
+        for (Area area : protectedAreas) {
+            if (!area.dimension.equals(dimension)) continue;
+            for (int i = 0; i < CHUNKS; i++) {
+                if (area.contains(regionX * 32 + (i & 31), regionZ * 32 + (i >> 5))) keep.set(i);
+            }
+        }
+        return keep;
+    }
+
+    /** @return the chunks players spent enough time in, along with every chunk that can't be read */
+    private BitSet readVisited(File file, long length, BackupThrottle throttle) throws IOException {
+        final BitSet visited = new BitSet(CHUNKS);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer locations = ByteBuffer.allocate(SECTOR_SIZE);
+            readFully(channel, locations, 0);
+            throttle.acquire(locations.position());
+            if (locations.hasRemaining()) {
+                visited.set(0, CHUNKS);
+                return visited;
+            }
+            locations.flip();
+            for (int i = 0; i < CHUNKS; i++) {
+                final int location = locations.getInt();
+                if (location == 0) continue;
+                final long offset = (long) (location >>> 8) * SECTOR_SIZE;
+                final int sectors = location & 0xFF;
+                if (offset < 2 * SECTOR_SIZE || sectors == 0 || offset >= length) {
+                    visited.set(i);
+                    continue;
+                }
+                final ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(sectors * SECTOR_SIZE, length - offset));
+                readFully(channel, chunk, offset);
+                throttle.acquire(chunk.position());
+                chunk.flip();
+                if (inhabitedTime(chunk) >= minInhabitedTicks) {
+                    visited.set(i);
+                }
+            }
+        }
+        return visited;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int read;
+        while (buffer.hasRemaining() && (read = channel.read(buffer, position)) != -1) {
+            position += read;
+        }
+    }
+
+    /** @return the inhabited time of a chunk, or {@link Long#MAX_VALUE} if it can't be read */
+    private static long inhabitedTime(ByteBuffer chunk) {
+        if (chunk.remaining() < 5) return Long.MAX_VALUE;
+        final int length = chunk.getInt();
+        final byte type = chunk.get();
+        if (length < 1 || length - 1 > chunk.remaining() || (type != 1 && type != 2)) return Long.MAX_VALUE;
+        final InputStream compressed = new ByteArrayInputStream(chunk.array(), chunk.position(), length - 1);
+        try (DataInputStream in = new DataInputStream(type == 1 ? new GZIPInputStream(compressed) : new InflaterInputStream(compressed))) {
+            if (in.readByte() != TAG_COMPOUND) return Long.MAX_VALUE;
+            in.readUTF();
+            if (!find(in, "Level", TAG_COMPOUND) || !find(in, "InhabitedTime", TAG_LONG)) return Long.MAX_VALUE;
+            return in.readLong();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Move to a tag of the compound tag the stream is in
+     *
+     * @return {@code true} if the tag was found, the stream is then at its value
+     */
+    private static boolean find(DataInputStream in, String name, byte type) throws IOException {
+        byte tag;
+        while ((tag = in.readByte()) != TAG_END) {
+            final String tagName = in.readUTF();
+            if (tag == type && tagName.equals(name)) return true;
+            skip(in, tag);
+        }
+        return false;
+    }
+
+    private static void skip(DataInputStream in, byte tag) throws IOException {
+        switch (tag) {
+            case 1: // Byte
+                ByteStreams.skipFully(in, 1);
+                break;
+            case 2: // Short
+                ByteStreams.skipFully(in, 2);
+                break;
+            case 3: // Int
+            case 5: // Float
+                ByteStreams.skipFully(in, 4);
+                break;
+            case 4: // Long
+            case 6: // Double
+                ByteStreams.skipFully(in, 8);
+                break;
+            case 7: // Byte array
+                ByteStreams.skipFully(in, length(in.readInt()));
+                break;
+            case 8: // String
+                ByteStreams.skipFully(in, in.readUnsignedShort());
+                break;
+            case 9: // List
+                final byte element = in.readByte();
+                final int count = length(in.readInt());
+                for (int i = 0; i < count; i++) {
+                    skip(in, element);
+                }
+                break;
+            case 10: // Compound
+                byte child;
+                while ((child = in.readByte()) != TAG_END) {
+                    ByteStreams.skipFully(in, in.readUnsignedShort());
+                    skip(in, child);
+                }
+                break;
+            case 11: // Int array
+                ByteStreams.skipFully(in, 4L * length(in.readInt()));
+                break;
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    private static int length(int length) throws IOException {
+        if (length < 0) throw new IOException("Negative length " + length);
+        return length;
+    }
+
+    private static String dimension(@Nullable String directory) {
+        return directory == null ? DimensionBackup.OVERWORLD : directory.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkTrim{minInhabitedTicks=" + minInhabitedTicks + ", protectedAreas=" + protectedAreas.size() + ", prefix=" + prefix + '}';
+    }
+
+    /** A rectangle of chunks that is always backed up */
+    private static final class Area {
+        final String dimension;
+        final int minX;
+        final int minZ;
+        final int maxX;
+        final int maxZ;
+
+        Area(String dimension, int minX, int minZ, int maxX, int maxZ) {
+            this.dimension = dimension;
+            this.minX = minX;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxZ = maxZ;
+        }
+
+        boolean contains(int chunkX, int chunkZ) {
+            return chunkX >= minX && chunkX <= maxX && chunkZ >= minZ && chunkZ <= maxZ;
+        }
+    }
+
+    /**
+     * The chunks kept from every region file by the last backup, stored as {@value #FILE_NAME} in the backup directory.
+     * <p>
+     * An entry is used as long as the region file has the same length and modification time, and the threshold didn't
+     * change. Protected areas are applied on top, so they can be changed without throwing the cache away. A backup that
+     * doesn't read every region file, like an incremental one, keeps the entries of the others while they are unchanged,
+     * entries of changed and deleted regions drop out.
+     */
+    static final class Cache {
+
+        static final String FILE_NAME = "chunkcache.json";
+
+        private static final Gson gson = new Gson();
+
+        private final File file;
+        private final Data previous;
+        private final Data current;
+
+        private Cache(File file, Data previous, long minInhabitedTicks) {
+            this.file = file;
+            this.previous = previous;
+            this.current = new Data();
+            this.current.minInhabitedTicks = minInhabitedTicks;
+        }
+
+        /**
+         * Load the cache of a backup directory
+         *
+         * @param directory the backup directory
+         * @param trim      the trim settings of the backup
+         *
+         * @return the cache, empty if there is none for the threshold of the settings
+         */
+        static Cache load(File directory, ChunkTrim trim) {
+            final File file = new File(directory, FILE_NAME);
+            Data data = null;
+            if (file.isFile()) {
+                try (Reader reader = Files.newReader(file, Charsets.UTF_8)) {
+                    data = gson.fromJson(reader, Data.class);
+                } catch (IOException | JsonParseException e) {
+                    log.warn("The chunk cache is corrupt, reading all region files again", e);
+                }
+            }
+            if (data == null || data.regions == null || data.minInhabitedTicks != trim.minInhabitedTicks) {
+                data = new Data();
+            }
+            return new Cache(file, data, trim.minInhabitedTicks);
+        }
+
+        @Nullable
+        synchronized BitSet get(ParallelArchiver.Source source) {
+            final Region region = previous.regions.get(source.name);
+            if (region == null || region.length != source.length || region.lastModified != source.lastModified || region.visited == null) {
+                return null;
+            }
+            final BitSet visited;
+            try {
+                visited = BitSet.valueOf(BaseEncoding.base64().decode(region.visited));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            current.regions.put(source.name, region);
+            return visited;
+        }
+
+        synchronized void put(ParallelArchiver.Source source, BitSet visited) {
+            final Region region = new Region();
+            region.length = source.length;
+            region.lastModified = source.lastModified;
+            region.visited = BaseEncoding.base64().encode(visited.toByteArray());
+            current.regions.put(source.name, region);
+        }
+
+        /**
+         * Write the entries used by this backup, along with the old entries that are still valid, replacing the old cache
+         *
+         * @param sourceDir the directory that was backed up, the region files of the old entries are checked in it
+         */
+        synchronized void save(File sourceDir) throws IOException {
+            for (Map.Entry<String, Region> entry : previous.regions.entrySet()) {
+                if (current.regions.containsKey(entry.getKey())) continue;
+                final File region = new File(sourceDir, entry.getKey());
+                // The same attributes the entries were stored with, see ParallelArchiver#collect
+                if (region.isFile() && region.length() == entry.getValue().length
+                    && java.nio.file.Files.getLastModifiedTime(region.toPath()).toMillis() == entry.getValue().lastModified) {
+                    current.regions.put(entry.getKey(), entry.getValue());
+                }
+            }
+            final File tmp = new File(file.getPath() + ".tmp");
+            try (Writer writer = Files.newWriter(tmp, Charsets.UTF_8)) {
+                gson.toJson(current, writer);
+            }
+            try {
+                java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        private static final class Data {
+            long minInhabitedTicks;
+            Map<String, Region> regions = new HashMap<>();
+        }
+
+        private static final class Region {
+            long length;
+            long lastModified;
+            /** The chunks that are kept before protected areas are applied, a base64 encoded {@link BitSet} */
+            String visited;
+        }
+    }
+}
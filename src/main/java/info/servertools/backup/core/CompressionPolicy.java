@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import org.apache.logging.log4j.Logger;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how hard to compress a file. Region files hold chunks that are compressed already, so they get their own,
+ * usually lower, level. With adaptive compression a sample of every block is compressed quickly first, and blocks that
+ * don't get smaller are stored instead of being compressed for nothing.
+ */
+class CompressionPolicy {
+
+    /** A sample that compresses to more than this fraction of its size isn't worth compressing */
+    private static final double INCOMPRESSIBLE_RATIO = 0.95;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    /** Smaller blocks are always compressed, sampling them costs as much */
+    private static final int MIN_SAMPLED_SIZE = 16 * 1024;
+
+    enum Category {
+        REGION("region files"), NBT("NBT files"), TEXT("text files"), OTHER("other files");
+
+        private final String description;
+
+        Category(String description) {
+            this.description = description;
+        }
+
+        static Category of(String name) {
+            final String lower = name.toLowerCase(Locale.ROOT);
+            if (lower.endsWith(".mca") || lower.endsWith(".mcr")) {
+                return REGION;
+            } else if (lower.endsWith(".dat") || lower.endsWith(".dat_old") || lower.endsWith(".nbt")) {
+                return NBT;
+            } else if (lower.endsWith(".json") || lower.endsWith(".txt") || lower.endsWith(".cfg") || lower.endsWith(".properties")
+                       || lower.endsWith(".yml") || lower.endsWith(".log")) {
+                return TEXT;
+            }
+            return OTHER;
+        }
+    }
+
+    private final int level;
+    private final int regionLevel;
+    private final boolean adaptive;
+
+    private final ThreadLocal<Deflater> samplers = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+    private final ThreadLocal<byte[]> sampleBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SAMPLE_SIZE];
+        }
+    };
+
+    /**
+     * @param level       the deflate level of all files except region files
+     * @param regionLevel the deflate level of region files
+     * @param adaptive    store blocks that don't compress
+     */
+    CompressionPolicy(int level, int regionLevel, boolean adaptive) {
+        checkArgument(level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION, "Invalid compression level: %s", level);
+        checkArgument(regionLevel >= Deflater.DEFAULT_COMPRESSION && regionLevel <= Deflater.BEST_COMPRESSION, "Invalid compression level: %s", regionLevel);
+        this.level = level;
+        this.regionLevel = regionLevel;
+        this.adaptive = adaptive;
+    }
+
+    /** @return the configured level for files of a category */
+    int levelFor(Category category) {
+        return category == Category.REGION ? regionLevel : level;
+    }
+
+    /**
+     * Choose the level for one block of a file
+     *
+     * @return the deflate level, {@link Deflater#NO_COMPRESSION} if the block should be stored
+     */
+    int levelFor(Category category, byte[] data, int off, int len) {
+        final int configured = levelFor(category);
+        if (!adaptive || configured == Deflater.NO_COMPRESSION || len < MIN_SAMPLED_SIZE) return configured;
+        return isCompressible(data, off, len) ? configured : Deflater.NO_COMPRESSION;
+    }
+
+    /** Compress a sample from the middle of the data as fast as possible, and see if it gets smaller */
+    private boolean isCompressible(byte[] data, int off, int len) {
+        final int sampleLength = Math.min(len, SAMPLE_SIZE);
+        final int limit = (int) (sampleLength * INCOMPRESSIBLE_RATIO);
+        final Deflater sampler = samplers.get();
+        final byte[] buffer = sampleBuffers.get();
+        sampler.reset();
+        sampler.setInput(data, off + (len - sampleLength) / 2, sampleLength);
+        sampler.finish();
+        int compressed = 0;
+        while (!sampler.finished()) {
+            compressed += sampler.deflate(buffer);
+            if (compressed > limit) return false;
+        }
+        return true;
+    }
+
+    /** Bytes in and out, time spent and blocks stored per category, updated by all compression threads */
+    static final class Stats {
+        private static final int FIELDS = 5;
+        private static final int BYTES_IN = 0, BYTES_OUT = 1, NANOS = 2, BLOCKS = 3, STORED_BLOCKS = 4;
+
+        private final AtomicLongArray values = new AtomicLongArray(Category.values().length * FIELDS);
+
+        void record(Category category, long bytesIn, long bytesOut, long nanos, boolean stored) {
+            final int base = category.ordinal() * FIELDS;
+            values.addAndGet(base + BYTES_IN, bytesIn);
+            values.addAndGet(base + BYTES_OUT, bytesOut);
+            values.addAndGet(base + NANOS, nanos);
+            values.incrementAndGet(base + BLOCKS);
+            if (stored) values.incrementAndGet(base + STORED_BLOCKS);
+        }
+
+        long bytesIn(Category category) {
+            return values.get(category.ordinal() * FIELDS + BYTES_IN);
+        }
+
+        long bytesOut(Category category) {
+            return values.get(category.ordinal() * FIELDS + BYTES_OUT);
+        }
+
+        long nanos(Category category) {
+            return values.get(category.ordinal() * FIELDS + NANOS);
+        }
+
+        void log(Logger log) {
+            for (Category category : Category.values()) {
+                final int base = category.ordinal() * FIELDS;
+                final long blocks = values.get(base + BLOCKS);
+                if (blocks == 0) continue;
+                final long in = values.get(base + BYTES_IN);
+                final long out = values.get(base + BYTES_OUT);
+                log.info("Compressed {}: {} to {}, saved {} in {} ms of compression time, {} of {} blocks stored",
+                        category.description, FileUtil.getSizeS(in), FileUtil.getSizeS(out), FileUtil.getSizeS(Math.max(0, in - out)),
+                        TimeUnit.NANOSECONDS.toMillis(values.get(base + NANOS)), values.get(base + STORED_BLOCKS), blocks);
+            }
+        }
+    }
+}
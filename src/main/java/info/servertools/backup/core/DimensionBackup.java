@@ -0,0 +1,351 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Function;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+/**
+ * Backs up the dimensions of a world into one archive each, all at the same time. The overworld is the world directory
+ * without the {@code DIM} directories, every other dimension is its {@code DIM} directory.
+ * <p>
+ * Each dimension gets a directory below the backup directory and is cleaned up with its own retention rules, so a
+ * dimension that is backed up rarely can keep its backups longer. A {@link BackupSet} records which archives belong to
+ * one run. The compression threads and buffer memory are shared out between the dimensions.
+ */
+public class DimensionBackup {
+
+    private static final Logger log = LogManager.getLogger();
+
+    /** The key of the dimension stored in the world directory itself */
+    public static final String OVERWORLD = "overworld";
+
+    static final Pattern DIMENSION = Pattern.compile("DIM-?[0-9]+");
+
+    private static final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Dimension-%d").setDaemon(true).build()));
+
+    private final File worldDir;
+    private final File backupDir;
+    private final String fileName;
+    private final BackupOptions options;
+    private final Map<String, BackupOptions> dimensions;
+    private final BackupThrottle throttle;
+    private final BackupListener listener;
+    private final BackupMetrics metrics;
+
+    /**
+     * @param worldDir   the world directory
+     * @param backupDir  the directory the dimension directories are created in
+     * @param fileName   the file name of the new archives
+     * @param options    how to take the snapshot and walk the world, and the threads and memory shared by all dimensions
+     * @param dimensions the dimensions to back up and their options, the other dimensions are only part of the set
+     * @param throttle   slows the backup down
+     * @param listener   is told about the progress of the backup
+     * @param metrics    where the phases of the backup are timed, the phases of the dimensions overlap
+     */
+    public DimensionBackup(File worldDir, File backupDir, String fileName, BackupOptions options, Map<String, BackupOptions> dimensions,
+                           BackupThrottle throttle, BackupListener listener, BackupMetrics metrics) throws IOException {
+        this.worldDir = worldDir;
+        this.backupDir = backupDir;
+        this.fileName = fileName;
+        this.options = options;
+        this.dimensions = dimensions;
+        this.throttle = throttle;
+        this.listener = listener;
+        this.metrics = metrics;
+
+        if (!worldDir.isDirectory()) throw new FileNotFoundException("The given world directory doesn't exist");
+    }
+
+    /**
+     * Find the dimensions of a world
+     *
+     * @param worldDir the world directory
+     * @param filter   excluded dimension directories are skipped
+     *
+     * @return the directory of every dimension by its key, the overworld first
+     */
+    public static Map<String, File> findDimensions(File worldDir, PathFilter filter) {
+        final Map<String, File> dimensions = new LinkedHashMap<>();
+        dimensions.put(OVERWORLD, worldDir);
+        final File[] files = worldDir.listFiles();
+        if (files == null) return dimensions;
+        final Map<String, File> sorted = new TreeMap<>();
+        for (File file : files) {
+            if (file.isDirectory() && DIMENSION.matcher(file.getName()).matches() && filter.acceptDirectory(file.getName())) {
+                sorted.put(file.getName(), file);
+            }
+        }
+        dimensions.putAll(sorted);
+        return dimensions;
+    }
+
+    /**
+     * Back up the dimensions, then start removing old backups of each dimension in the background
+     *
+     * @return completes once the old backups are removed
+     *
+     * @throws IOException if the backup of any dimension failed, the set is written for the others anyway
+     */
+    public ListenableFuture<?> run() throws IOException {
+        log.info("Starting backup {} of dimensions {}", fileName, dimensions.keySet());
+        listener.message("Starting Server Backup");
+        final long start = metrics.begin();
+
+        final Map<String, ListenableFuture<ListenableFuture<?>>> runs = new LinkedHashMap<>();
+        final Map<String, BackupMetrics> dimensionMetrics = new TreeMap<>();
+        final Map<String, Throwable> failures = new TreeMap<>();
+        final Map<String, File> all;
+        WorldSnapshot snapshot = null;
+        try {
+            File source = worldDir;
+            if (options.snapshotMode != WorldSnapshot.Mode.NONE) {
+                metrics.getProgress().setPhase(BackupMetrics.Phase.SNAPSHOT);
+                final long snapshotStart = metrics.begin();
+                final File snapshotDir = new File(worldDir.getAbsoluteFile().getParentFile(), worldDir.getName() + "_backup_snapshot");
+                snapshot = WorldSnapshot.create(worldDir, snapshotDir, options.snapshotMode, options.filter);
+                listener.sourceReleased();
+                metrics.end(BackupMetrics.Phase.SNAPSHOT, snapshotStart);
+                log.info("Took world snapshot in {} ms ({})", metrics.getPhaseMillis(BackupMetrics.Phase.SNAPSHOT), snapshot.getMethod());
+                source = snapshot.getDirectory();
+            }
+
+            metrics.getProgress().setPhase(BackupMetrics.Phase.COMPRESSION);
+            all = findDimensions(source, options.filter);
+            final int count = Math.max(1, dimensions.size());
+            for (Map.Entry<String, BackupOptions> entry : dimensions.entrySet()) {
+                final String key = entry.getKey();
+                if (!all.containsKey(key)) {
+                    log.warn("Skipping dimension {}, it has no directory in the world", key);
+                    continue;
+                }
+                final BackupOptions dimensionOptions = entry.getValue().copy();
+                dimensionOptions.snapshotMode = WorldSnapshot.Mode.NONE;
+                dimensionOptions.compressionThreads = Math.max(1, options.threads() / count);
+                dimensionOptions.maxBufferMemory = Math.max(4, options.maxBufferMemory / count);
+                if (key.equals(OVERWORLD)) {
+                    dimensionOptions.filter = dimensionOptions.filter.withExcludes(Collections.singleton("regex:" + DIMENSION.pattern()));
+                } else {
+                    dimensionOptions.changedFiles = under(key + "/", dimensionOptions.changedFiles);
+                    dimensionOptions.chunkTrim = dimensionOptions.chunkTrim.under(key + "/");
+                }
+                dimensionOptions.sinks = under(key + "/", dimensionOptions.sinks);
+
+                final File dimensionBackupDir = new File(backupDir, key);
+                if (!dimensionBackupDir.isDirectory() && !dimensionBackupDir.mkdirs()) {
+                    throw new IOException("Couldn't create the backup directory " + dimensionBackupDir);
+                }
+                final BackupMetrics backupMetrics = new BackupMetrics(metrics.getProgress());
+                final Backup backup = new Backup(all.get(key), dimensionBackupDir, fileName, dimensionOptions, throttle, BackupListener.NONE, backupMetrics);
+                dimensionMetrics.put(key, backupMetrics);
+                runs.put(key, executor.submit(new Callable<ListenableFuture<?>>() {
+                    @Override
+                    public ListenableFuture<?> call() throws IOException {
+                        return backup.run();
+                    }
+                }));
+            }
+
+            final List<ListenableFuture<?>> cleanups = new ArrayList<>(runs.size());
+            for (Map.Entry<String, ListenableFuture<ListenableFuture<?>>> entry : runs.entrySet()) {
+                try {
+                    cleanups.add(entry.getValue().get());
+                } catch (ExecutionException e) {
+                    log.error("Failed to back up dimension {}", entry.getKey(), e.getCause());
+                    failures.put(entry.getKey(), e.getCause());
+                }
+            }
+
+            metrics.getProgress().setPhase(BackupMetrics.Phase.RENAME);
+            final long renameStart = metrics.begin();
+            writeSet(all, runs.keySet());
+            metrics.end(BackupMetrics.Phase.RENAME, renameStart);
+            copySet();
+            addMetrics(dimensionMetrics, failures);
+            for (BackupSink.Report report : metrics.getSinkReports()) {
+                if (report.error != null) {
+                    listener.message("Failed to copy the backup to " + report.sink + ": " + report.error);
+                }
+            }
+
+            if (!failures.isEmpty()) {
+                final Map.Entry<String, Throwable> first = failures.entrySet().iterator().next();
+                throw new IOException("Failed to back up dimensions " + failures.keySet() + ": " + first.getValue().getMessage(), first.getValue());
+            }
+
+            final String duration = String.format(Locale.ROOT, "%.1f", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / 1000.0);
+            log.info("Backup of {} dimensions completed in {} seconds ({})", runs.size(), duration, FileUtil.getSizeS(metrics.getBytesWritten()));
+            log.info("Backup phases: {}", metrics.describePhases());
+            listener.message("Backup of " + runs.size() + " dimensions finished after " + duration + " seconds (" + FileUtil.getSizeS(metrics.getBytesWritten()) + ")");
+
+            final long cleanupStart = metrics.begin();
+            return Futures.transform(Futures.successfulAsList(cleanups), new Function<List<Object>, Object>() {
+                @Nullable
+                @Override
+                public Object apply(@Nullable List<Object> input) {
+                    BackupSet.prune(backupDir);
+                    metrics.end(BackupMetrics.Phase.CLEANUP, cleanupStart);
+                    return null;
+                }
+            });
+        } catch (InterruptedException e) {
+            for (ListenableFuture<?> run : runs.values()) {
+                run.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing up dimensions");
+        } finally {
+            listener.sourceReleased();
+            if (snapshot != null) {
+                snapshot.delete();
+            }
+        }
+    }
+
+    /** Write the set of this run, if any dimension was backed up */
+    private void writeSet(Map<String, File> all, Iterable<String> started) throws IOException {
+        final BackupSet set = new BackupSet();
+        set.name = fileName;
+        for (String key : started) {
+            if (new File(new File(backupDir, key), fileName).isFile()) {
+                set.taken.add(key);
+            }
+        }
+        if (set.taken.isEmpty()) return;
+        for (String key : all.keySet()) {
+            if (set.taken.contains(key)) {
+                set.archives.put(key, key + "/" + fileName);
+                continue;
+            }
+            final TreeSet<BackupCleanup.BackupMetadata> backups = BackupCleanup.scan(new File(backupDir, key), options.fileEnding);
+            if (backups.isEmpty()) {
+                log.warn("Dimension {} was never backed up, it is missing from backup set {}", key, fileName);
+            } else {
+                set.archives.put(key, key + "/" + backups.last().backupFile.getName());
+            }
+        }
+        set.write(backupDir);
+    }
+
+    /** Copy the set of this run to the sinks, the archives were copied by the backups of the dimensions */
+    private void copySet() {
+        final File file = new File(new File(backupDir, BackupSet.DIRECTORY), fileName + ".json");
+        if (!file.isFile()) return;
+        for (BackupSink sink : options.sinks) {
+            BackupSink.Upload upload = null;
+            try {
+                final byte[] data = Files.toByteArray(file);
+                upload = sink.begin(BackupSet.DIRECTORY + "/" + file.getName());
+                upload.write(data, 0, data.length);
+                upload.commit();
+            } catch (IOException e) {
+                if (upload != null) {
+                    upload.abort();
+                }
+                log.warn("Failed to copy backup set {} to {}", fileName, sink.getName(), e);
+            }
+        }
+    }
+
+    /** Sum up the data of the dimensions. They ran at the same time, so a phase took as long as its slowest dimension */
+    private void addMetrics(Map<String, BackupMetrics> dimensionMetrics, Map<String, Throwable> failures) {
+        int files = 0;
+        long bytesRead = 0;
+        long bytesWritten = 0;
+        long bytesResumed = 0;
+        long compression = 0;
+        long rename = 0;
+        long upload = 0;
+        long catalog = 0;
+        final List<BackupSink.Report> sinkReports = new ArrayList<>();
+        for (Map.Entry<String, BackupMetrics> entry : dimensionMetrics.entrySet()) {
+            if (failures.containsKey(entry.getKey())) continue;
+            final BackupMetrics dimension = entry.getValue();
+            files += dimension.getFiles();
+            bytesRead += dimension.getBytesRead();
+            bytesWritten += dimension.getBytesWritten();
+            bytesResumed += dimension.getBytesResumed();
+            compression = Math.max(compression, dimension.getPhaseMillis(BackupMetrics.Phase.COMPRESSION));
+            rename = Math.max(rename, dimension.getPhaseMillis(BackupMetrics.Phase.RENAME));
+            upload = Math.max(upload, dimension.getPhaseMillis(BackupMetrics.Phase.UPLOAD));
+            catalog = Math.max(catalog, dimension.getPhaseMillis(BackupMetrics.Phase.CATALOG));
+            sinkReports.addAll(dimension.getSinkReports());
+        }
+        metrics.add(BackupMetrics.Phase.COMPRESSION, compression);
+        metrics.add(BackupMetrics.Phase.RENAME, rename);
+        metrics.add(BackupMetrics.Phase.UPLOAD, upload);
+        metrics.add(BackupMetrics.Phase.CATALOG, catalog);
+        metrics.setSinkReports(sinkReports);
+        metrics.setData(fileName, files, bytesRead, bytesWritten, bytesResumed);
+    }
+
+    /** @return sinks that store the archives of a dimension in a directory of their own */
+    private static List<BackupSink> under(final String directory, List<BackupSink> sinks) {
+        final List<BackupSink> result = new ArrayList<>(sinks.size());
+        for (final BackupSink sink : sinks) {
+            result.add(new BackupSink() {
+                @Override
+                public String getName() {
+                    return sink.getName() + " (" + directory.substring(0, directory.length() - 1) + ")";
+                }
+
+                @Override
+                public Upload begin(String path) throws IOException {
+                    return sink.begin(directory + path);
+                }
+            });
+        }
+        return result;
+    }
+
+    /** @return the files of a dimension directory that changed, with their paths relative to the world */
+    private static ChangedFiles under(final String directory, final ChangedFiles changed) {
+        return new ChangedFiles() {
+            @Override
+            public boolean contains(String path) {
+                return changed.contains(directory + path);
+            }
+        };
+    }
+}
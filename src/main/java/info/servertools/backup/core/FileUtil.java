@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+
+public class FileUtil {
+
+    private static final Logger log = LogManager.getLogger();
+
+    public static final int KB = 1024;
+    public static final int MB = KB * 1024;
+    public static final int GB = MB * 1024;
+
+    public static final double KB_D = 1024D;
+    public static final double MB_D = KB_D * 1024D;
+    public static final double GB_D = MB_D * 1024D;
+
+
+    private static String form(double num) {
+        DecimalFormat nf = new DecimalFormat();
+        if (num >= GB_D) {
+            num /= GB_D;
+            num = (long) (num * 10D) / 10D;
+            return nf.format(num) + " GB";
+        } else if (num >= MB_D) {
+            num /= MB_D;
+            num = (long) (num * 10D) / 10D;
+            return nf.format(num) + " MB";
+        } else if (num >= KB_D) {
+            num /= KB_D;
+            num = (long) (num * 10D) / 10D;
+            return nf.format(num) + " kB";
+        }
+        return nf.format(num) + " B";
+    }
+
+    /** @return the length of a file, or the total length of all files below a directory */
+    public static long fileSize(File f) {
+        return fileSize(f, 1);
+    }
+
+    /**
+     * @param f       a file or directory
+     * @param threads the number of threads walking the directory, {@code -1} for one per available processor
+     *
+     * @return the length of a file, or the total length of all files below a directory
+     */
+    public static long fileSize(File f, int threads) {
+        if (f == null) return 0;
+        try {
+            final Path path = f.toPath();
+            if (Files.isRegularFile(path)) return Files.size(path);
+            return new FileWalker(PathFilter.ALL, threads).size(path);
+        } catch (IOException e) {
+            log.error("Failed to get the size of {}", f, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Make sure a file, or the entries of a directory, are written to the disk
+     *
+     * @param file a file or directory
+     */
+    public static void sync(File file) throws IOException {
+        if (file.isDirectory()) {
+            // Not every platform can open a directory, there the entries are as durable as it gets
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                log.debug("Can't sync directory {}", file, e);
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    public static String getSizeS(File f){
+        return form(fileSize(f));
+    }
+
+    public static String getSizeS(long bytes){
+        return form(bytes);
+    }
+}
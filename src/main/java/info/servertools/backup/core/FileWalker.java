@@ -0,0 +1,223 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Walks a directory tree with {@link Files#walkFileTree}, which hands over the attributes of every entry it read
+ * anyway, instead of listing every directory and asking the file system again for the type, length and modification
+ * time of every file.
+ * <p>
+ * With more than one thread the subdirectories of the root are walked in parallel. That pays off on SSDs and network
+ * file systems, where a single thread spends most of its time waiting for directory listings. The visitor is then
+ * called from several threads at once, in no particular order. Entries that can't be read, usually because the server
+ * deleted them during the walk, are logged and skipped.
+ */
+final class FileWalker {
+
+    private static final Logger log = LogManager.getLogger();
+
+    interface Visitor {
+        /**
+         * Called for every accepted directory below the root, before anything inside it
+         *
+         * @param name the path relative to the root, separated by {@code /}, without a trailing {@code /}
+         */
+        void directory(Path dir, String name, BasicFileAttributes attrs) throws IOException;
+
+        /**
+         * Called for every accepted file
+         *
+         * @param name the path relative to the root, separated by {@code /}
+         */
+        void file(Path file, String name, BasicFileAttributes attrs) throws IOException;
+    }
+
+    private final PathFilter filter;
+    private final int threads;
+
+    /**
+     * @param filter  the files and directories to visit, directories that are not accepted are not walked at all
+     * @param threads the number of threads walking subdirectories of the root, {@code -1} for one per available processor
+     */
+    FileWalker(PathFilter filter, int threads) {
+        checkArgument(threads == -1 || threads > 0, "Invalid number of threads: %s", threads);
+        this.filter = filter;
+        this.threads = threads == -1 ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    /**
+     * Walk everything below a directory, nothing is visited if it is not a directory
+     *
+     * @param root    the directory to walk
+     * @param visitor called for every accepted entry
+     */
+    void walk(final Path root, final Visitor visitor) throws IOException {
+        if (!Files.isDirectory(root)) return;
+        if (threads == 1) {
+            Files.walkFileTree(root, new TreeVisitor(root, root, visitor));
+            return;
+        }
+
+        // The first level is walked here, every subdirectory in it becomes a task of its own
+        final List<Path> subtrees = new ArrayList<>();
+        Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), 1, new TreeVisitor(root, root, visitor) {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!attrs.isDirectory()) return super.visitFile(file, attrs);
+                final String name = relativeName(root, file);
+                if (filter.acceptDirectory(name)) {
+                    visitor.directory(file, name, attrs);
+                    subtrees.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (subtrees.isEmpty()) return;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, subtrees.size()),
+                new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Walker-%d").setDaemon(true).build());
+        try {
+            final List<Future<?>> walks = new ArrayList<>(subtrees.size());
+            for (final Path subtree : subtrees) {
+                walks.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        Files.walkFileTree(subtree, new TreeVisitor(root, subtree, visitor));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> walk : walks) {
+                walk.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while walking " + root);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to walk " + root, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param root the directory to measure
+     *
+     * @return the total length of all accepted files below the root
+     */
+    long size(Path root) throws IOException {
+        final long[] total = new long[1];
+        walk(root, new Visitor() {
+            @Override
+            public void directory(Path dir, String name, BasicFileAttributes attrs) {
+            }
+
+            @Override
+            public void file(Path file, String name, BasicFileAttributes attrs) {
+                synchronized (total) {
+                    total[0] += attrs.size();
+                }
+            }
+        });
+        return total[0];
+    }
+
+    /** @return the path of an entry relative to the root, separated by {@code /} */
+    static String relativeName(Path root, Path path) {
+        final String name = root.relativize(path).toString();
+        return File.separatorChar == '/' ? name : name.replace(File.separatorChar, '/');
+    }
+
+    private class TreeVisitor extends SimpleFileVisitor<Path> {
+        private final Path root;
+        private final Path start;
+        private final Visitor visitor;
+
+        /**
+         * @param root  the directory names are relative to
+         * @param start the directory this visitor walks, it has been visited already
+         */
+        TreeVisitor(Path root, Path start, Visitor visitor) {
+            this.root = root;
+            this.start = start;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            if (dir.equals(start)) return FileVisitResult.CONTINUE;
+            final String name = relativeName(root, dir);
+            if (!filter.acceptDirectory(name)) return FileVisitResult.SKIP_SUBTREE;
+            visitor.directory(dir, name, attrs);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            final String name = relativeName(root, file);
+            if (filter.acceptFile(name)) {
+                visitor.file(file, name, attrs);
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            if (exc instanceof NoSuchFileException) {
+                log.debug("{} disappeared while walking {}", file, root);
+            } else {
+                log.warn("Skipping {} while walking {}: {}", file, root, exc.toString());
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+            if (exc != null) {
+                log.warn("Could not list all of {} while walking {}: {}", dir, root, exc.toString());
+            }
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
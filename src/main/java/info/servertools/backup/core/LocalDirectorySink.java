@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Copies backups into another directory, like a second disk or a network share. Every copy is written next to its
+ * final name with {@link #PARTIAL_SUFFIX} appended, and only renamed once it is complete and synced to disk.
+ */
+public final class LocalDirectorySink implements BackupSink {
+
+    static final String PARTIAL_SUFFIX = ".partial";
+
+    private final File directory;
+
+    /** @param directory the directory to copy the backups to, created if it doesn't exist */
+    public LocalDirectorySink(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public String getName() {
+        return directory.getPath();
+    }
+
+    @Override
+    public Upload begin(String path) throws IOException {
+        final File target = new File(directory, path);
+        final File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) throw new IOException("Couldn't create " + parent);
+        final File partial = new File(parent, target.getName() + PARTIAL_SUFFIX);
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), 256 * 1024);
+        return new Upload() {
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                out.write(data, offset, length);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                out.close();
+                FileUtil.sync(partial);
+                try {
+                    Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                FileUtil.sync(parent);
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // The copy is deleted anyway
+                }
+                //noinspection ResultOfMethodCallIgnored
+                partial.delete();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "LocalDirectorySink{" + directory + '}';
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Uploads backups to an S3 compatible object store with multipart uploads, so a copy is streamed in parts of a fixed
+ * size and never has to be held in memory or on disk as a whole.
+ * <p>
+ * The store is given as a path style URL, {@code https://s3.eu-west-1.amazonaws.com/bucket/some/prefix}. Requests are
+ * signed with AWS Signature Version 4 if an access key is given, and sent unsigned otherwise. A part that fails is tried
+ * again a few times, an upload that fails or is aborted is aborted in the store too, so it leaves no parts behind.
+ */
+public final class ObjectStoreSink implements BackupSink {
+
+    private static final Logger log = LogManager.getLogger();
+
+    /** The smallest part the S3 API accepts, except for the last one */
+    public static final int MIN_PART_SIZE = 5 * FileUtil.MB;
+    private static final int MAX_PARTS = 10000;
+    private static final int ATTEMPTS = 3;
+    private static final int CONNECT_TIMEOUT = 30 * 1000;
+    private static final int READ_TIMEOUT = 5 * 60 * 1000;
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private final String endpoint;
+    private final String host;
+    private final String bucket;
+    private final String prefix;
+    private final String region;
+    @Nullable
+    private final String accessKey;
+    @Nullable
+    private final String secretKey;
+    private final int partSize;
+
+    /**
+     * @param url       the bucket and an optional prefix of the object names, as a path style http or https URL
+     * @param region    the region the requests are signed for
+     * @param accessKey the access key, or {@code null} to send unsigned requests
+     * @param secretKey the secret key belonging to the access key
+     * @param partSize  the size of the parts, at least {@link #MIN_PART_SIZE}
+     *
+     * @throws IllegalArgumentException if the URL isn't a path style URL of a bucket
+     */
+    public ObjectStoreSink(String url, String region, @Nullable String accessKey, @Nullable String secretKey, int partSize) {
+        final URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid object store URL " + url, e);
+        }
+        if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme()) || uri.getHost() == null) {
+            throw new IllegalArgumentException("The object store URL must be an http or https URL: " + url);
+        }
+        String path = uri.getPath() == null ? "" : uri.getPath();
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (path.isEmpty()) throw new IllegalArgumentException("The object store URL has no bucket: " + url);
+        final int slash = path.indexOf('/');
+        this.bucket = slash == -1 ? path : path.substring(0, slash);
+        String prefix = slash == -1 ? "" : path.substring(slash + 1);
+        if (!prefix.isEmpty() && !prefix.endsWith("/")) prefix += "/";
+        this.prefix = prefix;
+        this.host = uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ':' + uri.getPort();
+        this.endpoint = uri.getScheme() + "://" + host;
+        this.region = region;
+        this.accessKey = accessKey == null || accessKey.isEmpty() ? null : accessKey;
+        this.secretKey = secretKey;
+        if (this.accessKey != null && (secretKey == null || secretKey.isEmpty())) throw new IllegalArgumentException("The access key needs a secret key");
+        if (partSize < MIN_PART_SIZE) throw new IllegalArgumentException("Parts must be at least " + FileUtil.getSizeS(MIN_PART_SIZE));
+        this.partSize = partSize;
+    }
+
+    @Override
+    public String getName() {
+        return endpoint + '/' + bucket + '/' + prefix;
+    }
+
+    @Override
+    public Upload begin(String path) throws IOException {
+        final String key = prefix + path;
+        final Response created = request("POST", key, "uploads=", new byte[0], 0);
+        final Matcher matcher = UPLOAD_ID.matcher(created.body);
+        if (!matcher.find()) throw new IOException("The object store returned no upload id for " + key);
+        return new MultipartUpload(key, matcher.group(1));
+    }
+
+    private final class MultipartUpload implements Upload {
+        private final String key;
+        private final String uploadId;
+        private final List<String> etags = new ArrayList<>();
+        private final byte[] part = new byte[partSize];
+        private int length;
+
+        MultipartUpload(String key, String uploadId) {
+            this.key = key;
+            this.uploadId = uploadId;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) throws IOException {
+            while (count > 0) {
+                final int n = Math.min(count, part.length - length);
+                System.arraycopy(data, offset, part, length, n);
+                length += n;
+                offset += n;
+                count -= n;
+                if (length == part.length) {
+                    uploadPart();
+                }
+            }
+        }
+
+        private void uploadPart() throws IOException {
+            if (etags.size() == MAX_PARTS) throw new IOException("The backup needs more than " + MAX_PARTS + " parts, use bigger parts");
+            final int number = etags.size() + 1;
+            final Response response = request("PUT", key, "partNumber=" + number + "&uploadId=" + encode(uploadId, true), part, length);
+            if (response.etag == null) throw new IOException("The object store returned no ETag for part " + number + " of " + key);
+            etags.add(response.etag);
+            length = 0;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (length > 0 || etags.isEmpty()) {
+                uploadPart();
+            }
+            final StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+            for (int i = 0; i < etags.size(); i++) {
+                xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(escape(etags.get(i))).append("</ETag></Part>");
+            }
+            xml.append("</CompleteMultipartUpload>");
+            final byte[] body = xml.toString().getBytes(Charsets.UTF_8);
+            final Response response = request("POST", key, "uploadId=" + encode(uploadId, true), body, body.length);
+            // The upload can still fail after the response started, then the error is in the body
+            if (response.body.contains("<Error>")) throw new IOException("The object store failed to complete " + key + ": " + response.body);
+        }
+
+        @Override
+        public void abort() {
+            try {
+                request("DELETE", key, "uploadId=" + encode(uploadId, true), null, 0);
+            } catch (IOException e) {
+                log.warn("Failed to abort the upload of {}, the store may keep its parts: {}", key, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Send a request, trying again if it fails or the store has an internal error
+     *
+     * @param query the canonical query string, with the parameters sorted and encoded
+     * @param body  the body, or {@code null} for none
+     */
+    private Response request(String method, String key, String query, @Nullable byte[] body, int length) throws IOException {
+        final String path = "/" + encode(bucket, true) + "/" + encode(key, false);
+        final URL url = new URL(endpoint + path + (query.isEmpty() ? "" : "?" + query));
+        IOException failure = null;
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(1000L << attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while uploading " + key);
+                }
+            }
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            final int code;
+            final String text;
+            try {
+                connection.setRequestMethod(method);
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                connection.setUseCaches(false);
+                final String payloadHash = Hashing.sha256().hashBytes(body == null ? new byte[0] : body, 0, length).toString();
+                sign(connection, method, path, query, payloadHash);
+                if (body != null) {
+                    connection.setDoOutput(true);
+                    connection.setFixedLengthStreamingMode(length);
+                    try (OutputStream out = connection.getOutputStream()) {
+                        out.write(body, 0, length);
+                    }
+                }
+                code = connection.getResponseCode();
+                final InputStream stream = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                text = stream == null ? "" : new String(ByteStreams.toByteArray(stream), Charsets.UTF_8);
+                if (code >= 200 && code < 300) {
+                    return new Response(text, connection.getHeaderField("ETag"));
+                }
+            } catch (IOException e) {
+                failure = e;
+                log.debug("Object store request {} {} failed, attempt {} of {}", method, url.getPath(), attempt + 1, ATTEMPTS, e);
+                continue;
+            } finally {
+                connection.disconnect();
+            }
+            failure = new IOException(method + " " + url.getPath() + " failed with " + code + ": " + abbreviate(text));
+            // Only errors of the store itself may go away
+            if (code < 500) throw failure;
+        }
+        throw failure;
+    }
+
+    /** Add the headers of AWS Signature Version 4 */
+    private void sign(HttpURLConnection connection, String method, String path, String query, String payloadHash) throws IOException {
+        final Date now = new Date();
+        final String time = utc("yyyyMMdd'T'HHmmss'Z'").format(now);
+        connection.setRequestProperty("x-amz-date", time);
+        connection.setRequestProperty("x-amz-content-sha256", payloadHash);
+        if (accessKey == null || secretKey == null) return;
+
+        final String date = time.substring(0, 8);
+        final String scope = date + '/' + region + "/s3/aws4_request";
+        final String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+        final String canonicalRequest = method + '\n' + path + '\n' + query + '\n' +
+                                        "host:" + host + '\n' + "x-amz-content-sha256:" + payloadHash + '\n' + "x-amz-date:" + time + '\n' +
+                                        '\n' + signedHeaders + '\n' + payloadHash;
+        final String stringToSign = "AWS4-HMAC-SHA256\n" + time + '\n' + scope + '\n' +
+                                    Hashing.sha256().hashString(canonicalRequest, Charsets.UTF_8).toString();
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(Charsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        final String signature = BaseEncoding.base16().lowerCase().encode(hmac(key, stringToSign));
+        connection.setRequestProperty("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + '/' + scope +
+                                                       ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(Charsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Can't sign the request", e);
+        }
+    }
+
+    private static SimpleDateFormat utc(String pattern) {
+        final SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    /** Percent-encode everything but the unreserved characters of RFC 3986, and {@code /} unless told otherwise */
+    private static String encode(String value, boolean slash) {
+        final StringBuilder builder = new StringBuilder(value.length() * 2);
+        for (byte b : value.getBytes(Charsets.UTF_8)) {
+            final char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~' ||
+                (c == '/' && !slash)) {
+                builder.append(c);
+            } else {
+                builder.append('%').append(BaseEncoding.base16().encode(new byte[]{b}));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String abbreviate(String text) {
+        return text.length() > 300 ? text.substring(0, 300) + "..." : text;
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectStoreSink{" + getName() + ", region=" + region + ", partSize=" + partSize + '}';
+    }
+
+    private static final class Response {
+        final String body;
+        @Nullable
+        final String etag;
+
+        Response(String body, @Nullable String etag) {
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import javax.annotation.Nullable;
+
+/**
+ * Compresses a directory into a ZIP archive using a pool of worker threads.
+ * <p>
+ * Every file is split into blocks of {@link #BLOCK_SIZE} bytes which are deflated independently, the same way pigz
+ * does it: each block is primed with the last 32 KB of the block before it, and all but the last block of a file end
+ * on a sync flush so the compressed blocks can simply be concatenated into a single deflate stream. The blocks are
+ * written to the archive in the order they were submitted, so the output is one ordinary ZIP file.
+ * <p>
+ * Reading, compressing and writing run at the same time: a reader thread reads the blocks in archive order, a pool of
+ * threads compresses them, and the calling thread writes them out. Every block in flight holds two buffers from a
+ * {@link BufferPool}, one for the data read and one for the compressed data, so the memory a backup takes is capped
+ * however big the world is. When all buffers are taken the reader waits for the writer.
+ */
+class ParallelArchiver implements ArchiveCodec {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    /** Fits a block with its dictionary, and a deflated block of data that doesn't compress */
+    private static final int BUFFER_SIZE = BLOCK_SIZE + (BLOCK_SIZE >> 3) + 64;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    static final long DEFAULT_BUFFER_MEMORY = 64L * FileUtil.MB;
+
+    /** Marks the end of the blocks */
+    private static final Future<Block> END = Futures.immediateFuture(null);
+
+    private final int threads;
+    private final CompressionPolicy policy;
+    private final BackupThrottle throttle;
+    private final long maxBufferMemory;
+
+    /**
+     * @param threads the number of compression threads, or {@code -1} to use one per available processor
+     * @param level   the deflate level, see {@link Deflater}
+     */
+    ParallelArchiver(int threads, int level) {
+        this(threads, new CompressionPolicy(level, level, false), BackupThrottle.NONE, DEFAULT_BUFFER_MEMORY);
+    }
+
+    /**
+     * @param threads         the number of compression threads, or {@code -1} to use one per available processor
+     * @param policy          decides how hard every block is compressed
+     * @param throttle        slows down reading the files
+     * @param maxBufferMemory the most bytes the buffers of blocks in flight may take, at least two buffers are used
+     */
+    ParallelArchiver(int threads, CompressionPolicy policy, BackupThrottle throttle, long maxBufferMemory) {
+        checkArgument(threads == -1 || threads > 0, "Invalid number of threads: %s", threads);
+        checkArgument(maxBufferMemory > 0, "Invalid buffer memory: %s", maxBufferMemory);
+        this.threads = threads == -1 ? Runtime.getRuntime().availableProcessors() : threads;
+        this.policy = policy;
+        this.throttle = throttle;
+        this.maxBufferMemory = maxBufferMemory;
+    }
+
+    /**
+     * Compress a directory into a ZIP file
+     *
+     * @param sourceDir the directory to compress
+     * @param target    the archive to create
+     * @param filter    the files and directories to archive
+     */
+    void archive(File sourceDir, File target, PathFilter filter) throws IOException {
+        archive(collect(sourceDir, filter, 1), target, null, null, null, null);
+    }
+
+    @Override
+    public ArchiveFormat getFormat() {
+        return ArchiveFormat.ZIP;
+    }
+
+    /**
+     * Compress a list of directories and files into a ZIP file
+     *
+     * @param sources  the entries to archive, in archive order
+     * @param target   the archive to create
+     * @param comment  the archive comment, or {@code null} for none
+     * @param journal  continues an interrupted archive and records the progress of this one, or {@code null}
+     * @param fanOut   copies the archive to backup sinks while it is written, or {@code null}
+     * @param progress counts the archived bytes and files, or {@code null}
+     *
+     * @return the CRC-32 of the whole archive file
+     */
+    @Override
+    public long archive(List<Source> sources, File target, @Nullable String comment, @Nullable BackupJournal journal,
+                        @Nullable BackupFanOut fanOut, @Nullable BackupProgress progress) throws IOException {
+        // Entries of an interrupted archive are kept as long as their files didn't change since
+        final List<BackupJournal.Record> resumed = new ArrayList<>();
+        if (journal != null) {
+            for (BackupJournal.Record record : journal.getRecords()) {
+                if (resumed.size() == sources.size() || !record.matches(sources.get(resumed.size()))) break;
+                resumed.add(record);
+            }
+            journal.truncate(resumed.size());
+        }
+        final long offset = resumed.isEmpty() ? 0 : resumed.get(resumed.size() - 1).end;
+        final CRC32 archiveCrc = new CRC32();
+        if (offset > 0) {
+            resume(target, offset, archiveCrc);
+            log.info("Continuing an interrupted backup after {} of {} entries, {}", resumed.size(), sources.size(), FileUtil.getSizeS(offset));
+        }
+        if (progress != null) {
+            for (Source source : sources.subList(0, resumed.size())) {
+                if (!source.directory) progress.skip(source.length, 1);
+            }
+        }
+        final List<Source> remaining = sources.subList(resumed.size(), sources.size());
+
+        final BufferPool buffers = new BufferPool(BUFFER_SIZE, maxBufferMemory, 2);
+        final DeflaterPool deflaters = new DeflaterPool();
+        final ExecutorService reader = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Reader-%d").setDaemon(true).build());
+        final ExecutorService compressors = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Deflater-%d").setDaemon(true).build());
+
+        log.debug("Archiving {} entries into {} with {} threads and {} of buffers",
+                remaining.size(), target, threads, FileUtil.getSizeS((long) buffers.getCapacity() * buffers.getBufferSize()));
+        final BlockingQueue<Future<Block>> pending = new LinkedBlockingQueue<>();
+        final CompressionPolicy.Stats stats = new CompressionPolicy.Stats();
+        final Future<?> reading = reader.submit(new ReadTask(remaining, buffers, deflaters, compressors, stats, pending));
+        try (FileOutputStream file = new FileOutputStream(target, offset > 0)) {
+            final CheckedOutputStream checked = new CheckedOutputStream(fanOut == null ? file : fanOut.tee(file, offset), archiveCrc);
+            try (ZipStreamWriter zip = new ZipStreamWriter(new BufferedOutputStream(checked, WRITE_BUFFER_SIZE), offset, resumed)) {
+                if (comment != null) {
+                    zip.setComment(comment);
+                }
+                final EntryState state = new EntryState();
+                final ArchiveChecksums checksums = new ArchiveChecksums();
+                for (BackupJournal.Record record : resumed) {
+                    if (!record.directory) checksums.put(record.name, record.crc);
+                }
+                final List<BackupJournal.Record> finished = new ArrayList<>();
+                long checkpoint = offset;
+                Future<Block> next;
+                while ((next = take(pending)) != END) {
+                    final Block block = await(next);
+                    final boolean complete = write(zip, state, block, checksums);
+                    if (progress != null && !block.source.directory) {
+                        progress.advance(block.length, complete ? 1 : 0);
+                    }
+                    if (complete && journal != null) {
+                        finished.add(zip.record(block.source));
+                        if (zip.getBytesWritten() - checkpoint >= BackupJournal.CHECKPOINT_BYTES) {
+                            // The data has to be on disk before the journal says so
+                            zip.flush();
+                            file.getChannel().force(false);
+                            journal.append(finished);
+                            finished.clear();
+                            checkpoint = zip.getBytesWritten();
+                        }
+                    }
+                    block.release(buffers);
+                }
+                final byte[] data = checksums.toBytes();
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                zip.writeEntry(ArchiveChecksums.FILE_NAME, System.currentTimeMillis(), ZipEntry.STORED, crc.getValue(), data.length, data.length, data, 0, data.length);
+            }
+        } finally {
+            reading.cancel(true);
+            for (Future<Block> future : pending) {
+                future.cancel(true);
+            }
+            reader.shutdownNow();
+            compressors.shutdownNow();
+            deflaters.end();
+        }
+        stats.log(log);
+        return archiveCrc.getValue();
+    }
+
+    /** Cut an interrupted archive off after the last entry that is kept, and add what is left to the archive checksum */
+    private static void resume(File target, long offset, CRC32 crc) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.setLength(offset);
+            final byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+            int read;
+            while ((read = file.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+    }
+
+    /** @return {@code true} if the block finished an entry */
+    private static boolean write(ZipStreamWriter zip, EntryState state, Block block, ArchiveChecksums checksums) throws IOException {
+        final Source source = block.source;
+        if (source.directory) {
+            zip.writeDirectory(source.name, source.lastModified);
+            return true;
+        }
+        if (block.count == 1) {
+            zip.writeEntry(source.name, source.lastModified, block.method, block.crc, block.length, block.dataLength, block.data, 0, block.dataLength);
+            checksums.put(source.name, block.crc);
+            return true;
+        }
+        if (block.index == 0) {
+            zip.putNextEntry(source.name, source.lastModified, ZipEntry.DEFLATED, source.length);
+            state.crc = block.crc;
+            state.size = block.length;
+        } else {
+            state.crc = Checksums.crc32Combine(state.crc, block.crc, block.length);
+            state.size += block.length;
+        }
+        zip.write(block.data, 0, block.dataLength);
+        if (block.index == block.count - 1) {
+            zip.closeEntry(state.crc, state.size);
+            checksums.put(source.name, state.crc);
+            return true;
+        }
+        return false;
+    }
+
+    private static Future<Block> take(BlockingQueue<Future<Block>> pending) throws IOException {
+        try {
+            return pending.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compression");
+        }
+    }
+
+    private static Block await(Future<Block> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compression");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to compress backup data", e.getCause());
+        }
+    }
+
+    /**
+     * Walk a directory, skipping everything the filter rejects
+     *
+     * @param sourceDir the directory to archive
+     * @param filter    the files and directories to archive
+     * @param threads   the number of threads walking the directory, {@code -1} for one per available processor
+     *
+     * @return the directories and files to archive, sorted by name so the archive is the same however it was walked
+     */
+    static List<Source> collect(File sourceDir, PathFilter filter, int threads) throws IOException {
+        final List<Source> sources = new ArrayList<>();
+        new FileWalker(filter, threads).walk(sourceDir.toPath(), new FileWalker.Visitor() {
+            @Override
+            public void directory(Path dir, String name, BasicFileAttributes attrs) {
+                final Source source = new Source(dir.toFile(), name + "/", true, 0, attrs.lastModifiedTime().toMillis());
+                synchronized (sources) {
+                    sources.add(source);
+                }
+            }
+
+            @Override
+            public void file(Path file, String name, BasicFileAttributes attrs) {
+                final Source source = new Source(file.toFile(), name, false, attrs.size(), attrs.lastModifiedTime().toMillis());
+                synchronized (sources) {
+                    sources.add(source);
+                }
+            }
+        });
+        Collections.sort(sources, BY_NAME);
+        return sources;
+    }
+
+    private static final Comparator<Source> BY_NAME = new Comparator<Source>() {
+        @Override
+        public int compare(Source a, Source b) {
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    static final class Source {
+        final File file;
+        final String name;
+        final boolean directory;
+        final long length;
+        final long lastModified;
+        final int blocks;
+        /** Archives a compacted copy of the region file instead of the file itself, {@code length} is its length */
+        @Nullable
+        final RegionCompactor.Layout layout;
+
+        Source(File file, String name, boolean directory) {
+            this(file, name, directory, directory ? 0 : file.length(), file.lastModified());
+        }
+
+        Source(File file, String name, boolean directory, long length, long lastModified) {
+            this(file, name, directory, length, lastModified, null);
+        }
+
+        Source(File file, String name, boolean directory, long length, long lastModified, @Nullable RegionCompactor.Layout layout) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.blocks = (int) Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            this.layout = layout;
+        }
+    }
+
+    private static final class Block {
+        final Source source;
+        final int index;
+        final int count;
+
+        /** The data read, starting with up to {@link #DICTIONARY_SIZE} bytes of the block before */
+        @Nullable
+        byte[] input;
+        int dictionary;
+        int read;
+
+        int method = ZipEntry.DEFLATED;
+        long crc;
+        long length;
+        @Nullable
+        byte[] data;
+        int dataLength;
+
+        Block(Source source, int index, int count) {
+            this.source = source;
+            this.index = index;
+            this.count = count;
+        }
+
+        /** Give the buffers of this block back to the pool */
+        void release(BufferPool buffers) {
+            if (input != null) {
+                buffers.release(input);
+                input = null;
+            }
+            if (data != null) {
+                buffers.release(data);
+                data = null;
+            }
+        }
+    }
+
+    /** Running checksum and size of an entry that spans several blocks */
+    private static final class EntryState {
+        long crc;
+        long size;
+    }
+
+    /**
+     * Deflaters by level, shared by the compression threads of one archive. Changing the level of a deflater is not
+     * free and easy to get wrong, so every level has its own. They are ended as soon as the archive is written, instead
+     * of holding native memory until they are finalized.
+     */
+    private static final class DeflaterPool {
+        private final Map<Integer, Deque<Deflater>> idle = new HashMap<>();
+        private boolean ended;
+
+        synchronized Deflater borrow(int level) {
+            final Deque<Deflater> deflaters = idle.get(level);
+            if (deflaters != null && !deflaters.isEmpty()) {
+                return deflaters.pop();
+            }
+            return new Deflater(level, true);
+        }
+
+        synchronized void giveBack(int level, Deflater deflater) {
+            if (ended) {
+                deflater.end();
+                return;
+            }
+            Deque<Deflater> deflaters = idle.get(level);
+            if (deflaters == null) {
+                deflaters = new ArrayDeque<>();
+                idle.put(level, deflaters);
+            }
+            deflaters.push(deflater);
+        }
+
+        /** End all idle deflaters, the ones still in use are ended when they are given back */
+        synchronized void end() {
+            ended = true;
+            for (Deque<Deflater> deflaters : idle.values()) {
+                for (Deflater deflater : deflaters) {
+                    deflater.end();
+                }
+            }
+            idle.clear();
+        }
+    }
+
+    /**
+     * Reads the blocks of all sources in archive order, and hands them to the compression threads as soon as a pair of
+     * buffers is free. Always ends the queue with {@link #END}, after a failed future if reading failed.
+     */
+    private final class ReadTask implements Runnable {
+        private final List<Source> sources;
+        private final BufferPool buffers;
+        private final DeflaterPool deflaters;
+        private final ExecutorService compressors;
+        private final CompressionPolicy.Stats stats;
+        private final BlockingQueue<Future<Block>> pending;
+
+        ReadTask(List<Source> sources, BufferPool buffers, DeflaterPool deflaters, ExecutorService compressors,
+                 CompressionPolicy.Stats stats, BlockingQueue<Future<Block>> pending) {
+            this.sources = sources;
+            this.buffers = buffers;
+            this.deflaters = deflaters;
+            this.compressors = compressors;
+            this.stats = stats;
+            this.pending = pending;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (final Source source : sources) {
+                    if (source.directory) {
+                        pending.add(Futures.immediateFuture(new Block(source, 0, 1)));
+                        continue;
+                    }
+                    try (FileChannel channel = FileChannel.open(source.file.toPath(), StandardOpenOption.READ)) {
+                        for (int i = 0; i < source.blocks; i++) {
+                            final Block block = new Block(source, i, source.blocks);
+                            final byte[][] pair = buffers.acquire(2);
+                            block.input = pair[0];
+                            block.data = pair[1];
+                            read(channel, block);
+                            pending.add(compressors.submit(new DeflateTask(block, buffers, deflaters, stats)));
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                pending.add(Futures.<Block>immediateFailedFuture(e));
+            } finally {
+                pending.add(END);
+            }
+        }
+
+        private void read(FileChannel channel, Block block) throws IOException {
+            final long start = (long) block.index * BLOCK_SIZE;
+            final int dictionary = (int) Math.min(start, DICTIONARY_SIZE);
+            final int length = (int) Math.min(BLOCK_SIZE, Math.max(0, block.source.length - start));
+            throttle.acquire(length);
+
+            final ByteBuffer buffer = ByteBuffer.wrap(block.input, 0, dictionary + length);
+            long position = start - dictionary;
+            if (block.source.layout != null) {
+                block.source.layout.read(channel, buffer, position);
+            } else {
+                int n;
+                while (buffer.hasRemaining() && (n = channel.read(buffer, position)) != -1) {
+                    position += n;
+                }
+            }
+            block.dictionary = dictionary;
+            block.read = buffer.position();
+        }
+    }
+
+    private final class DeflateTask implements Callable<Block> {
+        private final Block block;
+        private final BufferPool buffers;
+        private final DeflaterPool deflaters;
+        private final CompressionPolicy.Stats stats;
+
+        DeflateTask(Block block, BufferPool buffers, DeflaterPool deflaters, CompressionPolicy.Stats stats) {
+            this.block = block;
+            this.buffers = buffers;
+            this.deflaters = deflaters;
+            this.stats = stats;
+        }
+
+        @Override
+        public Block call() {
+            final Source source = block.source;
+            final byte[] input = block.input;
+            final int dictionary = block.dictionary;
+            final int length = Math.max(0, block.read - dictionary);
+
+            final CRC32 crc = new CRC32();
+            crc.update(input, dictionary, length);
+            block.crc = crc.getValue();
+            block.length = length;
+
+            final long compressStart = System.nanoTime();
+            final CompressionPolicy.Category category = CompressionPolicy.Category.of(source.name);
+            final int level = policy.levelFor(category, input, dictionary, length);
+            if (level == Deflater.NO_COMPRESSION && source.blocks == 1) {
+                // A file that fits in one block can be stored as it is
+                buffers.release(block.data);
+                block.method = ZipEntry.STORED;
+                block.data = input;
+                block.input = null;
+                block.dataLength = length;
+                stats.record(category, length, length, System.nanoTime() - compressStart, true);
+                return block;
+            }
+
+            final Deflater deflater = deflaters.borrow(level);
+            byte[] out = block.data;
+            int written = 0;
+            try {
+                deflater.reset();
+                if (dictionary > 0 && block.read >= dictionary) {
+                    deflater.setDictionary(input, 0, dictionary);
+                }
+                deflater.setInput(input, dictionary, length);
+
+                if (block.index == source.blocks - 1) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        if (written == out.length) out = Arrays.copyOf(out, out.length * 2);
+                        written += deflater.deflate(out, written, out.length - written);
+                    }
+                } else {
+                    int n;
+                    do {
+                        if (written == out.length) out = Arrays.copyOf(out, out.length * 2);
+                        n = deflater.deflate(out, written, out.length - written, Deflater.SYNC_FLUSH);
+                        written += n;
+                    } while (written == out.length);
+                }
+            } finally {
+                deflaters.giveBack(level, deflater);
+            }
+            buffers.release(input);
+            block.input = null;
+            block.data = out;
+            block.dataLength = written;
+            stats.record(category, length, written, System.nanoTime() - compressStart, level == Deflater.NO_COMPRESSION);
+            return block;
+        }
+    }
+}
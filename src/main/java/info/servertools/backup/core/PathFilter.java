@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which files and directories of a world are backed up.
+ * <p>
+ * Besides the plain name blacklists a filter holds include and exclude patterns. A pattern is a glob unless it starts
+ * with {@code regex:}, a {@code glob:} prefix is allowed too. Globs support {@code *} and {@code ?} within a name,
+ * {@code **} across directories, {@code [abc]} and {@code {a,b}}. A pattern without a {@code /} is matched against the
+ * name of every file and directory, any other pattern and every regex against the path relative to the world, with
+ * {@code /} as the separator. Once any include pattern is given only the files matching one of them are backed up,
+ * directories are always walked. Excludes win over includes.
+ * <p>
+ * Patterns are compiled once when the filter is created, so matching an entry is just a set lookup and a few regexes.
+ */
+public final class PathFilter {
+
+    /** Accepts everything */
+    public static final PathFilter ALL = new PathFilter(
+            Collections.<String>emptySet(), Collections.<String>emptySet(), new Pattern[0], new Pattern[0], new Pattern[0], new Pattern[0]);
+
+    /** Only excludes the temporary file Minecraft writes while saving level.dat, it causes backup problems */
+    public static final PathFilter DEFAULT = compile(
+            Collections.singleton("level.dat_new"), Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet());
+
+    private final Set<String> excludedFiles;
+    private final Set<String> excludedDirectories;
+    private final Pattern[] excludedNames;
+    private final Pattern[] excludedPaths;
+    private final Pattern[] includedNames;
+    private final Pattern[] includedPaths;
+
+    private PathFilter(Set<String> excludedFiles, Set<String> excludedDirectories,
+                       Pattern[] excludedNames, Pattern[] excludedPaths, Pattern[] includedNames, Pattern[] includedPaths) {
+        this.excludedFiles = excludedFiles;
+        this.excludedDirectories = excludedDirectories;
+        this.excludedNames = excludedNames;
+        this.excludedPaths = excludedPaths;
+        this.includedNames = includedNames;
+        this.includedPaths = includedPaths;
+    }
+
+    /**
+     * Compile a filter
+     *
+     * @param excludedFiles       exact names of files that are never backed up
+     * @param excludedDirectories exact names of directories that are never backed up
+     * @param includes            patterns of the files to back up, empty to back up all files
+     * @param excludes            patterns of the files and directories that are never backed up
+     *
+     * @return the filter
+     *
+     * @throws IllegalArgumentException if a pattern is invalid
+     */
+    public static PathFilter compile(Collection<String> excludedFiles, Collection<String> excludedDirectories,
+                                     Collection<String> includes, Collection<String> excludes) {
+        final List<Pattern> excludedNames = new ArrayList<>();
+        final List<Pattern> excludedPaths = new ArrayList<>();
+        final List<Pattern> includedNames = new ArrayList<>();
+        final List<Pattern> includedPaths = new ArrayList<>();
+        for (String pattern : excludes) {
+            addPattern(pattern, excludedNames, excludedPaths);
+        }
+        for (String pattern : includes) {
+            addPattern(pattern, includedNames, includedPaths);
+        }
+        return new PathFilter(names(excludedFiles), names(excludedDirectories),
+                excludedNames.toArray(new Pattern[excludedNames.size()]), excludedPaths.toArray(new Pattern[excludedPaths.size()]),
+                includedNames.toArray(new Pattern[includedNames.size()]), includedPaths.toArray(new Pattern[includedPaths.size()]));
+    }
+
+    /**
+     * @param excludes patterns of more files and directories that are not backed up
+     *
+     * @return a filter that also rejects everything matching one of the patterns
+     *
+     * @throws IllegalArgumentException if a pattern is invalid
+     */
+    public PathFilter withExcludes(Collection<String> excludes) {
+        final List<Pattern> excludedNames = new ArrayList<>(Arrays.asList(this.excludedNames));
+        final List<Pattern> excludedPaths = new ArrayList<>(Arrays.asList(this.excludedPaths));
+        for (String pattern : excludes) {
+            addPattern(pattern, excludedNames, excludedPaths);
+        }
+        return new PathFilter(excludedFiles, excludedDirectories,
+                excludedNames.toArray(new Pattern[excludedNames.size()]), excludedPaths.toArray(new Pattern[excludedPaths.size()]),
+                includedNames, includedPaths);
+    }
+
+    /**
+     * @param path the path of the directory relative to the walked root, separated by {@code /}
+     *
+     * @return {@code true} if the directory and everything in it may be backed up
+     */
+    public boolean acceptDirectory(String path) {
+        final String name = name(path);
+        return !excludedDirectories.contains(name) && !matches(excludedNames, name) && !matches(excludedPaths, path);
+    }
+
+    /**
+     * @param path the path of the file relative to the walked root, separated by {@code /}
+     *
+     * @return {@code true} if the file is backed up
+     */
+    public boolean acceptFile(String path) {
+        final String name = name(path);
+        if (excludedFiles.contains(name) || matches(excludedNames, name) || matches(excludedPaths, path)) return false;
+        return includedNames.length + includedPaths.length == 0 || matches(includedNames, name) || matches(includedPaths, path);
+    }
+
+    private static boolean matches(Pattern[] patterns, String value) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(value).matches()) return true;
+        }
+        return false;
+    }
+
+    private static String name(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static Set<String> names(Collection<String> names) {
+        final Set<String> set = new HashSet<>();
+        for (String name : names) {
+            if (!name.trim().isEmpty()) set.add(name.trim());
+        }
+        return set;
+    }
+
+    private static void addPattern(String pattern, List<Pattern> names, List<Pattern> paths) {
+        pattern = pattern.trim();
+        if (pattern.isEmpty()) return;
+        try {
+            if (pattern.startsWith("regex:")) {
+                paths.add(Pattern.compile(pattern.substring("regex:".length())));
+                return;
+            }
+            if (pattern.startsWith("glob:")) {
+                pattern = pattern.substring("glob:".length());
+            }
+            while (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            (pattern.indexOf('/') == -1 ? names : paths).add(Pattern.compile(globToRegex(pattern)));
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid pattern " + pattern + ": " + e.getDescription(), e);
+        }
+    }
+
+    /** @return the regex matching the same paths as a glob */
+    static String globToRegex(String glob) {
+        final StringBuilder regex = new StringBuilder(glob.length() * 2);
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        // "**/" also matches no directory at all
+                        if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                            regex.append("(?:.*/)?");
+                            i += 2;
+                        } else if (i + 2 == glob.length() && regex.length() > 0 && regex.charAt(regex.length() - 1) == '/') {
+                            // A trailing "/**" also matches the directory itself
+                            regex.setLength(regex.length() - 1);
+                            regex.append("(?:/.*)?");
+                            i++;
+                        } else {
+                            regex.append(".*");
+                            i++;
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    final int end = glob.indexOf(']', i + 2);
+                    if (end == -1) throw new IllegalArgumentException("Unclosed [ in pattern " + glob);
+                    regex.append('[');
+                    int start = i + 1;
+                    if (glob.charAt(start) == '!') {
+                        regex.append('^');
+                        start++;
+                    }
+                    for (int j = start; j < end; j++) {
+                        final char member = glob.charAt(j);
+                        if (member == '\\' || member == '[' || member == ']' || member == '&' || (member == '^' && j == start)) regex.append('\\');
+                        regex.append(member);
+                    }
+                    regex.append(']');
+                    i = end;
+                    break;
+                case '{':
+                    if (inGroup) throw new IllegalArgumentException("Nested { in pattern " + glob);
+                    regex.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    if (!inGroup) throw new IllegalArgumentException("Unmatched } in pattern " + glob);
+                    regex.append(')');
+                    inGroup = false;
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                default:
+                    if ("\\.^$+()|".indexOf(c) != -1) regex.append('\\');
+                    regex.append(c);
+            }
+        }
+        if (inGroup) throw new IllegalArgumentException("Unclosed { in pattern " + glob);
+        return regex.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "PathFilter{excludedFiles=" + excludedFiles + ", excludedDirectories=" + excludedDirectories +
+               ", excludes=" + (excludedNames.length + excludedPaths.length) + ", includes=" + (includedNames.length + includedPaths.length) + '}';
+    }
+}
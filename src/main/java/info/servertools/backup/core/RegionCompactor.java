@@ -0,0 +1,276 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+/**
+ * Packs the chunks of region files tightly while they are archived, without touching the world.
+ * <p>
+ * Minecraft never shrinks a region file. A chunk that grows out of its sectors moves to the end of the file and leaves
+ * its old sectors behind, so old regions are often two or three times the size of the chunks they hold. A compacted
+ * copy has the same header with new chunk offsets and the original timestamps, followed by the sectors of every chunk in
+ * the order they had in the file. Every chunk keeps its sector count, so Minecraft reads and writes the copy like any
+ * other region file.
+ * <p>
+ * The layout is worked out from the 8 KB header alone, the copy itself is only ever read through
+ * {@link Layout#read(FileChannel, ByteBuffer, long)} while the file is archived. Damaged regions, with chunks that
+ * overlap or lie past the end of the file, are archived as they are.
+ * <p>
+ * The copy can also leave out chunks, see {@link ChunkTrim}. A chunk that is left out has no offset and no timestamp in
+ * the header of the copy, just like a chunk that was never generated.
+ */
+final class RegionCompactor {
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+
+    private RegionCompactor() {
+    }
+
+    /**
+     * Compact the region files among the entries of an archive
+     *
+     * @param sources   the entries to archive
+     * @param trim      the chunks to leave out
+     * @param sourceDir the directory that is archived
+     * @param backupDir the backup directory, it holds the cache of the chunks to leave out
+     * @param threads   the number of threads reading region files
+     * @param throttle  limits reading chunks to decide which ones are left out
+     *
+     * @return the entries, with the region files that have unused sectors replaced by their compacted copies
+     */
+    static List<ParallelArchiver.Source> compact(List<ParallelArchiver.Source> sources, final ChunkTrim trim, File sourceDir, File backupDir,
+                                                 int threads, final BackupThrottle throttle) throws IOException {
+        final ChunkTrim.Cache cache = trim.isEnabled() ? ChunkTrim.Cache.load(backupDir, trim) : null;
+        final List<Future<ParallelArchiver.Source>> futures = new ArrayList<>(sources.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads),
+                new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-Compactor-%d").setDaemon(true).build());
+        final List<ParallelArchiver.Source> result = new ArrayList<>(sources.size());
+        try {
+            for (final ParallelArchiver.Source source : sources) {
+                if (source.directory || !BackupRepository.isRegionFile(source.file)) {
+                    futures.add(null);
+                    continue;
+                }
+                futures.add(executor.submit(new Callable<ParallelArchiver.Source>() {
+                    @Override
+                    public ParallelArchiver.Source call() throws IOException {
+                        final BitSet keep = cache == null ? null : trim.keep(source, cache, throttle);
+                        final Layout layout = plan(source.file, source.length, keep);
+                        return layout == null ? source : new ParallelArchiver.Source(source.file, source.name, false, layout.length, source.lastModified, layout);
+                    }
+                }));
+            }
+            for (int i = 0; i < sources.size(); i++) {
+                result.add(futures.get(i) == null ? sources.get(i) : futures.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compacting region files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to compact region files", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        if (cache != null) {
+            cache.save(sourceDir);
+        }
+        return result;
+    }
+
+    /**
+     * Work out the compacted copy of a region file
+     *
+     * @param file   the region file
+     * @param length the length of the file
+     * @param keep   the chunks to keep, or {@code null} to keep all of them
+     *
+     * @return the layout of the copy, or {@code null} if the copy wouldn't be smaller or the file is damaged
+     */
+    @Nullable
+    static Layout plan(File file, long length, @Nullable BitSet keep) throws IOException {
+        if (length < HEADER_SIZE) return null;
+        final byte[] header = new byte[HEADER_SIZE];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(header);
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) != -1) {
+                // Keep reading
+            }
+            if (buffer.hasRemaining()) return null;
+        }
+
+        // The chunks by their sector in the file
+        final ByteBuffer locations = ByteBuffer.wrap(header, 0, SECTOR_SIZE);
+        final long[] chunks = new long[SECTOR_SIZE / 4];
+        int count = 0;
+        int trimmed = 0;
+        long trimmedBytes = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            final int location = locations.getInt();
+            final long sector = location >>> 8;
+            final int sectors = location & 0xFF;
+            if (location == 0) continue;
+            // Only the last sector of the file may be cut short
+            if (sector < 2 || sectors == 0 || sector * SECTOR_SIZE >= length || (sector + sectors - 1) * SECTOR_SIZE >= length) return null;
+            if (keep != null && !keep.get(i)) {
+                ByteBuffer.wrap(header).putInt(i * 4, 0).putInt(SECTOR_SIZE + i * 4, 0);
+                trimmed++;
+                trimmedBytes += Math.min(sectors * SECTOR_SIZE, length - sector * SECTOR_SIZE);
+                continue;
+            }
+            chunks[count++] = sector << 20 | (long) sectors << 10 | i;
+        }
+        Arrays.sort(chunks, 0, count);
+
+        final long[] sourceOffsets = new long[count];
+        final long[] targetOffsets = new long[count];
+        final int[] lengths = new int[count];
+        long previousEnd = HEADER_SIZE;
+        long target = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            final long sector = chunks[i] >>> 20;
+            final int sectors = (int) (chunks[i] >>> 10 & 0x3FF);
+            final int index = (int) (chunks[i] & 0x3FF);
+            sourceOffsets[i] = sector * SECTOR_SIZE;
+            if (sourceOffsets[i] < previousEnd) return null; // Overlapping chunks
+            previousEnd = sourceOffsets[i] + sectors * SECTOR_SIZE;
+            targetOffsets[i] = target;
+            lengths[i] = sectors * SECTOR_SIZE;
+            ByteBuffer.wrap(header).putInt(index * 4, (int) (target / SECTOR_SIZE) << 8 | sectors);
+            target += lengths[i];
+        }
+        if (target >= length) return null;
+        return new Layout(header, sourceOffsets, targetOffsets, lengths, target, trimmed, trimmedBytes);
+    }
+
+    /** Where the parts of the compacted copy of a region file come from */
+    static final class Layout {
+        /** The header of the copy, with the new chunk offsets */
+        private final byte[] header;
+        private final long[] sourceOffsets;
+        private final long[] targetOffsets;
+        private final int[] lengths;
+        /** The length of the copy */
+        final long length;
+        /** The number of chunks left out of the copy */
+        final int trimmed;
+        /** The sectors of the chunks left out, in bytes. The rest of what the copy saves was unused */
+        final long trimmedBytes;
+
+        Layout(byte[] header, long[] sourceOffsets, long[] targetOffsets, int[] lengths, long length, int trimmed, long trimmedBytes) {
+            this.header = header;
+            this.sourceOffsets = sourceOffsets;
+            this.targetOffsets = targetOffsets;
+            this.lengths = lengths;
+            this.length = length;
+            this.trimmed = trimmed;
+            this.trimmedBytes = trimmedBytes;
+        }
+
+        /**
+         * Read the copy from a position until the buffer is full or the copy ends. The part of a chunk that is missing
+         * from the region file, at most a bit of its last sector, reads as zeros.
+         *
+         * @param channel  the region file
+         * @param buffer   the buffer to fill
+         * @param position the position in the copy
+         *
+         * @return the number of bytes read
+         */
+        int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            final int start = buffer.position();
+            while (buffer.hasRemaining() && position < length) {
+                if (position < HEADER_SIZE) {
+                    final int n = (int) Math.min(buffer.remaining(), HEADER_SIZE - position);
+                    buffer.put(header, (int) position, n);
+                    position += n;
+                    continue;
+                }
+                int run = Arrays.binarySearch(targetOffsets, position);
+                if (run < 0) run = -run - 2;
+                final long offset = position - targetOffsets[run];
+                final int n = (int) Math.min(buffer.remaining(), lengths[run] - offset);
+                final int limit = buffer.limit();
+                buffer.limit(buffer.position() + n);
+                long from = sourceOffsets[run] + offset;
+                int read;
+                while (buffer.hasRemaining() && (read = channel.read(buffer, from)) != -1) {
+                    from += read;
+                }
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+                buffer.limit(limit);
+                position += n;
+            }
+            return buffer.position() - start;
+        }
+
+        /**
+         * @param file the region file
+         *
+         * @return the copy as a stream
+         */
+        InputStream open(File file) throws IOException {
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            return new InputStream() {
+                private long position = 0;
+
+                @Override
+                public int read() throws IOException {
+                    final byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (position >= length) return -1;
+                    final int n = Layout.this.read(channel, ByteBuffer.wrap(b, off, len), position);
+                    position += n;
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads the tar archives written by {@link TarStreamWriter}, and the usual pax and GNU long name extensions of other
+ * writers. The archive is read as a stream, one entry after the other.
+ */
+class TarArchiveReader implements ArchiveReader {
+
+    private static final int BLOCK = TarStreamWriter.BLOCK;
+    private static final byte TYPE_GNU_LONG_NAME = 'L';
+
+    private final InputStream in;
+    private final byte[] header = new byte[BLOCK];
+
+    @Nullable
+    private String comment;
+    private boolean headerRead = false;
+    @Nullable
+    private Entry pending;
+    @Nullable
+    private EntryStream current;
+
+    /**
+     * @param in the uncompressed tar stream
+     */
+    TarArchiveReader(InputStream in) {
+        this.in = in;
+    }
+
+    @Nullable
+    @Override
+    public String getComment() throws IOException {
+        if (!headerRead) {
+            // The comment is in the global header before the first entry
+            pending = readEntry();
+            headerRead = true;
+        }
+        return comment;
+    }
+
+    @Nullable
+    @Override
+    public Entry nextEntry() throws IOException {
+        if (!headerRead) {
+            headerRead = true;
+            return readEntry();
+        }
+        if (pending != null) {
+            final Entry entry = pending;
+            pending = null;
+            return entry;
+        }
+        return readEntry();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        if (current == null) throw new IllegalStateException("No current entry");
+        return current;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Nullable
+    private Entry readEntry() throws IOException {
+        skipCurrent();
+        final Map<String, String> extended = new HashMap<>();
+        while (true) {
+            if (!readBlock()) return null;
+            if (isZero(header)) return null; // End of archive
+
+            final byte type = header[156];
+            final long size = parseOctal(124, 12);
+            if (type == TarStreamWriter.TYPE_PAX || type == TarStreamWriter.TYPE_PAX_GLOBAL) {
+                final Map<String, String> records = parsePax(readData(size));
+                if (type == TarStreamWriter.TYPE_PAX_GLOBAL) {
+                    if (records.containsKey("comment")) comment = records.get("comment");
+                } else {
+                    extended.putAll(records);
+                }
+                continue;
+            }
+            if (type == TYPE_GNU_LONG_NAME) {
+                String name = new String(readData(size), Charsets.UTF_8);
+                final int end = name.indexOf(0);
+                extended.put("path", end == -1 ? name : name.substring(0, end));
+                continue;
+            }
+
+            String name = extended.containsKey("path") ? extended.get("path") : parseName();
+            final long entrySize = extended.containsKey("size") ? Long.parseLong(extended.get("size")) : size;
+            final boolean directory = type == TarStreamWriter.TYPE_DIRECTORY || name.endsWith("/");
+            if (directory && !name.endsWith("/")) name += "/";
+            current = new EntryStream(in, directory ? 0 : entrySize);
+            if (type != TarStreamWriter.TYPE_FILE && type != 0 && !directory) {
+                // Links, devices and the like are never written by a backup
+                extended.clear();
+                skipCurrent();
+                continue;
+            }
+            return new Entry(name, directory, directory ? 0 : entrySize, parseOctal(136, 12) * 1000);
+        }
+    }
+
+    /** Skip the rest of the current entry and its padding */
+    private void skipCurrent() throws IOException {
+        if (current == null) return;
+        ByteStreams.skipFully(in, current.remaining + padding(current.size));
+        current.remaining = 0;
+        current = null;
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) throw new IOException("Tar header too large: " + size);
+        final byte[] data = new byte[(int) size];
+        ByteStreams.readFully(in, data);
+        ByteStreams.skipFully(in, padding(size));
+        return data;
+    }
+
+    private boolean readBlock() throws IOException {
+        int read = 0;
+        while (read < BLOCK) {
+            final int n = in.read(header, read, BLOCK - read);
+            if (n == -1) {
+                if (read == 0) return false;
+                throw new EOFException("Truncated tar header");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    private String parseName() {
+        int end = 0;
+        while (end < 100 && header[end] != 0) end++;
+        String name = new String(header, 0, end, Charsets.UTF_8);
+        if (header[257] == 'u' && header[345] != 0) { // ustar prefix
+            int prefixEnd = 345;
+            while (prefixEnd < 500 && header[prefixEnd] != 0) prefixEnd++;
+            name = new String(header, 345, prefixEnd - 345, Charsets.UTF_8) + "/" + name;
+        }
+        return name;
+    }
+
+    private long parseOctal(int offset, int length) throws IOException {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (value != 0 || i > offset && header[i - 1] != ' ') break;
+                continue;
+            }
+            if (b < '0' || b > '7') throw new IOException("Corrupt tar header");
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private static Map<String, String> parsePax(byte[] data) throws IOException {
+        final Map<String, String> records = new HashMap<>();
+        int pos = 0;
+        while (pos < data.length) {
+            int space = pos;
+            while (space < data.length && data[space] != ' ') space++;
+            if (space == data.length) break;
+            final int length = Integer.parseInt(new String(data, pos, space - pos, Charsets.US_ASCII));
+            if (length <= 0 || pos + length > data.length) throw new IOException("Corrupt pax header");
+            final String record = new String(data, space + 1, pos + length - space - 2, Charsets.UTF_8);
+            final int equals = record.indexOf('=');
+            if (equals > 0) {
+                records.put(record.substring(0, equals), record.substring(equals + 1));
+            }
+            pos += length;
+        }
+        return records;
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    private static long padding(long size) {
+        return (BLOCK - size % BLOCK) % BLOCK;
+    }
+
+    /** The data of one entry, never reads past its end */
+    private static final class EntryStream extends FilterInputStream {
+        final long size;
+        long remaining;
+
+        EntryStream(InputStream in, long size) {
+            super(in);
+            this.size = size;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            final int b = in.read();
+            if (b == -1) throw new EOFException("Truncated tar entry");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            final int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) throw new EOFException("Truncated tar entry");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // The archive stays open
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes backups as a tar archive in an LZ4 or Zstandard stream. Both compress far faster than deflate, LZ4 at the cost
+ * of size and Zstandard, at higher levels, with a better ratio than deflate.
+ */
+class TarArchiver implements ArchiveCodec {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final ArchiveFormat format;
+    private final int level;
+    private final BackupThrottle throttle;
+
+    /**
+     * @param format   {@link ArchiveFormat#LZ4} or {@link ArchiveFormat#ZSTD}
+     * @param level    the Zstandard level, from 1 to 22, ignored for LZ4
+     * @param throttle slows down reading the files
+     */
+    TarArchiver(ArchiveFormat format, int level, BackupThrottle throttle) {
+        checkArgument(format == ArchiveFormat.LZ4 || format == ArchiveFormat.ZSTD, "Not a tar format: %s", format);
+        checkArgument(format != ArchiveFormat.ZSTD || (level >= 1 && level <= 22), "Invalid Zstandard level: %s", level);
+        this.format = format;
+        this.level = level;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public ArchiveFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public long archive(List<ParallelArchiver.Source> sources, File target, @Nullable String comment, @Nullable BackupJournal journal,
+                        @Nullable BackupFanOut fanOut, @Nullable BackupProgress progress) throws IOException {
+        if (journal != null) {
+            // A compressed stream can't be continued in the middle, so the archive always starts over
+            journal.truncate(0);
+        }
+        final long start = System.currentTimeMillis();
+        long bytes = 0;
+        final CRC32 archiveCrc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(target)) {
+            final CheckedOutputStream checked = new CheckedOutputStream(fanOut == null ? file : fanOut.tee(file, 0), archiveCrc);
+            try (TarStreamWriter tar = new TarStreamWriter(compress(new BufferedOutputStream(checked, 64 * 1024)))) {
+                if (comment != null) {
+                    tar.writeComment(comment);
+                }
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                final ArchiveChecksums checksums = new ArchiveChecksums();
+                final CRC32 crc = new CRC32();
+                for (ParallelArchiver.Source source : sources) {
+                    if (source.directory) {
+                        tar.writeDirectory(source.name, source.lastModified);
+                    } else {
+                        crc.reset();
+                        bytes += writeFile(tar, source, buffer, crc, progress);
+                        checksums.put(source.name, crc.getValue());
+                    }
+                }
+                final byte[] data = checksums.toBytes();
+                tar.putNextEntry(ArchiveChecksums.FILE_NAME, data.length, System.currentTimeMillis());
+                tar.write(data, 0, data.length);
+                tar.closeEntry();
+            }
+        }
+        log.info("Wrote {} of files as {} in {} ms", FileUtil.getSizeS(bytes), format, System.currentTimeMillis() - start);
+        return archiveCrc.getValue();
+    }
+
+    private OutputStream compress(OutputStream out) throws IOException {
+        if (format == ArchiveFormat.LZ4) {
+            return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB);
+        }
+        return new ZstdOutputStream(out, level);
+    }
+
+    /** Write exactly the size the file had when the backup started, a tar entry can't change its size afterwards */
+    private long writeFile(TarStreamWriter tar, ParallelArchiver.Source source, byte[] buffer, CRC32 crc, @Nullable BackupProgress progress) throws IOException {
+        tar.putNextEntry(source.name, source.length, source.lastModified);
+        long remaining = source.length;
+        try (InputStream in = source.layout != null ? source.layout.open(source.file) : new FileInputStream(source.file)) {
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                throttle.acquire(read);
+                tar.write(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                remaining -= read;
+                if (progress != null) {
+                    progress.advance(read, 0);
+                }
+            }
+        }
+        final long missing = remaining;
+        if (remaining > 0) {
+            log.warn("{} got shorter while it was archived", source.name);
+            Arrays.fill(buffer, (byte) 0);
+            while (remaining > 0) {
+                final int n = (int) Math.min(buffer.length, remaining);
+                tar.write(buffer, 0, n);
+                crc.update(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+        tar.closeEntry();
+        if (progress != null) {
+            progress.advance(missing, 1);
+        }
+        return source.length;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.Charsets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A minimal POSIX tar writer.
+ * <p>
+ * Names that don't fit the 100 bytes of a ustar header or aren't plain ASCII, and files of 8 GB and more, get a pax
+ * extended header. The archive comment is stored as the {@code comment} keyword of a pax global header at the very start
+ * of the archive, so it can be read without going through the rest.
+ */
+class TarStreamWriter implements Closeable {
+
+    static final int BLOCK = 512;
+
+    static final byte TYPE_FILE = '0';
+    static final byte TYPE_DIRECTORY = '5';
+    static final byte TYPE_PAX = 'x';
+    static final byte TYPE_PAX_GLOBAL = 'g';
+
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final int NAME_LENGTH = 100;
+
+    private final OutputStream out;
+    private final byte[] header = new byte[BLOCK];
+
+    private long remaining = 0;
+    private long written = 0;
+    private boolean started = false;
+    private boolean closed = false;
+
+    TarStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Write the archive comment, which has to come before any entry
+     *
+     * @param comment the comment
+     */
+    void writeComment(String comment) throws IOException {
+        checkState(!started, "The comment has to be written first");
+        writePax(TYPE_PAX_GLOBAL, "pax_global_header", "comment", comment);
+    }
+
+    /**
+     * Write a directory entry
+     *
+     * @param name the entry name, ending with a {@code /}
+     * @param time the modification time of the directory
+     */
+    void writeDirectory(String name, long time) throws IOException {
+        writeHeader(name, TYPE_DIRECTORY, 0, time);
+    }
+
+    /**
+     * Start a file entry, its data has to be written with {@link #write(byte[], int, int)} next
+     *
+     * @param name the entry name
+     * @param size the exact number of bytes that will be written
+     * @param time the modification time of the file
+     */
+    void putNextEntry(String name, long size, long time) throws IOException {
+        writeHeader(name, TYPE_FILE, size, time);
+        remaining = size;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        checkState(len <= remaining, "Writing more than the size of the entry");
+        out.write(b, off, len);
+        remaining -= len;
+        written += len;
+    }
+
+    /** Finish the current entry */
+    void closeEntry() throws IOException {
+        checkState(remaining == 0, "Entry is missing %s bytes", remaining);
+        pad();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            Arrays.fill(header, (byte) 0);
+            out.write(header);
+            out.write(header);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeHeader(String name, byte type, long size, long time) throws IOException {
+        checkState(remaining == 0, "The previous entry wasn't finished");
+        started = true;
+        final byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+        final boolean longName = nameBytes.length > NAME_LENGTH || nameBytes.length != name.length();
+        if (longName || size > MAX_OCTAL_SIZE) {
+            final StringBuilder records = new StringBuilder();
+            if (longName) records.append(record("path", name));
+            if (size > MAX_OCTAL_SIZE) records.append(record("size", Long.toString(size)));
+            writeRaw(TYPE_PAX, "PaxHeader", records.toString().getBytes(Charsets.UTF_8));
+        }
+
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, NAME_LENGTH));
+        octal(type == TYPE_DIRECTORY ? 0755 : 0644, 100, 8);
+        octal(0, 108, 8);
+        octal(0, 116, 8);
+        octal(Math.min(size, MAX_OCTAL_SIZE), 124, 12);
+        octal(Math.max(0, time / 1000), 136, 12);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(Charsets.US_ASCII), 0, header, 257, 8);
+        checksum();
+        out.write(header);
+        written += BLOCK;
+    }
+
+    private void writePax(byte type, String name, String key, String value) throws IOException {
+        started = true;
+        writeRaw(type, name, record(key, value).getBytes(Charsets.UTF_8));
+    }
+
+    /** Write a header with the data that goes with it, used for the pax headers */
+    private void writeRaw(byte type, String name, byte[] data) throws IOException {
+        Arrays.fill(header, (byte) 0);
+        final byte[] nameBytes = name.getBytes(Charsets.US_ASCII);
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        octal(0644, 100, 8);
+        octal(0, 108, 8);
+        octal(0, 116, 8);
+        octal(data.length, 124, 12);
+        octal(0, 136, 12);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(Charsets.US_ASCII), 0, header, 257, 8);
+        checksum();
+        out.write(header);
+        out.write(data);
+        written += BLOCK + data.length;
+        pad();
+    }
+
+    /** Fill up the last block of an entry with zeros */
+    private void pad() throws IOException {
+        final int padding = (int) ((BLOCK - written % BLOCK) % BLOCK);
+        if (padding > 0) {
+            out.write(new byte[padding]);
+            written += padding;
+        }
+    }
+
+    /** @return a pax record, which starts with its own length in bytes */
+    private static String record(String key, String value) {
+        final int length = key.getBytes(Charsets.UTF_8).length + value.getBytes(Charsets.UTF_8).length + 3; // space, '=' and newline
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() != Integer.toString(length).length()) {
+            total = length + Integer.toString(total).length();
+        }
+        return total + " " + key + "=" + value + "\n";
+    }
+
+    private void octal(long value, int offset, int length) {
+        final String digits = Long.toOctalString(value);
+        final int start = offset + length - 1 - digits.length();
+        Arrays.fill(header, offset, start, (byte) '0');
+        for (int i = 0; i < digits.length(); i++) {
+            header[start + i] = (byte) digits.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    private void checksum() {
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xFF;
+        }
+        final String digits = Long.toOctalString(sum);
+        Arrays.fill(header, 148, 154 - digits.length(), (byte) '0');
+        for (int i = 0; i < digits.length(); i++) {
+            header[154 - digits.length() + i] = (byte) digits.charAt(i);
+        }
+        header[154] = 0;
+        header[155] = ' ';
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+
+/**
+ * A point-in-time copy of a world directory, so world saving only has to be disabled while the copy is taken and not
+ * while it is being compressed.
+ * <p>
+ * Where the filesystem supports it the whole tree is cloned copy-on-write. Otherwise files that Minecraft replaces
+ * through a rename when it saves them are hard linked, and everything else, most importantly the region files that
+ * are rewritten in place, is copied.
+ */
+public class WorldSnapshot {
+
+    private static final Logger log = LogManager.getLogger();
+
+    public enum Mode {
+        /** Don't take a snapshot, compress straight from the world */
+        NONE,
+        /** Clone, link or copy, whatever is fastest on the filesystem */
+        AUTO,
+        /** Always make a plain copy */
+        COPY;
+
+        public static Mode parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                log.warn("Unknown snapshot mode '{}', using {}", name, NONE);
+                return NONE;
+            }
+        }
+    }
+
+    private final File directory;
+    private final String method;
+
+    private WorldSnapshot(File directory, String method) {
+        this.directory = directory;
+        this.method = method;
+    }
+
+    /**
+     * Take a snapshot of a directory
+     *
+     * @param source the directory to take a snapshot of
+     * @param target where the snapshot is created, anything already there is deleted
+     * @param mode   how the snapshot should be taken, not {@link Mode#NONE}
+     * @param filter the files and directories that are part of the snapshot
+     *
+     * @return the snapshot
+     */
+    static WorldSnapshot create(File source, File target, Mode mode, PathFilter filter) throws IOException {
+        if (mode == Mode.NONE) throw new IllegalArgumentException("Can't create a snapshot with mode " + mode);
+        if (target.exists()) {
+            log.warn("Deleting stale backup snapshot {}", target);
+            FileUtils.deleteDirectory(target);
+        }
+
+        if (mode == Mode.AUTO && cloneTree(source, target)) {
+            return new WorldSnapshot(target, "copy-on-write clone");
+        }
+
+        final SnapshotVisitor visitor = new SnapshotVisitor(source.toPath(), target.toPath(), mode == Mode.AUTO, filter);
+        Files.walkFileTree(source.toPath(), visitor);
+        return new WorldSnapshot(target, visitor.linked + " links, " + visitor.copied + " copies");
+    }
+
+    /** @return the directory holding the snapshot */
+    File getDirectory() {
+        return directory;
+    }
+
+    /** @return a description of how the snapshot was taken */
+    String getMethod() {
+        return method;
+    }
+
+    /** Remove the snapshot from disk */
+    void delete() {
+        try {
+            FileUtils.deleteDirectory(directory);
+        } catch (IOException e) {
+            log.warn("Failed to delete backup snapshot " + directory, e);
+        }
+    }
+
+    /**
+     * Clone a directory with reflinks, which only works on Linux filesystems like btrfs and XFS
+     *
+     * @return {@code true} if the clone succeeded
+     */
+    private static boolean cloneTree(File source, File target) {
+        if (!System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).contains("linux")) return false;
+        try {
+            final Process process = new ProcessBuilder("cp", "-R", "--reflink=always", "--preserve=timestamps",
+                    source.getAbsolutePath(), target.getAbsolutePath()).redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            process.getInputStream().close();
+            if (process.waitFor() == 0) {
+                return true;
+            }
+            log.debug("Filesystem doesn't support reflinks, falling back to links and copies");
+        } catch (IOException e) {
+            log.debug("Failed to clone world directory", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        FileUtils.deleteQuietly(target);
+        return false;
+    }
+
+    /**
+     * Minecraft writes these to a temporary file and renames it over the old one, so a hard link keeps the old
+     * contents when the world is saved again
+     */
+    private static boolean isReplacedOnSave(Path file) {
+        final String name = file.getFileName().toString();
+        if (name.equals("level.dat") || name.equals("level.dat_old")) return true;
+        final Path parent = file.getParent();
+        return parent != null && name.endsWith(".dat") && parent.getFileName().toString().equals("playerdata");
+    }
+
+    private static final class SnapshotVisitor extends SimpleFileVisitor<Path> {
+        private final Path source;
+        private final Path target;
+        private final PathFilter filter;
+
+        private boolean link;
+        int linked = 0;
+        int copied = 0;
+
+        SnapshotVisitor(Path source, Path target, boolean link, PathFilter filter) {
+            this.source = source;
+            this.target = target;
+            this.link = link;
+            this.filter = filter;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            if (!dir.equals(source) && !filter.acceptDirectory(FileWalker.relativeName(source, dir))) {
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            Files.createDirectories(target.resolve(source.relativize(dir)));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            if (!filter.acceptFile(FileWalker.relativeName(source, file))) {
+                return FileVisitResult.CONTINUE;
+            }
+            final Path copy = target.resolve(source.relativize(file));
+            if (link && isReplacedOnSave(file)) {
+                try {
+                    Files.createLink(copy, file);
+                    linked++;
+                    return FileVisitResult.CONTINUE;
+                } catch (IOException | UnsupportedOperationException e) {
+                    log.debug("Hard links are not supported for {}, copying instead", target);
+                    link = false;
+                }
+            }
+            Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES);
+            copied++;
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
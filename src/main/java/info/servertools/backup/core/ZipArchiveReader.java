@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads ZIP backups. The comment is read from the end of the file without reading the central directory, so getting
+ * the metadata of a backup stays cheap no matter how many entries it has.
+ */
+class ZipArchiveReader implements ArchiveReader {
+
+    private static final int ENDSIG = 0x06054b50;
+    private static final int END_HEADER_SIZE = 22;
+
+    private final File archive;
+    @Nullable
+    private ZipFile zip;
+    @Nullable
+    private Enumeration<? extends ZipEntry> entries;
+    @Nullable
+    private ZipEntry current;
+
+    ZipArchiveReader(File archive) {
+        this.archive = archive;
+    }
+
+    @Nullable
+    @Override
+    public String getComment() throws IOException {
+        return readComment(archive);
+    }
+
+    @Nullable
+    @Override
+    public Entry nextEntry() throws IOException {
+        if (zip == null) {
+            zip = new ZipFile(archive);
+            entries = zip.entries();
+        }
+        if (entries == null || !entries.hasMoreElements()) {
+            current = null;
+            return null;
+        }
+        current = entries.nextElement();
+        return new Entry(current.getName(), current.isDirectory(), current.getSize(), current.getTime());
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (zip == null || current == null) throw new IllegalStateException("No current entry");
+        return zip.getInputStream(current);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (zip != null) {
+            zip.close();
+        }
+    }
+
+    /**
+     * Read the comment of a ZIP file from the end of central directory record, without reading the rest of the file
+     *
+     * @return the comment, or {@code null} if the file has none or is not a ZIP file
+     */
+    @Nullable
+    static String readComment(File archive) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+            final long length = raf.length();
+            final int tail = (int) Math.min(length, END_HEADER_SIZE + 0xFFFF);
+            final byte[] buffer = new byte[tail];
+            raf.seek(length - tail);
+            raf.readFully(buffer);
+            for (int pos = tail - END_HEADER_SIZE; pos >= 0; pos--) {
+                if (readInt(buffer, pos) == ENDSIG) {
+                    final int commentLength = (buffer[pos + 20] & 0xFF) | (buffer[pos + 21] & 0xFF) << 8;
+                    if (pos + END_HEADER_SIZE + commentLength == tail) {
+                        return commentLength == 0 ? null : new String(buffer, pos + END_HEADER_SIZE, commentLength, Charsets.UTF_8);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8 | (b[pos + 2] & 0xFF) << 16 | (b[pos + 3] & 0xFF) << 24;
+    }
+}
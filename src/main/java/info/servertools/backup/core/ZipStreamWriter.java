@@ -0,0 +1,435 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.Charsets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * A minimal ZIP writer that accepts entry data which has already been compressed.
+ * <p>
+ * {@link java.util.zip.ZipOutputStream} always deflates the data it is given itself, which makes it impossible to
+ * compress entries on other threads. This writer only lays out the headers and the central directory, and switches to
+ * the ZIP64 extensions when an archive grows past the 4 GB limits of the classic format.
+ */
+class ZipStreamWriter implements Closeable {
+
+    private static final long LIMIT_32 = 0xFFFFFFFFL;
+    private static final int LIMIT_16 = 0xFFFF;
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int EXTSIG = 0x08074b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int FLAG_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+
+    private final CountingStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private final byte[] scratch = new byte[8];
+
+    private Entry current = null;
+    private byte[] comment = new byte[0];
+    private boolean closed = false;
+
+    ZipStreamWriter(OutputStream out) {
+        this.out = new CountingStream(out);
+    }
+
+    /**
+     * Continue an archive that was interrupted
+     *
+     * @param out     writes after the last entry in the archive
+     * @param offset  where the last entry ends
+     * @param records the entries in the archive
+     */
+    ZipStreamWriter(OutputStream out, long offset, List<BackupJournal.Record> records) {
+        this.out = new CountingStream(out);
+        this.out.count = offset;
+        for (BackupJournal.Record record : records) {
+            entries.add(new Entry(record));
+        }
+    }
+
+    /**
+     * Set the archive comment, which is written at the very end of the file
+     *
+     * @param comment the comment
+     */
+    void setComment(String comment) {
+        byte[] bytes = comment.getBytes(Charsets.UTF_8);
+        if (bytes.length > LIMIT_16) {
+            throw new IllegalArgumentException("ZIP comment is too long: " + bytes.length + " bytes");
+        }
+        this.comment = bytes;
+    }
+
+    /**
+     * Write an empty directory entry
+     *
+     * @param name the entry name, ending with a {@code /}
+     * @param time the modification time of the directory
+     */
+    void writeDirectory(String name, long time) throws IOException {
+        writeEntry(name, time, ZipEntry.STORED, 0, 0, 0, new byte[0], 0, 0);
+    }
+
+    /**
+     * Write a complete entry whose checksum and sizes are already known
+     *
+     * @param name   the entry name
+     * @param time   the modification time of the entry
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param crc    the CRC-32 of the uncompressed data
+     * @param size   the uncompressed size
+     * @param csize  the size of {@code data}
+     * @param data   the entry data, compressed according to {@code method}
+     */
+    void writeEntry(String name, long time, int method, long crc, long size, long csize, byte[] data, int off, int len) throws IOException {
+        checkState(current == null, "An entry is still open");
+        Entry entry = new Entry(name, time, method, false);
+        entry.crc = crc;
+        entry.size = size;
+        entry.csize = csize;
+        entry.zip64 = size >= LIMIT_32 || csize >= LIMIT_32;
+        writeLocalHeader(entry);
+        out.write(data, off, len);
+        entries.add(entry);
+    }
+
+    /**
+     * Start an entry whose checksum and sizes will only be known once all of its data has been written.
+     * They are written into a data descriptor by {@link #closeEntry(long, long)}.
+     *
+     * @param name      the entry name
+     * @param time      the modification time of the entry
+     * @param method    {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param sizeHint  the expected uncompressed size, used to decide if ZIP64 sizes are required
+     */
+    void putNextEntry(String name, long time, int method, long sizeHint) throws IOException {
+        checkState(current == null, "An entry is still open");
+        Entry entry = new Entry(name, time, method, true);
+        entry.zip64 = sizeHint >= LIMIT_32;
+        writeLocalHeader(entry);
+        current = entry;
+    }
+
+    /** Write data to the entry opened with {@link #putNextEntry(String, long, int, long)} */
+    void write(byte[] data, int off, int len) throws IOException {
+        checkState(current != null, "No entry is open");
+        out.write(data, off, len);
+        current.csize += len;
+    }
+
+    /**
+     * Finish the entry opened with {@link #putNextEntry(String, long, int, long)}
+     *
+     * @param crc  the CRC-32 of the uncompressed data
+     * @param size the uncompressed size
+     */
+    void closeEntry(long crc, long size) throws IOException {
+        checkState(current != null, "No entry is open");
+        Entry entry = current;
+        current = null;
+        entry.crc = crc;
+        entry.size = size;
+        if (!entry.zip64 && (size >= LIMIT_32 || entry.csize >= LIMIT_32)) {
+            throw new IOException("Entry " + entry.name + " is larger than its local header allows");
+        }
+        writeInt(EXTSIG);
+        writeInt(crc);
+        if (entry.zip64) {
+            writeLong(entry.csize);
+            writeLong(size);
+        } else {
+            writeInt(entry.csize);
+            writeInt(size);
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * @param source the file the entry written last was made from
+     *
+     * @return the journal record of that entry
+     */
+    BackupJournal.Record record(ParallelArchiver.Source source) {
+        checkState(current == null && !entries.isEmpty(), "No entry is finished");
+        final Entry entry = entries.get(entries.size() - 1);
+        final BackupJournal.Record record = new BackupJournal.Record();
+        record.name = source.name;
+        record.directory = source.directory;
+        record.length = source.length;
+        record.lastModified = source.lastModified;
+        record.dosTime = entry.dosTime;
+        record.method = entry.method;
+        record.descriptor = entry.descriptor;
+        record.zip64 = entry.zip64;
+        record.crc = entry.crc;
+        record.size = entry.size;
+        record.csize = entry.csize;
+        record.offset = entry.offset;
+        record.end = out.count;
+        return record;
+    }
+
+    /** Push everything written so far to the underlying stream */
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /** @return the number of bytes written to the underlying stream so far */
+    long getBytesWritten() {
+        return out.count;
+    }
+
+    /** Write the central directory and close the underlying stream */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            checkState(current == null, "An entry is still open");
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void finish() throws IOException {
+        long cenStart = out.count;
+        for (Entry entry : entries) {
+            writeCentralHeader(entry);
+        }
+        long cenSize = out.count - cenStart;
+        int count = entries.size();
+
+        boolean zip64 = count >= LIMIT_16 || cenStart >= LIMIT_32 || cenSize >= LIMIT_32;
+        if (zip64) {
+            long zip64EndStart = out.count;
+            writeInt(ZIP64_ENDSIG);
+            writeLong(44);          // size of the remaining record
+            writeShort(45);         // version made by
+            writeShort(45);         // version needed to extract
+            writeInt(0);            // number of this disk
+            writeInt(0);            // disk with the central directory
+            writeLong(count);
+            writeLong(count);
+            writeLong(cenSize);
+            writeLong(cenStart);
+
+            writeInt(ZIP64_LOCSIG);
+            writeInt(0);
+            writeLong(zip64EndStart);
+            writeInt(1);            // total number of disks
+        }
+
+        writeInt(ENDSIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, LIMIT_16));
+        writeShort(Math.min(count, LIMIT_16));
+        writeInt(Math.min(cenSize, LIMIT_32));
+        writeInt(Math.min(cenStart, LIMIT_32));
+        writeShort(comment.length);
+        out.write(comment, 0, comment.length);
+        out.flush();
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        entry.offset = out.count;
+        writeInt(LOCSIG);
+        writeShort(entry.zip64 ? 45 : 20);
+        writeShort(entry.flags());
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        if (entry.descriptor) {
+            writeInt(0);
+            writeInt(entry.zip64 ? LIMIT_32 : 0);
+            writeInt(entry.zip64 ? LIMIT_32 : 0);
+        } else {
+            writeInt(entry.crc);
+            writeInt(entry.zip64 ? LIMIT_32 : entry.csize);
+            writeInt(entry.zip64 ? LIMIT_32 : entry.size);
+        }
+        writeShort(entry.name.length);
+        writeShort(entry.zip64 ? 20 : 0);
+        out.write(entry.name, 0, entry.name.length);
+        if (entry.zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(entry.descriptor ? 0 : entry.size);
+            writeLong(entry.descriptor ? 0 : entry.csize);
+        }
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+        boolean bigSize = entry.size >= LIMIT_32;
+        boolean bigCsize = entry.csize >= LIMIT_32;
+        boolean bigOffset = entry.offset >= LIMIT_32;
+        int extraLength = (bigSize ? 8 : 0) + (bigCsize ? 8 : 0) + (bigOffset ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+
+        writeInt(CENSIG);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(zip64 || entry.zip64 ? 45 : 20);
+        writeShort(entry.flags());
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(bigCsize ? LIMIT_32 : entry.csize);
+        writeInt(bigSize ? LIMIT_32 : entry.size);
+        writeShort(entry.name.length);
+        writeShort(zip64 ? extraLength + 4 : 0);
+        writeShort(0);              // comment length
+        writeShort(0);              // disk number start
+        writeShort(0);              // internal attributes
+        writeInt(0);                // external attributes
+        writeInt(bigOffset ? LIMIT_32 : entry.offset);
+        out.write(entry.name, 0, entry.name.length);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(extraLength);
+            if (bigSize) writeLong(entry.size);
+            if (bigCsize) writeLong(entry.csize);
+            if (bigOffset) writeLong(entry.offset);
+        }
+    }
+
+    private void writeShort(int v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        out.write(scratch, 0, 2);
+    }
+
+    private void writeInt(long v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        scratch[2] = (byte) (v >>> 16);
+        scratch[3] = (byte) (v >>> 24);
+        out.write(scratch, 0, 4);
+    }
+
+    private void writeLong(long v) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (v >>> (i * 8));
+        }
+        out.write(scratch, 0, 8);
+    }
+
+    /**
+     * Convert a java timestamp into the MS-DOS date and time format used by ZIP files
+     *
+     * @param time the time in milliseconds
+     *
+     * @return the DOS time
+     */
+    static long toDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+               | (cal.get(Calendar.MONTH) + 1) << 21
+               | cal.get(Calendar.DAY_OF_MONTH) << 16
+               | cal.get(Calendar.HOUR_OF_DAY) << 11
+               | cal.get(Calendar.MINUTE) << 5
+               | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    private static final class Entry {
+        final byte[] name;
+        final long dosTime;
+        final int method;
+        final boolean descriptor;
+
+        boolean zip64;
+        long crc;
+        long size;
+        long csize;
+        long offset;
+
+        Entry(String name, long time, int method, boolean descriptor) {
+            this.name = name.getBytes(Charsets.UTF_8);
+            this.dosTime = toDosTime(time);
+            this.method = method;
+            this.descriptor = descriptor;
+        }
+
+        Entry(BackupJournal.Record record) {
+            this.name = record.name.getBytes(Charsets.UTF_8);
+            this.dosTime = record.dosTime;
+            this.method = record.method;
+            this.descriptor = record.descriptor;
+            this.zip64 = record.zip64;
+            this.crc = record.crc;
+            this.size = record.size;
+            this.csize = record.csize;
+            this.offset = record.offset;
+        }
+
+        int flags() {
+            return FLAG_UTF8 | (descriptor ? FLAG_DESCRIPTOR : 0);
+        }
+    }
+
+    private static final class CountingStream extends OutputStream {
+        private final OutputStream out;
+        long count = 0;
+
+        CountingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
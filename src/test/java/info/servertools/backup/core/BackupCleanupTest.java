@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+public class BackupCleanupTest {
+
+    private static final long DAY = 86400000L;
+    private static final long NOW = 100 * DAY;
+    private static final long MB = FileUtils.ONE_MB;
+
+    private final TreeSet<BackupCleanup.BackupMetadata> backups = new TreeSet<>();
+
+    @Test
+    public void testCountKeepsParentsOfIncrementalBackups() {
+        backup("a", 1, false);
+        backup("b", 2, false, "a");
+        backup("c", 3, false);
+        backup("d", 4, false, "c");
+        backup("e", 5, false, "c", "d");
+        final BackupOptions options = new BackupOptions();
+        options.maxNumberBackups = 3;
+
+        // e needs c and d, that fills the limit
+        Map<BackupCleanup.BackupMetadata, String> doomed = BackupCleanup.selectForRemoval(backups, options, -1, NOW);
+        assertEquals(Arrays.asList("a", "b"), names(doomed));
+        assertEquals(Arrays.asList("Number Backups", "Number Backups"), new ArrayList<>(doomed.values()));
+
+        options.maxNumberBackups = 2;
+        // e and its parents go over the limit, they are kept anyway and only the older backups are removed
+        assertEquals(Arrays.asList("a", "b"), removed(options));
+        options.maxNumberBackups = 1;
+        assertEquals(Arrays.asList("a", "b"), removed(options));
+    }
+
+    @Test
+    public void testCountNeverEmptiesAChainOfIncrementalBackups() {
+        // Two chains of a full backup and nine incremental backups, as with the default fullBackupEvery
+        for (int chain = 0; chain < 2; chain++) {
+            final List<String> parents = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                final String name = "chain" + chain + "-" + i;
+                backup(name, chain * 10 + i + 1, false, parents.toArray(new String[parents.size()]));
+                parents.add(name);
+            }
+        }
+        final BackupOptions options = new BackupOptions();
+        options.maxNumberBackups = 3;
+
+        final List<String> removed = removed(options);
+        assertEquals(10, removed.size());
+        for (String name : removed) {
+            assertTrue(name, name.startsWith("chain0-"));
+        }
+    }
+
+    @Test
+    public void testAgeKeepsParentsOfYoungBackups() {
+        backup("a", 80, false);
+        backup("b", 85, false, "a");
+        backup("c", 98, false, "a", "b");
+        final BackupOptions options = new BackupOptions();
+        options.lifespanDays = 5;
+
+        // a and b are too old, but c can't be restored without them
+        assertEquals(new ArrayList<String>(), removed(options));
+        options.lifespanDays = 1;
+        // c is the newest backup, it is kept with its parents however old they are
+        assertEquals(new ArrayList<String>(), removed(options));
+        backup("d", 99, false);
+        assertEquals(Arrays.asList("a", "b", "c"), removed(options));
+    }
+
+    @Test
+    public void testSizeCountsParents() {
+        backup("a", 1, false);
+        backup("b", 2, false, "a");
+        backup("c", 3, false);
+        final BackupOptions options = new BackupOptions();
+        options.maxFolderSize = 2; // Every backup takes 1 MB
+
+        final Map<BackupCleanup.BackupMetadata, String> doomed = BackupCleanup.selectForRemoval(backups, options, 3 * MB, NOW);
+        assertEquals(Arrays.asList("a", "b"), names(doomed));
+        assertEquals("Backups Size", doomed.values().iterator().next());
+    }
+
+    @Test
+    public void testCorruptBackupsGoOnceANewerOneIsKept() {
+        backup("a", 1, false);
+        backup("b", 2, true, "a");
+        backup("c", 3, false, "a");
+        backup("d", 4, true);
+        final BackupOptions options = new BackupOptions();
+
+        // The corrupt d is the newest, nothing newer replaces it yet. b is older than the good c.
+        assertEquals(Arrays.asList("b"), removed(options));
+    }
+
+    private void backup(String name, long day, boolean corrupt, String... dependencies) {
+        final Backup.DataFile data = new Backup.DataFile();
+        data.timestamp = day * DAY;
+        data.kind = dependencies.length == 0 ? Backup.DataFile.KIND_FULL : Backup.DataFile.KIND_INCREMENTAL;
+        data.chainLength = dependencies.length;
+        data.dependencies = Arrays.asList(dependencies);
+        backups.add(new BackupCleanup.BackupMetadata(new File(name), data, MB, corrupt));
+    }
+
+    private List<String> removed(BackupOptions options) {
+        return names(BackupCleanup.selectForRemoval(backups, options, -1, NOW));
+    }
+
+    private static List<String> names(Map<BackupCleanup.BackupMetadata, String> doomed) {
+        final List<String> names = new ArrayList<>();
+        for (BackupCleanup.BackupMetadata meta : doomed.keySet()) {
+            names.add(meta.backupFile.getName());
+        }
+        return names;
+    }
+}
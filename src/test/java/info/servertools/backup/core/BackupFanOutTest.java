@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class BackupFanOutTest {
+
+    private static final String PATH = "world/backup.zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeObjectStore store;
+    private File archive;
+    private File copies;
+    private List<BackupSink> sinks;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new FakeObjectStore();
+        archive = new File(folder.getRoot(), "backup.partial");
+        copies = folder.newFolder("copies");
+        sinks = Arrays.asList(new ObjectStoreSink(store.getUrl("bucket"), "us-east-1", "key", "secret", ObjectStoreSink.MIN_PART_SIZE),
+                              new LocalDirectorySink(copies));
+    }
+
+    @After
+    public void stopStore() {
+        store.close();
+    }
+
+    @Test
+    public void testSinksGetTheArchive() throws IOException {
+        final byte[] data = random(3 * ObjectStoreSink.MIN_PART_SIZE);
+        // A small buffer makes the sinks fall behind and read the rest back from the file
+        final BackupFanOut fanOut = new BackupFanOut(sinks, archive, PATH, 256 * 1024);
+        try (OutputStream out = fanOut.tee(new FileOutputStream(archive), 0)) {
+            write(out, data, 0, data.length);
+        }
+        final List<BackupSink.Report> reports = fanOut.finish();
+
+        assertEquals(2, reports.size());
+        for (BackupSink.Report report : reports) {
+            assertNull(report.error, report.error);
+            assertEquals(data.length, report.bytes);
+        }
+        assertArrayEquals(data, store.getObject("bucket/" + PATH));
+        assertArrayEquals(data, Files.toByteArray(new File(copies, PATH)));
+    }
+
+    @Test
+    public void testContinuedArchiveIsReadBack() throws IOException {
+        final byte[] data = random(ObjectStoreSink.MIN_PART_SIZE + 54321);
+        final int offset = 3 * 1024 * 1024;
+        Files.write(Arrays.copyOf(data, offset), archive);
+        final BackupFanOut fanOut = new BackupFanOut(sinks, archive, PATH, 64 * 1024 * 1024);
+        try (OutputStream out = fanOut.tee(new FileOutputStream(archive, true), offset)) {
+            write(out, data, offset, data.length - offset);
+        }
+        final List<BackupSink.Report> reports = fanOut.finish();
+
+        for (BackupSink.Report report : reports) {
+            assertNull(report.error, report.error);
+            assertTrue(report.bytesReadBack >= offset);
+        }
+        assertArrayEquals(data, store.getObject("bucket/" + PATH));
+        assertArrayEquals(data, Files.toByteArray(new File(copies, PATH)));
+    }
+
+    @Test
+    public void testAbortLeavesNoCopies() throws IOException {
+        final byte[] data = random(ObjectStoreSink.MIN_PART_SIZE + 1);
+        final BackupFanOut fanOut = new BackupFanOut(sinks, archive, PATH, 64 * 1024 * 1024);
+        try (OutputStream out = fanOut.tee(new FileOutputStream(archive), 0)) {
+            write(out, data, 0, data.length);
+        }
+        fanOut.abort();
+
+        assertEquals(0, store.getObjectCount());
+        assertEquals(0, store.getOpenUploads());
+        for (FakeObjectStore.Request delete : store.getRequests("DELETE")) {
+            assertEquals("uploadId=upload-1", delete.query);
+        }
+        assertFalse(new File(copies, PATH).exists());
+        assertFalse(new File(copies, PATH + LocalDirectorySink.PARTIAL_SUFFIX).exists());
+    }
+
+    private static void write(OutputStream out, byte[] data, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i += 65536) {
+            out.write(data, i, Math.min(65536, offset + length - i));
+        }
+    }
+
+    private static byte[] random(int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+public class BackupHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHistoryIsStoredInTheBackupDirectory() {
+        final File backupDir = folder.getRoot();
+        final BackupHistory history = BackupHistory.load(backupDir, 2);
+        history.add(metrics("a.zip", true, 1000));
+        history.add(metrics("b.zip", false, 2000));
+        history.add(metrics("c.zip", true, 3000));
+
+        final List<BackupMetrics> runs = BackupHistory.load(backupDir, 2).getRuns();
+        assertEquals(2, runs.size());
+        assertEquals("b.zip", runs.get(0).getName());
+        assertFalse(runs.get(0).isSucceeded());
+        final BackupMetrics last = runs.get(1);
+        assertEquals("c.zip", last.getName());
+        assertTrue(last.isSucceeded());
+        assertTrue(last.isFinished());
+        assertEquals(3000, last.getBytesRead());
+        assertEquals(1500, last.getBytesWritten());
+        assertEquals(500, last.getBytesResumed());
+        assertEquals(3, last.getFiles());
+        assertEquals(3000, last.getPhaseMillis(BackupMetrics.Phase.COMPRESSION));
+        assertEquals(30, last.getPhaseMillis(BackupMetrics.Phase.CATALOG));
+        assertEquals(0, last.getPhaseMillis(BackupMetrics.Phase.UPLOAD));
+    }
+
+    @Test
+    public void testBackupsOfAnotherProcessArePickedUp() {
+        final File backupDir = folder.getRoot();
+        final BackupHistory server = BackupHistory.load(backupDir, 10);
+        server.add(metrics("a.zip", true, 1000));
+        // The command line tool takes a backup while the server runs
+        BackupHistory.load(backupDir, 10).add(metrics("b.zip", true, 2000));
+        server.add(metrics("c.zip", true, 3000));
+
+        final List<BackupMetrics> runs = BackupHistory.load(backupDir, 10).getRuns();
+        assertEquals(3, runs.size());
+        assertEquals("b.zip", runs.get(1).getName());
+        assertEquals(2, server.getCount());
+    }
+
+    private static BackupMetrics metrics(String name, boolean succeeded, long bytes) {
+        final BackupMetrics metrics = new BackupMetrics();
+        metrics.add(BackupMetrics.Phase.COMPRESSION, bytes);
+        metrics.add(BackupMetrics.Phase.CATALOG, bytes / 100);
+        metrics.setData(name, (int) (bytes / 1000), bytes, bytes / 2, bytes / 6);
+        metrics.finish(succeeded);
+        return metrics;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class BackupJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSecondBackupFailsWhileDirectoryIsLocked() throws IOException {
+        final File backupDir = folder.getRoot();
+        try (BackupJournal journal = BackupJournal.open(backupDir)) {
+            assertTrue(journal.getRecords().isEmpty());
+            try {
+                BackupJournal.open(backupDir).close();
+                fail("Opened the journal twice");
+            } catch (IOException expected) {
+                // The directory is locked by the first journal
+            }
+        }
+        try (BackupJournal journal = BackupJournal.open(backupDir)) {
+            // Closing the first journal released the lock, the file itself stays
+            assertTrue(new File(backupDir, BackupJournal.LOCK_FILE).isFile());
+            assertTrue(journal.getRecords().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class BackupRepositoryTest {
+
+    private static final int SECTOR = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(7);
+    private File world;
+    private BackupRepository repository;
+
+    @Before
+    public void setUp() throws IOException {
+        world = folder.newFolder("world");
+        repository = new BackupRepository(folder.newFolder("repository"));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        write("level.dat", bytes(1234));
+        write("empty.dat", new byte[0]);
+        write("region/r.0.0.mca", region(new int[]{2, 3, 5, 9}, new int[]{1, 2, 3, 1}, 500));
+        write("region/r.1.0.mca", new byte[100]); // Shorter than a header, stored whole
+        write("region/r.2.0.mca", region(new int[]{4, 2}, new int[]{1, 2}, 0)); // Chunks out of order
+
+        final BackupRepository.Index index = store(null);
+        assertEquals(5, index.files.size());
+        assertRestores(index);
+        assertNotNull(entry(index, "region/r.0.0.mca").recipe);
+        assertNull(entry(index, "region/r.1.0.mca").recipe);
+    }
+
+    @Test
+    public void testChangedChunkOnly() throws IOException {
+        final byte[] region = region(new int[]{2, 3, 5}, new int[]{1, 2, 1}, 0);
+        write("region/r.0.0.mca", region);
+        write("level.dat", bytes(100));
+        final BackupRepository.Index first = store(null);
+        final int objects = countObjects();
+        final byte[] original = region.clone();
+
+        // Change one chunk, the header and the other chunks are shared with the first backup
+        System.arraycopy(bytes(SECTOR), 0, region, 5 * SECTOR, SECTOR);
+        write("region/r.0.0.mca", region);
+        final BackupRepository.Index second = store(first);
+        assertRestores(second);
+        assertEquals(entry(first, "level.dat").blob, entry(second, "level.dat").blob);
+        assertEquals(objects + 2, countObjects()); // The new chunk and the new recipe
+        // The first backup still restores as it was
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        repository.restore(entry(first, "region/r.0.0.mca"), out);
+        assertArrayEquals(original, out.toByteArray());
+    }
+
+    private BackupRepository.Index store(BackupRepository.Index parent) throws IOException {
+        final List<ParallelArchiver.Source> sources = ParallelArchiver.collect(world, PathFilter.ALL, 1);
+        return repository.store(sources, parent, 2, new BackupMetrics().getProgress());
+    }
+
+    private void assertRestores(BackupRepository.Index index) throws IOException {
+        final Map<String, byte[]> expected = new HashMap<>();
+        for (BackupRepository.FileEntry entry : index.files) {
+            expected.put(entry.path, Files.toByteArray(new File(world, entry.path)));
+        }
+        for (BackupRepository.FileEntry entry : index.files) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            repository.restore(entry, out);
+            assertArrayEquals(entry.path, expected.get(entry.path), out.toByteArray());
+        }
+    }
+
+    private int countObjects() {
+        int count = 0;
+        final File[] directories = new File(folder.getRoot(), "repository/objects").listFiles();
+        for (File directory : directories == null ? new File[0] : directories) {
+            final String[] names = directory.list();
+            count += names == null ? 0 : names.length;
+        }
+        return count;
+    }
+
+    private static BackupRepository.FileEntry entry(BackupRepository.Index index, String path) {
+        for (BackupRepository.FileEntry entry : index.files) {
+            if (entry.path.equals(path)) return entry;
+        }
+        throw new AssertionError("No entry " + path);
+    }
+
+    private void write(String path, byte[] data) throws IOException {
+        final File file = new File(world, path);
+        Files.createParentDirs(file);
+        Files.write(data, file);
+    }
+
+    private byte[] bytes(int length) {
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * @param offsets the first sector of every chunk
+     * @param sizes   the sectors of every chunk
+     * @param tail    bytes after the last full sector
+     *
+     * @return a region file with random chunk data, unused sectors and a cut off end
+     */
+    private byte[] region(int[] offsets, int[] sizes, int tail) {
+        int sectors = 2;
+        for (int i = 0; i < offsets.length; i++) {
+            sectors = Math.max(sectors, offsets[i] + sizes[i]);
+        }
+        final byte[] data = bytes(sectors * SECTOR + tail);
+        final ByteBuffer header = ByteBuffer.wrap(data, 0, 2 * SECTOR);
+        for (int i = 0; i < SECTOR / 4; i++) {
+            header.putInt(i < offsets.length ? offsets[i] << 8 | sizes[i] : 0);
+        }
+        return data;
+    }
+}
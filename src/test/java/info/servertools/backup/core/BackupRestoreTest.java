@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class BackupRestoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStagesBackup() throws IOException {
+        final File backupDir = folder.newFolder("backups");
+        final File world = new File(folder.getRoot(), "world");
+        writeBackup(new File(backupDir, "backup.zip"), "region/r.0.0.mca");
+
+        final BackupRestore restore = new BackupRestore(backupDir, world, null, 2);
+        assertEquals(1, restore.stage("backup.zip").files);
+        assertTrue(restore.isStaged());
+        assertArrayEquals("region/r.0.0.mca".getBytes(Charsets.UTF_8), Files.toByteArray(new File(folder.getRoot(), "world_restore/region/r.0.0.mca")));
+    }
+
+    @Test
+    public void testRefusesEntriesOutsideTheWorld() throws IOException {
+        final File backupDir = folder.newFolder("backups");
+        final File world = new File(folder.getRoot(), "world");
+        writeBackup(new File(backupDir, "backup.zip"), "region/../../evil.dat");
+
+        final BackupRestore restore = new BackupRestore(backupDir, world, null, 2);
+        try {
+            restore.stage("backup.zip");
+            fail("Restored an entry outside of the world");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("outside of the world"));
+        }
+        assertFalse(new File(folder.getRoot(), "evil.dat").exists());
+        assertFalse(restore.isStaged());
+    }
+
+    @Test
+    public void testRefusesAbsoluteEntries() throws IOException {
+        final File backupDir = folder.newFolder("backups");
+        final File world = new File(folder.getRoot(), "world");
+        final File outside = new File(folder.getRoot(), "absolute.dat");
+        writeBackup(new File(backupDir, "backup.zip"), outside.getAbsolutePath());
+
+        try {
+            new BackupRestore(backupDir, world, null, 2).stage("backup.zip");
+            fail("Restored an absolute entry");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("outside of the world"));
+        }
+        assertFalse(outside.exists());
+    }
+
+    /** Write a full backup holding a single file, whose contents are its name */
+    private static void writeBackup(File archive, String name) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive))) {
+            zip.putNextEntry(new ZipEntry(Backup.DataFile.FILE_NAME));
+            zip.write("{\"kind\":\"full\"}".getBytes(Charsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(name.getBytes(Charsets.UTF_8));
+            zip.closeEntry();
+        }
+    }
+}
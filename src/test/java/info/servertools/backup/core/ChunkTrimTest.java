@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static info.servertools.backup.core.TestRegion.SECTOR;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class ChunkTrimTest {
+
+    private static final String REGION = "region/r.0.0.mca";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadsInhabitedTime() throws IOException {
+        final File world = folder.newFolder("world");
+        writeRegion(new File(world, REGION));
+        final ParallelArchiver.Source source = source(world, REGION);
+
+        BitSet keep = keep(ChunkTrim.create(1000, Collections.<String>emptyList()), source);
+        assertEquals(bits(2, 3, 4, 5), keep);
+
+        // Chunk 0 lies in the area, chunk 1 is the next one along x
+        keep = keep(ChunkTrim.create(1000, Arrays.asList("DIM-1:0,0,15,15", "overworld:15,15,0,0")), source);
+        assertEquals(bits(0, 2, 3, 4, 5), keep);
+        keep = keep(ChunkTrim.create(1000, Collections.singletonList("dim-1:0,0,15,15")), source);
+        assertEquals(bits(2, 3, 4, 5), keep);
+    }
+
+    @Test
+    public void testTrimmedChunksAreClearedFromTheHeader() throws IOException {
+        final File world = folder.newFolder("world");
+        final File file = new File(world, REGION);
+        final TestRegion region = writeRegion(file);
+        final BitSet keep = keep(ChunkTrim.create(1000, Collections.<String>emptyList()), source(world, REGION));
+
+        final RegionCompactor.Layout layout = RegionCompactor.plan(file, file.length(), keep);
+        assertNotNull(layout);
+        assertEquals(2, layout.trimmed);
+        assertEquals(2 * SECTOR, layout.trimmedBytes);
+        final byte[] copy;
+        try (InputStream in = layout.open(file)) {
+            copy = ByteStreams.toByteArray(in);
+        }
+        assertEquals(layout.length, copy.length);
+        for (int index = 0; index < 2; index++) {
+            assertEquals(0, TestRegion.location(copy, index));
+            assertEquals(0, TestRegion.timestamp(copy, index));
+        }
+        for (int index = 2; index < 6; index++) {
+            final int location = TestRegion.location(copy, index);
+            assertEquals(index + 100, TestRegion.timestamp(copy, index));
+            final int sector = location >>> 8;
+            assertArrayEquals(region.sectors(index), Arrays.copyOfRange(copy, sector * SECTOR, (sector + (location & 0xFF)) * SECTOR));
+        }
+    }
+
+    @Test
+    public void testCacheKeepsRegionsThatWereNotRead() throws IOException {
+        final File world = folder.newFolder("world");
+        final File backupDir = folder.newFolder("backups");
+        final ChunkTrim trim = ChunkTrim.create(1000, Collections.<String>emptyList());
+        writeRegion(new File(world, REGION));
+        writeRegion(new File(world, "region/r.0.1.mca"));
+        final ParallelArchiver.Source changed = source(world, REGION);
+        final ParallelArchiver.Source unchanged = source(world, "region/r.0.1.mca");
+
+        RegionCompactor.compact(Arrays.asList(changed, unchanged), trim, world, backupDir, 1, BackupThrottle.NONE);
+        // An incremental backup only reads the region that changed
+        RegionCompactor.compact(Collections.singletonList(changed), trim, world, backupDir, 1, BackupThrottle.NONE);
+        assertEquals(bits(2, 3, 4, 5), ChunkTrim.Cache.load(backupDir, trim).get(unchanged));
+
+        assertTrue(new File(world, "region/r.0.1.mca").delete());
+        RegionCompactor.compact(Collections.singletonList(changed), trim, world, backupDir, 1, BackupThrottle.NONE);
+        assertNull(ChunkTrim.Cache.load(backupDir, trim).get(unchanged));
+        assertNotNull(ChunkTrim.Cache.load(backupDir, trim).get(changed));
+    }
+
+    /**
+     * Write a region whose chunks 0 to 5 have the inhabited times 0, 999 and 1000, 50000 in a GZIP chunk, garbage and
+     * none at all. Their timestamps are the index plus 100, with gaps between them so the region can be compacted.
+     */
+    private static TestRegion writeRegion(File file) throws IOException {
+        final byte[] garbage = new byte[300];
+        Arrays.fill(garbage, (byte) 0x7F);
+        final TestRegion region = new TestRegion()
+                .chunk(0, 2, 1, 100, chunk(0L, false))
+                .chunk(1, 4, 1, 101, chunk(999L, false))
+                .chunk(2, 6, 1, 102, chunk(1000L, false))
+                .chunk(3, 8, 1, 103, chunk(50000L, true))
+                .chunk(4, 10, 1, 104, garbage)
+                .chunk(5, 12, 1, 105, chunk(null, false));
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        region.write(file);
+        return region;
+    }
+
+    /** @return a chunk as it is stored in a region file, with a few tags that have to be skipped before the inhabited time */
+    private static byte[] chunk(Long inhabitedTime, boolean gzip) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DataOutputStream nbt = new DataOutputStream(gzip ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed))) {
+            tag(nbt, 10, "");
+            tag(nbt, 10, "Level");
+            tag(nbt, 3, "xPos");
+            nbt.writeInt(0);
+            tag(nbt, 7, "Biomes");
+            nbt.writeInt(256);
+            nbt.write(new byte[256]);
+            tag(nbt, 9, "Entities");
+            nbt.writeByte(10);
+            nbt.writeInt(1);
+            tag(nbt, 8, "id");
+            nbt.writeUTF("Pig");
+            tag(nbt, 6, "Health");
+            nbt.writeDouble(10);
+            nbt.writeByte(0);
+            tag(nbt, 11, "HeightMap");
+            nbt.writeInt(256);
+            nbt.write(new byte[4 * 256]);
+            tag(nbt, 4, "LastUpdate");
+            nbt.writeLong(123456);
+            if (inhabitedTime != null) {
+                tag(nbt, 4, "InhabitedTime");
+                nbt.writeLong(inhabitedTime);
+            }
+            nbt.writeByte(0);
+            nbt.writeByte(0);
+        }
+        final ByteBuffer chunk = ByteBuffer.allocate(5 + compressed.size());
+        chunk.putInt(compressed.size() + 1).put((byte) (gzip ? 1 : 2)).put(compressed.toByteArray());
+        return chunk.array();
+    }
+
+    private static void tag(DataOutputStream nbt, int type, String name) throws IOException {
+        nbt.writeByte(type);
+        nbt.writeUTF(name);
+    }
+
+    private BitSet keep(ChunkTrim trim, ParallelArchiver.Source source) throws IOException {
+        final BitSet keep = trim.keep(source, ChunkTrim.Cache.load(folder.getRoot(), trim), BackupThrottle.NONE);
+        assertNotNull(keep);
+        return keep;
+    }
+
+    private static ParallelArchiver.Source source(File world, String name) throws IOException {
+        for (ParallelArchiver.Source source : ParallelArchiver.collect(world, PathFilter.ALL, 1)) {
+            if (source.name.equals(name)) return source;
+        }
+        throw new AssertionError(name + " is missing");
+    }
+
+    private static BitSet bits(int... indexes) {
+        final BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+}
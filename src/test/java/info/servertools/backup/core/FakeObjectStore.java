@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+/**
+ * An S3 compatible object store that only knows multipart uploads, running on the loopback interface. It records every
+ * request and can answer the next request of a method with an error.
+ */
+final class FakeObjectStore implements HttpHandler, Closeable {
+
+    private static final Pattern PART = Pattern.compile("<Part><PartNumber>([0-9]+)</PartNumber><ETag>([^<]+)</ETag></Part>");
+    private static final Pattern PART_QUERY = Pattern.compile("partNumber=([0-9]+)&uploadId=(.+)");
+
+    private final HttpServer server;
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+
+    FakeObjectStore() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this);
+        server.start();
+    }
+
+    /** @return the URL of a path in the store, like {@code bucket/prefix} */
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + path;
+    }
+
+    /** @return the value of the host header the requests are signed with */
+    String getHost() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /** Answer the next request with a method with an error, instead of handling it */
+    void failNext(String method, int code) {
+        failures.put(method, code);
+    }
+
+    /** @return every request so far, in the order they arrived */
+    List<Request> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    /** @return the requests with a method */
+    List<Request> getRequests(String method) {
+        final List<Request> result = new ArrayList<>();
+        for (Request request : getRequests()) {
+            if (request.method.equals(method)) result.add(request);
+        }
+        return result;
+    }
+
+    /**
+     * @param path the path of the object, with the bucket
+     *
+     * @return the contents of a completed upload, or {@code null} if there is none
+     */
+    @Nullable
+    byte[] getObject(String path) {
+        return objects.get("/" + path);
+    }
+
+    /** @return the number of objects */
+    int getObjectCount() {
+        return objects.size();
+    }
+
+    /** @return the number of uploads that were neither completed nor aborted */
+    int getOpenUploads() {
+        return uploads.size();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        final byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = ByteStreams.toByteArray(in);
+        }
+        final String method = exchange.getRequestMethod();
+        final String path = exchange.getRequestURI().getRawPath();
+        final String query = exchange.getRequestURI().getRawQuery() == null ? "" : exchange.getRequestURI().getRawQuery();
+        requests.add(new Request(method, path, query, exchange.getRequestHeaders(), body));
+
+        final Integer failure = failures.remove(method);
+        if (failure != null) {
+            respond(exchange, failure, "<Error><Code>InternalError</Code></Error>");
+        } else if (method.equals("POST") && query.equals("uploads=")) {
+            final String uploadId = "upload-" + uploadIds.incrementAndGet();
+            uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+            respond(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        } else if (method.equals("PUT")) {
+            final Matcher matcher = PART_QUERY.matcher(query);
+            final SortedMap<Integer, byte[]> parts = matcher.matches() ? uploads.get(matcher.group(2)) : null;
+            if (parts == null) {
+                respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                return;
+            }
+            parts.put(Integer.parseInt(matcher.group(1)), body);
+            exchange.getResponseHeaders().add("ETag", etag(body));
+            respond(exchange, 200, "");
+        } else if (method.equals("POST") && query.startsWith("uploadId=")) {
+            final SortedMap<Integer, byte[]> parts = uploads.remove(query.substring("uploadId=".length()));
+            if (parts == null) {
+                respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                return;
+            }
+            final ByteArrayOutputStream object = new ByteArrayOutputStream();
+            final Matcher matcher = PART.matcher(new String(body, Charsets.UTF_8));
+            int expected = 1;
+            while (matcher.find()) {
+                final byte[] part = parts.get(Integer.parseInt(matcher.group(1)));
+                if (Integer.parseInt(matcher.group(1)) != expected++ || part == null || !etag(part).equals(matcher.group(2))) {
+                    // S3 answers 200 and puts the error in the body once it started completing an upload
+                    respond(exchange, 200, "<Error><Code>InvalidPart</Code></Error>");
+                    return;
+                }
+                object.write(part);
+            }
+            objects.put(path, object.toByteArray());
+            respond(exchange, 200, "<CompleteMultipartUploadResult><Key>" + path + "</Key></CompleteMultipartUploadResult>");
+        } else if (method.equals("DELETE") && query.startsWith("uploadId=")) {
+            uploads.remove(query.substring("uploadId=".length()));
+            respond(exchange, 204, "");
+        } else {
+            respond(exchange, 400, "<Error><Code>InvalidRequest</Code></Error>");
+        }
+    }
+
+    private static String etag(byte[] data) {
+        return '"' + Hashing.md5().hashBytes(data).toString() + '"';
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        final byte[] bytes = body.getBytes(Charsets.UTF_8);
+        if (bytes.length == 0) {
+            // Without a body the response stream is closed already
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    /** A request as the store got it */
+    static final class Request {
+        final String method;
+        /** The path as it was sent, percent-encoded */
+        final String path;
+        /** The query as it was sent, percent-encoded */
+        final String query;
+        final Headers headers;
+        final byte[] body;
+
+        Request(String method, String path, String query, Headers headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+}
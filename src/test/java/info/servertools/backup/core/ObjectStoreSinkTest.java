@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class ObjectStoreSinkTest {
+
+    private static final String REGION = "eu-west-1";
+    private static final String ACCESS_KEY = "AKIDEXAMPLE";
+    private static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+    private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+
+    private FakeObjectStore store;
+
+    @Before
+    public void startStore() throws IOException {
+        store = new FakeObjectStore();
+    }
+
+    @After
+    public void stopStore() {
+        store.close();
+    }
+
+    @Test
+    public void testMultipartUploadIsSigned() throws IOException {
+        final ObjectStoreSink sink = new ObjectStoreSink(store.getUrl("bucket/backups"), REGION, ACCESS_KEY, SECRET_KEY, ObjectStoreSink.MIN_PART_SIZE);
+        final byte[] data = random(2 * ObjectStoreSink.MIN_PART_SIZE + 12345);
+        upload(sink, "world/2014-08-01 12.00.zip", data);
+
+        assertArrayEquals(data, store.getObject("bucket/backups/world/2014-08-01%2012.00.zip"));
+        final List<FakeObjectStore.Request> requests = store.getRequests();
+        assertEquals(5, requests.size());
+        assertEquals("POST", requests.get(0).method);
+        assertEquals("uploads=", requests.get(0).query);
+        for (int i = 1; i <= 3; i++) {
+            assertEquals("PUT", requests.get(i).method);
+            assertEquals("partNumber=" + i + "&uploadId=upload-1", requests.get(i).query);
+        }
+        assertEquals(ObjectStoreSink.MIN_PART_SIZE, requests.get(1).body.length);
+        assertEquals(12345, requests.get(3).body.length);
+        assertEquals("POST", requests.get(4).method);
+        assertEquals("uploadId=upload-1", requests.get(4).query);
+        for (FakeObjectStore.Request request : requests) {
+            assertEquals("/bucket/backups/world/2014-08-01%2012.00.zip", request.path);
+            assertSigned(request);
+        }
+    }
+
+    @Test
+    public void testUnsignedRequestsHaveNoAuthorization() throws IOException {
+        final ObjectStoreSink sink = new ObjectStoreSink(store.getUrl("bucket"), REGION, null, null, ObjectStoreSink.MIN_PART_SIZE);
+        final byte[] data = random(1000);
+        upload(sink, "backup.zip", data);
+
+        assertArrayEquals(data, store.getObject("bucket/backup.zip"));
+        for (FakeObjectStore.Request request : store.getRequests()) {
+            assertNull(request.headers.getFirst("Authorization"));
+            assertEquals(Hashing.sha256().hashBytes(request.body).toString(), request.headers.getFirst("x-amz-content-sha256"));
+        }
+    }
+
+    @Test
+    public void testServerErrorIsRetried() throws IOException {
+        final ObjectStoreSink sink = new ObjectStoreSink(store.getUrl("bucket"), REGION, ACCESS_KEY, SECRET_KEY, ObjectStoreSink.MIN_PART_SIZE);
+        final byte[] data = random(ObjectStoreSink.MIN_PART_SIZE + 1);
+        store.failNext("PUT", 500);
+        upload(sink, "backup.zip", data);
+
+        assertArrayEquals(data, store.getObject("bucket/backup.zip"));
+        final List<FakeObjectStore.Request> puts = store.getRequests("PUT");
+        assertEquals(3, puts.size());
+        assertEquals("partNumber=1&uploadId=upload-1", puts.get(0).query);
+        assertEquals("partNumber=1&uploadId=upload-1", puts.get(1).query);
+        assertArrayEquals(puts.get(0).body, puts.get(1).body);
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() throws IOException {
+        final ObjectStoreSink sink = new ObjectStoreSink(store.getUrl("bucket"), REGION, ACCESS_KEY, SECRET_KEY, ObjectStoreSink.MIN_PART_SIZE);
+        store.failNext("POST", 403);
+        try {
+            sink.begin("backup.zip");
+            fail("The upload started although the store refused it");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("403"));
+        }
+        assertEquals(1, store.getRequests().size());
+    }
+
+    @Test
+    public void testAbortDeletesTheUpload() throws IOException {
+        final ObjectStoreSink sink = new ObjectStoreSink(store.getUrl("bucket"), REGION, ACCESS_KEY, SECRET_KEY, ObjectStoreSink.MIN_PART_SIZE);
+        final byte[] data = random(ObjectStoreSink.MIN_PART_SIZE + 1);
+        final BackupSink.Upload upload = sink.begin("backup.zip");
+        upload.write(data, 0, data.length);
+        upload.abort();
+
+        final List<FakeObjectStore.Request> deletes = store.getRequests("DELETE");
+        assertEquals(1, deletes.size());
+        assertEquals("uploadId=upload-1", deletes.get(0).query);
+        assertSigned(deletes.get(0));
+        assertEquals(0, store.getOpenUploads());
+        assertEquals(0, store.getObjectCount());
+    }
+
+    private static void upload(BackupSink sink, String path, byte[] data) throws IOException {
+        final BackupSink.Upload upload = sink.begin(path);
+        // Writes that don't line up with the parts
+        for (int offset = 0; offset < data.length; offset += 100000) {
+            upload.write(data, offset, Math.min(100000, data.length - offset));
+        }
+        upload.commit();
+    }
+
+    /** Check the Signature Version 4 headers against the request as the store got it */
+    private void assertSigned(FakeObjectStore.Request request) throws IOException {
+        final String payloadHash = Hashing.sha256().hashBytes(request.body).toString();
+        assertEquals(payloadHash, request.headers.getFirst("x-amz-content-sha256"));
+        final String time = request.headers.getFirst("x-amz-date");
+        assertTrue(time, time.matches("[0-9]{8}T[0-9]{6}Z"));
+        assertEquals(store.getHost(), request.headers.getFirst("Host"));
+
+        final String scope = time.substring(0, 8) + '/' + REGION + "/s3/aws4_request";
+        final String canonicalRequest = request.method + '\n' + request.path + '\n' + request.query + '\n' +
+                                        "host:" + store.getHost() + '\n' + "x-amz-content-sha256:" + payloadHash + '\n' + "x-amz-date:" + time +
+                                        "\n\n" + SIGNED_HEADERS + '\n' + payloadHash;
+        final String stringToSign = "AWS4-HMAC-SHA256\n" + time + '\n' + scope + '\n' + Hashing.sha256().hashString(canonicalRequest, Charsets.UTF_8);
+        byte[] key = hmac(("AWS4" + SECRET_KEY).getBytes(Charsets.UTF_8), time.substring(0, 8));
+        key = hmac(key, REGION);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        assertEquals("AWS4-HMAC-SHA256 Credential=" + ACCESS_KEY + '/' + scope + ", SignedHeaders=" + SIGNED_HEADERS +
+                     ", Signature=" + BaseEncoding.base16().lowerCase().encode(hmac(key, stringToSign)), request.headers.getFirst("Authorization"));
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(Charsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] random(int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
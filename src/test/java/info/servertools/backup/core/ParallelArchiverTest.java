@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+public class ParallelArchiverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testArchiveIsReadableByZipFile() throws IOException {
+        final File world = folder.newFolder("world");
+        final Map<String, byte[]> files = createFiles(world);
+        final File archive = new File(folder.getRoot(), "backup.zip");
+        new ParallelArchiver(3, 6).archive(world, archive, PathFilter.ALL);
+        assertArchive(archive, files);
+    }
+
+    @Test
+    public void testStoredBlocksAndSmallBuffers() throws IOException {
+        final File world = folder.newFolder("world");
+        final Map<String, byte[]> files = createFiles(world);
+        final File archive = new File(folder.getRoot(), "backup.zip");
+        // Random blocks are stored instead of deflated, and two buffers make the reader wait for every block
+        new ParallelArchiver(2, new CompressionPolicy(9, 1, true), BackupThrottle.NONE, 1).archive(world, archive, PathFilter.ALL);
+        assertArchive(archive, files);
+    }
+
+    /** @return the contents of the files that were created, by their path */
+    private static Map<String, byte[]> createFiles(File world) throws IOException {
+        final Random random = new Random(42);
+        final Map<String, byte[]> files = new HashMap<>();
+        files.put("level.dat", new byte[]{1, 2, 3});
+        files.put("empty.txt", new byte[0]);
+        final byte[] text = new byte[3 * ParallelArchiver.BLOCK_SIZE + 12345];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(4));
+        }
+        files.put("data/text.dat", text);
+        final byte[] noise = new byte[2 * ParallelArchiver.BLOCK_SIZE + 7];
+        random.nextBytes(noise);
+        files.put("region/r.0.0.mca", noise);
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            final File file = new File(world, entry.getKey());
+            Files.createParentDirs(file);
+            Files.write(entry.getValue(), file);
+        }
+        assertTrue(new File(world, "DIM-1/region").mkdirs());
+        return files;
+    }
+
+    private static void assertArchive(File archive, Map<String, byte[]> files) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                final ZipEntry entry = zipFile.getEntry(file.getKey());
+                assertNotNull(file.getKey(), entry);
+                assertEquals(file.getValue().length, entry.getSize());
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    assertArrayEquals(file.getKey(), file.getValue(), ByteStreams.toByteArray(in));
+                }
+            }
+            assertNotNull(zipFile.getEntry("DIM-1/region/"));
+            assertNotNull(zipFile.getEntry(ArchiveChecksums.FILE_NAME));
+        }
+        // Files of more than one block end in a data descriptor, which a stream reader checks against the data
+        int read = 0;
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                final byte[] data = ByteStreams.toByteArray(in);
+                if (files.containsKey(entry.getName())) {
+                    assertArrayEquals(entry.getName(), files.get(entry.getName()), data);
+                    read++;
+                }
+            }
+        }
+        assertEquals(files.size(), read);
+    }
+}
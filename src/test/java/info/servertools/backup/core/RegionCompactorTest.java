@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static info.servertools.backup.core.TestRegion.SECTOR;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.annotation.Nullable;
+
+public class RegionCompactorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompactsAroundGaps() throws IOException {
+        // The highest index, the most sectors a chunk can have and a sector past what fits in 12 bits
+        final TestRegion region = new TestRegion()
+                .chunk(1023, 2, 1, 111)
+                .chunk(0, 5, 2, 222)
+                .chunk(37, 10, 255, 333)
+                .chunk(512, 5000, 1, 444);
+        final File file = folder.newFile("r.0.0.mca");
+        region.write(file);
+
+        final RegionCompactor.Layout layout = RegionCompactor.plan(file, file.length(), null);
+        assertNotNull(layout);
+        assertEquals((2 + 1 + 2 + 255 + 1) * SECTOR, layout.length);
+        assertEquals(0, layout.trimmed);
+        final byte[] copy = read(layout, file);
+        assertEquals(layout.length, copy.length);
+
+        // In the order of the original file, which isn't the order of the indexes
+        assertChunk(copy, region, 1023, 2, 1, 111);
+        assertChunk(copy, region, 0, 3, 2, 222);
+        assertChunk(copy, region, 37, 5, 255, 333);
+        assertChunk(copy, region, 512, 260, 1, 444);
+        assertEquals(0, TestRegion.location(copy, 1));
+        assertEquals(0, TestRegion.timestamp(copy, 1));
+
+        // Reads that start and end anywhere give the same copy
+        final byte[] pieces = new byte[copy.length];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int position = 0; position < pieces.length; position += 1000) {
+                final ByteBuffer buffer = ByteBuffer.wrap(pieces, position, Math.min(1000, pieces.length - position));
+                assertEquals(buffer.remaining(), layout.read(channel, buffer, position));
+            }
+        }
+        assertArrayEquals(copy, pieces);
+    }
+
+    @Test
+    public void testCutShortLastSectorReadsAsZeros() throws IOException {
+        final byte[] data = new byte[5000];
+        new Random(1).nextBytes(data);
+        final TestRegion region = new TestRegion()
+                .chunk(0, 2, 1, 1)
+                .chunk(1, 5, 2, 2, data);
+        final File file = folder.newFile("r.0.0.mca");
+        region.write(file, 5 * SECTOR + data.length);
+
+        final RegionCompactor.Layout layout = RegionCompactor.plan(file, file.length(), null);
+        assertNotNull(layout);
+        assertEquals(5 * SECTOR, layout.length);
+        final byte[] copy = new byte[(int) layout.length];
+        Arrays.fill(copy, (byte) 0x55);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            assertEquals(copy.length, layout.read(channel, ByteBuffer.wrap(copy), 0));
+        }
+        assertChunk(copy, region, 1, 3, 2, 2);
+    }
+
+    @Test
+    public void testDamagedRegionsAreNotCompacted() throws IOException {
+        assertNull(plan(new TestRegion().chunk(0, 2, 2, 1).chunk(1, 3, 1, 1).chunk(2, 10, 1, 1), -1)); // Overlapping
+        assertNull(plan(new TestRegion().chunk(0, 2, 1, 1).chunk(1, 10, 2, 1), 10 * SECTOR + 100)); // Past the end
+        assertNull(plan(new TestRegion().chunk(0, 1, 1, 1).chunk(1, 10, 1, 1), -1)); // In the header
+        assertNull(plan(new TestRegion().chunk(0, 10, 0, 1), 11 * SECTOR)); // No sectors
+        assertNull(plan(new TestRegion(), 100)); // Shorter than the header
+        assertNull(plan(new TestRegion().chunk(0, 2, 1, 1).chunk(1, 3, 2, 1), -1)); // Nothing to save
+    }
+
+    @Nullable
+    private RegionCompactor.Layout plan(TestRegion region, long length) throws IOException {
+        final File file = folder.newFile();
+        if (length == -1) {
+            region.write(file);
+        } else {
+            region.write(file, length);
+        }
+        return RegionCompactor.plan(file, file.length(), null);
+    }
+
+    private static byte[] read(RegionCompactor.Layout layout, File file) throws IOException {
+        try (InputStream in = layout.open(file)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static void assertChunk(byte[] copy, TestRegion region, int index, int sector, int sectors, int timestamp) {
+        assertEquals(sector << 8 | sectors, TestRegion.location(copy, index));
+        assertEquals(timestamp, TestRegion.timestamp(copy, index));
+        assertArrayEquals(region.sectors(index), Arrays.copyOfRange(copy, sector * SECTOR, (sector + sectors) * SECTOR));
+    }
+}
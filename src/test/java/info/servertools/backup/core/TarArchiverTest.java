@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TarArchiverTest {
+
+    private static final long TIME = 1413612000000L;
+    private static final String LONG_NAME = "region/" + Strings.repeat("a", 120) + ".mca";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLz4RoundTrip() throws IOException {
+        roundTrip(ArchiveFormat.LZ4, 0);
+    }
+
+    @Test
+    public void testZstdRoundTrip() throws IOException {
+        roundTrip(ArchiveFormat.ZSTD, 3);
+    }
+
+    @Test
+    public void testNonAsciiNames() throws IOException {
+        // Written to the stream directly, file names on disk depend on the platform encoding
+        final String[] names = {"data/k\u00e4rte_\u5730\u56f3.dat", "region/" + Strings.repeat("\u00fc", 60) + ".mca", "plain.dat"};
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarStreamWriter tar = new TarStreamWriter(out)) {
+            tar.writeDirectory("d\u00efr/", TIME);
+            for (String name : names) {
+                final byte[] data = name.getBytes(Charsets.UTF_8);
+                tar.putNextEntry(name, data.length, TIME);
+                tar.write(data, 0, data.length);
+                tar.closeEntry();
+            }
+        }
+
+        try (TarArchiveReader reader = new TarArchiveReader(new ByteArrayInputStream(out.toByteArray()))) {
+            ArchiveReader.Entry entry = reader.nextEntry();
+            assertNotNull(entry);
+            assertEquals("d\u00efr/", entry.name);
+            assertTrue(entry.directory);
+            for (String name : names) {
+                entry = reader.nextEntry();
+                assertNotNull(entry);
+                assertEquals(name, entry.name);
+                assertEquals(TIME, entry.lastModified);
+                assertArrayEquals(name.getBytes(Charsets.UTF_8), ByteStreams.toByteArray(reader.getInputStream()));
+            }
+            assertNull(reader.nextEntry());
+        }
+    }
+
+    @Test
+    public void testSizeOverOctalLimit() throws IOException {
+        // Only the headers are kept, the reader never gets to the data
+        final long size = 9L * 1024 * 1024 * 1024;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final TarStreamWriter tar = new TarStreamWriter(out);
+        tar.putNextEntry("huge.dat", size, TIME);
+
+        final TarArchiveReader reader = new TarArchiveReader(new ByteArrayInputStream(out.toByteArray()));
+        final ArchiveReader.Entry entry = reader.nextEntry();
+        assertNotNull(entry);
+        assertEquals("huge.dat", entry.name);
+        assertEquals(size, entry.size);
+        assertFalse(entry.directory);
+    }
+
+    @Test
+    public void testSizeAtOctalLimitNeedsNoPax() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final TarStreamWriter tar = new TarStreamWriter(out);
+        tar.putNextEntry("big.dat", 077777777777L, TIME);
+        assertEquals(TarStreamWriter.BLOCK, out.size());
+
+        final ArchiveReader.Entry entry = new TarArchiveReader(new ByteArrayInputStream(out.toByteArray())).nextEntry();
+        assertNotNull(entry);
+        assertEquals(077777777777L, entry.size);
+    }
+
+    private void roundTrip(ArchiveFormat format, int level) throws IOException {
+        final File world = folder.newFolder("world");
+        final Map<String, byte[]> files = new HashMap<>();
+        files.put("level.dat", "level".getBytes(Charsets.UTF_8));
+        files.put(LONG_NAME, new byte[70000]);
+        files.put("data/villages.dat", "villages".getBytes(Charsets.UTF_8));
+        files.put("empty.dat", new byte[0]);
+        for (int i = 0; i < 70000; i++) {
+            files.get(LONG_NAME)[i] = (byte) (i % 251);
+        }
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            final File target = new File(world, file.getKey());
+            Files.createParentDirs(target);
+            Files.write(file.getValue(), target);
+        }
+        assertTrue(new File(world, "DIM-1").mkdir());
+
+        // Named like a ZIP file, the format is found from the magic bytes and not the name
+        final File archive = folder.newFile("backup.zip");
+        final TarArchiver archiver = new TarArchiver(format, level, BackupThrottle.NONE);
+        final long crc = archiver.archive(ParallelArchiver.collect(world, PathFilter.ALL, 1), archive, "a comment", null, null, null);
+        assertEquals(format, ArchiveFormat.detect(archive));
+
+        final Map<String, byte[]> read = new HashMap<>();
+        boolean directory = false;
+        boolean checksums = false;
+        try (ArchiveReader reader = ArchiveFormat.open(archive)) {
+            assertEquals("a comment", reader.getComment());
+            ArchiveReader.Entry entry;
+            while ((entry = reader.nextEntry()) != null) {
+                if (entry.name.equals(ArchiveChecksums.FILE_NAME)) {
+                    checksums = true;
+                } else if (entry.directory) {
+                    directory |= entry.name.equals("DIM-1/");
+                } else {
+                    final byte[] data = ByteStreams.toByteArray(reader.getInputStream());
+                    assertEquals(entry.name, data.length, entry.size);
+                    read.put(entry.name, data);
+                }
+            }
+        }
+        assertTrue(directory);
+        assertTrue(checksums);
+        assertEquals(files.keySet(), read.keySet());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(), read.get(file.getKey()));
+        }
+
+        assertNull(new BackupVerifier(BackupThrottle.NONE).verify(archive, Long.toHexString(crc)));
+        try (ArchiveReader reader = ArchiveFormat.open(archive)) {
+            assertTrue(ArchiveFormat.seek(reader, "data/villages.dat"));
+            assertArrayEquals(files.get("data/villages.dat"), ByteStreams.toByteArray(reader.getInputStream()));
+        }
+    }
+}
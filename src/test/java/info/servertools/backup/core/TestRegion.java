@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes region files with every chunk at a chosen sector, so the gaps Minecraft leaves behind can be laid out by hand.
+ * Each chunk fills its sectors with data of its own unless other data is given.
+ */
+final class TestRegion {
+
+    static final int SECTOR = 4096;
+    static final int CHUNKS = 1024;
+
+    private final int[] locations = new int[CHUNKS];
+    private final int[] timestamps = new int[CHUNKS];
+    private final Map<Integer, byte[]> data = new HashMap<>();
+
+    /** Put a chunk into the region, filling its sectors with data of its own */
+    TestRegion chunk(int index, int sector, int sectors, int timestamp) {
+        final byte[] bytes = new byte[sectors * SECTOR];
+        new Random(index).nextBytes(bytes);
+        return chunk(index, sector, sectors, timestamp, bytes);
+    }
+
+    /** Put a chunk into the region, the rest of its sectors is zero */
+    TestRegion chunk(int index, int sector, int sectors, int timestamp, byte[] bytes) {
+        locations[index] = sector << 8 | sectors;
+        timestamps[index] = timestamp;
+        data.put(index, bytes);
+        return this;
+    }
+
+    /** @return the sectors of a chunk as they are in the region file, before a cut-short file ends */
+    byte[] sectors(int index) {
+        final byte[] sectors = new byte[(locations[index] & 0xFF) * SECTOR];
+        System.arraycopy(data.get(index), 0, sectors, 0, data.get(index).length);
+        return sectors;
+    }
+
+    /** Write the region file, ending after the last sector of the last chunk */
+    void write(File file) throws IOException {
+        long end = 2 * SECTOR;
+        for (int location : locations) {
+            end = Math.max(end, (long) ((location >>> 8) + (location & 0xFF)) * SECTOR);
+        }
+        write(file, end);
+    }
+
+    /** Write the region file, cut off or padded to a length */
+    void write(File file, long length) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(2 * SECTOR);
+        for (int location : locations) {
+            header.putInt(location);
+        }
+        for (int timestamp : timestamps) {
+            header.putInt(timestamp);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(header.array());
+            for (Map.Entry<Integer, byte[]> chunk : data.entrySet()) {
+                raf.seek((long) (locations[chunk.getKey()] >>> 8) * SECTOR);
+                raf.write(chunk.getValue());
+            }
+            raf.setLength(length);
+        }
+    }
+
+    /** @return the offset in sectors and the sector count of a chunk in a region file header */
+    static int location(byte[] region, int index) {
+        return ByteBuffer.wrap(region).getInt(index * 4);
+    }
+
+    static int timestamp(byte[] region, int index) {
+        return ByteBuffer.wrap(region).getInt(SECTOR + index * 4);
+    }
+}
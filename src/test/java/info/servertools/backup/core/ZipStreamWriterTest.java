@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 ServerTools
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.backup.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+public class ZipStreamWriterTest {
+
+    private static final long TIME = 1413612000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEntriesAreReadable() throws IOException {
+        final byte[] stored = "stored entry".getBytes(Charsets.UTF_8);
+        final byte[] streamed = new byte[300000];
+        for (int i = 0; i < streamed.length; i++) {
+            streamed[i] = (byte) (i % 251);
+        }
+        final byte[] deflated = deflate(streamed, streamed.length, true);
+
+        final File file = folder.newFile("test.zip");
+        try (ZipStreamWriter zip = new ZipStreamWriter(new FileOutputStream(file))) {
+            zip.setComment("comment");
+            zip.writeDirectory("dir/", TIME);
+            zip.writeEntry("dir/stored.txt", TIME, ZipEntry.STORED, crc(stored), stored.length, stored.length, stored, 0, stored.length);
+            // Split in two writes, with the sizes only in the data descriptor
+            zip.putNextEntry("streamed.bin", TIME, ZipEntry.DEFLATED, streamed.length);
+            zip.write(deflated, 0, 1000);
+            zip.write(deflated, 1000, deflated.length - 1000);
+            zip.closeEntry(crc(streamed), streamed.length);
+        }
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertEquals(3, zipFile.size());
+            assertNotNull(zipFile.getEntry("dir/"));
+            assertArrayEquals(stored, read(zipFile, "dir/stored.txt"));
+            assertArrayEquals(streamed, read(zipFile, "streamed.bin"));
+            assertEquals(streamed.length, zipFile.getEntry("streamed.bin").getSize());
+            assertEquals(ZipStreamWriter.toDosTime(TIME), ZipStreamWriter.toDosTime(zipFile.getEntry("dir/stored.txt").getTime()));
+        }
+        // Reading the archive as a stream relies on the data descriptors, and checks their CRC and sizes
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(file))) {
+            assertEquals("dir/", in.getNextEntry().getName());
+            assertEquals("dir/stored.txt", in.getNextEntry().getName());
+            assertArrayEquals(stored, ByteStreams.toByteArray(in));
+            assertEquals("streamed.bin", in.getNextEntry().getName());
+            assertArrayEquals(streamed, ByteStreams.toByteArray(in));
+            assertEquals(null, in.getNextEntry());
+        }
+    }
+
+    @Test
+    public void testZip64Entries() throws IOException {
+        // 4 GB and one more block of zeros. Every block of zeros deflates to the same bytes when it ends on a sync
+        // flush, so the deflate stream is that block over and over, the way the ParallelArchiver builds it too.
+        final int blocks = 4097;
+        final long size = (long) blocks * ParallelArchiver.BLOCK_SIZE;
+        final byte[] zeros = new byte[ParallelArchiver.BLOCK_SIZE];
+        final byte[] block = deflate(zeros, zeros.length, false);
+        final byte[] end = deflate(zeros, 0, true);
+        final CRC32 crc32 = new CRC32();
+        for (int i = 0; i < blocks; i++) {
+            crc32.update(zeros);
+        }
+        final long crc = crc32.getValue();
+        final byte[] whole = new byte[block.length * blocks + end.length];
+        for (int i = 0; i < blocks; i++) {
+            System.arraycopy(block, 0, whole, i * block.length, block.length);
+        }
+        System.arraycopy(end, 0, whole, whole.length - end.length, end.length);
+        final byte[] small = "after the big entries".getBytes(Charsets.UTF_8);
+
+        final File file = folder.newFile("zip64.zip");
+        try (ZipStreamWriter zip = new ZipStreamWriter(new BufferedOutputStream(new FileOutputStream(file)))) {
+            zip.putNextEntry("streamed.bin", TIME, ZipEntry.DEFLATED, size);
+            for (int i = 0; i < blocks; i++) {
+                zip.write(block, 0, block.length);
+            }
+            zip.write(end, 0, end.length);
+            zip.closeEntry(crc, size);
+            zip.writeEntry("complete.bin", TIME, ZipEntry.DEFLATED, crc, size, whole.length, whole, 0, whole.length);
+            zip.writeEntry("small.txt", TIME, ZipEntry.STORED, crc(small), small.length, small.length, small, 0, small.length);
+        }
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            for (String name : Arrays.asList("streamed.bin", "complete.bin")) {
+                final ZipEntry entry = zipFile.getEntry(name);
+                assertEquals(size, entry.getSize());
+                assertEquals(crc, entry.getCrc());
+            }
+            assertArrayEquals(small, read(zipFile, "small.txt"));
+            final CRC32 read = new CRC32();
+            final byte[] buffer = new byte[1024 * 1024];
+            long total = 0;
+            try (InputStream in = zipFile.getInputStream(zipFile.getEntry("streamed.bin"))) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    read.update(buffer, 0, n);
+                    total += n;
+                }
+            }
+            assertEquals(size, total);
+            assertEquals(crc, read.getValue());
+        }
+        // The ZIP64 data descriptor has 8 byte sizes, a stream reader checks them against the data
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(file))) {
+            assertEquals("streamed.bin", in.getNextEntry().getName());
+            assertEquals(size, ByteStreams.copy(in, ByteStreams.nullOutputStream()));
+            assertEquals("complete.bin", in.getNextEntry().getName());
+        }
+    }
+
+    /** @return the raw deflate stream of the data, finished or ending on a sync flush */
+    private static byte[] deflate(byte[] data, int length, boolean finish) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data, 0, length);
+        if (finish) {
+            deflater.finish();
+        }
+        final byte[] buffer = new byte[length + 1024];
+        int written = 0;
+        while (finish ? !deflater.finished() : !deflater.needsInput() || written == 0) {
+            written += deflater.deflate(buffer, written, buffer.length - written, finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+        }
+        deflater.end();
+        return Arrays.copyOf(buffer, written);
+    }
+
+    private static long crc(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] read(ZipFile zipFile, String name) throws IOException {
+        try (InputStream in = zipFile.getInputStream(zipFile.getEntry(name))) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+}